@@ -7,8 +7,10 @@ include $(CLEAR_VARS)
 LOCAL_SRC_FILES := \
 	android/com_android_inputmethod_pinyin_PinyinDecoderService.cpp \
 	share/dictbuilder.cpp \
+	share/dictimage.cpp \
 	share/dictlist.cpp \
 	share/dicttrie.cpp \
+	share/lockeddict.cpp \
 	share/lpicache.cpp \
 	share/matrixsearch.cpp \
 	share/mystdlib.cpp \
@@ -19,6 +21,7 @@ LOCAL_SRC_FILES := \
 	share/spellingtrie.cpp \
 	share/splparser.cpp \
 	share/userdict.cpp \
+	share/userdictwriter.cpp \
 	share/utf16char.cpp \
 	share/utf16reader.cpp \
 	share/sync.cpp
@@ -33,9 +33,22 @@ using namespace ime_pinyin;
 
 #define RET_BUF_LEN 256
 
-static char16 retbuf[RET_BUF_LEN];
-static char16 (*predict_buf)[kMaxPredictSize + 1] = NULL;
-static size_t predict_len;
+// Scratch space for packed lists built on the native side.
+#define PACK_BUF_LEN 2048
+#define PACK_MAX_ITEMS 128
+
+// What a Java decoder handle points to, the buffers belong to one decoder
+// so that decoders can be used on different threads.
+struct JniDecoder {
+  DecoderHandle decoder;
+  char16 retbuf[RET_BUF_LEN];
+  char16 (*predict_buf)[kMaxPredictSize + 1];
+  size_t predict_len;
+  char16 pack_buf[PACK_BUF_LEN];
+  jint pack_offsets[PACK_MAX_ITEMS + 1];
+};
+
+static char16 sync_buf[RET_BUF_LEN];
 
 static Sync sync_worker;
 
@@ -45,16 +58,43 @@ static struct file_descriptor_offsets_t
   jfieldID mDescriptor;
 } gFileDescriptorOffsets;
 
-JNIEXPORT jboolean JNICALL nativeImOpenDecoder(JNIEnv* env, jclass jclazz,
-                                               jbyteArray fn_sys_dict,
-                                               jbyteArray fn_usr_dict) {
+static struct decoding_snapshot_offsets_t
+{
+  jclass mClass;
+  jmethodID mConstructor;
+} gDecodingSnapshotOffsets;
+
+static const char16 empty_str[1] = {0};
+
+static inline JniDecoder* get_decoder(jlong handle) {
+  return reinterpret_cast<JniDecoder*>(handle);
+}
+
+// NULL for handle 0, the im_*() functions do nothing then.
+static inline DecoderHandle decoder_of(jlong handle) {
+  JniDecoder *dec = get_decoder(handle);
+  return NULL == dec ? NULL : dec->decoder;
+}
+
+static jlong new_handle(DecoderHandle decoder) {
+  if (NULL == decoder)
+    return 0;
+
+  JniDecoder *dec = new JniDecoder();
+  dec->decoder = decoder;
+  dec->predict_buf = NULL;
+  dec->predict_len = 0;
+  return reinterpret_cast<jlong>(dec);
+}
+
+JNIEXPORT jlong JNICALL nativeImOpenDecoder(JNIEnv* env, jclass jclazz,
+                                            jbyteArray fn_sys_dict,
+                                            jbyteArray fn_usr_dict) {
   jbyte *fsd = (*env).GetByteArrayElements(fn_sys_dict, 0);
   jbyte *fud = (*env).GetByteArrayElements(fn_usr_dict, 0);
 
-  jboolean jret = JNI_FALSE;
-
-  if (im_open_decoder((const char*)fsd, (const char*)fud))
-    jret = JNI_TRUE;
+  jlong jret = new_handle(im_open_decoder((const char*)fsd,
+                                          (const char*)fud));
 
   (*env).ReleaseByteArrayElements(fn_sys_dict, fsd, 0);
   (*env).ReleaseByteArrayElements(fn_usr_dict, fud, 0);
@@ -62,19 +102,17 @@ JNIEXPORT jboolean JNICALL nativeImOpenDecoder(JNIEnv* env, jclass jclazz,
   return jret;
 }
 
-JNIEXPORT jboolean JNICALL nativeImOpenDecoderFd(JNIEnv* env, jclass jclazz,
-                                                 jobject fd_sys_dict,
-                                                 jlong startoffset,
-                                                 jlong length,
-                                                 jbyteArray fn_usr_dict) {
+JNIEXPORT jlong JNICALL nativeImOpenDecoderFd(JNIEnv* env, jclass jclazz,
+                                              jobject fd_sys_dict,
+                                              jlong startoffset,
+                                              jlong length,
+                                              jbyteArray fn_usr_dict) {
   jint fd = env->GetIntField(fd_sys_dict, gFileDescriptorOffsets.mDescriptor);
   jbyte *fud = (*env).GetByteArrayElements(fn_usr_dict, 0);
 
-  jboolean jret = JNI_FALSE;
-
   int newfd = dup(fd);
-  if (im_open_decoder_fd(newfd, startoffset, length, (const char*)fud))
-    jret = JNI_TRUE;
+  jlong jret = new_handle(im_open_decoder_fd(newfd, startoffset, length,
+                                             (const char*)fud));
 
   close(newfd);
 
@@ -84,25 +122,52 @@ JNIEXPORT jboolean JNICALL nativeImOpenDecoderFd(JNIEnv* env, jclass jclazz,
 }
 
 JNIEXPORT void JNICALL nativeImSetMaxLens(JNIEnv* env, jclass jclazz,
+                                          jlong handle,
                                           jint max_sps_len,
                                           jint max_hzs_len) {
-  im_set_max_lens(static_cast<size_t>(max_sps_len),
+  im_set_max_lens(decoder_of(handle),
+                  static_cast<size_t>(max_sps_len),
                   static_cast<size_t>(max_hzs_len));
   return;
 }
 
-JNIEXPORT jboolean JNICALL nativeImCloseDecoder(JNIEnv* env, jclass jclazz) {
-  im_close_decoder();
+JNIEXPORT void JNICALL nativeImSetSentCandsNum(JNIEnv* env, jclass jclazz,
+                                               jlong handle, jint num) {
+  if (num >= 0)
+    im_set_sentence_cand_num(decoder_of(handle), static_cast<size_t>(num));
+}
+
+JNIEXPORT void JNICALL nativeImSetShuangpinScheme(JNIEnv* env, jclass jclazz,
+                                                  jlong handle, jint scheme) {
+  if (scheme >= 0 && scheme < kShuangpinSchemeNum)
+    im_set_shuangpin_scheme(decoder_of(handle),
+                            static_cast<ShuangpinScheme>(scheme));
+}
+
+JNIEXPORT void JNICALL nativeImEnableT9(JNIEnv* env, jclass jclazz,
+                                        jlong handle, jboolean enable) {
+  im_enable_t9(decoder_of(handle), enable);
+}
+
+JNIEXPORT jboolean JNICALL nativeImCloseDecoder(JNIEnv* env, jclass jclazz,
+                                                jlong handle) {
+  JniDecoder *dec = get_decoder(handle);
+  if (NULL != dec) {
+    im_close_decoder(dec->decoder);
+    delete dec;
+  }
   return JNI_TRUE;
 }
 
 JNIEXPORT jint JNICALL nativeImSearch(JNIEnv* env, jclass jclazz,
-                                      jbyteArray pybuf, jint pylen) {
+                                      jlong handle, jbyteArray pybuf,
+                                      jint pylen) {
   jbyte *array_body = (*env).GetByteArrayElements(pybuf, 0);
 
   jint jret = 0;
   if (NULL != array_body) {
-    jret = im_search((const char*)array_body, pylen);
+    jret = im_search(decoder_of(handle), (const char*)array_body,
+                     pylen);
   }
 
   (*env).ReleaseByteArrayElements(pybuf, array_body, 0);
@@ -110,58 +175,66 @@ JNIEXPORT jint JNICALL nativeImSearch(JNIEnv* env, jclass jclazz,
   return jret;
 }
 
-JNIEXPORT jint JNICALL nativeImDelSearch(JNIEnv* env, jclass jclazz, jint pos,
+JNIEXPORT jint JNICALL nativeImDelSearch(JNIEnv* env, jclass jclazz,
+                                         jlong handle, jint pos,
                                          jboolean is_pos_in_splid,
                                          jboolean clear_fixed_this_step) {
-  return im_delsearch(pos, is_pos_in_splid, clear_fixed_this_step);
+  return im_delsearch(decoder_of(handle), pos, is_pos_in_splid,
+                      clear_fixed_this_step);
 }
 
-JNIEXPORT void JNICALL nativeImResetSearch(JNIEnv* env, jclass jclazz) {
-  im_reset_search();
+JNIEXPORT void JNICALL nativeImResetSearch(JNIEnv* env, jclass jclazz,
+                                           jlong handle) {
+  im_reset_search(decoder_of(handle));
   return;
 }
 
-JNIEXPORT jint JNICALL nativeImAddLetter(JNIEnv *env, jclass clazz, jbyte ch) {
-  return im_add_letter(ch);
+JNIEXPORT jint JNICALL nativeImAddLetter(JNIEnv *env, jclass clazz,
+                                         jlong handle, jbyte ch) {
+  return im_add_letter(decoder_of(handle), ch);
 }
 
 JNIEXPORT jstring JNICALL nativeImGetPyStr(JNIEnv* env, jclass jclazz,
-                                           jboolean decoded) {
+                                           jlong handle, jboolean decoded) {
+  JniDecoder *dec = get_decoder(handle);
+  if (NULL == dec)
+    return (*env).NewString(empty_str, 0);
+
   size_t py_len;
-  const char *py = im_get_sps_str(&py_len);  // py_len gets decoded length
+  // py_len gets decoded length
+  const char *py = im_get_sps_str(dec->decoder, &py_len);
   assert(NULL != py);
   if (!decoded)
     py_len = strlen(py);
 
-  const unsigned short *spl_start;
-  size_t len;
-  len = im_get_spl_start_pos(spl_start);
-
   size_t i;
   for (i = 0; i < py_len; i++)
-    retbuf[i] = py[i];
-  retbuf[i] = (char16)'\0';
+    dec->retbuf[i] = py[i];
+  dec->retbuf[i] = (char16)'\0';
 
-  jstring retstr = (*env).NewString((unsigned short*)retbuf, i);
+  jstring retstr = (*env).NewString((unsigned short*)dec->retbuf, i);
   return retstr;
 }
 
 JNIEXPORT jint JNICALL nativeImGetPyStrLen(JNIEnv* env, jclass jclazz,
-                                           jboolean decoded) {
+                                           jlong handle, jboolean decoded) {
   size_t py_len;
-  const char *py = im_get_sps_str(&py_len);  // py_len gets decoded length
-  assert(NULL != py);
+  // py_len gets decoded length
+  const char *py = im_get_sps_str(decoder_of(handle), &py_len);
+  if (NULL == py)
+    return 0;
   if (!decoded)
     py_len = strlen(py);
   return py_len;
 }
 
-JNIEXPORT jintArray JNICALL nativeImGetSplStart(JNIEnv* env, jclass jclazz) {
+JNIEXPORT jintArray JNICALL nativeImGetSplStart(JNIEnv* env, jclass jclazz,
+                                                jlong handle) {
   const unsigned short *spl_start;
   size_t len;
 
   // There will be len + 1 elements in the buffer when len > 0.
-  len = im_get_spl_start_pos(spl_start);
+  len = im_get_spl_start_pos(decoder_of(handle), spl_start);
 
   jintArray arr = (*env).NewIntArray(len + 2);
   jint *arr_body = (*env).GetIntArrayElements(arr, 0);
@@ -176,44 +249,273 @@ JNIEXPORT jintArray JNICALL nativeImGetSplStart(JNIEnv* env, jclass jclazz) {
 }
 
 JNIEXPORT jstring JNICALL nativeImGetChoice(JNIEnv *env, jclass clazz,
-                                            jint candidateId) {
+                                            jlong handle, jint candidateId) {
+  JniDecoder *dec = get_decoder(handle);
+  if (NULL == dec)
+    return (*env).NewString(empty_str, 0);
+
   jstring retstr;
-  if(im_get_candidate(candidateId, retbuf, RET_BUF_LEN)) {
-    retstr = (*env).NewString(retbuf, utf16_strlen(retbuf));
+  if(im_get_candidate(dec->decoder, candidateId, dec->retbuf, RET_BUF_LEN)) {
+    retstr = (*env).NewString(dec->retbuf, utf16_strlen(dec->retbuf));
     return retstr;
   } else {
-    retstr = (*env).NewString((unsigned short*)retbuf, 0);
+    retstr = (*env).NewString((unsigned short*)dec->retbuf, 0);
     return retstr;
   }
 }
 
 JNIEXPORT jint JNICALL nativeImChoose(JNIEnv *env, jclass clazz,
-                                      jint choice_id) {
-  return im_choose(choice_id);
+                                      jlong handle, jint choice_id) {
+  return im_choose(decoder_of(handle), choice_id);
+}
+
+JNIEXPORT jint JNICALL nativeImCancelLastChoice(JNIEnv *env, jclass clazz,
+                                                jlong handle) {
+  return im_cancel_last_choice(decoder_of(handle));
+}
+
+JNIEXPORT jint JNICALL nativeImGetFixedLen(JNIEnv *env, jclass clazz,
+                                           jlong handle) {
+  return im_get_fixed_len(decoder_of(handle));
+}
+
+JNIEXPORT jint JNICALL nativeImGetSentCandsNum(JNIEnv *env, jclass clazz,
+                                               jlong handle) {
+  return im_get_sentence_cand_num(decoder_of(handle));
+}
+
+typedef const char16* (*item_getter)(JniDecoder *dec, size_t item_id,
+                                     size_t *len);
+
+static const char16* get_choice(JniDecoder *dec, size_t choice_id,
+                                size_t *len) {
+  if (NULL == im_get_candidate(dec->decoder, choice_id, dec->retbuf,
+                               RET_BUF_LEN)) {
+    *len = 0;
+  } else {
+    *len = utf16_strlen(dec->retbuf);
+  }
+  return dec->retbuf;
+}
+
+static const char16* get_predict(JniDecoder *dec, size_t predict_no,
+                                 size_t *len) {
+  if (predict_no >= dec->predict_len) {
+    *len = 0;
+    return dec->retbuf;
+  }
+  *len = utf16_strlen(dec->predict_buf[predict_no]);
+  return dec->predict_buf[predict_no];
+}
+
+// Packs items [start, start + num) back to back into buf, item i takes
+// buf[offsets[i], offsets[i + 1]). Item 0 goes without its first skip0
+// chars. Stops early when buf or offsets are full, returns the number of
+// items packed.
+static size_t pack_items(JniDecoder *dec, item_getter get, size_t start,
+                         size_t num, size_t skip0, char16 *buf,
+                         size_t buf_len, jint *offsets, size_t offsets_len) {
+  if (0 == offsets_len)
+    return 0;
+
+  size_t pos = 0;
+  size_t packed = 0;
+  offsets[0] = 0;
+  while (packed < num && packed + 1 < offsets_len) {
+    size_t id = start + packed;
+    size_t len;
+    const char16 *item = get(dec, id, &len);
+    size_t skip = 0;
+    if (0 == id)
+      skip = skip0 < len ? skip0 : len;
+    len -= skip;
+    if (pos + len > buf_len)
+      break;
+    memcpy(buf + pos, item + skip, len * sizeof(char16));
+    pos += len;
+    packed++;
+    offsets[packed] = pos;
+  }
+  return packed;
+}
+
+// Everything updateDecInfoForSearch() needs after a search, in one call.
+// Candidate 0 is returned without its fixed part, like imGetChoiceList().
+JNIEXPORT jobject JNICALL nativeImGetSnapshot(JNIEnv *env, jclass clazz,
+                                              jlong handle,
+                                              jint choices_num) {
+  JniDecoder *dec = get_decoder(handle);
+  if (NULL == dec)
+    return NULL;
+
+  const unsigned short *spl_start;
+  size_t spl_num = im_get_spl_start_pos(dec->decoder, spl_start);
+  jintArray spl_arr = (*env).NewIntArray(spl_num + 2);
+  jint *spl_body = (*env).GetIntArrayElements(spl_arr, 0);
+  assert(NULL != spl_body);
+  spl_body[0] = spl_num;
+  for (size_t i = 0; i <= spl_num; i++)
+    spl_body[i + 1] = spl_start[i];
+  (*env).ReleaseIntArrayElements(spl_arr, spl_body, 0);
+
+  size_t decoded_len;
+  const char *py = im_get_sps_str(dec->decoder, &decoded_len);
+  assert(NULL != py);
+  size_t py_len = strlen(py);
+  for (size_t i = 0; i < py_len; i++)
+    dec->retbuf[i] = py[i];
+  jstring py_str = (*env).NewString(dec->retbuf, py_len);
+
+  char letters[RET_BUF_LEN];
+  size_t letters_len = im_get_spl_letters(dec->decoder, letters, RET_BUF_LEN);
+  for (size_t i = 0; i < letters_len; i++)
+    dec->retbuf[i] = letters[i];
+  jstring spl_letters = (*env).NewString(dec->retbuf, letters_len);
+
+  size_t fixed_len = im_get_fixed_len(dec->decoder);
+
+  size_t sent_len;
+  get_choice(dec, 0, &sent_len);
+  jstring full_sent = (*env).NewString(dec->retbuf, sent_len);
+
+  // The selection is finished, no candidates will be shown.
+  if (spl_num == fixed_len || choices_num < 0)
+    choices_num = 0;
+
+  // The caller loads whatever did not fit later.
+  size_t packed = pack_items(dec, get_choice, 0, choices_num, fixed_len,
+                             dec->pack_buf, PACK_BUF_LEN, dec->pack_offsets,
+                             PACK_MAX_ITEMS + 1);
+  jcharArray chars = (*env).NewCharArray(dec->pack_offsets[packed]);
+  (*env).SetCharArrayRegion(chars, 0, dec->pack_offsets[packed],
+                            dec->pack_buf);
+  jintArray offsets = (*env).NewIntArray(packed + 1);
+  (*env).SetIntArrayRegion(offsets, 0, packed + 1, dec->pack_offsets);
+
+  return (*env).NewObject(gDecodingSnapshotOffsets.mClass,
+                          gDecodingSnapshotOffsets.mConstructor, spl_arr,
+                          py_str, spl_letters, (jint)decoded_len,
+                          (jint)fixed_len, full_sent, chars, offsets);
+}
+
+static jint pack_into(JNIEnv *env, JniDecoder *dec, item_getter get,
+                      jint start, jint num, jint skip0, jcharArray chars,
+                      jintArray offsets) {
+  if (NULL == dec || start < 0 || num <= 0 || NULL == chars ||
+      NULL == offsets)
+    return 0;
+
+  jsize chars_len = (*env).GetArrayLength(chars);
+  jsize offsets_len = (*env).GetArrayLength(offsets);
+  // No JNI calls until released, pack_items() only touches native state.
+  jchar *chars_body = (jchar*)(*env).GetPrimitiveArrayCritical(chars, 0);
+  jint *offsets_body = (jint*)(*env).GetPrimitiveArrayCritical(offsets, 0);
+  size_t packed = 0;
+  if (NULL != chars_body && NULL != offsets_body) {
+    packed = pack_items(dec, get, start, num, skip0 < 0 ? 0 : skip0,
+                        chars_body, chars_len, offsets_body, offsets_len);
+  }
+  if (NULL != offsets_body)
+    (*env).ReleasePrimitiveArrayCritical(offsets, offsets_body, 0);
+  if (NULL != chars_body)
+    (*env).ReleasePrimitiveArrayCritical(chars, chars_body, 0);
+  return packed;
 }
 
-JNIEXPORT jint JNICALL nativeImCancelLastChoice(JNIEnv *env, jclass clazz) {
-  return im_cancel_last_choice();
+JNIEXPORT jint JNICALL nativeImGetChoicesPacked(JNIEnv *env, jclass clazz,
+                                                jlong handle,
+                                                jint choices_start,
+                                                jint choices_num,
+                                                jint sent_fixed_len,
+                                                jcharArray chars,
+                                                jintArray offsets) {
+  return pack_into(env, get_decoder(handle), get_choice, choices_start,
+                   choices_num, sent_fixed_len, chars, offsets);
 }
 
-JNIEXPORT jint JNICALL nativeImGetFixedLen(JNIEnv *env, jclass clazz) {
-  return im_get_fixed_len();
+JNIEXPORT jint JNICALL nativeImGetPredictsPacked(JNIEnv *env, jclass clazz,
+                                                 jlong handle,
+                                                 jint predicts_start,
+                                                 jint predicts_num,
+                                                 jcharArray chars,
+                                                 jintArray offsets) {
+  return pack_into(env, get_decoder(handle), get_predict, predicts_start,
+                   predicts_num, 0, chars, offsets);
 }
 
-JNIEXPORT jboolean JNICALL nativeImCancelInput(JNIEnv *env, jclass clazz) {
-  if (im_cancel_input())
+JNIEXPORT jboolean JNICALL nativeImCancelInput(JNIEnv *env, jclass clazz,
+                                               jlong handle) {
+  if (im_cancel_input(decoder_of(handle)))
     return JNI_TRUE;
 
   return JNI_FALSE;
 }
 
-JNIEXPORT jboolean JNICALL nativeImFlushCache(JNIEnv *env, jclass clazz) {
-  im_flush_cache();
+JNIEXPORT jboolean JNICALL nativeImFlushCache(JNIEnv *env, jclass clazz,
+                                              jlong handle) {
+  im_flush_cache(decoder_of(handle));
   return JNI_TRUE;
 }
 
+JNIEXPORT jint JNICALL nativeImGetUserDictChanges(JNIEnv *env, jclass clazz,
+                                                  jlong handle) {
+  return im_get_user_dict_changes(decoder_of(handle));
+}
+
+JNIEXPORT jlongArray JNICALL nativeImGetLpiCacheStats(JNIEnv *env,
+                                                     jclass clazz) {
+  size_t stats[kLpiCacheStatNum];
+  im_get_lpi_cache_stats(stats);
+
+  jlong values[kLpiCacheStatNum];
+  for (size_t i = 0; i < kLpiCacheStatNum; i++)
+    values[i] = stats[i];
+
+  jlongArray arr = (*env).NewLongArray(kLpiCacheStatNum);
+  if (NULL != arr)
+    (*env).SetLongArrayRegion(arr, 0, kLpiCacheStatNum, values);
+  return arr;
+}
+
+JNIEXPORT void JNICALL nativeImSetLpiCacheBudget(JNIEnv *env, jclass clazz,
+                                                 jlong budget) {
+  if (budget >= 0)
+    im_set_lpi_cache_budget(budget);
+}
+
+JNIEXPORT void JNICALL nativeImSetFuzzyPinyin(JNIEnv *env, jclass clazz,
+                                              jlong handle, jint fz_class,
+                                              jboolean enable, jint cost) {
+  if (fz_class >= 0 && fz_class < kFuzzyPinyinClassNum && cost >= 0 &&
+      cost <= 0xffff)
+    im_set_fuzzy_pinyin(decoder_of(handle),
+                        static_cast<FuzzyPinyinClass>(fz_class), enable,
+                        static_cast<uint16>(cost));
+}
+
+JNIEXPORT jlongArray JNICALL nativeImGetSearchPoolStats(JNIEnv *env,
+                                                       jclass clazz,
+                                                       jlong handle) {
+  size_t stats[kSearchPoolStatNum];
+  im_get_search_pool_stats(decoder_of(handle), stats);
+
+  jlong values[kSearchPoolStatNum];
+  for (size_t i = 0; i < kSearchPoolStatNum; i++)
+    values[i] = stats[i];
+
+  jlongArray arr = (*env).NewLongArray(kSearchPoolStatNum);
+  if (NULL != arr)
+    (*env).SetLongArrayRegion(arr, 0, kSearchPoolStatNum, values);
+  return arr;
+}
+
 JNIEXPORT jint JNICALL nativeImGetPredictsNum(JNIEnv *env, jclass clazz,
+                                              jlong handle,
                                               jstring fixed_str) {
+  JniDecoder *dec = get_decoder(handle);
+  if (NULL == dec)
+    return 0;
+
   char16 *fixed_ptr = (char16*)(*env).GetStringChars(fixed_str, JNI_FALSE);
   size_t fixed_len = (size_t)(*env).GetStringLength(fixed_str);
 
@@ -226,22 +528,26 @@ JNIEXPORT jint JNICALL nativeImGetPredictsNum(JNIEnv *env, jclass clazz,
   utf16_strncpy(fixed_buf, fixed_ptr, fixed_len);
   fixed_buf[fixed_len] = (char16)'\0';
 
-  predict_len = im_get_predicts(fixed_buf, predict_buf);
+  dec->predict_len = im_get_predicts(dec->decoder, fixed_buf,
+                                     dec->predict_buf);
 
   (*env).ReleaseStringChars(fixed_str, fixed_ptr);
 
-  return predict_len;
+  return dec->predict_len;
 }
 
 JNIEXPORT jstring JNICALL nativeImGetPredictItem(JNIEnv *env, jclass clazz,
+                                                 jlong handle,
                                                  jint predict_no) {
+  JniDecoder *dec = get_decoder(handle);
   jstring retstr;
 
-  if (predict_no < 0 || (size_t)predict_no >= predict_len) {
-    retstr = (*env).NewString((unsigned short*)predict_buf[0], 0);
+  if (NULL == dec || predict_no < 0 ||
+      (size_t)predict_no >= dec->predict_len) {
+    retstr = (*env).NewString(empty_str, 0);
   } else {
-    retstr = (*env).NewString((unsigned short*)predict_buf[predict_no],
-                              utf16_strlen(predict_buf[predict_no]));
+    retstr = (*env).NewString((unsigned short*)dec->predict_buf[predict_no],
+                              utf16_strlen(dec->predict_buf[predict_no]));
   }
   return retstr;
 }
@@ -283,11 +589,11 @@ JNIEXPORT jint JNICALL nativeSyncPutLemmas(JNIEnv *env, jclass clazz,
 
 JNIEXPORT jstring JNICALL nativeSyncGetLemmas(JNIEnv *env, jclass clazz) {
 
-  int len = sync_worker.get_lemmas(retbuf, RET_BUF_LEN);
+  int len = sync_worker.get_lemmas(sync_buf, RET_BUF_LEN);
   if (len == 0)
     return NULL;
   jstring retstr;
-  retstr = (*env).NewString((unsigned short*)retbuf, len);
+  retstr = (*env).NewString((unsigned short*)sync_buf, len);
   return retstr;
 }
 
@@ -305,51 +611,82 @@ JNIEXPORT jboolean JNICALL nativeSyncClearLastGot(JNIEnv *env, jclass clazz) {
 }
 
 /**
- * Table of methods associated with a single class.
+ * Methods of com.android.inputmethod.pinyin.PinyinDecoder.
  */
-static JNINativeMethod gMethods[] = {
+static JNINativeMethod gDecoderMethods[] = {
     /* name, signature, funcPtr */
     /* ------Functions for Pinyin-to-hanzi decoding begin--------->> */
-    { "nativeImOpenDecoder", "([B[B)Z",
+    { "nativeImOpenDecoder", "([B[B)J",
             (void*) nativeImOpenDecoder },
-    { "nativeImOpenDecoderFd", "(Ljava/io/FileDescriptor;JJ[B)Z",
+    { "nativeImOpenDecoderFd", "(Ljava/io/FileDescriptor;JJ[B)J",
             (void*) nativeImOpenDecoderFd },
-    { "nativeImSetMaxLens", "(II)V",
+    { "nativeImSetMaxLens", "(JII)V",
             (void*) nativeImSetMaxLens },
-    { "nativeImCloseDecoder", "()Z",
+    { "nativeImSetSentCandsNum", "(JI)V",
+            (void*) nativeImSetSentCandsNum },
+    { "nativeImSetShuangpinScheme", "(JI)V",
+            (void*) nativeImSetShuangpinScheme },
+    { "nativeImEnableT9", "(JZ)V",
+            (void*) nativeImEnableT9 },
+    { "nativeImCloseDecoder", "(J)Z",
             (void*) nativeImCloseDecoder },
-    { "nativeImSearch",  "([BI)I",
+    { "nativeImSearch",  "(J[BI)I",
             (void*) nativeImSearch },
-    { "nativeImDelSearch",  "(IZZ)I",
+    { "nativeImDelSearch",  "(JIZZ)I",
             (void*) nativeImDelSearch },
-    { "nativeImResetSearch",  "()V",
+    { "nativeImResetSearch",  "(J)V",
             (void*) nativeImResetSearch },
-    { "nativeImAddLetter", "(B)I",
+    { "nativeImAddLetter", "(JB)I",
             (void*) nativeImAddLetter },
-    { "nativeImGetPyStr", "(Z)Ljava/lang/String;",
+    { "nativeImGetPyStr", "(JZ)Ljava/lang/String;",
             (void*) nativeImGetPyStr },
-    { "nativeImGetPyStrLen", "(Z)I",
+    { "nativeImGetPyStrLen", "(JZ)I",
             (void*) nativeImGetPyStrLen },
-    { "nativeImGetSplStart", "()[I",
+    { "nativeImGetSplStart", "(J)[I",
             (void*) nativeImGetSplStart },
-    { "nativeImGetChoice", "(I)Ljava/lang/String;",
+    { "nativeImGetChoice", "(JI)Ljava/lang/String;",
             (void*) nativeImGetChoice },
-    { "nativeImChoose", "(I)I",
+    { "nativeImChoose", "(JI)I",
             (void*) nativeImChoose },
-    { "nativeImCancelLastChoice", "()I",
+    { "nativeImCancelLastChoice", "(J)I",
             (void*) nativeImCancelLastChoice },
-    { "nativeImGetFixedLen", "()I",
+    { "nativeImGetFixedLen", "(J)I",
             (void*) nativeImGetFixedLen },
-    { "nativeImGetPredictsNum", "(Ljava/lang/String;)I",
+    { "nativeImGetSentCandsNum", "(J)I",
+            (void*) nativeImGetSentCandsNum },
+    { "nativeImGetSnapshot",
+            "(JI)Lcom/android/inputmethod/pinyin/DecodingSnapshot;",
+            (void*) nativeImGetSnapshot },
+    { "nativeImGetPredictsNum", "(JLjava/lang/String;)I",
             (void*) nativeImGetPredictsNum },
-    { "nativeImGetPredictItem", "(I)Ljava/lang/String;",
+    { "nativeImGetPredictItem", "(JI)Ljava/lang/String;",
             (void*) nativeImGetPredictItem },
-    { "nativeImCancelInput", "()Z",
+    { "nativeImGetChoicesPacked", "(JIII[C[I)I",
+            (void*) nativeImGetChoicesPacked },
+    { "nativeImGetPredictsPacked", "(JII[C[I)I",
+            (void*) nativeImGetPredictsPacked },
+    { "nativeImCancelInput", "(J)Z",
             (void*) nativeImCancelInput },
-    { "nativeImFlushCache", "()Z",
+    { "nativeImFlushCache", "(J)Z",
             (void*) nativeImFlushCache },
+    { "nativeImGetUserDictChanges", "(J)I",
+            (void*) nativeImGetUserDictChanges },
+    { "nativeImGetLpiCacheStats", "()[J",
+            (void*) nativeImGetLpiCacheStats },
+    { "nativeImSetLpiCacheBudget", "(J)V",
+            (void*) nativeImSetLpiCacheBudget },
+    { "nativeImSetFuzzyPinyin", "(JIZI)V",
+            (void*) nativeImSetFuzzyPinyin },
+    { "nativeImGetSearchPoolStats", "(J)[J",
+            (void*) nativeImGetSearchPoolStats },
     /* <<----Functions for Pinyin-to-hanzi decoding end------------- */
+};
 
+/**
+ * Methods of com.android.inputmethod.pinyin.PinyinDecoderService.
+ */
+static JNINativeMethod gSyncMethods[] = {
+    /* name, signature, funcPtr */
     /* ------Functions for sync begin----------------------------->> */
     { "nativeSyncBegin", "([B)Z",
             (void*) nativeSyncBegin },
@@ -387,10 +724,28 @@ static int registerNativeMethods(JNIEnv* env, const char* className,
         return JNI_FALSE;
     }
 
+    return JNI_TRUE;
+}
+
+/*
+ * Look up the classes and members used by the natives.
+ */
+static int cacheClasses(JNIEnv* env)
+{
+    jclass clazz;
+
     clazz = env->FindClass("java/io/FileDescriptor");
     gFileDescriptorOffsets.mClass = (jclass) env->NewGlobalRef(clazz);
     gFileDescriptorOffsets.mDescriptor = env->GetFieldID(clazz, "descriptor", "I");
 
+    clazz = env->FindClass("com/android/inputmethod/pinyin/DecodingSnapshot");
+    if (clazz == NULL) {
+        return JNI_FALSE;
+    }
+    gDecodingSnapshotOffsets.mClass = (jclass) env->NewGlobalRef(clazz);
+    gDecodingSnapshotOffsets.mConstructor = env->GetMethodID(clazz, "<init>",
+        "([ILjava/lang/String;Ljava/lang/String;IILjava/lang/String;[C[I)V");
+
     return JNI_TRUE;
 }
 
@@ -399,9 +754,18 @@ static int registerNativeMethods(JNIEnv* env, const char* className,
  */
 static int registerNatives(JNIEnv* env)
 {
+    if (!cacheClasses(env))
+        return JNI_FALSE;
+
+    if (!registerNativeMethods(env,
+           "com/android/inputmethod/pinyin/PinyinDecoder",
+            gDecoderMethods,
+            sizeof(gDecoderMethods) / sizeof(gDecoderMethods[0])))
+        return JNI_FALSE;
+
     if (!registerNativeMethods(env,
            "com/android/inputmethod/pinyin/PinyinDecoderService",
-            gMethods, sizeof(gMethods) / sizeof(gMethods[0])))
+            gSyncMethods, sizeof(gSyncMethods) / sizeof(gSyncMethods[0])))
         return JNI_FALSE;
 
     return JNI_TRUE;
@@ -0,0 +1,444 @@
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/resource.h>
+#include <time.h>
+#include <unistd.h>
+#include "../include/pinyinime.h"
+
+using namespace ime_pinyin;
+
+/**
+ * Host benchmark of the decoder.
+ *
+ * Per-letter decoding cost: every test string is typed one letter at a time,
+ * once with im_add_letter() and once with im_search() over the whole prefix
+ * as the IME used to do, and the average cost of the n-th letter is printed
+ * for both. With im_add_letter() it should not grow with n.
+ *
+ * Corpus replay: every line of the corpus is typed with im_add_letter(), its
+ * last letter is deleted with im_delsearch() and typed again, it is searched
+ * again from scratch with im_search(), the first candidate is chosen and the
+ * predictions for it are fetched, as a user would. The latency percentiles
+ * of every operation, the throughput, the peak memory, how often the first
+ * candidate is the expected Hanzi and how often it is the first candidate or
+ * one of the sentence candidates after it are printed. The first round runs on
+ * an empty user dictionary, so its accuracy is the one of the system
+ * dictionary.
+ *
+ * Usage: pinyinime_bench [sys_dict [corpus]] [-v] [-f] [-t]
+ * With -v, the corpus lines whose first candidate is wrong are printed.
+ * With -f, every class of fuzzy pinyin is enabled, to compare the cost with
+ * the exact mode.
+ * With -t, the letters are typed with their T9 keys, to compare the cost and
+ * the accuracy with the letters.
+ */
+
+// Longest string the IME sends, PY_STRING_MAX - 1 in PinyinIME.
+static const size_t kMaxInput = 27;
+static const int kRounds = 200;
+static const int kCorpusRounds = 20;
+
+// At most 9 spellings each, the engine drops letters beyond that.
+static const char *kInputs[] = {
+  "zhonghuarenmingongheguo",
+  "shuangchuangzhuangguangxiang",
+  "woxianzaizhengzaixiedaima",
+  "nihaoshijiehenhaoa",
+};
+
+struct CorpusLine {
+  char pinyin[kMaxInput + 1];
+  char16 hanzi[kMaxInput + 1];
+  char text[kMaxInput * 4 + 1];
+};
+
+// Latencies of one operation, in micro seconds.
+struct OpStats {
+  const char *name;
+  double *samples;
+  size_t num;
+  size_t capacity;
+};
+
+enum {
+  kOpAddLetter,
+  kOpDelSearch,
+  kOpSearch,
+  kOpChoose,
+  kOpGetPredicts,
+  kOpNum
+};
+
+static double now_us() {
+  struct timespec ts;
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  return ts.tv_sec * 1e6 + ts.tv_nsec / 1e3;
+}
+
+static long peak_rss_kb() {
+  struct rusage usage;
+  if (0 != getrusage(RUSAGE_SELF, &usage))
+    return 0;
+  return usage.ru_maxrss;
+}
+
+static void add_sample(OpStats *stats, double us) {
+  if (stats->num == stats->capacity) {
+    size_t capacity = 0 == stats->capacity ? 1024 : stats->capacity * 2;
+    double *samples = static_cast<double*>(
+        realloc(stats->samples, capacity * sizeof(double)));
+    if (NULL == samples)
+      return;
+    stats->samples = samples;
+    stats->capacity = capacity;
+  }
+  stats->samples[stats->num++] = us;
+}
+
+static int cmp_double(const void *p1, const void *p2) {
+  double d1 = *static_cast<const double*>(p1);
+  double d2 = *static_cast<const double*>(p2);
+  return d1 < d2 ? -1 : (d1 > d2 ? 1 : 0);
+}
+
+// The samples have to be sorted.
+static double percentile(const OpStats *stats, double p) {
+  size_t pos = static_cast<size_t>(p * (stats->num - 1) + 0.5);
+  return stats->samples[pos];
+}
+
+// Replaces the letters of a Pinyin string with their T9 keys.
+static void to_t9_keys(char *str) {
+  static const char kT9Keys[] = "22233344455566677778889999";
+  for (; '\0' != *str; str++) {
+    if (*str >= 'a' && *str <= 'z')
+      *str = kT9Keys[*str - 'a'];
+  }
+}
+
+// Decodes the BMP characters of a UTF-8 string, returns false if it has
+// others or is longer than max_len.
+static bool utf8_to_utf16(const char *src, char16 *dst, size_t max_len) {
+  const unsigned char *p = reinterpret_cast<const unsigned char*>(src);
+  size_t len = 0;
+  while (*p) {
+    char16 ch;
+    if (*p < 0x80) {
+      ch = *p++;
+    } else if ((*p & 0xe0) == 0xc0 && (p[1] & 0xc0) == 0x80) {
+      ch = ((p[0] & 0x1f) << 6) | (p[1] & 0x3f);
+      p += 2;
+    } else if ((*p & 0xf0) == 0xe0 && (p[1] & 0xc0) == 0x80 &&
+               (p[2] & 0xc0) == 0x80) {
+      ch = ((p[0] & 0x0f) << 12) | ((p[1] & 0x3f) << 6) | (p[2] & 0x3f);
+      p += 3;
+    } else {
+      return false;
+    }
+    if (len == max_len)
+      return false;
+    dst[len++] = ch;
+  }
+  dst[len] = 0;
+  return true;
+}
+
+static bool utf16_equal(const char16 *s1, const char16 *s2) {
+  while (*s1 && *s1 == *s2) {
+    s1++;
+    s2++;
+  }
+  return *s1 == *s2;
+}
+
+// Returns the number of lines read, lines are allocated with malloc().
+static size_t load_corpus(const char *file, CorpusLine **lines) {
+  FILE *fp = fopen(file, "r");
+  if (NULL == fp)
+    return 0;
+
+  size_t num = 0;
+  size_t capacity = 0;
+  *lines = NULL;
+  char buf[256];
+  while (NULL != fgets(buf, sizeof(buf), fp)) {
+    buf[strcspn(buf, "\r\n")] = '\0';
+    if ('\0' == buf[0] || '#' == buf[0])
+      continue;
+
+    char *text = strchr(buf, ' ');
+    if (NULL == text) {
+      printf("Skipped corpus line without Hanzi: %s\n", buf);
+      continue;
+    }
+    *text++ = '\0';
+
+    if (num == capacity) {
+      capacity = 0 == capacity ? 64 : capacity * 2;
+      CorpusLine *more = static_cast<CorpusLine*>(
+          realloc(*lines, capacity * sizeof(CorpusLine)));
+      if (NULL == more)
+        break;
+      *lines = more;
+    }
+    CorpusLine *line = *lines + num;
+    if (strlen(buf) > kMaxInput || strlen(text) >= sizeof(line->text) ||
+        !utf8_to_utf16(text, line->hanzi, kMaxInput)) {
+      printf("Skipped corpus line: %s %s\n", buf, text);
+      continue;
+    }
+    strcpy(line->pinyin, buf);
+    strcpy(line->text, text);
+    num++;
+  }
+  fclose(fp);
+  return num;
+}
+
+static void bench_letters(DecoderHandle decoder, bool t9) {
+  double add_us[kMaxInput];
+  double search_us[kMaxInput];
+  int count[kMaxInput];
+  memset(add_us, 0, sizeof(add_us));
+  memset(search_us, 0, sizeof(search_us));
+  memset(count, 0, sizeof(count));
+
+  char buf[kMaxInput + 1];
+  char input[kMaxInput + 1];
+  for (int round = 0; round < kRounds; round++) {
+    for (size_t i = 0; i < sizeof(kInputs) / sizeof(kInputs[0]); i++) {
+      size_t len = strlen(kInputs[i]);
+      if (len > kMaxInput)
+        len = kMaxInput;
+      memcpy(input, kInputs[i], len);
+      input[len] = '\0';
+      if (t9)
+        to_t9_keys(input);
+
+      im_reset_search(decoder);
+      for (size_t pos = 0; pos < len; pos++) {
+        double start = now_us();
+        im_add_letter(decoder, input[pos]);
+        add_us[pos] += now_us() - start;
+      }
+
+      im_reset_search(decoder);
+      for (size_t pos = 0; pos < len; pos++) {
+        memcpy(buf, input, pos + 1);
+        buf[pos + 1] = '\0';
+        double start = now_us();
+        im_search(decoder, buf, pos + 1);
+        search_us[pos] += now_us() - start;
+        count[pos]++;
+      }
+    }
+  }
+
+  printf("letter  add_letter(us)  search(us)\n");
+  for (size_t pos = 0; pos < kMaxInput; pos++) {
+    if (0 == count[pos])
+      break;
+    printf("%6zu  %14.2f  %10.2f\n", pos + 1, add_us[pos] / count[pos],
+           search_us[pos] / count[pos]);
+  }
+}
+
+static void bench_corpus(DecoderHandle decoder, const CorpusLine *lines,
+                         size_t line_num, bool verbose) {
+  OpStats stats[kOpNum];
+  memset(stats, 0, sizeof(stats));
+  stats[kOpAddLetter].name = "add_letter";
+  stats[kOpDelSearch].name = "delsearch";
+  stats[kOpSearch].name = "search";
+  stats[kOpChoose].name = "choose";
+  stats[kOpGetPredicts].name = "get_predicts";
+
+  size_t correct = 0;
+  size_t correct_sent = 0;  // The first candidate or a sentence candidate.
+  size_t letters = 0;
+  double busy_us = 0;
+  // The highest high-water marks of the search buffers over all lines.
+  size_t pool_stats[kSearchPoolStatNum];
+  size_t pool_peaks[kSearchPoolStatNum];
+  memset(pool_peaks, 0, sizeof(pool_peaks));
+  char16 cand[kMaxInput + 1];
+  char16 (*predicts)[kMaxPredictSize + 1];
+
+  for (int round = 0; round < kCorpusRounds; round++) {
+    for (size_t i = 0; i < line_num; i++) {
+      const CorpusLine *line = lines + i;
+      size_t len = strlen(line->pinyin);
+      double start, us;
+
+      im_reset_search(decoder);
+      for (size_t pos = 0; pos < len; pos++) {
+        start = now_us();
+        im_add_letter(decoder, line->pinyin[pos]);
+        us = now_us() - start;
+        add_sample(stats + kOpAddLetter, us);
+        busy_us += us;
+      }
+      letters += len;
+
+      im_get_search_pool_stats(decoder, pool_stats);
+      for (int stat = 0; stat < kSearchPoolStatNum; stat++) {
+        if (pool_stats[stat] > pool_peaks[stat])
+          pool_peaks[stat] = pool_stats[stat];
+      }
+
+      if (0 == round) {
+        cand[0] = 0;
+        im_get_candidate(decoder, 0, cand, kMaxInput + 1);
+        if (utf16_equal(cand, line->hanzi)) {
+          correct++;
+          correct_sent++;
+        } else {
+          size_t sent_num = im_get_sentence_cand_num(decoder);
+          for (size_t sent = 1; sent <= sent_num; sent++) {
+            cand[0] = 0;
+            im_get_candidate(decoder, sent, cand, kMaxInput + 1);
+            if (utf16_equal(cand, line->hanzi)) {
+              correct_sent++;
+              break;
+            }
+          }
+          if (verbose)
+            printf("miss: %s %s\n", line->pinyin, line->text);
+        }
+      }
+
+      if (len > 1) {
+        start = now_us();
+        im_delsearch(decoder, len - 1, false, false);
+        us = now_us() - start;
+        add_sample(stats + kOpDelSearch, us);
+        busy_us += us;
+        im_add_letter(decoder, line->pinyin[len - 1]);
+      }
+
+      im_reset_search(decoder);
+      start = now_us();
+      im_search(decoder, line->pinyin, len);
+      us = now_us() - start;
+      add_sample(stats + kOpSearch, us);
+      busy_us += us;
+
+      cand[0] = 0;
+      im_get_candidate(decoder, 0, cand, kMaxInput + 1);
+      start = now_us();
+      im_choose(decoder, 0);
+      us = now_us() - start;
+      add_sample(stats + kOpChoose, us);
+      busy_us += us;
+
+      start = now_us();
+      im_get_predicts(decoder, cand, predicts);
+      us = now_us() - start;
+      add_sample(stats + kOpGetPredicts, us);
+      busy_us += us;
+    }
+  }
+
+  printf("\ncorpus: %zu lines, %d rounds\n", line_num, kCorpusRounds);
+  printf("operation       count   mean(us)    p50(us)    p90(us)    p99(us)"
+         "    max(us)\n");
+  for (int op = 0; op < kOpNum; op++) {
+    OpStats *op_stats = stats + op;
+    if (0 == op_stats->num)
+      continue;
+    qsort(op_stats->samples, op_stats->num, sizeof(double), cmp_double);
+    double sum = 0;
+    for (size_t pos = 0; pos < op_stats->num; pos++)
+      sum += op_stats->samples[pos];
+    printf("%-12s %8zu %10.2f %10.2f %10.2f %10.2f %10.2f\n", op_stats->name,
+           op_stats->num, sum / op_stats->num, percentile(op_stats, 0.5),
+           percentile(op_stats, 0.9), percentile(op_stats, 0.99),
+           op_stats->samples[op_stats->num - 1]);
+    free(op_stats->samples);
+  }
+
+  double busy_s = busy_us / 1e6;
+  printf("throughput: %.0f letters/s, %.0f lines/s\n", letters / busy_s,
+         line_num * kCorpusRounds / busy_s);
+  printf("top-1: %zu/%zu (%.1f%%), with sentences: %zu/%zu (%.1f%%)\n",
+         correct, line_num, 100.0 * correct / line_num, correct_sent,
+         line_num, 100.0 * correct_sent / line_num);
+  printf("search pools peak/size: rows %zu/%zu, matrix nodes %zu/%zu, "
+         "dmi nodes %zu/%zu, grown %zu times\n", pool_peaks[kSearchRowsPeak],
+         pool_peaks[kSearchRowsSize], pool_peaks[kSearchMtrxNdPeak],
+         pool_peaks[kSearchMtrxNdSize], pool_peaks[kSearchDmiPeak],
+         pool_peaks[kSearchDmiSize], pool_peaks[kSearchPoolGrows]);
+}
+
+int main(int argc, char* argv[]) {
+  const char *sys_dict = "../../assets/dict_pinyin.dat";
+  const char *corpus = "bench_corpus.txt";
+  bool verbose = false;
+  bool fuzzy = false;
+  bool t9 = false;
+  int positional = 0;
+  for (int i = 1; i < argc; i++) {
+    if (0 == strcmp(argv[i], "-v"))
+      verbose = true;
+    else if (0 == strcmp(argv[i], "-f"))
+      fuzzy = true;
+    else if (0 == strcmp(argv[i], "-t"))
+      t9 = true;
+    else if (0 == positional++)
+      sys_dict = argv[i];
+    else
+      corpus = argv[i];
+  }
+
+  char usr_dict[] = "/tmp/pinyinime_bench_usr_XXXXXX";
+  int fd = mkstemp(usr_dict);
+  if (fd < 0) {
+    printf("Can not create the user dictionary.\n");
+    return -1;
+  }
+  close(fd);
+  unlink(usr_dict);
+
+  long rss_before = peak_rss_kb();
+  DecoderHandle decoder = im_open_decoder(sys_dict, usr_dict);
+  if (NULL == decoder) {
+    printf("Can not open %s.\n", sys_dict);
+    return -1;
+  }
+  long rss_opened = peak_rss_kb();
+
+  for (int fz_class = 0; fuzzy && fz_class < kFuzzyPinyinClassNum;
+       fz_class++) {
+    im_set_fuzzy_pinyin(decoder, static_cast<FuzzyPinyinClass>(fz_class),
+                        true, kFuzzyPinyinCost);
+  }
+
+  CorpusLine *lines = NULL;
+  size_t line_num = load_corpus(corpus, &lines);
+  if (0 == line_num) {
+    printf("Can not read %s.\n", corpus);
+    im_close_decoder(decoder);
+    unlink(usr_dict);
+    return -1;
+  }
+
+  if (t9) {
+    im_enable_t9(decoder, true);
+    for (size_t i = 0; i < line_num; i++)
+      to_t9_keys(lines[i].pinyin);
+  }
+
+  bench_letters(decoder, t9);
+  bench_corpus(decoder, lines, line_num, verbose);
+  printf("peak rss: %ld KB, %ld KB taken by opening the decoder\n",
+         peak_rss_kb(), rss_opened - rss_before);
+
+  free(lines);
+  im_close_decoder(decoder);
+  unlink(usr_dict);
+  char journal[sizeof(usr_dict) + 8];
+  snprintf(journal, sizeof(journal), "%s.journal", usr_dict);
+  unlink(journal);
+  return 0;
+}
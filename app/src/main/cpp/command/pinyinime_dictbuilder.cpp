@@ -17,6 +17,7 @@
 #include <assert.h>
 #include <stdlib.h>
 #include <stdio.h>
+#include <string.h>
 #include <time.h>
 #include <unistd.h>
 #include "../include/dicttrie.h"
@@ -26,15 +27,28 @@ using namespace ime_pinyin;
 /**
  * Build binary dictionary model. Make sure that ___BUILD_MODEL___ is defined
  * in dictdef.h.
+ *
+ * Usage: pinyinime_dictbuilder [-j threads] [raw_dict valid_hzs]
+ * One thread per CPU is used by default, the dictionary is the same for any
+ * number of threads.
  */
 int main(int argc, char* argv[]) {
+  long thread_num = sysconf(_SC_NPROCESSORS_ONLN);
+  if (argc >= 3 && 0 == strcmp(argv[1], "-j")) {
+    thread_num = atol(argv[2]);
+    argc -= 2;
+    argv += 2;
+  }
+  if (thread_num < 1)
+    thread_num = 1;
+
   DictTrie* dict_trie = new DictTrie();
   bool success;
   if (argc >= 3)
-     success = dict_trie->build_dict(argv[1], argv[2]);
+     success = dict_trie->build_dict(argv[1], argv[2], thread_num);
   else
      success = dict_trie->build_dict("../data/rawdict_utf16_65105_freq.txt",
-                                     "../data/valid_utf16.txt");
+                                     "../data/valid_utf16.txt", thread_num);
 
   if (success) {
     printf("Build dictionary successfully.\n");
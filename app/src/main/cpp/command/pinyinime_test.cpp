@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include "../include/pinyinime.h"
+#include "../include/splparser.h"
+#include "../include/userdict.h"
+
+using namespace ime_pinyin;
+
+/**
+ * Host regression tests of the decoder, run with "make test". Every test
+ * opens its own decoder on an empty user dictionary and prints the failures,
+ * the exit status is the number of failed tests.
+ *
+ * Usage: pinyinime_test [sys_dict]
+ */
+
+static const size_t kMaxCand = 32;
+
+// Decodes the BMP characters of a UTF-8 string, returns false if it has
+// others or is longer than max_len.
+static bool utf8_to_utf16(const char *src, char16 *dst, size_t max_len) {
+  const unsigned char *p = reinterpret_cast<const unsigned char*>(src);
+  size_t len = 0;
+  while (*p) {
+    char16 ch;
+    if (*p < 0x80) {
+      ch = *p++;
+    } else if ((*p & 0xe0) == 0xc0 && (p[1] & 0xc0) == 0x80) {
+      ch = ((p[0] & 0x1f) << 6) | (p[1] & 0x3f);
+      p += 2;
+    } else if ((*p & 0xf0) == 0xe0 && (p[1] & 0xc0) == 0x80 &&
+               (p[2] & 0xc0) == 0x80) {
+      ch = ((p[0] & 0x0f) << 12) | ((p[1] & 0x3f) << 6) | (p[2] & 0x3f);
+      p += 3;
+    } else {
+      return false;
+    }
+    if (len == max_len)
+      return false;
+    dst[len++] = ch;
+  }
+  dst[len] = 0;
+  return true;
+}
+
+static bool utf16_equal(const char16 *s1, const char16 *s2) {
+  while (*s1 && *s1 == *s2) {
+    s1++;
+    s2++;
+  }
+  return *s1 == *s2;
+}
+
+// Returns the first candidate which is the given UTF-8 text, or -1.
+static int find_candidate(DecoderHandle decoder, size_t cand_num,
+                          const char *text) {
+  char16 expected[kMaxCand + 1];
+  char16 cand[kMaxCand + 1];
+  if (!utf8_to_utf16(text, expected, kMaxCand))
+    return -1;
+  for (size_t pos = 0; pos < cand_num; pos++) {
+    if (NULL != im_get_candidate(decoder, pos, cand, kMaxCand + 1) &&
+        utf16_equal(cand, expected))
+      return static_cast<int>(pos);
+  }
+  return -1;
+}
+
+// Removes a user dictionary and its journal.
+static void remove_user_dict(const char *usr_dict) {
+  char journal[64];
+  snprintf(journal, sizeof(journal), "%s.journal", usr_dict);
+  unlink(usr_dict);
+  unlink(journal);
+}
+
+static DecoderHandle open_decoder(const char *sys_dict, char *usr_dict) {
+  int fd = mkstemp(usr_dict);
+  if (fd < 0)
+    return NULL;
+  close(fd);
+  unlink(usr_dict);
+  return im_open_decoder(sys_dict, usr_dict);
+}
+
+static void close_decoder(DecoderHandle decoder, const char *usr_dict) {
+  im_close_decoder(decoder);
+  remove_user_dict(usr_dict);
+}
+
+// A rare lemma the user composes Hanzi by Hanzi is learned, the system word
+// of the same Pinyin stays the first candidate in the same session.
+static bool test_learned_rare_lemma(const char *sys_dict) {
+  static const char *kCases[][4] = {
+    // Pinyin, system word and the two Hanzis of the rare lemma, each chosen
+    // from the lemma candidates.
+    {"zhongguo", "中国", "重", "国"},
+    {"nihao", "你好", "尼", "号"},
+    {"xuexi", "学习", "雪", "西"},
+  };
+
+  char usr_dict[] = "/tmp/pinyinime_test_usr_XXXXXX";
+  DecoderHandle decoder = open_decoder(sys_dict, usr_dict);
+  if (NULL == decoder) {
+    printf("test_learned_rare_lemma: can not open %s\n", sys_dict);
+    return false;
+  }
+
+  bool passed = true;
+  for (size_t pos = 0; pos < sizeof(kCases) / sizeof(kCases[0]); pos++) {
+    const char *pinyin = kCases[pos][0];
+    size_t len = strlen(pinyin);
+
+    size_t changes = im_get_user_dict_changes(decoder);
+    size_t cand_num;
+    for (int round = 0; round < 2; round++) {
+      im_reset_search(decoder);
+      cand_num = im_search(decoder, pinyin, len);
+      for (size_t hz = 2; hz < 4; hz++) {
+        int cand_id = find_candidate(decoder, cand_num, kCases[pos][hz]);
+        if (cand_id < 0) {
+          printf("test_learned_rare_lemma: %s has no %s\n", pinyin,
+                 kCases[pos][hz]);
+          passed = false;
+          break;
+        }
+        cand_num = im_choose(decoder, cand_id);
+      }
+    }
+    if (im_get_user_dict_changes(decoder) == changes) {
+      printf("test_learned_rare_lemma: %s%s is not learned\n", kCases[pos][2],
+             kCases[pos][3]);
+      passed = false;
+    }
+
+    im_reset_search(decoder);
+    cand_num = im_search(decoder, pinyin, len);
+    if (0 != find_candidate(decoder, cand_num, kCases[pos][1])) {
+      printf("test_learned_rare_lemma: %s is not the first candidate of %s\n",
+             kCases[pos][1], pinyin);
+      passed = false;
+    }
+  }
+
+  close_decoder(decoder, usr_dict);
+  return passed;
+}
+
+// The total frequency of the user dictionary counts the frequency of a lemma
+// put again, not its score with the time it was used in the upper bits.
+static bool test_user_dict_total_freq(const char *sys_dict) {
+  char usr_dict[] = "/tmp/pinyinime_test_usr_XXXXXX";
+  // The decoder loads the spelling trie the user dictionary needs.
+  DecoderHandle decoder = open_decoder(sys_dict, usr_dict);
+  if (NULL == decoder) {
+    printf("test_user_dict_total_freq: can not open %s\n", sys_dict);
+    return false;
+  }
+
+  char test_dict[] = "/tmp/pinyinime_test_usr_XXXXXX";
+  int fd = mkstemp(test_dict);
+  close(fd);
+  unlink(test_dict);
+
+  SpellingParser spl_parser;
+  uint16 splids[2];
+  bool last_is_pre;
+  char16 lemma[3];
+  utf8_to_utf16("重国", lemma, 2);
+
+  UserDict user_dict;
+  bool passed = false;
+  if (2 == spl_parser.splstr_to_idxs_f("zhongguo", 8, splids, NULL, 2,
+                                       last_is_pre) &&
+      user_dict.load_dict(test_dict, kUserDictIdStart, kUserDictIdEnd)) {
+    user_dict.put_lemma(lemma, splids, 2, 1);
+    user_dict.put_lemma(lemma, splids, 2, 3);
+    passed = 3 == user_dict.get_total_lemma_count();
+    if (!passed) {
+      printf("test_user_dict_total_freq: total %zu, expected 3\n",
+             user_dict.get_total_lemma_count());
+    }
+    user_dict.close_dict();
+  } else {
+    printf("test_user_dict_total_freq: can not open the user dictionary\n");
+  }
+  remove_user_dict(test_dict);
+
+  close_decoder(decoder, usr_dict);
+  return passed;
+}
+
+// A word spelled with the other spelling of a fuzzy pinyin class is only a
+// candidate while the class is enabled.
+static bool test_fuzzy_pinyin(const char *sys_dict) {
+  static const struct {
+    const char *pinyin;
+    const char *word;
+    FuzzyPinyinClass fz_class;
+  } kCases[] = {
+    {"zongguo", "中国", kFuzzyZZh},
+    {"lihao", "你好", kFuzzyNL},
+    {"shanhai", "上海", kFuzzyAnAng},
+  };
+
+  char usr_dict[] = "/tmp/pinyinime_test_usr_XXXXXX";
+  DecoderHandle decoder = open_decoder(sys_dict, usr_dict);
+  if (NULL == decoder) {
+    printf("test_fuzzy_pinyin: can not open %s\n", sys_dict);
+    return false;
+  }
+
+  bool passed = true;
+  for (size_t pos = 0; pos < sizeof(kCases) / sizeof(kCases[0]); pos++) {
+    const char *pinyin = kCases[pos].pinyin;
+    size_t len = strlen(pinyin);
+    for (int enable = 1; enable >= 0; enable--) {
+      im_set_fuzzy_pinyin(decoder, kCases[pos].fz_class, enable,
+                          kFuzzyPinyinCost);
+      size_t cand_num = im_search(decoder, pinyin, len);
+      bool found = find_candidate(decoder, cand_num, kCases[pos].word) >= 0;
+      if (found != (1 == enable)) {
+        printf("test_fuzzy_pinyin: %s %s a candidate of %s, class %s\n",
+               kCases[pos].word, found ? "is" : "is not", pinyin,
+               enable ? "enabled" : "disabled");
+        passed = false;
+      }
+    }
+  }
+
+  close_decoder(decoder, usr_dict);
+  return passed;
+}
+
+int main(int argc, char* argv[]) {
+  const char *sys_dict = argc > 1 ? argv[1] : "../../assets/dict_pinyin.dat";
+
+  int failed = 0;
+  if (!test_learned_rare_lemma(sys_dict))
+    failed++;
+  if (!test_user_dict_total_freq(sys_dict))
+    failed++;
+  if (!test_fuzzy_pinyin(sys_dict))
+    failed++;
+
+  printf("%s\n", 0 == failed ? "All tests passed." : "Some tests failed.");
+  return failed;
+}
@@ -263,6 +263,15 @@ class AtomDictBase {
    * if necessary.
    */
   virtual void flush_cache() = 0;
+
+  /**
+   * Get the number of changes made to this atom dictionary, a lemma added,
+   * removed or scored again, so that results taken from it can be told
+   * stale.
+   *
+   * @return The number of changes, it never changes for a read-only one.
+   */
+  virtual uint32 get_change_count() = 0;
 };
 }
 
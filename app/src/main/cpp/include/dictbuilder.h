@@ -35,6 +35,27 @@ class DictTrie;
 
 class DictBuilder {
  private:
+  // Stages of a build, timed for the report printed at its end.
+  enum BuildStage {
+    kStageReadRaw,
+    kStageSpellings,
+    kStageHzOrder,
+    kStageHzSort,
+    kStageUnigram,
+    kStageScis,
+    kStageDictList,
+    kStagePySort,
+    kStageTopLemmas,
+    kStageTrie,
+    kStageNum
+  };
+
+  // Threads used by a build, the dictionary does not depend on their number.
+  size_t thread_num_;
+
+  // Wall clock time of every stage of the last build, in milliseconds.
+  double stage_ms_[kStageNum];
+
   // The raw lemma array buffer.
   LemmaEntry *lemma_arr_;
   size_t lemma_num_;
@@ -97,8 +118,11 @@ class DictBuilder {
   // Build dictionary trie from the file fn_raw. File fn_validhzs provides
   // valid chars. If fn_validhzs is NULL, only chars in GB2312 will be
   // included.
+  // Stages which do not depend on each other run at the same time, and the
+  // sorts and the unigram code book use up to thread_num threads. The time of
+  // every stage is printed at the end.
   bool build_dict(const char* fn_raw, const char* fn_validhzs,
-                  DictTrie *dict_trie);
+                  DictTrie *dict_trie, size_t thread_num);
 
  private:
   // Fill in the buffer with id. The caller guarantees that the paramters are
@@ -114,13 +138,30 @@ class DictBuilder {
   // Format a speling string.
   void format_spelling_str(char *spl_str);
 
-  // Sort the lemma_arr by the hanzi string, and give each of unique items
-  // a id. Why we need to sort the lemma list according to their Hanzi string
-  // is to find items started by a given prefix string to do prediction.
+  // Arrange the spelling table, build the spelling trie, and convert the
+  // spelling strings of the lemmas to spelling ids.
+  bool build_spellings();
+
+  // Get the order of lemma_arr by the hanzi string in hz_order, a buffer of
+  // lemma_num_ pointers. Only the Hanzis are read, so the spelling ids can be
+  // filled in at the same time.
+  void get_lemma_order_by_hz(const void **hz_order);
+
+  // Sort the lemma_arr by the hanzi string, in the order found by
+  // get_lemma_order_by_hz(), and give each of unique items a id. Why we need
+  // to sort the lemma list according to their Hanzi string is to find items
+  // started by a given prefix string to do prediction.
   // Actually, the single char items are be in other order, for example,
   // in spelling id order, etc.
   // Return value is next un-allocated idx available.
-  LemmaIdType sort_lemmas_by_hz();
+  LemmaIdType sort_lemmas_by_hz(const void **hz_order);
+
+  // Work of myparallel_for() in build_dict(), the two items are stages which
+  // do not depend on each other.
+  static void run_spellings_and_hz_order(void *arg, size_t start, size_t end);
+  static void run_unigram_and_dict_list(void *arg, size_t start, size_t end);
+
+  void print_stage_times(double total_ms);
 
   // Build the SingleCharItem list, and fill the hanzi_scis_ids in the
   // lemma buffer lemma_arr_.
@@ -58,6 +58,11 @@ const size_t kHalfSpellingIdNum = 29;
 const size_t kMaxSpellingNum = 512 - kHalfSpellingIdNum - 1;
 const size_t kMaxSearchSteps = 40;
 
+// The search buffers are allocated for kMaxSearchSteps steps, and grow with
+// the input up to this number of steps. A Pinyin string of n letters takes
+// n + 1 steps.
+const size_t kMaxSearchStepsLimit = 256;
+
 // One character predicts its following characters.
 const size_t kMaxPredictSize = (kMaxLemmaSize - 1);
 
@@ -91,6 +96,47 @@ typedef struct {
   uint16 full_splid:11;
 } SpellingId, *PSpellingId;
 
+// Classes of fuzzy pinyin. When a class is enabled, its two spellings match
+// each other, for example "zi" also matches "zhi", and "zhi" matches "zi".
+// The first six are Shengmus, the others Yunmus.
+enum FuzzyPinyinClass {
+  kFuzzyZZh,
+  kFuzzyCCh,
+  kFuzzySSh,
+  kFuzzyNL,
+  kFuzzyFH,
+  kFuzzyRL,
+  kFuzzyAnAng,
+  kFuzzyEnEng,
+  kFuzzyInIng,
+  kFuzzyIanIang,
+  kFuzzyUanUang,
+  kFuzzyPinyinClassNum
+};
+
+// The default score added to a lemma for each fuzzy spelling it is matched
+// with, 800 * ln(10), so that the lemma of the typed spelling is preferred
+// unless the fuzzy one is ten times more frequent.
+const uint16 kFuzzyPinyinCost = 1842;
+
+// The maximum number of spelling ids a string of Pinyin is parsed into with
+// fuzzy pinyin.
+const size_t kMaxFuzzySplIds = 8;
+
+// Schemes of Shuangpin, where a spelling is typed with two keys, one for its
+// Shengmu and one for its Yunmu.
+enum ShuangpinScheme {
+  kShuangpinNone,  // Full Pinyin.
+  kShuangpinMs,
+  kShuangpinXiaohe,
+  kShuangpinZiranma,
+  kShuangpinSchemeNum
+};
+
+// The maximum number of spelling ids a string of T9 keys is parsed into, the
+// spellings whose letters are on the keys one by one.
+const size_t kMaxT9SplIds = 16;
+
 
 /**
  * We use different node types for different layers
@@ -0,0 +1,62 @@
+#ifndef PINYINIME_INCLUDE_DICTIMAGE_H__
+#define PINYINIME_INCLUDE_DICTIMAGE_H__
+
+#include <stdlib.h>
+#include "./dictdef.h"
+
+namespace ime_pinyin {
+
+// First word of a binary dictionary file, "PYD1".
+const uint32 kDictImageMagic = 0x31445950;
+
+// Every section of a binary dictionary file starts on this boundary, after
+// zero padding. The arrays in a section follow its header in the order of
+// their alignment, so they are aligned as well.
+const size_t kDictImageAlign = 4;
+
+/**
+ * A binary dictionary file in memory, read section by section.
+ *
+ * The file is mapped read-only, so its arrays can be used in place: nothing
+ * is copied when the dictionary is opened, pages are only read in when they
+ * are used, and they are clean file pages which the kernel can share and
+ * drop. If the file can not be mapped, it is read into a buffer instead.
+ */
+class DictImage {
+ public:
+  DictImage();
+  ~DictImage();
+
+  // Opens the length bytes at start_offset of fd. The fd is not needed
+  // afterwards.
+  bool open(int fd, long start_offset, long length);
+
+  void close();
+
+  // Returns size bytes at the cursor and moves past them, NULL if the image
+  // ends before.
+  const void* read(size_t size);
+
+  bool read_uint32(uint32 *value);
+
+  // Moves the cursor to the start of the next section.
+  bool align();
+
+  bool is_mapped() const {return mapped_;}
+
+  size_t size() const {return size_;}
+
+ private:
+  // The mapping, or the buffer from malloc() if mapped_ is false.
+  void *map_;
+  size_t map_size_;
+  bool mapped_;
+
+  // The image in map_.
+  const char *data_;
+  size_t size_;
+  size_t pos_;
+};
+}
+
+#endif  // PINYINIME_INCLUDE_DICTIMAGE_H__
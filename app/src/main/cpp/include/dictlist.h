@@ -40,6 +40,9 @@ class DictList {
   // The large memory block to store the word list.
   char16 *buf_;
 
+  // If true, scis_hz_, scis_splid_ and buf_ are in a DictImage.
+  bool in_image_;
+
   // Starting position of those words whose lengths are i+1, counted in
   // char16
   uint32 start_pos_[kMaxLemmaSize + 1];
@@ -80,7 +83,10 @@ class DictList {
   ~DictList();
 
   bool save_list(FILE *fp);
-  bool load_list(FILE *fp);
+
+  // Load from a dictionary image, which must stay open while the list is
+  // used. The lists are used in place.
+  bool load_list(DictImage *image);
 
 #ifdef ___BUILD_MODEL___
   // Init the list from the LemmaEntry array.
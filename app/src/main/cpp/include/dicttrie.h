@@ -20,6 +20,7 @@
 #include <stdlib.h>
 #include "./atomdictbase.h"
 #include "./dictdef.h"
+#include "./dictimage.h"
 #include "./dictlist.h"
 #include "./searchutility.h"
 
@@ -87,12 +88,24 @@ class DictTrie : AtomDictBase {
   ParsingMark *parsing_marks_;
   // The position for next available mark.
   uint16 parsing_marks_pos_;
+  // The size of parsing_marks_, it grows with the input.
+  size_t parsing_marks_size_;
 
   // Mile stone list used to mark the extended status.
   MileStone *mile_stones_;
   // The position for the next available mile stone. We use positions (except 0)
   // as handles.
   MileStoneHandle mile_stones_pos_;
+  // The size of mile_stones_, it grows with the input.
+  size_t mile_stones_size_;
+
+  // If true, the trie nodes, the lemma index and the dict list belong to
+  // another DictTrie, see share_dict().
+  bool shared_;
+
+  // The loaded file. The trie nodes, the lemma index and the lists of
+  // dict_list_ are used in place, so it is closed with dict_list_.
+  DictImage *image_;
 
   // Get the offset of sons for a node.
   inline size_t get_son_offset(const LmaNodeGE1 *node);
@@ -105,7 +118,12 @@ class DictTrie : AtomDictBase {
 
   void free_resource(bool free_dict_list);
 
-  bool load_dict(FILE *fp);
+  // Load the trie section of the image.
+  bool load_dict(DictImage *image);
+
+  // Load all sections of the image and take it over.
+  bool load_image(DictImage *image, LemmaIdType start_id,
+                  LemmaIdType end_id);
 
   // Given a LmaNodeLE0 node, extract the lemmas specified by it, and fill
   // them into the lpi_items buffer.
@@ -145,8 +163,24 @@ class DictTrie : AtomDictBase {
   bool save_dict(FILE *fp);
 #endif  // ___BUILD_MODEL___
 
+  // The initial sizes of the mile stone list and the parsing mark list. They
+  // double when they are full, up to kMaxParsingSpace items, because the
+  // positions are uint16.
   static const int kMaxMileStone = 100;
   static const int kMaxParsingMark = 600;
+  static const size_t kMaxParsingSpace = 0xffff;
+
+  // Allocate the mile stone list and the parsing mark list with the initial
+  // sizes.
+  bool alloc_parsing_space();
+
+  // Double the size of the parsing mark list, keeping its content. Return
+  // false if it can not grow any more.
+  bool grow_parsing_marks();
+
+  // Double the size of the mile stone list, keeping its content. It must not
+  // be called while pointers to the mile stones are held.
+  bool grow_mile_stones();
   static const MileStoneHandle kFirstValidMileStoneHandle = 1;
 
   friend class DictParser;
@@ -161,7 +195,9 @@ class DictTrie : AtomDictBase {
   // Construct the tree from the file fn_raw.
   // fn_validhzs provide the valid hanzi list. If fn_validhzs is
   // NULL, only chars in GB2312 will be included.
-  bool build_dict(const char *fn_raw, const char *fn_validhzs);
+  // Up to thread_num threads are used, the result does not depend on it.
+  bool build_dict(const char *fn_raw, const char *fn_validhzs,
+                  size_t thread_num);
 
   // Save the binary dictionary
   // Actually, the SpellingTrie/DictList instance will be also saved.
@@ -178,6 +214,11 @@ class DictTrie : AtomDictBase {
                  LemmaIdType end_id);
   bool load_dict_fd(int sys_fd, long start_offset, long length,
                     LemmaIdType start_id, LemmaIdType end_id);
+  // Share the loaded data of dict_trie instead of loading a copy. Only the
+  // parsing marks and mile stones, which are changed by searching, are owned
+  // by this object, so several searches can run on the same data. dict_trie
+  // must stay alive and must not be reloaded while this object uses it.
+  bool share_dict(const DictTrie *dict_trie);
   bool close_dict() {return true;}
   size_t number_of_lemmas() {return 0;}
 
@@ -221,6 +262,8 @@ class DictTrie : AtomDictBase {
 
   void flush_cache() {}
 
+  uint32 get_change_count() { return 0; }
+
   LemmaIdType get_lemma_id(const char16 lemma_str[], uint16 lemma_len);
 
   // Fill the lemmas with highest scores to the prediction buffer.
@@ -17,20 +17,76 @@
 #ifndef PINYINIME_ANDPY_INCLUDE_LPICACHE_H__
 #define PINYINIME_ANDPY_INCLUDE_LPICACHE_H__
 
+#include <pthread.h>
 #include <stdlib.h>
 #include "./searchutility.h"
 #include "./spellingtrie.h"
 
 namespace ime_pinyin {
 
-// Used to cache LmaPsbItem list for half spelling ids.
+struct LpiCacheStats {
+  size_t hits;
+  size_t misses;
+  size_t evictions;
+  size_t entries;
+  // Memory taken by the entries, counted in byte.
+  size_t bytes;
+  size_t budget;
+};
+
+// Used to cache the LmaPsbItem lists found in the system dictionary for the
+// spelling id paths from the root, sorted by psb. Paths of half and full ids
+// are cached alike. When the entries take more memory than the budget, the
+// least recently used ones are evicted.
+// The cache is shared by all decoders, every call holds a lock.
 class LpiCache {
+ public:
+  // Lists of a half id at the root are cut to this length, only the best
+  // items are kept for a single letter.
+  static const size_t kMaxLpiCacheHalfId = 15;
+
+  static const size_t kDefaultBudget = 256 * 1024;
+
  private:
   static LpiCache *instance_;
-  static const int kMaxLpiCachePerId = 15;
+  static const size_t kBucketNum = 1024;
+
+  struct Entry {
+    Entry *hash_next;
+    // Neighbours in the list of recent use, the most recent one is at head_.
+    Entry *lru_prev;
+    Entry *lru_next;
+    uint16 splids[kMaxLemmaSize];
+    uint16 splids_len;
+    size_t lpi_num;
+    // The lpi_num items follow the entry.
+  };
+
+  Entry **buckets_;
+  Entry *head_;
+  Entry *tail_;
+
+  size_t budget_;
+  LpiCacheStats stats_;
+
+  pthread_mutex_t mutex_;
+
+  static size_t get_bucket(const uint16 *splids, uint16 splids_len);
 
-  LmaPsbItem *lpi_cache_;
-  uint16 *lpi_cache_len_;
+  static size_t get_entry_size(size_t lpi_num);
+
+  static LmaPsbItem* get_items(Entry *entry);
+
+  Entry* find(const uint16 *splids, uint16 splids_len, size_t bucket);
+
+  void unlink_lru(Entry *entry);
+
+  void link_lru(Entry *entry);
+
+  void remove(Entry *entry);
+
+  // Evicts the least recently used entries until the cache fits its budget.
+  void shrink();
 
  public:
   LpiCache();
@@ -38,23 +94,26 @@ class LpiCache {
 
   static LpiCache& get_instance();
 
-  // Test if the LPI list of the given splid  has been cached.
-  // If splid is a full spelling id, it returns false, because we only cache
-  // list for half ids.
-  bool is_cached(uint16 splid);
-
-  // Put LPI list to cahce. If the length of the list, lpi_num, is longer than
-  // the cache buffer. the list will be truncated, and function returns the
-  // maximum length of the cache buffer.
-  // Note: splid must be a half id, and lpi_items must be not NULL. The
-  // caller of this function should guarantee this.
-  size_t put_cache(uint16 splid, LmaPsbItem lpi_items[], size_t lpi_num);
-
-  // Get the cached list for the given half id.
-  // Return the length of the cached buffer.
-  // Note: splid must be a half id, and lpi_items must be not NULL. The
-  // caller of this function should guarantee this.
-  size_t get_cache(uint16 splid, LmaPsbItem lpi_items[], size_t lpi_max);
+  // Get the cached list of the path splids[0..splids_len). At most lpi_max
+  // items are copied to lpi_items, their number is returned in lpi_num.
+  // Return false if the path is not cached.
+  bool get_cache(const uint16 *splids, uint16 splids_len,
+                 LmaPsbItem lpi_items[], size_t lpi_max, size_t *lpi_num);
+
+  // Put the sorted LPI list of the path splids[0..splids_len) to the cache.
+  // If the list takes more memory than the budget, or the path is longer than
+  // a lemma, it is not cached.
+  void put_cache(const uint16 *splids, uint16 splids_len,
+                 const LmaPsbItem lpi_items[], size_t lpi_num);
+
+  // Remove all lists, for example because the system dictionary changed.
+  void clear();
+
+  // Set the memory the entries may take, counted in byte. Entries are
+  // evicted at once if they take more.
+  void set_budget(size_t budget);
+
+  void get_stats(LpiCacheStats *stats);
 };
 
 }  // namespace
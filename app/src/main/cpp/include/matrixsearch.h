@@ -26,6 +26,8 @@
 
 namespace ime_pinyin {
 
+// The number of rows the search buffers are allocated with. They grow when the
+// input gets longer, up to kMaxSearchStepsLimit rows.
 static const size_t kMaxRowNum = kMaxSearchSteps;
 
 typedef struct {
@@ -37,16 +39,20 @@ typedef struct {
   // If it is a half id like Shengmu, the node pointed by dict_node is the first
   // node with this Shengmu,
   uint16 spl_id;
+  // The costs of the fuzzy spellings from the root to this node, added to the
+  // scores of the lemmas matched by this node.
+  uint16 fuzzy_cost;
   // What's the level of the dict node. Level of root is 0, but root is never
-  // recorded by dict_node.
-  unsigned char dict_level:7;
+  // recorded by dict_node. A composing phrase takes up to max_hzs_len_
+  // levels, so it needs the whole byte.
+  unsigned char dict_level;
+  // What's the length of the spelling string for this match, for the whole
+  // word. Up to max_sps_len_ for a composing phrase.
+  unsigned char splstr_len;
   // If this node is for composing phrase, this bit is 1.
   unsigned char c_phrase:1;
   // Whether the spl_id is parsed with a split character at the end.
   unsigned char splid_end_split:1;
-  // What's the length of the spelling string for this match, for the whole
-  // word.
-  unsigned char splstr_len:7;
   // Used to indicate whether all spelling ids from the root are full spelling
   // ids. This information is useful for keymapping mode(not finished). Because
   // in this mode, there is no clear boundaries, we prefer those results which
@@ -113,15 +119,52 @@ typedef struct {
 // sub lemmas (sublma), and each of them are represented individually, so that
 // when user deletes Pinyin characters from the end, these sub lemmas can also
 // be unlocked one by one.
+// The buffers have one item per row of the search, see alloc_rows().
 typedef struct {
-  uint16 spl_ids[kMaxRowNum];
-  uint16 spl_start[kMaxRowNum];
-  char16 chn_str[kMaxRowNum];       // Chinese string.
-  uint16 sublma_start[kMaxRowNum];  // Counted in Chinese characters.
+  uint16 *spl_ids;
+  uint16 *spl_start;
+  char16 *chn_str;                  // Chinese string.
+  uint16 *sublma_start;             // Counted in Chinese characters.
   size_t sublma_num;
   uint16 length;                    // Counted in Chinese characters.
 } ComposingPhrase, *TComposingPhrase;
 
+// A partial path of the N-best sentence search: the lemmas from a matrix node
+// to the end of the input. See prepare_sentence_cands().
+typedef struct {
+  // The first lemma of the path, a node in the matrix pool. The path can reach
+  // it from any node in the row where the lemma starts, not only from its
+  // from node.
+  PoolPosType mtrx_nd_pos;
+  // The path of the next lemma, kNoSentencePath if this one is the last.
+  uint16 next;
+  // The score of the lemmas in the path.
+  float suffix_score;
+  // suffix_score plus the best score to reach the row where the path starts,
+  // that is the score of the best sentence ending with this path.
+  float score;
+} SentencePath;
+
+// Usage of the search buffers of a MatrixSearch, see get_pool_stats(). Rows
+// are counted from the starting row, so a Pinyin string of n letters uses n + 1
+// rows.
+typedef struct {
+  // In use by the current search.
+  size_t rows_used;
+  size_t mtrx_nd_used;
+  size_t dmi_used;
+  // The high-water marks since reset_search(), that is for the current input.
+  size_t rows_peak;
+  size_t mtrx_nd_peak;
+  size_t dmi_peak;
+  // The current capacities.
+  size_t rows_size;
+  size_t mtrx_nd_size;
+  size_t dmi_size;
+  // How many times the buffers have grown since init.
+  size_t grows;
+} SearchPoolStats;
+
 class MatrixSearch {
  private:
   // If it is true, prediction list by string whose length is greater than 1
@@ -147,12 +190,32 @@ class MatrixSearch {
   // characters
   static const size_t kMaxSentenceLength = 16;
 
-  // The size of the matrix node pool.
+  // The default maximum number of spelling ids of a search result, see
+  // set_max_lens().
+  static const size_t kMaxSentenceSplIds = 9;
+
+  // The initial size of the matrix node pool.
   static const size_t kMtrxNdPoolSize = 200;
 
-  // The size of the DMI node pool.
+  // The initial size of the DMI node pool.
   static const size_t kDmiPoolSize = 800;
 
+  // The pools are indexed by PoolPosType, and (PoolPosType)-1 is not a valid
+  // position.
+  static const size_t kMaxPoolSize = 0xffff;
+
+  // The default number of sentence candidates after the first one, see
+  // set_sentence_cand_num().
+  static const size_t kSentenceCandNum = 3;
+
+  // The maximum number of sentence candidates after the first one.
+  static const size_t kMaxSentenceCands = 8;
+
+  // The maximum number of partial paths of the N-best sentence search.
+  static const size_t kMaxSentencePaths = 1024;
+
+  static const uint16 kNoSentencePath = 0xffff;
+
   // Used to indicate whether this object has been initialized.
   bool inited_;
 
@@ -173,40 +236,60 @@ class MatrixSearch {
   // User dictionary.
   AtomDictBase* user_dict_;
 
+  // If true, user_dict_ belongs to the caller of init_shared().
+  bool user_dict_shared_;
+
   // Spelling parser.
   SpellingParser* spl_parser_;
 
   // The maximum allowed length of spelling string (such as a Pinyin string).
+  // Letters beyond it are discarded. It is less than kMaxSearchStepsLimit.
   size_t max_sps_len_;
 
-  // The maximum allowed length of a result Chinese string.
+  // The maximum allowed length of a result Chinese string, counted in
+  // spelling ids. If a search gives more, the last letters are discarded.
   size_t max_hzs_len_;
 
-  // Pinyin string. Max length: kMaxRowNum - 1
-  char pys_[kMaxRowNum];
+  // Number of rows the buffers indexed by steps have room for, including
+  // matrix_. It grows with the input, see reserve_rows().
+  size_t row_num_;
+
+  // The buffers indexed by steps are based on it, see alloc_rows().
+  size_t *row_buf_;
+
+  // Pinyin string. Max length: row_num_ - 1
+  char *pys_;
 
   // The length of the string that has been decoded successfully.
   size_t pys_decoded_len_;
 
-  // Shared buffer for multiple purposes.
+  // Shared buffer for multiple purposes. It is allocated for the initial
+  // sizes of the pools and reallocated when one of them grows, the nodes in
+  // use are kept. See alloc_pools().
   size_t *share_buf_;
 
   MatrixNode *mtrx_nd_pool_;
   PoolPosType mtrx_nd_pool_used_;    // How many nodes used in the pool
+  size_t mtrx_nd_pool_size_;
   DictMatchInfo *dmi_pool_;
   PoolPosType dmi_pool_used_;        // How many items used in the pool
+  size_t dmi_pool_size_;
 
   MatrixRow *matrix_;                // The first row is for starting
 
   DictExtPara *dep_;                 // Parameter used to extend DMI nodes.
 
+  // High-water marks and growth count of the buffers, the other fields are
+  // filled by get_pool_stats().
+  SearchPoolStats pool_stats_;
+
   NPredictItem *npre_items_;         // Used to do prediction
   size_t npre_items_len_;
 
   // The starting positions and lemma ids for the full sentence candidate.
   size_t lma_id_num_;
-  uint16 lma_start_[kMaxRowNum];     // Counted in spelling ids.
-  LemmaIdType lma_id_[kMaxRowNum];
+  uint16 *lma_start_;                // Counted in spelling ids.
+  LemmaIdType *lma_id_;
   size_t fixed_lmas_;
 
   // If fixed_lmas_ is bigger than i,  Element i is used to indicate whether
@@ -215,7 +298,7 @@ class MatrixSearch {
   // decoded by the engine automatically, so no need to add it to user
   // dictionary. (We are considering to add it to user dictionary in the
   // future).
-  uint8 fixed_lmas_no1_[kMaxRowNum];
+  uint8 *fixed_lmas_no1_;
 
   // Composing phrase
   ComposingPhrase c_phrase_;
@@ -228,8 +311,8 @@ class MatrixSearch {
   // The starting positions and spelling ids for the first full sentence
   // candidate.
   size_t spl_id_num_;                // Number of splling ids
-  uint16 spl_start_[kMaxRowNum];     // Starting positions
-  uint16 spl_id_[kMaxRowNum];        // Spelling ids
+  uint16 *spl_start_;                // Starting positions
+  uint16 *spl_id_;                   // Spelling ids
   // Used to remember the last fixed position, counted in Hanzi.
   size_t fixed_hzs_;
 
@@ -241,6 +324,20 @@ class MatrixSearch {
   LmaPsbItem lpi_items_[kMaxLmaPsbItems];
   size_t lpi_total_;
 
+  // The other best sentences, shown just after the first candidate. They are
+  // complete paths in sent_paths_ found by prepare_sentence_cands(), valid
+  // until the matrix changes.
+  size_t max_sent_cands_;
+  uint16 sent_cands_[kMaxSentenceCands];
+  size_t sent_cand_num_;
+
+  // The partial paths of the N-best sentence search, and a heap of the ones
+  // to extend ordered by score.
+  SentencePath sent_paths_[kMaxSentencePaths];
+  size_t sent_path_num_;
+  uint16 sent_heap_[kMaxSentencePaths];
+  size_t sent_heap_num_;
+
   // Assign the pointers with NULL. The caller makes sure that all pointers are
   // not valid before calling it. This function only will be called in the
   // construction function and free_resource().
@@ -250,6 +347,27 @@ class MatrixSearch {
 
   void free_resource();
 
+  // Lay out the buffers indexed by steps for row_num rows, keeping their
+  // content. Only called by alloc_resource() and reserve_rows().
+  bool alloc_rows(size_t row_num);
+
+  // Lay out the pools in a new share buffer with the given sizes, keeping the
+  // nodes in use. The MatrixNode pointers are moved with the pool. It must
+  // not be called while pointers to the DMI nodes are held.
+  bool alloc_pools(size_t mtrx_nd_size, size_t dmi_size, size_t row_num);
+
+  // Make sure that there are row_num rows, growing the buffers if necessary.
+  // Return false if row_num is more than kMaxSearchStepsLimit.
+  bool reserve_rows(size_t row_num);
+
+  // Make sure that the pools have room for mtrx_nd_num more matrix nodes and
+  // dmi_num more DMI nodes, growing them if necessary. Return false if a
+  // pool would be bigger than kMaxPoolSize.
+  bool reserve_pools(size_t mtrx_nd_num, size_t dmi_num);
+
+  // Update the high-water marks of the buffers after a row is extended.
+  void update_pool_peaks();
+
   // Reset the search space totally.
   bool reset_search0();
 
@@ -281,6 +399,10 @@ class MatrixSearch {
   // fixed_hzs_ will be also assigned.
   void get_spl_start_id();
 
+  // Called at the end of a search over a Pinyin string of py_len letters to
+  // get the spelling ids, limit their number and prepare the candidates.
+  void finish_search(size_t py_len);
+
   // Get all lemma ids with match the given spelling id stream(shorter than the
   // maximum length of a word).
   // If pfullsent is not NULL, means the full sentence candidate may be the
@@ -333,6 +455,23 @@ class MatrixSearch {
   // match the given spelling id strings.
   PoolPosType match_dmi(size_t step_to, uint16 spl_ids[], uint16 spl_id_num);
 
+  // If the DMI node matches lma_len spellings from fixed_hzs_, split as
+  // spl_start_ says, return true and fill splids with its spelling ids. With
+  // fuzzy pinyin, several DMI nodes match the same spellings.
+  bool get_unfixed_dmi_splids(DictMatchInfo *dmi, size_t lma_len,
+                              uint16 splids[]);
+
+  // Get the lemmas of the lma_len spellings from fixed_hzs_ with fuzzy pinyin,
+  // from every DMI node matching them. The costs of the DMI nodes are added
+  // to the scores. The result is not sorted, and may have repeated items.
+  size_t get_fuzzy_lpis(size_t lma_len, LmaPsbItem *lma_buf,
+                        size_t max_lma_buf);
+
+  // With fuzzy pinyin, a lemma candidate may be matched with other spellings
+  // than the first candidate's. Update spl_id_ from fixed_hzs_ to the DMI node
+  // of the least cost matching the lemma, so that it can be fixed.
+  void fit_fuzzy_splids(LemmaIdType id_lemma, size_t lma_len);
+
   bool add_char(char ch);
   bool prepare_add_char(char ch);
 
@@ -342,6 +481,47 @@ class MatrixSearch {
   // Prepare candidates from the last fixed hanzi position.
   void prepare_candidates();
 
+  // Find the best sentences after the first candidate, from the last fixed
+  // position to the end. The first lpi_num_full_match items of lpi_items_
+  // match the whole unfixed part, sentences with the same string as one of
+  // them are skipped, and so are sentences which score worse than the best of
+  // them.
+  //
+  // Every matrix node keeps its best predecessor only, but the lemma of a node
+  // can follow any node in the row where the lemma starts. The sentences are
+  // built backwards from the last row by a best-first search over these
+  // choices. The score of a partial path is the score of its lemmas plus the
+  // best score to reach the row where it starts, which is exact, so complete
+  // sentences come out of the heap best first.
+  void prepare_sentence_cands(size_t lpi_num_full_match);
+
+  // Add a partial path for every lemma ending in the given row, followed by
+  // the path next. suffix_score is the score of the path next.
+  void add_sentence_paths(size_t row, uint16 next, float suffix_score);
+
+  // Pop the partial path with the best score, kNoSentencePath if none left.
+  uint16 pop_sentence_path();
+
+  // Get the string of a partial path. Return NULL if it does not fit into
+  // max_len characters including the ending '\0'.
+  char16* get_sentence_str(uint16 path, char16 *str_buf, size_t max_len,
+                           uint16 *str_len);
+
+  // Is the sentence string the same as the first candidate's unfixed part
+  // best, an earlier sentence candidate or one of the first lpi_num items of
+  // lpi_items_?
+  bool is_sentence_cand_dup(const char16 *str, uint16 str_len,
+                            const char16 *best, size_t lpi_num);
+
+  // Fix a lemma covering lma_len spelling ids from fixed_hzs_, the ids are
+  // spl_id_[fixed_hzs_] to spl_id_[fixed_hzs_ + lma_len - 1]. The lemma must
+  // end at pys_decoded_len_. Only one matrix node is left in that row.
+  void fix_lemma(LemmaIdType id_lemma, LmaScoreType score, size_t lma_len);
+
+  // Choose the sent_id'th sentence candidate after the first one. All its
+  // lemmas are fixed, decoding the rest of the string only once.
+  size_t choose_sentence(size_t sent_id);
+
   // Is the character in step pos a splitter character?
   // The caller guarantees that the position is valid.
   bool is_split_at(uint16 pos);
@@ -380,12 +560,50 @@ class MatrixSearch {
   bool init_fd(int sys_fd, long start_offset, long length,
                const char *fn_usr_dict);
 
+  // Search in dictionaries loaded by the caller. The system dictionary data
+  // is shared, see DictTrie::share_dict(), and the user dictionary is used
+  // as it is, so it must be safe to use from all sharing searches. Both must
+  // stay alive until close(). usr_dict can be NULL.
+  bool init_shared(const DictTrie *sys_dict, AtomDictBase *usr_dict);
+
+  // Set the maximum length of the Pinyin string, less than
+  // kMaxSearchStepsLimit, and the maximum number of spelling ids of the
+  // decoded string. 0 keeps the current value.
   void set_max_lens(size_t max_sps_len, size_t max_hzs_len);
 
+  // Get the usage of the search buffers of this decoder.
+  void get_pool_stats(SearchPoolStats *stats);
+
+  // Set how many best sentences are offered after the first candidate, at
+  // most kMaxSentenceCands. 0 disables them.
+  void set_sentence_cand_num(size_t num);
+
+  // Set the Shuangpin scheme of the keys, kShuangpinNone for full Pinyin.
+  // With a scheme, every two keys from the start are a spelling, and a last
+  // single key is a Shengmu. Changing the scheme resets the search.
+  void set_shuangpin_scheme(ShuangpinScheme scheme);
+
+  // Enable or disable T9, where the keys are '2' to '9' and each stands for
+  // its letters. The spellings of all the letters are searched in the same
+  // matrix, from every possible split. Changing it resets the search.
+  void set_t9_enabled(bool enable);
+
+  // Enable or disable a class of fuzzy pinyin, see
+  // SpellingParser::set_fuzzy_pinyin(). Changing it resets the search.
+  void set_fuzzy_pinyin(FuzzyPinyinClass fz_class, bool enable, uint16 cost);
+
+  // Get the number of sentence candidates after the first one. Candidates 1 to
+  // the returned value are sentences, the rest are lemmas.
+  size_t get_sentence_cand_num();
+
   void close();
 
   void flush_cache();
 
+  // The number of changes made to the user dictionary, see
+  // AtomDictBase::get_change_count(), 0 without one.
+  uint32 get_user_dict_change_count();
+
   void set_xi_an_switch(bool xi_an_enabled);
 
   bool get_xi_an_switch();
@@ -398,6 +616,12 @@ class MatrixSearch {
   // Return value is the position successfully parsed.
   size_t search(const char *py, size_t py_len);
 
+  // Append one letter to the Pinyin string kept by the engine. Equivalent to
+  // search() with the old string plus ch, but only the matrix row of the new
+  // letter is extended, there is no prefix comparison.
+  // Return value is the position successfully parsed.
+  size_t add_letter(char ch);
+
   // Used to delete something in the Pinyin string kept by the engine, and do
   // a re-search.
   // Return value is the new length of Pinyin string kept by the engine which
@@ -421,6 +645,12 @@ class MatrixSearch {
   // *decoded_len returns the length of the successfully decoded string.
   const char* get_pystr(size_t *decoded_len);
 
+  // Get the Pinyin string stored by the engine, with the T9 keys of the
+  // spellings for the first sentence candidate replaced by their letters, so
+  // that it has the same spelling boundaries. Return the length of the
+  // string, and fill-in '\0' at the end.
+  size_t get_spl_letters(char *letters, size_t max_len);
+
   // Get the spelling boundaries for the first sentence candidate.
   // Number of spellings will be returned. The number of valid elements in
   // spl_start is one more than the return value because the last one is used
@@ -429,7 +659,8 @@ class MatrixSearch {
   size_t get_spl_start(const uint16 *&spl_start);
 
   // Get one candiate string. If full sentence candidate is available, it will
-  // be the first one.
+  // be the first one. The other sentence candidates follow it, without their
+  // fixed part.
   char16* get_candidate(size_t cand_id, char16 *cand_str, size_t max_len);
 
   // Get the first candiate, which is a "full sentence".
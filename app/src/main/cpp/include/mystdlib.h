@@ -18,6 +18,7 @@
 #define PINYINIME_INCLUDE_MYSTDLIB_H__
 
 #include <stdlib.h>
+#include "./dictdef.h"
 
 namespace ime_pinyin {
 
@@ -27,6 +28,27 @@ void myqsort(void *p, size_t n, size_t es,
 void *mybsearch(const void *key, const void *base,
                 size_t nmemb, size_t size,
                 int (*compar)(const void *, const void *));
+
+#ifdef ___BUILD_MODEL___
+// Splits [0, num) into at most thread_num consecutive ranges and calls
+// work(arg, start, end) for each of them on a thread of its own, the first
+// range on the calling thread. Returns when all ranges are done.
+void myparallel_for(size_t num, size_t thread_num,
+                    void (*work)(void *arg, size_t start, size_t end),
+                    void *arg);
+
+// Sorts the pointers by the items they point to. Items which compare equal
+// keep their order, so the result is the same on every platform and for
+// every thread_num. Parts of the array are sorted on up to thread_num
+// threads and merged.
+void mystablesort_ptrs(const void **ptrs, size_t n,
+                       int (*cmp)(const void *, const void *),
+                       size_t thread_num);
+
+// Sorts like myqsort(), but stable as mystablesort_ptrs().
+void mystablesort(void *p, size_t n, size_t es,
+                  int (*cmp)(const void *, const void *), size_t thread_num);
+#endif  // ___BUILD_MODEL___
 }
 
 #endif  // PINYINIME_INCLUDE_MYSTDLIB_H__
@@ -17,9 +17,11 @@
 #ifndef PINYINIME_INCLUDE_NGRAM_H__
 #define PINYINIME_INCLUDE_NGRAM_H__
 
+#include <atomic>
 #include <stdio.h>
 #include <stdlib.h>
 #include "./dictdef.h"
+#include "./dictimage.h"
 
 namespace ime_pinyin {
 
@@ -51,12 +53,12 @@ class NGram {
   bool initialized_;
   size_t idx_num_;
 
-  size_t total_freq_none_sys_;
-
   // Score compensation for system dictionary lemmas.
   // Because after user adds some user lemmas, the total frequency changes, and
   // we use this value to normalize the score.
-  float sys_score_compensation_;
+  // Atomic because decoders on other threads read it while one of them learns
+  // a lemma.
+  std::atomic<float> sys_score_compensation_;
 
 #ifdef ___BUILD_MODEL___
   double *freq_codes_df_;
@@ -71,7 +73,9 @@ class NGram {
   static NGram& get_instance();
 
   bool save_ngram(FILE *fp);
-  bool load_ngram(FILE *fp);
+  // Load from a dictionary image. The tables are copied, this instance is
+  // used by every dictionary.
+  bool load_ngram(DictImage *image);
 
   // Set the total frequency of all none system dictionaries.
   void set_total_freq_none_sys(size_t freq_none_sys);
@@ -86,9 +90,10 @@ class NGram {
   static float convert_psb_to_score(double psb);
 
 #ifdef ___BUILD_MODEL___
-  // For constructing the unigram mode model.
+  // For constructing the unigram mode model. The code book is computed on
+  // up to thread_num threads, the model does not depend on their number.
   bool build_unigram(LemmaEntry *lemma_arr, size_t num,
-                     LemmaIdType next_idx_unused);
+                     LemmaIdType next_idx_unused, size_t thread_num);
 #endif
 };
 }
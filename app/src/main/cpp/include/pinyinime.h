@@ -26,14 +26,25 @@ extern "C" {
 
   namespace ime_pinyin {
 
+  /**
+   * A decoder opened by im_open_decoder() or im_open_decoder_fd(). Every
+   * decoder keeps its own search state, so different decoders can be used on
+   * different threads at the same time, while one decoder must only be used
+   * by one thread at a time. The system and the user dictionary are loaded by
+   * the first open decoder and shared by all decoders opened after it until
+   * the last one is closed.
+   */
+  typedef struct ImDecoder* DecoderHandle;
+
   /**
    * Open the decoder engine via the system and user dictionary file names.
    *
    * @param fn_sys_dict The file name of the system dictionary.
    * @param fn_usr_dict The file name of the user dictionary.
-   * @return true if open the decoder engine successfully.
+   * @return The new decoder, NULL if failed.
    */
-  bool im_open_decoder(const char *fn_sys_dict, const char *fn_usr_dict);
+  DecoderHandle im_open_decoder(const char *fn_sys_dict,
+                                const char *fn_usr_dict);
 
   /**
    * Open the decoder engine via the system dictionary FD and user dictionary
@@ -45,15 +56,15 @@ extern "C" {
    * file sys_fd.
    * @param length The length of the system dictionary in the file sys_fd,
    * counted in byte.
-   * @return true if succeed.
+   * @return The new decoder, NULL if failed.
    */
-  bool im_open_decoder_fd(int sys_fd, long start_offset, long length,
-                          const char *fn_usr_dict);
+  DecoderHandle im_open_decoder_fd(int sys_fd, long start_offset, long length,
+                                   const char *fn_usr_dict);
 
   /**
    * Close the decoder engine.
    */
-  void im_close_decoder();
+  void im_close_decoder(DecoderHandle decoder);
 
   /**
    * Set maximum limitations for decoding. If this function is not called,
@@ -63,16 +74,63 @@ extern "C" {
    * user adds a new letter, the input or the output string is longer than the
    * limitations, the engine will discard the recent letter.
    *
+   * By default, 39 letters and 9 Chinese characters are decoded. The search
+   * buffers grow with the input, the spelling string can have up to
+   * kMaxSearchStepsLimit - 1 letters.
+   *
    * @param max_sps_len Maximum length of the spelling string(Pinyin string).
-   * @max_hzs_len Maximum length of the decoded Chinese character string.
+   * 0 keeps the current value.
+   * @max_hzs_len Maximum length of the decoded Chinese character string. 0
+   * keeps the current value.
+   */
+  void im_set_max_lens(DecoderHandle decoder, size_t max_sps_len,
+                       size_t max_hzs_len);
+
+  /**
+   * Set how many other sentences are offered after candidate 0 when it has
+   * more than one word. They are the next best paths of the search, and
+   * choosing one fixes it as a whole, like choosing candidate 0 does.
+   *
+   * By default, 3 sentences are offered, at most 8.
+   *
+   * @param num The number of sentences, 0 disables them.
+   */
+  void im_set_sentence_cand_num(DecoderHandle decoder, size_t num);
+
+  /**
+   * Set the Shuangpin scheme of the letters searched, kShuangpinNone for full
+   * Pinyin. With a scheme, every two letters from the start are a spelling,
+   * its Shengmu key and its Yunmu key, and the last letter alone is a
+   * Shengmu. Splitters are not accepted. The search is reset if the scheme
+   * changes.
+   *
+   * @param scheme The scheme, see ShuangpinScheme.
    */
-  void im_set_max_lens(size_t max_sps_len, size_t max_hzs_len);
+  void im_set_shuangpin_scheme(DecoderHandle decoder, ShuangpinScheme scheme);
+
+  /**
+   * Enable or disable T9 input, where the letters searched are the keys '2'
+   * to '9' of a phone keypad, each standing for its three or four letters.
+   * All the spellings the keys can be split into are decoded together.
+   * Splitters are accepted. It takes precedence over the Shuangpin scheme.
+   * The search is reset if it changes.
+   *
+   * @param enable Whether to enable T9.
+   */
+  void im_enable_t9(DecoderHandle decoder, bool enable);
 
   /**
    * Flush cached data to persistent memory. Because at runtime, in order to
    * achieve best performance, some data is only store in memory.
    */
-  void im_flush_cache();
+  void im_flush_cache(DecoderHandle decoder);
+
+  /**
+   * Get the number of changes made to the user dictionary, by any decoder
+   * sharing it. Results taken from the decoder before, like predictions, may
+   * be stale once it changed.
+   */
+  size_t im_get_user_dict_changes(DecoderHandle decoder);
 
   /**
    * Use a spelling string(Pinyin string) to search. The engine will try to do
@@ -87,7 +145,8 @@ extern "C" {
    * @param sps_len The length of the spelling string buffer.
    * @return The number of candidates.
    */
-  size_t im_search(const char* sps_buf, size_t sps_len);
+  size_t im_search(DecoderHandle decoder, const char* sps_buf,
+                   size_t sps_len);
 
   /**
    * Make a delete operation in the current search result, and make research if
@@ -99,13 +158,13 @@ extern "C" {
    * in the spelling string, or the position in the result spelling id string.
    * @return The number of candidates.
    */
-  size_t im_delsearch(size_t pos, bool is_pos_in_splid,
-                      bool clear_fixed_this_step);
+  size_t im_delsearch(DecoderHandle decoder, size_t pos,
+                      bool is_pos_in_splid, bool clear_fixed_this_step);
 
   /**
    * Reset the previous search result.
    */
-  void im_reset_search();
+  void im_reset_search(DecoderHandle decoder);
 
   /**
    * Add a Pinyin letter to the current spelling string kept by decoder. If the
@@ -115,7 +174,7 @@ extern "C" {
    * @param ch The letter to add.
    * @return The number of candidates.
    */
-  size_t im_add_letter(char ch);
+  size_t im_add_letter(DecoderHandle decoder, char ch);
 
   /**
    * Get the spelling string kept by the decoder.
@@ -124,19 +183,39 @@ extern "C" {
    * string is successfully parsed.
    * @return The spelling string kept by the decoder.
    */
-  const char *im_get_sps_str(size_t *decoded_len);
+  const char *im_get_sps_str(DecoderHandle decoder, size_t *decoded_len);
+
+  /**
+   * Get the spelling string kept by the decoder, with the T9 keys of the first
+   * candidate's spellings replaced by their letters. It has the same length
+   * and spelling boundaries as the one from im_get_sps_str().
+   *
+   * @param letters The buffer to store the string.
+   * @param max_len The maximum length of the buffer, '\0' included.
+   * @return The length of the string.
+   */
+  size_t im_get_spl_letters(DecoderHandle decoder, char *letters,
+                            size_t max_len);
 
   /**
    * Get a candidate(or choice) string.
    *
    * @param cand_id The id to get a candidate. Started from 0. Usually, id 0
-   * is a sentence-level candidate.
+   * is a sentence-level candidate, and ids 1 to im_get_sentence_cand_num()
+   * are other sentences. Those come without the fixed part.
    * @param cand_str The buffer to store the candidate.
    * @param max_len The maximum length of the buffer.
    * @return cand_str if succeeds, otherwise NULL.
    */
-  char16* im_get_candidate(size_t cand_id, char16* cand_str,
-                           size_t max_len);
+  char16* im_get_candidate(DecoderHandle decoder, size_t cand_id,
+                           char16* cand_str, size_t max_len);
+
+  /**
+   * Get the number of sentence candidates after candidate 0.
+   *
+   * @return The number of sentences, candidates 1 to the returned value.
+   */
+  size_t im_get_sentence_cand_num(DecoderHandle decoder);
 
   /**
    * Get the segmentation information(the starting positions) of the spelling
@@ -147,7 +226,8 @@ extern "C" {
    * elements in spl_start, and spl_start[L] is the posistion after the end of
    * the last spelling id.
    */
-  size_t im_get_spl_start_pos(const uint16 *&spl_start);
+  size_t im_get_spl_start_pos(DecoderHandle decoder,
+                              const uint16 *&spl_start);
 
   /**
    * Choose a candidate and make it fixed. If the candidate does not match
@@ -160,26 +240,26 @@ extern "C" {
    * @return The number of candidates. If after the selection, the whole result
    * string has been fixed, there will be only one candidate.
    */
-  size_t im_choose(size_t cand_id);
+  size_t im_choose(DecoderHandle decoder, size_t cand_id);
 
   /**
    * Cancel the last selection, or revert the last operation of im_choose().
    *
    * @return The number of candidates.
    */
-  size_t im_cancel_last_choice();
+  size_t im_cancel_last_choice(DecoderHandle decoder);
 
   /**
    * Get the number of fixed spelling ids, or Chinese characters.
    *
    * @return The number of fixed spelling ids, of Chinese characters.
    */
-  size_t im_get_fixed_len();
+  size_t im_get_fixed_len(DecoderHandle decoder);
 
   /**
    * Cancel the input state and reset the search workspace.
    */
-  bool im_cancel_input();
+  bool im_cancel_input(DecoderHandle decoder);
 
   /**
    * Get prediction candiates based on the given fixed Chinese string as the
@@ -187,21 +267,94 @@ extern "C" {
    *
    * @param his_buf The history buffer to do the prediction. It should be ended
    * with '\0'.
-   * @param pre_buf Used to return prediction result list.
+   * @param pre_buf Used to return prediction result list, it belongs to the
+   * decoder and is valid until the next call.
    * @return The number of predicted result string.
    */
-  size_t im_get_predicts(const char16 *his_buf,
+  size_t im_get_predicts(DecoderHandle decoder, const char16 *his_buf,
                          char16 (*&pre_buf)[kMaxPredictSize + 1]);
 
   /**
-   * Enable Shengmus in ShouZiMu mode.
+   * Enable Shengmus in ShouZiMu mode, for all decoders.
    */
   void im_enable_shm_as_szm(bool enable);
 
   /**
-   * Enable Yunmus in ShouZiMu mode.
+   * Enable Yunmus in ShouZiMu mode, for all decoders.
    */
   void im_enable_ym_as_szm(bool enable);
+
+  /**
+   * Enable or disable a class of fuzzy pinyin. The two spellings of an
+   * enabled class match each other in a single search, like "zi" and "zhi"
+   * for kFuzzyZZh. All classes are disabled when the decoder is opened. The
+   * search is reset if the class changes.
+   *
+   * @param fz_class The class, see FuzzyPinyinClass.
+   * @param enable Whether to enable the class.
+   * @param cost The score added to a lemma for each spelling of this class it
+   * is matched with instead of the typed one. The default kFuzzyPinyinCost
+   * prefers the typed lemma unless the other one is ten times as frequent.
+   */
+  void im_set_fuzzy_pinyin(DecoderHandle decoder, FuzzyPinyinClass fz_class,
+                           bool enable, uint16 cost);
+
+  /**
+   * Positions of the counters of im_get_lpi_cache_stats().
+   */
+  enum ImLpiCacheStat {
+    kLpiCacheHits,
+    kLpiCacheMisses,
+    kLpiCacheEvictions,
+    kLpiCacheEntries,
+    kLpiCacheBytes,
+    kLpiCacheBudget,
+    kLpiCacheStatNum
+  };
+
+  /**
+   * Get the counters of the cache of the lemma lists found in the system
+   * dictionary, which is shared by all decoders.
+   *
+   * @param stats Used to return the counters, in the order of ImLpiCacheStat.
+   * The sizes are counted in byte.
+   */
+  void im_get_lpi_cache_stats(size_t stats[kLpiCacheStatNum]);
+
+  /**
+   * Set the memory the cache of lemma lists may take, counted in byte. The
+   * least recently used lists are evicted to stay within it.
+   */
+  void im_set_lpi_cache_budget(size_t budget);
+
+  /**
+   * Positions of the counters of im_get_search_pool_stats().
+   */
+  enum ImSearchPoolStat {
+    kSearchRowsUsed,
+    kSearchRowsPeak,
+    kSearchRowsSize,
+    kSearchMtrxNdUsed,
+    kSearchMtrxNdPeak,
+    kSearchMtrxNdSize,
+    kSearchDmiUsed,
+    kSearchDmiPeak,
+    kSearchDmiSize,
+    kSearchPoolGrows,
+    kSearchPoolStatNum
+  };
+
+  /**
+   * Get the usage of the search buffers of a decoder: the steps (letters plus
+   * one), matrix nodes and dictionary match nodes in use by the current
+   * search, their high-water marks since the search was reset, and the
+   * capacities. The last counter is how many times the buffers have grown.
+   *
+   * @param stats Used to return the counters, in the order of
+   * ImSearchPoolStat.
+   */
+  void im_get_search_pool_stats(DecoderHandle decoder,
+                                size_t stats[kSearchPoolStatNum]);
 }
 
 #ifdef __cplusplus
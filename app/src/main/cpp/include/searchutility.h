@@ -75,8 +75,9 @@ typedef struct {
   // Spelling ids for extending, there are splids_extended + 1 ids in the
   // buffer.
   // For a normal lemma, there can only be kMaxLemmaSize spelling ids in max,
-  // but for a composing phrase, there can kMaxSearchSteps spelling ids.
-  uint16 splids[kMaxSearchSteps];
+  // but for a composing phrase, there can be as many spelling ids as the
+  // steps of the search, so the buffer belongs to the search.
+  uint16 *splids;
 
   // Number of ids that have been used before. splids[splids_extended] is the
   // newly added id for the current extension.
@@ -20,6 +20,7 @@
 #include <stdio.h>
 #include <stdlib.h>
 #include "./dictdef.h"
+#include "./dictimage.h"
 
 namespace ime_pinyin {
 
@@ -36,6 +37,27 @@ struct SpellingNode {
   unsigned char score;
 };
 
+// A string which is not a spelling but a fuzzy form of one, for example "SUA"
+// of "ShUA". The string is in the format of the spelling table.
+struct FuzzySplStr {
+  char str[kMaxPinyinSize + 1];
+  uint16 splid;
+  uint16 cost;
+};
+
+// The fuzzy spellings compiled from the enabled fuzzy pinyin classes of a
+// decoder.
+struct FuzzySplTable {
+  // The fuzzy spellings of spelling id i are alt_ids[alt_start[i]] to
+  // alt_ids[alt_start[i + 1] - 1], and cost alt_costs[] respectively.
+  uint16 *alt_start;
+  uint16 *alt_ids;
+  uint16 *alt_costs;
+  // Sorted by the strings, a string can be a fuzzy form of several spellings.
+  FuzzySplStr *strs;
+  size_t str_num;
+};
+
 class SpellingTrie {
  private:
   static const int kMaxYmNum = 64;
@@ -45,6 +67,15 @@ class SpellingTrie {
   static const uint16 kHalfIdYunmuMask = 0x02;
   static const uint16 kHalfIdSzmMask = 0x04;
 
+  // The keys of Shuangpin are 'a' to 'z' and ';'.
+  static const size_t kShuangpinKeyNum = 27;
+
+  // The maximum number of trie nodes a string of T9 keys reaches.
+  static const size_t kMaxT9Nodes = 64;
+
+  // Map from the letters 'a' to 'z' to their T9 keys.
+  static const char kT9Keys_[kValidSplCharNum + 1];
+
   // Map from half spelling id to single char.
   // For half ids of Zh/Ch/Sh, map to z/c/s (low case) respectively.
   // For example, 1 to 'A', 2 to 'B', 3 to 'C', 4 to 'c', 5 to 'D', ...,
@@ -114,6 +145,15 @@ class SpellingTrie {
   // Map from full id to half id.
   uint16 *f2h_;
 
+  // The spelling ids typed with the keys of the Shuangpin schemes. For scheme
+  // s and key k1, entry [0] is the half id of k1 alone, and entry [1 + k2] the
+  // full id of k1 followed by k2, the table of s and k1 starts at
+  // ((s - 1) * kShuangpinKeyNum + k1) * (kShuangpinKeyNum + 1).
+  uint16 *shuangpin_ids_;
+
+  // For each scheme, bit k is set if key k starts a spelling.
+  uint32 shuangpin_first_keys_[kShuangpinSchemeNum];
+
 #ifdef ___BUILD_MODEL___
   // How many node used to build the trie.
   size_t node_num_;
@@ -131,6 +171,23 @@ class SpellingTrie {
                                            size_t level, SpellingNode *parent);
   bool build_f2h();
 
+  // Return the full id of the given string in the format of the spelling
+  // table, or 0 if it is not a spelling.
+  uint16 find_splid(const char *spl_str) const;
+
+  // Add the fuzzy forms of the spelling string to the table. If a form is a
+  // spelling, its id is added to alternatives of splid, otherwise the form is
+  // added to the strings.
+  void add_fuzzy_forms(FuzzySplTable *table, uint16 splid,
+                       const char *spl_str, const bool fz_enabled[],
+                       const uint16 fz_costs[], size_t *str_num) const;
+
+  // Build the spelling ids of the keys of the Shuangpin schemes.
+  bool build_shuangpin_table();
+
+  // Return the position of a Shuangpin key, or -1 if it is not one.
+  static int get_shuangpin_key_pos(char key);
+
   // The caller should guarantee ch >= 'A' && ch <= 'Z'
   bool is_shengmu_char(char ch) const;
 
@@ -225,6 +282,51 @@ class SpellingTrie {
   // with a full id like "Zhe". (Fussy mode is not ready).
   bool half_full_compatible(uint16 half_id, uint16 full_id) const;
 
+  // Compile the fuzzy spellings of the fuzzy pinyin classes enabled in
+  // fz_enabled, with their costs in fz_costs, both indexed by
+  // FuzzyPinyinClass. Return NULL if no class is enabled, otherwise the
+  // caller frees the table with free_fuzzy_table().
+  FuzzySplTable* build_fuzzy_table(const bool fz_enabled[],
+                                   const uint16 fz_costs[]) const;
+
+  static void free_fuzzy_table(FuzzySplTable *table);
+
+  // Get the spelling ids which the given id also matches with the fuzzy
+  // spellings of table, and their costs. Half ids which are not enabled in
+  // ShouZiMu mode are skipped. Return the number of ids.
+  uint16 get_fuzzy_splids(const FuzzySplTable *table, uint16 splid,
+                          uint16 splids[], uint16 costs[],
+                          uint16 max_size) const;
+
+  // Get the spelling ids of a string which is not a spelling, but a fuzzy form
+  // of them in table, and their costs. *is_pre returns whether the string is
+  // the prefix of such a form. Return the number of ids.
+  uint16 get_fuzzy_splids(const FuzzySplTable *table, const char *splstr,
+                          uint16 str_len, uint16 splids[], uint16 costs[],
+                          uint16 max_size, bool *is_pre) const;
+
+  // Test if the given char is a key of the Shuangpin scheme.
+  static bool is_shuangpin_key(ShuangpinScheme scheme, char key);
+
+  // Get the spelling id typed with one or two keys of a Shuangpin scheme. Two
+  // keys are a full spelling; one key is the Shengmu of a spelling, which
+  // gets its half id if the Shengmu is enabled in ShouZiMu mode.
+  // *is_pre returns whether one key starts a spelling. Return 0 if the keys
+  // are not a spelling.
+  uint16 get_shuangpin_splid(ShuangpinScheme scheme, const char *keys,
+                             uint16 key_num, bool *is_pre) const;
+
+  // Test if the given char is a T9 key, '2' to '9'.
+  static bool is_t9_key(char key);
+
+  // Get the spelling ids whose letters are on the given T9 keys one by one.
+  // The trie is walked with the letters of each key at once, so all of them
+  // are found in one pass. One key also gets the half ids of its letters
+  // enabled in ShouZiMu mode. Splitters may follow the keys. *is_pre returns
+  // whether the keys are the prefix of a spelling. Return the number of ids.
+  uint16 get_t9_splids(const char *keys, uint16 key_num, uint16 splids[],
+                       uint16 max_size, bool *is_pre) const;
+
   static const SpellingTrie* get_cpinstance();
 
   static SpellingTrie& get_instance();
@@ -232,8 +334,8 @@ class SpellingTrie {
   // Save to the file stream
   bool save_spl_trie(FILE *fp);
 
-  // Load from the file stream
-  bool load_spl_trie(FILE *fp);
+  // Load from a dictionary image, the spellings are copied.
+  bool load_spl_trie(DictImage *image);
 
   // Get the number of spellings
   size_t get_spelling_num();
@@ -252,6 +354,10 @@ class SpellingTrie {
   // string, and fill-in '\0' at the end.
   size_t get_spelling_str16(uint16 splid, char16 *splstr16,
                             size_t splstr16_len);
+
+  // Similar to get_spelling_str16(), but the string is in lower case and
+  // uses char instead of char16.
+  size_t get_spelling_str(uint16 splid, char *splstr, size_t splstr_len) const;
 };
 }
 
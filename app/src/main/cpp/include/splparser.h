@@ -26,9 +26,45 @@ class SpellingParser {
  protected:
   const SpellingTrie *spl_trie_;
 
+  // The Shuangpin scheme of the keys, kShuangpinNone for full Pinyin.
+  ShuangpinScheme shuangpin_scheme_;
+
+  // Whether the keys are T9 keys, '2' to '9', instead of letters. It takes
+  // precedence over the Shuangpin scheme.
+  bool t9_enabled_;
+
+  // Fuzzy pinyin classes enabled and their costs.
+  bool fuzzy_enabled_[kFuzzyPinyinClassNum];
+  uint16 fuzzy_costs_[kFuzzyPinyinClassNum];
+
+  // Compiled from the enabled classes, NULL if none is enabled.
+  FuzzySplTable *fuzzy_table_;
+
  public:
   SpellingParser();
 
+  ~SpellingParser();
+
+  // Set the Shuangpin scheme of the keys parsed with
+  // get_splids_shuangpin(), kShuangpinNone for full Pinyin.
+  void set_shuangpin_scheme(ShuangpinScheme scheme);
+
+  ShuangpinScheme get_shuangpin_scheme() const;
+
+  // Enable or disable T9 keys, parsed with get_splids_t9().
+  void set_t9_enabled(bool enable);
+
+  bool t9_enabled() const;
+
+  // Enable or disable a class of fuzzy pinyin, parsed with
+  // get_splids_fuzzy() and get_splids_shuangpin(). A lemma matched with a
+  // fuzzy spelling gets cost added to its score for each fuzzy spelling.
+  // Return false if nothing changes.
+  bool set_fuzzy_pinyin(FuzzyPinyinClass fz_class, bool enable, uint16 cost);
+
+  // Test if any fuzzy pinyin class is enabled.
+  bool fuzzy_pinyin_on() const;
+
   // Given a string, parse it into a spelling id stream.
   // If the whole string are sucessfully parsed, last_is_pre will be true;
   // if the whole string is not fullly parsed, last_is_pre will return whether
@@ -74,7 +110,28 @@ class SpellingParser {
   // is a prefix of a full spelling string.
   uint16 get_splid_by_str_f(const char *splstr, uint16 str_len, bool *is_pre);
 
-  // Splitter chars are not included.
+  // Similar to get_splid_by_str(), but also return the spelling ids the string
+  // matches with the fuzzy pinyin classes enabled, and the
+  // costs of the ids. The id of the string itself comes first, with cost 0.
+  // If the string is not a spelling but a fuzzy form of some, only their ids
+  // are returned. When no class is enabled, the result is the same as
+  // get_splid_by_str().
+  uint16 get_splids_fuzzy(const char *splstr, uint16 str_len, uint16 splidx[],
+                          uint16 costs[], uint16 max_size, bool *is_pre);
+
+  // Similar to get_splids_fuzzy(), but the string is one or two keys of the
+  // Shuangpin scheme, which are looked up in the tables of SpellingTrie.
+  uint16 get_splids_shuangpin(const char *keys, uint16 key_num,
+                              uint16 splidx[], uint16 costs[],
+                              uint16 max_size, bool *is_pre);
+
+  // Similar to get_splids_fuzzy(), but the string is T9 keys, and all the
+  // spellings on them are returned with cost 0. Fuzzy pinyin does not apply.
+  uint16 get_splids_t9(const char *keys, uint16 key_num, uint16 splidx[],
+                       uint16 costs[], uint16 max_size, bool *is_pre);
+
+  // Splitter chars are not included. With a Shuangpin scheme, all its keys
+  // are valid, and with T9, the keys '2' to '9'.
   bool is_valid_to_parse(char ch);
 
   // When auto-correction is not enabled, get_splid_by_str() will be called to
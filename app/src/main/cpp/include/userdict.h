@@ -17,7 +17,6 @@
 #ifndef PINYINIME_INCLUDE_USERDICT_H__
 #define PINYINIME_INCLUDE_USERDICT_H__
 
-#define ___CACHE_ENABLED___
 #define ___SYNC_ENABLED___
 #define ___PREDICT_ENABLED___
 
@@ -26,6 +25,7 @@
 
 #include <pthread.h>
 #include "atomdictbase.h"
+#include "userdictwriter.h"
 
 namespace ime_pinyin {
 
@@ -82,6 +82,8 @@ class UserDict : public AtomDictBase {
 
   void flush_cache();
 
+  uint32 get_change_count();
+
   void set_limit(uint32 max_lemma_count, uint32 max_lemma_size,
                  uint32 reclaim_ratio);
 
@@ -147,7 +149,7 @@ class UserDict : public AtomDictBase {
   uint32 version_;
   uint8 * lemmas_;
 
-  // In-Memory-Only flag for each lemma
+  // Flag of a removed lemma, set with kUserDictOffsetFlagRemove
   static const uint8 kUserDictLemmaFlagRemove = 1;
   // Inuse lemmas' offset
   uint32 * offsets_;
@@ -186,11 +188,48 @@ class UserDict : public AtomDictBase {
 #endif
   uint32 * offsets_by_id_;
 
+  // Lemmas up to this count are sorted in offsets_ and predicts_, those
+  // appended after it are merged in when the file is written. Only
+  // the file needs the order, lemmas are looked up by the index below.
+  uint32 sorted_count_;
+
+  // In-memory index of offsets_, rebuilt when the file is loaded and when
+  // offsets_ is reordered. Each bucket heads a chain of offsets_ indices,
+  // newest first, linked by the next array of the index.
+  uint32 index_bits_;
+  // By the spelling ids.
+  uint32 * spl_buckets_;
+  uint32 * spl_next_;
+  // By the spelling key, see get_spelling_key(), for ids with half ids.
+  uint32 * key_buckets_;
+  uint32 * key_next_;
+#ifdef ___PREDICT_ENABLED___
+  // By the first Hanzi.
+  uint32 * hz_buckets_;
+  uint32 * hz_next_;
+#endif
+  // A bit is set by the hash of the spelling key of every prefix of a
+  // lemma. When the bit of what is searched is not set, no longer lemma
+  // starts with it.
+  uint32 * prefix_filter_;
+
+  static const uint32 kUserDictIndexEnd = 0xffffffff;
+  static const uint32 kUserDictIndexMinBits = 6;
+  // Bits of prefix_filter_ for each bucket, as a shift.
+  static const uint32 kUserDictPrefixFilterShift = 4;
+
   size_t lemma_count_left_;
   size_t lemma_size_left_;
 
   const char * dict_file_;
 
+  // Persists changes, NULL if the journal can not be written.
+  UserDictWriter * writer_;
+  // Bytes journaled since the last checkpoint.
+  size_t journal_size_;
+  // Every change is journaled, see journal().
+  uint32 change_count_;
+
   // Be sure size is 4xN
   struct UserDictInfo {
     // When limitation reached, how much percentage will be reclaimed (1 ~ 100)
@@ -216,7 +255,32 @@ class UserDict : public AtomDictBase {
     int32 total_nfreq;
   } dict_info_;
 
-  static const uint32 kUserDictVersion = 0x0ABCDEF0;
+  // Sections of the file, in file order.
+  enum UserDictSection {
+    USER_DICT_SECTION_LEMMAS = 0,
+    USER_DICT_SECTION_OFFSETS,
+    USER_DICT_SECTION_PREDICTS,
+    USER_DICT_SECTION_SCORES,
+    USER_DICT_SECTION_SYNCS,
+    USER_DICT_SECTION_NUM
+  };
+
+  // Follows the version, the sections follow it. Opening the file only
+  // checks the header, the checksum of a section is checked when it is
+  // read anyway.
+  struct UserDictHeader {
+    // Of the rest of the header.
+    uint32 checksum;
+    // Of the sections, those not compiled in are empty.
+    uint32 section_checksums[USER_DICT_SECTION_NUM];
+    UserDictInfo info;
+  };
+
+  static const uint32 kUserDictVersion = 0x0ABCDEF1;
+
+  // The version before the header, dict_info followed the sections. It is
+  // still read, and written in the current version on the next checkpoint.
+  static const uint32 kUserDictLegacyVersion = 0x0ABCDEF0;
 
   static const uint32 kUserDictPreAlloc = 32;
   static const uint32 kUserDictAverageNchar = 8;
@@ -239,56 +303,10 @@ class UserDict : public AtomDictBase {
     uint16 splids_len;
     uint16 splid_start[kMaxLemmaSize];
     uint16 splid_count[kMaxLemmaSize];
-    // Compact inital letters for both FuzzyCompareSpellId and cache system
-    uint32 signature[kMaxLemmaSize / 4];
-  };
-
-#ifdef ___CACHE_ENABLED___
-  enum UserDictCacheType {
-    USER_DICT_CACHE,
-    USER_DICT_MISS_CACHE,
+    uint64 key;
+    bool full_ids;
   };
 
-  static const int kUserDictCacheSize = 4;
-  static const int kUserDictMissCacheSize = kMaxLemmaSize - 1;
-
-  struct UserDictMissCache {
-    uint32 signatures[kUserDictMissCacheSize][kMaxLemmaSize / 4];
-    uint16 head, tail;
-  } miss_caches_[kMaxLemmaSize];
-
-  struct UserDictCache {
-    uint32 signatures[kUserDictCacheSize][kMaxLemmaSize / 4];
-    uint32 offsets[kUserDictCacheSize];
-    uint32 lengths[kUserDictCacheSize];
-    // Ring buffer
-    uint16 head, tail;
-  } caches_[kMaxLemmaSize];
-
-  void cache_init();
-
-  void cache_push(UserDictCacheType type,
-                 UserDictSearchable *searchable,
-                 uint32 offset, uint32 length);
-
-  bool cache_hit(UserDictSearchable *searchable,
-                 uint32 *offset, uint32 *length);
-
-  bool load_cache(UserDictSearchable *searchable,
-                  uint32 *offset, uint32 *length);
-
-  void save_cache(UserDictSearchable *searchable,
-                  uint32 offset, uint32 length);
-
-  void reset_cache();
-
-  bool load_miss_cache(UserDictSearchable *searchable);
-
-  void save_miss_cache(UserDictSearchable *searchable);
-
-  void reset_miss_cache();
-#endif
-
   LmaScoreType translate_score(int f);
 
   int extract_score_freq(int raw_score);
@@ -311,19 +329,25 @@ class UserDict : public AtomDictBase {
 
   int _get_lemma_score(LemmaIdType lemma_id);
 
-  int is_fuzzy_prefix_spell_id(const uint16 * id1, uint16 len1,
-                               const UserDictSearchable *searchable);
-
-  bool is_prefix_spell_id(const uint16 * fullids,
-                          uint16 fulllen, const UserDictSearchable *searchable);
+  uint32 get_sections_size(UserDictInfo * info);
 
   uint32 get_dict_file_size(UserDictInfo * info);
 
+  static void fill_header(UserDictHeader *header, const UserDictInfo *info,
+                          const uint32 section_checksums[]);
+
   bool reset(const char *file);
 
+  // Checks the version, the header and the size of the file.
   bool validate(const char *file);
 
-  bool load(const char *file, LemmaIdType start_id);
+  // Sets corrupted if a section does not match its checksum.
+  bool load(const char *file, LemmaIdType start_id, bool *corrupted);
+
+  // Reads a section, checking it if checksums is not NULL.
+  static bool read_section(FILE *fp, void *buf, size_t size,
+                           const uint32 *checksums, int section,
+                           bool *corrupted);
 
   bool is_valid_state();
 
@@ -345,17 +369,41 @@ class UserDict : public AtomDictBase {
   void prepare_locate(UserDictSearchable *searchable,
                       const uint16 * splids, uint16 len);
 
-  // Compare initial letters only
-  int32 fuzzy_compare_spell_id(const uint16 * id1, uint16 len1,
-                               const UserDictSearchable *searchable);
+  // The key of spellings by their number and initial letters, a half id has
+  // the initial letter of its full ids. The file is sorted by the key.
+  uint64 get_spelling_key(const uint16 * splids, uint16 len);
+
+  // The key of the first len spellings of the spellings of key.
+  static uint64 get_prefix_key(uint64 key, uint16 len);
+
+  uint32 get_splids_bucket(const uint16 * splids, uint16 len);
+
+  uint32 get_key_bucket(uint64 key);
+
+  uint32 get_prefix_bit(uint64 key);
+
+#ifdef ___PREDICT_ENABLED___
+  uint32 get_hanzi_bucket(char16 hz);
+#endif
 
   // Compare exactly two spell ids
   // First argument must be a full id spell id
   bool equal_spell_id(const uint16 * fullids,
                       uint16 fulllen, const UserDictSearchable *searchable);
 
-  // Find first item by initial letters
-  int32 locate_first_in_offsets(const UserDictSearchable *searchable);
+  // Size of the index block for 2^bits buckets, in uint32.
+  static size_t get_index_size(uint32 bits);
+
+  // Allocates the index for 2^bits buckets and builds it.
+  bool resize_index(uint32 bits);
+
+  // Rebuilds the index of the lemmas in use.
+  void build_index();
+
+  void add_to_index(uint32 offset_index);
+
+  // Sorts the appended lemmas into offsets_ and predicts_.
+  bool merge_appended_lemmas();
 
   LemmaIdType append_a_lemma(char16 lemma_str[], uint16 splids[],
                            uint16 lemma_len, uint16 count, uint64 lmt);
@@ -365,26 +413,80 @@ class UserDict : public AtomDictBase {
                           uint16 splid_str[], uint16 lemma_len);
 
   bool remove_lemma_by_offset_index(int offset_index);
-#ifdef ___PREDICT_ENABLED___
-  uint32 locate_where_to_insert_in_predicts(const uint16 * words,
-                                            int lemma_len);
-
-  int32 locate_first_in_predicts(const uint16 * words, int lemma_len);
-
-  void remove_lemma_from_predict_list(uint32 offset);
-#endif
 #ifdef ___SYNC_ENABLED___
   void queue_lemma_for_sync(LemmaIdType id);
 
   void remove_lemma_from_sync_list(uint32 offset);
 
-  void write_back_sync(int fd);
 #endif
-  void write_back_score(int fd);
-  void write_back_offset(int fd);
-  void write_back_lemma(int fd);
-  void write_back_all(int fd);
-  void write_back();
+  // Image of the dictionary file from malloc(), NULL if out of memory.
+  void* build_image(size_t *size);
+
+  // Hands an image of the dictionary to writer_.
+  void checkpoint();
+
+  // Makes room for one more lemma of lemma_len in memory.
+  bool reserve_lemma(uint16 lemma_len);
+
+  // Redo record of the journal, followed by Nchar spelling ids and the Nchar
+  // chars of the lemma.
+  struct UserDictJournalRecord {
+    // Of the rest of the record.
+    uint32 checksum;
+    uint8 type;
+    uint8 nchar;
+    uint16 flags;
+    uint32 score;
+  };
+
+  enum UserDictJournalType {
+    // Sets the score of the lemma, adding it if needed.
+    USER_DICT_JOURNAL_SCORE = 1,
+    USER_DICT_JOURNAL_REMOVE,
+  };
+
+  // The lemma is queued for sync.
+  static const uint16 kUserDictJournalFlagSync = 1;
+
+  // Checkpoint once the journal grows beyond this and half the size of the
+  // file, so that writing the file costs about the same per change however
+  // large the dictionary is.
+  static const size_t kUserDictJournalCheckpointSize = 32 * 1024;
+
+  // FNV-1a, of the journal records and the sections of the file.
+  static uint32 checksum(const void *data, size_t size);
+
+  void journal(UserDictJournalType type, const char16 lemma_str[],
+               const uint16 splids[], uint16 lemma_len, uint32 score,
+               bool synced);
+
+  // Redoes the changes in the journal of file, returns the number of
+  // changes redone.
+  size_t replay_journal(const char *file);
+
+  void replay_score(char16 lemma_str[], uint16 splids[], uint16 lemma_len,
+                    uint32 score, bool synced);
+
+  // Sort items of the appended lemmas.
+  struct UserDictSpellingItem {
+    uint64 key;
+    uint32 offset_index;
+  };
+
+  static int cmp_spelling_item(const void *p1, const void *p2);
+
+#ifdef ___PREDICT_ENABLED___
+  struct UserDictWordItem {
+    const uint16 * words;
+    uint32 nchar;
+    uint32 offset;
+  };
+
+  static int compare_words(const uint16 *words1, uint32 nchar1,
+                           const uint16 *words2, uint32 nchar2);
+
+  static int cmp_word_item(const void *p1, const void *p2);
+#endif
 
   struct UserDictScoreOffsetPair {
     int score;
@@ -0,0 +1,82 @@
+#ifndef PINYINIME_INCLUDE_USERDICTWRITER_H__
+#define PINYINIME_INCLUDE_USERDICTWRITER_H__
+
+#include <pthread.h>
+#include <stddef.h>
+
+namespace ime_pinyin {
+
+/**
+ * Writes a user dictionary to disk on a thread of its own, so that the
+ * thread changing the dictionary only copies memory.
+ *
+ * Changes are handed over as redo records, which are appended to a journal
+ * next to the dictionary file and synced a batch at a time; a crash loses at
+ * most the batch being written. Now and then the dictionary hands over an
+ * image of the whole file, which is written to a temporary file and renamed
+ * over the dictionary before the journal is emptied.
+ */
+class UserDictWriter {
+ public:
+  UserDictWriter();
+  ~UserDictWriter();
+
+  // Journal of the dictionary file_name, to be freed with free().
+  static char* get_journal_file_name(const char *file_name);
+
+  // Replaces file_name with a file holding image, through a temporary file
+  // renamed over it.
+  static bool write_file(const char *file_name, const void *image,
+                         size_t size);
+
+  // Starts writing to the journal of file_name.
+  bool start(const char *file_name);
+
+  // Writes everything handed over and stops the thread.
+  void stop();
+
+  // Appends a record to the journal.
+  void append(const void *record, size_t size);
+
+  // Replaces the dictionary file with image, a buffer from malloc() which is
+  // freed by the writer. Records appended before are in the image, they are
+  // removed from the journal with it.
+  void checkpoint(void *image, size_t size);
+
+ private:
+  struct Buffer {
+    char *data;
+    size_t size;
+    size_t capacity;
+  };
+
+  static void* run(void *arg);
+
+  void loop();
+
+  bool write_records(const char *records, size_t size);
+
+  char *file_name_;
+  int journal_fd_;
+
+  pthread_t thread_;
+  bool started_;
+
+  // Guard everything below.
+  pthread_mutex_t mutex_;
+  pthread_cond_t cond_;
+  bool stopping_;
+
+  // Records not written yet, and the buffer being written.
+  Buffer pending_;
+  Buffer spare_;
+
+  // Image not written yet, it contains the first image_mark_ bytes of
+  // pending_.
+  void *image_;
+  size_t image_size_;
+  size_t image_mark_;
+};
+}
+
+#endif  // PINYINIME_INCLUDE_USERDICTWRITER_H__
@@ -18,6 +18,7 @@
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
+#include <time.h>
 
 #include "../include/dictbuilder.h"
 #include "../include/dicttrie.h"
@@ -138,6 +139,33 @@ int cmp_lemma_entry_hzspys(const void* p1, const void* p2) {
   return ret;
 }
 
+static double now_ms() {
+  struct timespec ts;
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  return ts.tv_sec * 1e3 + ts.tv_nsec / 1e6;
+}
+
+static const char *kStageNames[] = {
+  "read raw dictionary",
+  "spellings",
+  "order by hanzi",
+  "sort by hanzi",
+  "unigram",
+  "single char items",
+  "dict list",
+  "sort by spelling",
+  "top lemmas",
+  "trie",
+};
+
+// Shared by the stages which run at the same time in build_dict().
+struct BuildTask {
+  DictBuilder *builder;
+  DictTrie *dict_trie;
+  const void **hz_order;
+  bool spellings_built;
+};
+
 int compare_splid2(const void* p1, const void* p2) {
   int ret = utf16_strcmp(((const LemmaEntry*)p1)->spl_idx_arr,
                          ((const LemmaEntry*)p2)->spl_idx_arr);
@@ -145,6 +173,9 @@ int compare_splid2(const void* p1, const void* p2) {
 }
 
 DictBuilder::DictBuilder() {
+  thread_num_ = 1;
+  memset(stage_ms_, 0, sizeof(stage_ms_));
+
   lemma_arr_ = NULL;
   lemma_num_ = 0;
 
@@ -501,15 +532,8 @@ size_t DictBuilder::read_raw_dict(const char* fn_raw,
   return lemma_num;
 }
 
-bool DictBuilder::build_dict(const char *fn_raw,
-                             const char *fn_validhzs,
-                             DictTrie *dict_trie) {
-  if (NULL == fn_raw || NULL == dict_trie)
-    return false;
-
-  lemma_num_ = read_raw_dict(fn_raw, fn_validhzs, 240000);
-  if (0 == lemma_num_)
-    return false;
+bool DictBuilder::build_spellings() {
+  double start = now_ms();
 
   // Arrange the spelling table, and build a spelling tree
   // The size of an spelling. '\0' is included. If the spelling table is
@@ -519,19 +543,15 @@ bool DictBuilder::build_dict(const char *fn_raw,
   size_t spl_num;
   const char* spl_buf;
   spl_buf = spl_table_->arrange(&spl_item_size, &spl_num);
-  if (NULL == spl_buf) {
-    free_resource();
+  if (NULL == spl_buf)
     return false;
-  }
 
   SpellingTrie &spl_trie = SpellingTrie::get_instance();
 
   if (!spl_trie.construct(spl_buf, spl_item_size, spl_num,
                           spl_table_->get_score_amplifier(),
-                          spl_table_->get_average_score())) {
-    free_resource();
+                          spl_table_->get_average_score()))
     return false;
-  }
 
   printf("spelling tree construct successfully.\n");
 
@@ -556,35 +576,124 @@ bool DictBuilder::build_dict(const char *fn_raw,
     }
   }
 
-  // Sort the lemma items according to the hanzi, and give each unique item a
-  // id
-  sort_lemmas_by_hz();
+  stage_ms_[kStageSpellings] = now_ms() - start;
+  return true;
+}
+
+void DictBuilder::run_spellings_and_hz_order(void *arg, size_t start,
+                                             size_t end) {
+  BuildTask *task = static_cast<BuildTask*>(arg);
+  for (size_t pos = start; pos < end; pos++) {
+    if (0 == pos)
+      task->spellings_built = task->builder->build_spellings();
+    else
+      task->builder->get_lemma_order_by_hz(task->hz_order);
+  }
+}
+
+void DictBuilder::run_unigram_and_dict_list(void *arg, size_t start,
+                                            size_t end) {
+  BuildTask *task = static_cast<BuildTask*>(arg);
+  DictBuilder *builder = task->builder;
+  for (size_t pos = start; pos < end; pos++) {
+    double stage_start = now_ms();
+    if (0 == pos) {
+      // Construct the NGram information
+      NGram& ngram = NGram::get_instance();
+      ngram.build_unigram(builder->lemma_arr_, builder->lemma_num_,
+                          builder->lemma_arr_[builder->lemma_num_ - 1]
+                              .idx_by_hz + 1,
+                          builder->thread_num_);
+      builder->stage_ms_[kStageUnigram] = now_ms() - stage_start;
+    } else {
+      builder->scis_num_ = builder->build_scis();
+      builder->stage_ms_[kStageScis] = now_ms() - stage_start;
+
+      // Construct the dict list
+      stage_start = now_ms();
+      DictTrie *dict_trie = task->dict_trie;
+      dict_trie->dict_list_ = new DictList();
+      bool dl_success = dict_trie->dict_list_->init_list(
+          builder->scis_, builder->scis_num_, builder->lemma_arr_,
+          builder->lemma_num_);
+      assert(dl_success);
+      builder->stage_ms_[kStageDictList] = now_ms() - stage_start;
+    }
+  }
+}
 
-  scis_num_ = build_scis();
+void DictBuilder::print_stage_times(double total_ms) {
+  printf("\n------Build stages on %zu threads------\n", thread_num_);
+  for (size_t stage = 0; stage < kStageNum; stage++) {
+    const char *note = "";
+    if (kStageHzOrder == stage)
+      note = "  (while spellings)";
+    else if (kStageScis == stage || kStageDictList == stage)
+      note = "  (while unigram)";
+    printf("%-22s %9.1f ms%s\n", kStageNames[stage], stage_ms_[stage], note);
+  }
+  printf("%-22s %9.1f ms\n", "total", total_ms);
+}
 
-  // Construct the dict list
-  dict_trie->dict_list_ = new DictList();
-  bool dl_success = dict_trie->dict_list_->init_list(scis_, scis_num_,
-                                                     lemma_arr_, lemma_num_);
-  assert(dl_success);
+bool DictBuilder::build_dict(const char *fn_raw,
+                             const char *fn_validhzs,
+                             DictTrie *dict_trie, size_t thread_num) {
+  if (NULL == fn_raw || NULL == dict_trie)
+    return false;
 
-  // Construct the NGram information
-  NGram& ngram = NGram::get_instance();
-  ngram.build_unigram(lemma_arr_, lemma_num_,
-                      lemma_arr_[lemma_num_ - 1].idx_by_hz + 1);
+  thread_num_ = thread_num > 0 ? thread_num : 1;
+  memset(stage_ms_, 0, sizeof(stage_ms_));
+  double build_start = now_ms();
+
+  double start = now_ms();
+  lemma_num_ = read_raw_dict(fn_raw, fn_validhzs, 240000);
+  stage_ms_[kStageReadRaw] = now_ms() - start;
+  if (0 == lemma_num_)
+    return false;
+
+  // Ordering the lemmas by their Hanzis does not need the spelling ids, so it
+  // runs while they are filled in.
+  BuildTask task;
+  task.builder = this;
+  task.dict_trie = dict_trie;
+  task.hz_order = new const void*[lemma_num_];
+  task.spellings_built = false;
+  myparallel_for(2, thread_num_, run_spellings_and_hz_order, &task);
+  if (!task.spellings_built) {
+    delete [] task.hz_order;
+    free_resource();
+    return false;
+  }
+
+  // Sort the lemma items according to the hanzi, and give each unique item a
+  // id
+  sort_lemmas_by_hz(task.hz_order);
+  delete [] task.hz_order;
+  task.hz_order = NULL;
+
+  // The unigram only reads the frequencies and the ids by Hanzi, so it is
+  // built while the single char items and the dict list are.
+  myparallel_for(2, thread_num_, run_unigram_and_dict_list, &task);
 
   // sort the lemma items according to the spelling idx string
-  myqsort(lemma_arr_, lemma_num_, sizeof(LemmaEntry), compare_py);
+  start = now_ms();
+  mystablesort(lemma_arr_, lemma_num_, sizeof(LemmaEntry), compare_py,
+               thread_num_);
+  stage_ms_[kStagePySort] = now_ms() - start;
 
+  start = now_ms();
   get_top_lemmas();
+  stage_ms_[kStageTopLemmas] = now_ms() - start;
 
 #ifdef ___DO_STATISTICS___
   stat_init();
 #endif
 
+  start = now_ms();
   lma_nds_used_num_le0_ = 1;  // The root node
   bool dt_success = construct_subset(static_cast<void*>(lma_nodes_le0_),
                                      lemma_arr_, 0, lemma_num_, 0);
+  stage_ms_[kStageTrie] = now_ms() - start;
   if (!dt_success) {
     free_resource();
     return false;
@@ -631,6 +740,8 @@ bool DictBuilder::build_dict(const char *fn_raw,
 
   free_resource();
 
+  print_stage_times(now_ms() - build_start);
+
   if (kPrintDebug0) {
     printf("Building dict succeds\n");
   }
@@ -676,11 +787,24 @@ void DictBuilder::format_spelling_str(char *spl_str) {
   }
 }
 
-LemmaIdType DictBuilder::sort_lemmas_by_hz() {
+void DictBuilder::get_lemma_order_by_hz(const void **hz_order) {
+  double start = now_ms();
+  for (size_t pos = 0; pos < lemma_num_; pos++)
+    hz_order[pos] = lemma_arr_ + pos;
+  mystablesort_ptrs(hz_order, lemma_num_, cmp_lemma_entry_hzs, thread_num_);
+  stage_ms_[kStageHzOrder] = now_ms() - start;
+}
+
+LemmaIdType DictBuilder::sort_lemmas_by_hz(const void **hz_order) {
   if (NULL == lemma_arr_ || 0 == lemma_num_)
     return 0;
 
-  myqsort(lemma_arr_, lemma_num_, sizeof(LemmaEntry), cmp_lemma_entry_hzs);
+  double start = now_ms();
+  LemmaEntry *sorted = new LemmaEntry[lemma_num_];
+  for (size_t pos = 0; pos < lemma_num_; pos++)
+    sorted[pos] = *static_cast<const LemmaEntry*>(hz_order[pos]);
+  memcpy(lemma_arr_, sorted, sizeof(LemmaEntry) * lemma_num_);
+  delete [] sorted;
 
   lemma_arr_[0].idx_by_hz = 1;
   LemmaIdType idx_max = 1;
@@ -693,6 +817,7 @@ LemmaIdType DictBuilder::sort_lemmas_by_hz() {
       lemma_arr_[i].idx_by_hz = idx_max;
     }
   }
+  stage_ms_[kStageHzSort] = now_ms() - start;
   return idx_max + 1;
 }
 
@@ -725,7 +850,8 @@ size_t DictBuilder::build_scis() {
     }
   }
 
-  myqsort(scis_, scis_num_, sizeof(SingleCharItem), cmp_scis_hz_splid_freq);
+  mystablesort(scis_, scis_num_, sizeof(SingleCharItem),
+               cmp_scis_hz_splid_freq, thread_num_);
 
   // Remove repeated items
   size_t unique_scis_num = 1;
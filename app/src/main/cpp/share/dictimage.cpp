@@ -0,0 +1,113 @@
+#include <errno.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+#include "../include/dictimage.h"
+
+namespace ime_pinyin {
+
+DictImage::DictImage()
+    : map_(NULL),
+      map_size_(0),
+      mapped_(false),
+      data_(NULL),
+      size_(0),
+      pos_(0) {
+}
+
+DictImage::~DictImage() {
+  close();
+}
+
+bool DictImage::open(int fd, long start_offset, long length) {
+  close();
+  if (fd < 0 || start_offset < 0 || length <= 0)
+    return false;
+
+  // Pages beyond the end of the file can be mapped, but not read.
+  struct stat st;
+  if (0 != fstat(fd, &st) || st.st_size < start_offset + length)
+    return false;
+
+  // The arrays are aligned relative to the start of the image, so it has to
+  // start on a boundary to use them in place. zipalign puts assets stored
+  // without compression on one.
+  if (0 == start_offset % kDictImageAlign) {
+    long page_size = sysconf(_SC_PAGESIZE);
+    long map_offset = start_offset - start_offset % page_size;
+    size_t map_size = length + (start_offset - map_offset);
+    void *map = mmap(NULL, map_size, PROT_READ, MAP_SHARED, fd, map_offset);
+    if (MAP_FAILED != map) {
+      map_ = map;
+      map_size_ = map_size;
+      mapped_ = true;
+      data_ = static_cast<const char*>(map) + (start_offset - map_offset);
+      size_ = length;
+      return true;
+    }
+  }
+
+  char *buf = static_cast<char*>(malloc(length));
+  if (NULL == buf)
+    return false;
+  size_t read_size = 0;
+  while (read_size < static_cast<size_t>(length)) {
+    ssize_t n = pread(fd, buf + read_size, length - read_size,
+                      start_offset + read_size);
+    if (n < 0 && EINTR == errno)
+      continue;
+    if (n <= 0) {
+      free(buf);
+      return false;
+    }
+    read_size += n;
+  }
+  map_ = buf;
+  map_size_ = length;
+  data_ = buf;
+  size_ = length;
+  return true;
+}
+
+void DictImage::close() {
+  if (NULL != map_) {
+    if (mapped_)
+      munmap(map_, map_size_);
+    else
+      free(map_);
+  }
+  map_ = NULL;
+  map_size_ = 0;
+  mapped_ = false;
+  data_ = NULL;
+  size_ = 0;
+  pos_ = 0;
+}
+
+const void* DictImage::read(size_t size) {
+  if (size > size_ - pos_)
+    return NULL;
+  const void *p = data_ + pos_;
+  pos_ += size;
+  return p;
+}
+
+bool DictImage::read_uint32(uint32 *value) {
+  const void *p = read(sizeof(uint32));
+  if (NULL == p)
+    return false;
+  memcpy(value, p, sizeof(uint32));
+  return true;
+}
+
+bool DictImage::align() {
+  size_t pos = (pos_ + kDictImageAlign - 1) / kDictImageAlign *
+      kDictImageAlign;
+  if (pos > size_)
+    return false;
+  pos_ = pos;
+  return true;
+}
+
+}  // namespace ime_pinyin
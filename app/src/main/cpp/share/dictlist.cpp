@@ -30,6 +30,7 @@ DictList::DictList() {
   scis_hz_ = NULL;
   scis_splid_ = NULL;
   buf_ = NULL;
+  in_image_ = false;
   spl_trie_ = SpellingTrie::get_cpinstance();
 
   assert(kMaxLemmaSize == 8);
@@ -69,6 +70,13 @@ bool DictList::alloc_resource(size_t buf_size, size_t scis_num) {
 }
 
 void DictList::free_resource() {
+  if (in_image_) {
+    buf_ = NULL;
+    scis_hz_ = NULL;
+    scis_splid_ = NULL;
+    in_image_ = false;
+  }
+
   if (NULL != buf_)
     free(buf_);
   buf_ = NULL;
@@ -384,14 +392,14 @@ bool DictList::save_list(FILE *fp) {
       NULL == scis_hz_ || NULL == scis_splid_ || 0 == scis_num_)
     return false;
 
-  if (fwrite(&scis_num_, sizeof(size_t), 1, fp) != 1)
+  if (fwrite(&scis_num_, sizeof(uint32), 1, fp) != 1)
     return false;
 
-  if (fwrite(start_pos_, sizeof(size_t), kMaxLemmaSize + 1, fp) !=
+  if (fwrite(start_pos_, sizeof(uint32), kMaxLemmaSize + 1, fp) !=
       kMaxLemmaSize + 1)
     return false;
 
-  if (fwrite(start_id_, sizeof(size_t), kMaxLemmaSize + 1, fp) !=
+  if (fwrite(start_id_, sizeof(uint32), kMaxLemmaSize + 1, fp) !=
       kMaxLemmaSize + 1)
     return false;
 
@@ -408,37 +416,40 @@ bool DictList::save_list(FILE *fp) {
   return true;
 }
 
-bool DictList::load_list(FILE *fp) {
-  if (NULL == fp)
+bool DictList::load_list(DictImage *image) {
+  if (NULL == image)
     return false;
 
   initialized_ = false;
 
-  if (fread(&scis_num_, sizeof(uint32), 1, fp) != 1)
+  uint32 scis_num;
+  if (!image->read_uint32(&scis_num))
     return false;
 
-  if (fread(start_pos_, sizeof(uint32), kMaxLemmaSize + 1, fp) !=
-      kMaxLemmaSize + 1)
+  const void *p = image->read(sizeof(uint32) * (kMaxLemmaSize + 1));
+  if (NULL == p)
     return false;
+  memcpy(start_pos_, p, sizeof(uint32) * (kMaxLemmaSize + 1));
 
-  if (fread(start_id_, sizeof(uint32), kMaxLemmaSize + 1, fp) !=
-      kMaxLemmaSize + 1)
+  p = image->read(sizeof(uint32) * (kMaxLemmaSize + 1));
+  if (NULL == p)
     return false;
+  memcpy(start_id_, p, sizeof(uint32) * (kMaxLemmaSize + 1));
 
   free_resource();
 
-  if (!alloc_resource(start_pos_[kMaxLemmaSize], scis_num_))
-    return false;
-
-  if (fread(scis_hz_, sizeof(char16), scis_num_, fp) != scis_num_)
+  const void *scis_hz = image->read(sizeof(char16) * scis_num);
+  const void *scis_splid = image->read(sizeof(SpellingId) * scis_num);
+  const void *buf = image->read(sizeof(char16) * start_pos_[kMaxLemmaSize]);
+  if (NULL == scis_hz || NULL == scis_splid || NULL == buf)
     return false;
 
-  if (fread(scis_splid_, sizeof(SpellingId), scis_num_, fp) != scis_num_)
-    return false;
-
-  if (fread(buf_, sizeof(char16), start_pos_[kMaxLemmaSize], fp) !=
-      start_pos_[kMaxLemmaSize])
-    return false;
+  // Nothing writes to the lists once they are loaded.
+  in_image_ = true;
+  scis_num_ = scis_num;
+  scis_hz_ = static_cast<char16*>(const_cast<void*>(scis_hz));
+  scis_splid_ = static_cast<SpellingId*>(const_cast<void*>(scis_splid));
+  buf_ = static_cast<char16*>(const_cast<void*>(buf));
 
   initialized_ = true;
   return true;
@@ -15,8 +15,11 @@
  */
 
 #include <assert.h>
+#include <fcntl.h>
 #include <stdio.h>
 #include <string.h>
+#include <sys/stat.h>
+#include <unistd.h>
 #include "../include/dicttrie.h"
 #include "../include/dictbuilder.h"
 #include "../include/lpicache.h"
@@ -38,9 +41,13 @@ DictTrie::DictTrie() {
   total_lma_num_ = 0;
   top_lmas_num_ = 0;
   dict_list_ = NULL;
+  shared_ = false;
+  image_ = NULL;
 
   parsing_marks_ = NULL;
+  parsing_marks_size_ = 0;
   mile_stones_ = NULL;
+  mile_stones_size_ = 0;
   reset_milestones(0, kFirstValidMileStoneHandle);
 }
 
@@ -49,6 +56,21 @@ DictTrie::~DictTrie() {
 }
 
 void DictTrie::free_resource(bool free_dict_list) {
+  if (shared_) {
+    root_ = NULL;
+    splid_le0_index_ = NULL;
+    nodes_ge1_ = NULL;
+    lma_idx_buf_ = NULL;
+    dict_list_ = NULL;
+    shared_ = false;
+  }
+
+  if (NULL != image_) {
+    root_ = NULL;
+    nodes_ge1_ = NULL;
+    lma_idx_buf_ = NULL;
+  }
+
   if (NULL != root_)
     free(root_);
   root_ = NULL;
@@ -61,24 +83,30 @@ void DictTrie::free_resource(bool free_dict_list) {
     free(nodes_ge1_);
   nodes_ge1_ = NULL;
 
-  if (NULL != nodes_ge1_)
-    free(nodes_ge1_);
-  nodes_ge1_ = NULL;
+  if (NULL != lma_idx_buf_)
+    free(lma_idx_buf_);
+  lma_idx_buf_ = NULL;
 
   if (free_dict_list) {
     if (NULL != dict_list_) {
       delete dict_list_;
     }
     dict_list_ = NULL;
+
+    if (NULL != image_)
+      delete image_;
+    image_ = NULL;
   }
 
   if (parsing_marks_)
     delete [] parsing_marks_;
   parsing_marks_ = NULL;
+  parsing_marks_size_ = 0;
 
   if (mile_stones_)
     delete [] mile_stones_;
   mile_stones_ = NULL;
+  mile_stones_size_ = 0;
 
   reset_milestones(0, kFirstValidMileStoneHandle);
 }
@@ -101,12 +129,24 @@ inline LemmaIdType DictTrie::get_lemma_id(size_t id_offset) {
 }
 
 #ifdef ___BUILD_MODEL___
-bool DictTrie::build_dict(const char* fn_raw, const char* fn_validhzs) {
+// Pads the file to the start of the next section, see kDictImageAlign.
+static bool write_padding(FILE *fp) {
+  long pos = ftell(fp);
+  if (pos < 0)
+    return false;
+  static const char zeros[kDictImageAlign] = {0};
+  size_t padding = (kDictImageAlign - pos % kDictImageAlign) %
+      kDictImageAlign;
+  return fwrite(zeros, 1, padding, fp) == padding;
+}
+
+bool DictTrie::build_dict(const char* fn_raw, const char* fn_validhzs,
+                          size_t thread_num) {
   DictBuilder* dict_builder = new DictBuilder();
 
   free_resource(true);
 
-  return dict_builder->build_dict(fn_raw, fn_validhzs, this);
+  return dict_builder->build_dict(fn_raw, fn_validhzs, this, thread_num);
 }
 
 bool DictTrie::save_dict(FILE *fp) {
@@ -154,8 +194,11 @@ bool DictTrie::save_dict(const char *filename) {
   if (NULL == fp)
     return false;
 
-  if (!spl_trie.save_spl_trie(fp) || !dict_list_->save_list(fp) ||
-      !save_dict(fp) || !ngram.save_ngram(fp)) {
+  uint32 magic = kDictImageMagic;
+  if (fwrite(&magic, sizeof(uint32), 1, fp) != 1 ||
+      !spl_trie.save_spl_trie(fp) || !write_padding(fp) ||
+      !dict_list_->save_list(fp) || !write_padding(fp) ||
+      !save_dict(fp) || !write_padding(fp) || !ngram.save_ngram(fp)) {
     fclose(fp);
     return false;
   }
@@ -165,57 +208,46 @@ bool DictTrie::save_dict(const char *filename) {
 }
 #endif  // ___BUILD_MODEL___
 
-bool DictTrie::load_dict(FILE *fp) {
-  if (NULL == fp)
-    return false;
-  if (fread(&lma_node_num_le0_, sizeof(uint32), 1, fp) != 1)
+bool DictTrie::load_dict(DictImage *image) {
+  if (NULL == image)
     return false;
 
-  if (fread(&lma_node_num_ge1_, sizeof(uint32), 1, fp) != 1)
+  uint32 lma_node_num_le0;
+  uint32 lma_node_num_ge1;
+  uint32 lma_idx_buf_len;
+  uint32 top_lmas_num;
+  if (!image->read_uint32(&lma_node_num_le0) ||
+      !image->read_uint32(&lma_node_num_ge1) ||
+      !image->read_uint32(&lma_idx_buf_len) ||
+      !image->read_uint32(&top_lmas_num) ||
+      top_lmas_num >= lma_idx_buf_len)
     return false;
-
-  if (fread(&lma_idx_buf_len_, sizeof(uint32), 1, fp) != 1)
+  lma_node_num_le0_ = lma_node_num_le0;
+  lma_node_num_ge1_ = lma_node_num_ge1;
+  lma_idx_buf_len_ = lma_idx_buf_len;
+  top_lmas_num_ = top_lmas_num;
+
+  // The nodes and the lemma index are used in place.
+  const void *root = image->read(lma_node_num_le0_ * sizeof(LmaNodeLE0));
+  const void *nodes_ge1 = image->read(lma_node_num_ge1_ * sizeof(LmaNodeGE1));
+  const void *lma_idx_buf = image->read(lma_idx_buf_len_);
+  if (NULL == root || NULL == nodes_ge1 || NULL == lma_idx_buf)
     return false;
-
-  if (fread(&top_lmas_num_, sizeof(uint32), 1, fp) != 1 ||
-     top_lmas_num_ >= lma_idx_buf_len_)
-     return false;
-
-  free_resource(false);
-
-  root_ = static_cast<LmaNodeLE0*>
-          (malloc(lma_node_num_le0_ * sizeof(LmaNodeLE0)));
-  nodes_ge1_ = static_cast<LmaNodeGE1*>
-               (malloc(lma_node_num_ge1_ * sizeof(LmaNodeGE1)));
-  lma_idx_buf_ = (unsigned char*)malloc(lma_idx_buf_len_);
+  root_ = static_cast<LmaNodeLE0*>(const_cast<void*>(root));
+  nodes_ge1_ = static_cast<LmaNodeGE1*>(const_cast<void*>(nodes_ge1));
+  lma_idx_buf_ = static_cast<unsigned char*>(const_cast<void*>(lma_idx_buf));
   total_lma_num_ = lma_idx_buf_len_ / kLemmaIdSize;
 
   size_t buf_size = SpellingTrie::get_instance().get_spelling_num() + 1;
-  assert(lma_node_num_le0_ <= buf_size);
+  if (lma_node_num_le0_ > buf_size)
+    return false;
   splid_le0_index_ = static_cast<uint16*>(malloc(buf_size * sizeof(uint16)));
 
   // Init the space for parsing.
-  parsing_marks_ = new ParsingMark[kMaxParsingMark];
-  mile_stones_ = new MileStone[kMaxMileStone];
+  bool parsing_space_ok = alloc_parsing_space();
   reset_milestones(0, kFirstValidMileStoneHandle);
 
-  if (NULL == root_ || NULL == nodes_ge1_ || NULL == lma_idx_buf_ ||
-      NULL == splid_le0_index_ || NULL == parsing_marks_ ||
-      NULL == mile_stones_) {
-    free_resource(false);
-    return false;
-  }
-
-  if (fread(root_, sizeof(LmaNodeLE0), lma_node_num_le0_, fp)
-      != lma_node_num_le0_)
-    return false;
-
-  if (fread(nodes_ge1_, sizeof(LmaNodeGE1), lma_node_num_ge1_, fp)
-      != lma_node_num_ge1_)
-    return false;
-
-  if (fread(lma_idx_buf_, sizeof(unsigned char), lma_idx_buf_len_, fp) !=
-      lma_idx_buf_len_)
+  if (NULL == splid_le0_index_ || !parsing_space_ok)
     return false;
 
   // The quick index for the first level sons
@@ -240,74 +272,96 @@ bool DictTrie::load_dict(FILE *fp) {
   return true;
 }
 
-bool DictTrie::load_dict(const char *filename, LemmaIdType start_id,
-                         LemmaIdType end_id) {
-  if (NULL == filename || end_id <= start_id)
-    return false;
-
-  FILE *fp = fopen(filename, "rb");
-  if (NULL == fp)
-    return false;
-
+bool DictTrie::load_image(DictImage *image, LemmaIdType start_id,
+                          LemmaIdType end_id) {
   free_resource(true);
 
+  // Owned from now on, also if loading fails.
+  image_ = image;
   dict_list_ = new DictList();
   if (NULL == dict_list_) {
-    fclose(fp);
+    free_resource(true);
     return false;
   }
 
   SpellingTrie &spl_trie = SpellingTrie::get_instance();
   NGram &ngram = NGram::get_instance();
 
-  if (!spl_trie.load_spl_trie(fp) || !dict_list_->load_list(fp) ||
-      !load_dict(fp) || !ngram.load_ngram(fp) ||
+  uint32 magic;
+  if (!image->read_uint32(&magic) || kDictImageMagic != magic ||
+      !spl_trie.load_spl_trie(image) || !image->align() ||
+      !dict_list_->load_list(image) || !image->align() ||
+      !load_dict(image) || !image->align() || !ngram.load_ngram(image) ||
       total_lma_num_ > end_id - start_id + 1) {
     free_resource(true);
-    fclose(fp);
     return false;
   }
 
-  fclose(fp);
+  // The cached lists belong to the dictionary loaded before.
+  LpiCache::get_instance().clear();
   return true;
 }
 
+bool DictTrie::load_dict(const char *filename, LemmaIdType start_id,
+                         LemmaIdType end_id) {
+  if (NULL == filename || end_id <= start_id)
+    return false;
+
+  int fd = open(filename, O_RDONLY);
+  if (-1 == fd)
+    return false;
+
+  struct stat st;
+  DictImage *image = new DictImage();
+  if (0 != fstat(fd, &st) || NULL == image ||
+      !image->open(fd, 0, st.st_size)) {
+    delete image;
+    close(fd);
+    return false;
+  }
+  close(fd);
+
+  return load_image(image, start_id, end_id);
+}
+
 bool DictTrie::load_dict_fd(int sys_fd, long start_offset,
                             long length, LemmaIdType start_id,
                             LemmaIdType end_id) {
   if (start_offset < 0 || length <= 0 || end_id <= start_id)
     return false;
 
-  FILE *fp = fdopen(sys_fd, "rb");
-  if (NULL == fp)
-    return false;
-
-  if (-1 == fseek(fp, start_offset, SEEK_SET)) {
-    fclose(fp);
+  DictImage *image = new DictImage();
+  if (NULL == image || !image->open(sys_fd, start_offset, length)) {
+    delete image;
     return false;
   }
 
-  free_resource(true);
+  return load_image(image, start_id, end_id);
+}
 
-  dict_list_ = new DictList();
-  if (NULL == dict_list_) {
-    fclose(fp);
+bool DictTrie::share_dict(const DictTrie *dict_trie) {
+  if (NULL == dict_trie || NULL == dict_trie->root_)
     return false;
-  }
 
-  SpellingTrie &spl_trie = SpellingTrie::get_instance();
-  NGram &ngram = NGram::get_instance();
+  free_resource(true);
 
-  if (!spl_trie.load_spl_trie(fp) || !dict_list_->load_list(fp) ||
-      !load_dict(fp) || !ngram.load_ngram(fp) ||
-      ftell(fp) < start_offset + length ||
-      total_lma_num_ > end_id - start_id + 1) {
+  if (!alloc_parsing_space()) {
     free_resource(true);
-    fclose(fp);
     return false;
   }
 
-  fclose(fp);
+  shared_ = true;
+  dict_list_ = dict_trie->dict_list_;
+  root_ = dict_trie->root_;
+  nodes_ge1_ = dict_trie->nodes_ge1_;
+  splid_le0_index_ = dict_trie->splid_le0_index_;
+  lma_node_num_le0_ = dict_trie->lma_node_num_le0_;
+  lma_node_num_ge1_ = dict_trie->lma_node_num_ge1_;
+  lma_idx_buf_ = dict_trie->lma_idx_buf_;
+  lma_idx_buf_len_ = dict_trie->lma_idx_buf_len_;
+  total_lma_num_ = dict_trie->total_lma_num_;
+  top_lmas_num_ = dict_trie->top_lmas_num_;
+  reset_milestones(0, kFirstValidMileStoneHandle);
   return true;
 }
 
@@ -361,6 +415,54 @@ void DictTrie::reset_milestones(uint16 from_step, MileStoneHandle from_handle) {
   }
 }
 
+bool DictTrie::alloc_parsing_space() {
+  parsing_marks_ = new ParsingMark[kMaxParsingMark];
+  mile_stones_ = new MileStone[kMaxMileStone];
+  if (NULL == parsing_marks_ || NULL == mile_stones_)
+    return false;
+
+  parsing_marks_size_ = kMaxParsingMark;
+  mile_stones_size_ = kMaxMileStone;
+  return true;
+}
+
+bool DictTrie::grow_parsing_marks() {
+  if (parsing_marks_size_ >= kMaxParsingSpace)
+    return false;
+
+  size_t size = parsing_marks_size_ * 2;
+  if (size > kMaxParsingSpace)
+    size = kMaxParsingSpace;
+  ParsingMark *parsing_marks = new ParsingMark[size];
+  if (NULL == parsing_marks)
+    return false;
+
+  memcpy(parsing_marks, parsing_marks_,
+         sizeof(ParsingMark) * parsing_marks_pos_);
+  delete [] parsing_marks_;
+  parsing_marks_ = parsing_marks;
+  parsing_marks_size_ = size;
+  return true;
+}
+
+bool DictTrie::grow_mile_stones() {
+  if (mile_stones_size_ >= kMaxParsingSpace)
+    return false;
+
+  size_t size = mile_stones_size_ * 2;
+  if (size > kMaxParsingSpace)
+    size = kMaxParsingSpace;
+  MileStone *mile_stones = new MileStone[size];
+  if (NULL == mile_stones)
+    return false;
+
+  memcpy(mile_stones, mile_stones_, sizeof(MileStone) * mile_stones_pos_);
+  delete [] mile_stones_;
+  mile_stones_ = mile_stones;
+  mile_stones_size_ = size;
+  return true;
+}
+
 MileStoneHandle DictTrie::extend_dict(MileStoneHandle from_handle,
                                       const DictExtPara *dep,
                                       LmaPsbItem *lpi_items, size_t lpi_max,
@@ -368,6 +470,11 @@ MileStoneHandle DictTrie::extend_dict(MileStoneHandle from_handle,
   if (NULL == dep)
     return 0;
 
+  // An extension adds one mile stone at most, make room for it before the
+  // extending functions take pointers to the list.
+  if (mile_stones_pos_ >= mile_stones_size_)
+    grow_mile_stones();
+
   // from LmaNodeLE0 (root) to LmaNodeLE0
   if (0 == from_handle) {
     assert(0 == dep->splids_extended);
@@ -394,9 +501,6 @@ MileStoneHandle DictTrie::extend_dict0(MileStoneHandle from_handle,
   uint16 id_start = dep->id_start;
   uint16 id_num = dep->id_num;
 
-  LpiCache& lpi_cache = LpiCache::get_instance();
-  bool cached = lpi_cache.is_cached(splid);
-
   // 2. Begin exgtending
   // 2.1 Get the LmaPsbItem list
   LmaNodeLE0 *node = root_;
@@ -407,7 +511,7 @@ MileStoneHandle DictTrie::extend_dict0(MileStoneHandle from_handle,
     LmaNodeLE0 *son = root_ + son_pos;
     assert(son->spl_idx >= id_start && son->spl_idx < id_start + id_num);
 
-    if (!cached && *lpi_num < lpi_max) {
+    if (*lpi_num < lpi_max) {
       bool need_lpi = true;
       if (spl_trie_->is_half_id_yunmu(splid) && son_pos != son_start)
         need_lpi = false;
@@ -419,8 +523,8 @@ MileStoneHandle DictTrie::extend_dict0(MileStoneHandle from_handle,
 
     // If necessary, fill in a new mile stone.
     if (son->spl_idx == id_start) {
-      if (mile_stones_pos_ < kMaxMileStone &&
-          parsing_marks_pos_ < kMaxParsingMark) {
+      if (mile_stones_pos_ < mile_stones_size_ &&
+          (parsing_marks_pos_ < parsing_marks_size_ || grow_parsing_marks())) {
         parsing_marks_[parsing_marks_pos_].node_offset = son_pos;
         parsing_marks_[parsing_marks_pos_].node_num = id_num;
         mile_stones_[mile_stones_pos_].mark_start = parsing_marks_pos_;
@@ -486,8 +590,9 @@ MileStoneHandle DictTrie::extend_dict1(MileStoneHandle from_handle,
         if (son->spl_idx >= id_start + id_num - 1 || son_pos ==
             (size_t)node->num_of_son - 1) {
           if (found_num > 0) {
-            if (mile_stones_pos_ < kMaxMileStone &&
-                parsing_marks_pos_ < kMaxParsingMark) {
+            if (mile_stones_pos_ < mile_stones_size_ &&
+                (parsing_marks_pos_ < parsing_marks_size_ ||
+                 grow_parsing_marks())) {
               parsing_marks_[parsing_marks_pos_].node_offset =
                 node->son_1st_off + found_start;
               parsing_marks_[parsing_marks_pos_].node_num = found_num;
@@ -505,7 +610,7 @@ MileStoneHandle DictTrie::extend_dict1(MileStoneHandle from_handle,
     }  // for h_pos
   }
 
-  if (ret_val > 0) {
+  if (ret_val > 0 && mile_stones_pos_ < mile_stones_size_) {
     mile_stones_[mile_stones_pos_].mark_num = ret_val;
     ret_handle = mile_stones_pos_;
     mile_stones_pos_++;
@@ -564,8 +669,9 @@ MileStoneHandle DictTrie::extend_dict2(MileStoneHandle from_handle,
         if (son->spl_idx >= id_start + id_num - 1 || son_pos ==
             (size_t)node->num_of_son - 1) {
           if (found_num > 0) {
-            if (mile_stones_pos_ < kMaxMileStone &&
-                parsing_marks_pos_ < kMaxParsingMark) {
+            if (mile_stones_pos_ < mile_stones_size_ &&
+                (parsing_marks_pos_ < parsing_marks_size_ ||
+                 grow_parsing_marks())) {
               parsing_marks_[parsing_marks_pos_].node_offset =
                 get_son_offset(node) + found_start;
               parsing_marks_[parsing_marks_pos_].node_num = found_num;
@@ -583,7 +689,7 @@ MileStoneHandle DictTrie::extend_dict2(MileStoneHandle from_handle,
     }  // for ext_pos
   }  // for h_pos
 
-  if (ret_val > 0) {
+  if (ret_val > 0 && mile_stones_pos_ < mile_stones_size_) {
     mile_stones_[mile_stones_pos_].mark_num = ret_val;
     ret_handle = mile_stones_pos_;
     mile_stones_pos_++;
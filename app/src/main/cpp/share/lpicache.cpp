@@ -15,27 +15,31 @@
  */
 
 #include <assert.h>
+#include <string.h>
 #include "../include/lpicache.h"
 
 namespace ime_pinyin {
 
 LpiCache* LpiCache::instance_ = NULL;
 
-LpiCache::LpiCache() {
-  lpi_cache_ = new LmaPsbItem[kFullSplIdStart * kMaxLpiCachePerId];
-  lpi_cache_len_ = new uint16[kFullSplIdStart];
-  assert(NULL != lpi_cache_);
-  assert(NULL != lpi_cache_len_);
-  for (uint16 id = 0; id < kFullSplIdStart; id++)
-    lpi_cache_len_[id] = 0;
+LpiCache::LpiCache()
+    : head_(NULL),
+      tail_(NULL),
+      budget_(kDefaultBudget) {
+  buckets_ = new Entry*[kBucketNum];
+  assert(NULL != buckets_);
+  for (size_t pos = 0; pos < kBucketNum; pos++)
+    buckets_[pos] = NULL;
+  memset(&stats_, 0, sizeof(stats_));
+  pthread_mutex_init(&mutex_, NULL);
 }
 
 LpiCache::~LpiCache() {
-  if (NULL != lpi_cache_)
-    delete [] lpi_cache_;
+  clear();
+  if (NULL != buckets_)
+    delete [] buckets_;
 
-  if (NULL != lpi_cache_len_)
-    delete [] lpi_cache_len_;
+  pthread_mutex_destroy(&mutex_);
 }
 
 LpiCache& LpiCache::get_instance() {
@@ -46,36 +50,159 @@ LpiCache& LpiCache::get_instance() {
   return *instance_;
 }
 
-bool LpiCache::is_cached(uint16 splid) {
-  if (splid >= kFullSplIdStart)
-    return false;
-  return lpi_cache_len_[splid] != 0;
+size_t LpiCache::get_bucket(const uint16 *splids, uint16 splids_len) {
+  uint32 hash = 2166136261u;
+  for (uint16 pos = 0; pos < splids_len; pos++) {
+    hash ^= splids[pos];
+    hash *= 16777619u;
+  }
+  return hash % kBucketNum;
+}
+
+size_t LpiCache::get_entry_size(size_t lpi_num) {
+  return sizeof(Entry) + lpi_num * sizeof(LmaPsbItem);
+}
+
+LmaPsbItem* LpiCache::get_items(Entry *entry) {
+  return reinterpret_cast<LmaPsbItem*>(entry + 1);
+}
+
+LpiCache::Entry* LpiCache::find(const uint16 *splids, uint16 splids_len,
+                                size_t bucket) {
+  for (Entry *entry = buckets_[bucket]; NULL != entry;
+       entry = entry->hash_next) {
+    if (entry->splids_len == splids_len &&
+        0 == memcmp(entry->splids, splids, splids_len * sizeof(uint16)))
+      return entry;
+  }
+  return NULL;
+}
+
+void LpiCache::unlink_lru(Entry *entry) {
+  if (NULL != entry->lru_prev)
+    entry->lru_prev->lru_next = entry->lru_next;
+  else
+    head_ = entry->lru_next;
+  if (NULL != entry->lru_next)
+    entry->lru_next->lru_prev = entry->lru_prev;
+  else
+    tail_ = entry->lru_prev;
+}
+
+void LpiCache::link_lru(Entry *entry) {
+  entry->lru_prev = NULL;
+  entry->lru_next = head_;
+  if (NULL != head_)
+    head_->lru_prev = entry;
+  else
+    tail_ = entry;
+  head_ = entry;
+}
+
+void LpiCache::remove(Entry *entry) {
+  Entry **link = buckets_ + get_bucket(entry->splids, entry->splids_len);
+  while (*link != entry)
+    link = &(*link)->hash_next;
+  *link = entry->hash_next;
+  unlink_lru(entry);
+
+  stats_.entries--;
+  stats_.bytes -= get_entry_size(entry->lpi_num);
+  free(entry);
+}
+
+void LpiCache::shrink() {
+  while (stats_.bytes > budget_ && NULL != tail_) {
+    remove(tail_);
+    stats_.evictions++;
+  }
 }
 
-size_t LpiCache::put_cache(uint16 splid, LmaPsbItem lpi_items[],
-                           size_t lpi_num) {
-  uint16 num = kMaxLpiCachePerId;
-  if (num > lpi_num)
-    num = static_cast<uint16>(lpi_num);
+bool LpiCache::get_cache(const uint16 *splids, uint16 splids_len,
+                         LmaPsbItem lpi_items[], size_t lpi_max,
+                         size_t *lpi_num) {
+  *lpi_num = 0;
+  if (splids_len > kMaxLemmaSize)
+    return false;
 
-  LmaPsbItem *lpi_cache_this = lpi_cache_ + splid * kMaxLpiCachePerId;
-  for (uint16 pos = 0; pos < num; pos++)
-    lpi_cache_this[pos] = lpi_items[pos];
+  pthread_mutex_lock(&mutex_);
+  Entry *entry = find(splids, splids_len, get_bucket(splids, splids_len));
+  if (NULL == entry) {
+    stats_.misses++;
+    pthread_mutex_unlock(&mutex_);
+    return false;
+  }
 
-  lpi_cache_len_[splid] = num;
-  return num;
+  stats_.hits++;
+  unlink_lru(entry);
+  link_lru(entry);
+
+  size_t num = entry->lpi_num;
+  if (num > lpi_max)
+    num = lpi_max;
+  memcpy(lpi_items, get_items(entry), num * sizeof(LmaPsbItem));
+  *lpi_num = num;
+  pthread_mutex_unlock(&mutex_);
+  return true;
 }
 
-size_t LpiCache::get_cache(uint16 splid, LmaPsbItem lpi_items[],
-                           size_t lpi_max) {
-  if (lpi_max > lpi_cache_len_[splid])
-    lpi_max = lpi_cache_len_[splid];
+void LpiCache::put_cache(const uint16 *splids, uint16 splids_len,
+                         const LmaPsbItem lpi_items[], size_t lpi_num) {
+  size_t entry_size = get_entry_size(lpi_num);
+  if (splids_len > kMaxLemmaSize)
+    return;
+
+  pthread_mutex_lock(&mutex_);
+  if (entry_size > budget_) {
+    pthread_mutex_unlock(&mutex_);
+    return;
+  }
+
+  // Another decoder may have put the same path since it was missed.
+  size_t bucket = get_bucket(splids, splids_len);
+  Entry *entry = find(splids, splids_len, bucket);
+  if (NULL != entry)
+    remove(entry);
 
-  LmaPsbItem *lpi_cache_this = lpi_cache_ + splid * kMaxLpiCachePerId;
-  for (uint16 pos = 0; pos < lpi_max; pos++) {
-    lpi_items[pos] = lpi_cache_this[pos];
+  entry = static_cast<Entry*>(malloc(entry_size));
+  if (NULL == entry) {
+    pthread_mutex_unlock(&mutex_);
+    return;
   }
-  return lpi_max;
+  memcpy(entry->splids, splids, splids_len * sizeof(uint16));
+  entry->splids_len = splids_len;
+  entry->lpi_num = lpi_num;
+  memcpy(get_items(entry), lpi_items, lpi_num * sizeof(LmaPsbItem));
+
+  entry->hash_next = buckets_[bucket];
+  buckets_[bucket] = entry;
+  link_lru(entry);
+  stats_.entries++;
+  stats_.bytes += entry_size;
+
+  shrink();
+  pthread_mutex_unlock(&mutex_);
+}
+
+void LpiCache::clear() {
+  pthread_mutex_lock(&mutex_);
+  while (NULL != tail_)
+    remove(tail_);
+  pthread_mutex_unlock(&mutex_);
+}
+
+void LpiCache::set_budget(size_t budget) {
+  pthread_mutex_lock(&mutex_);
+  budget_ = budget;
+  shrink();
+  pthread_mutex_unlock(&mutex_);
+}
+
+void LpiCache::get_stats(LpiCacheStats *stats) {
+  pthread_mutex_lock(&mutex_);
+  *stats = stats_;
+  stats->budget = budget_;
+  pthread_mutex_unlock(&mutex_);
 }
 
 }  // namespace ime_pinyin
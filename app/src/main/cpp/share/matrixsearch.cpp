@@ -40,9 +40,15 @@ MatrixSearch::MatrixSearch() {
   xi_an_enabled_ = false;
   dmi_c_phrase_ = false;
 
-  assert(kMaxSearchSteps > 0);
+  assert(kMaxSearchSteps > 0 && kMaxSearchSteps <= kMaxSearchStepsLimit);
   max_sps_len_ = kMaxSearchSteps - 1;
-  max_hzs_len_ = kMaxSearchSteps;
+  max_hzs_len_ = kMaxSentenceSplIds;
+  memset(&pool_stats_, 0, sizeof(SearchPoolStats));
+
+  max_sent_cands_ = kSentenceCandNum;
+  sent_cand_num_ = 0;
+  sent_path_num_ = 0;
+  sent_heap_num_ = 0;
 }
 
 MatrixSearch::~MatrixSearch() {
@@ -52,19 +58,38 @@ MatrixSearch::~MatrixSearch() {
 void MatrixSearch::reset_pointers_to_null() {
   dict_trie_ = NULL;
   user_dict_ = NULL;
+  user_dict_shared_ = false;
   spl_parser_ = NULL;
 
   share_buf_ = NULL;
 
-  // The following four buffers are used for decoding, and they are based on
+  // The following three buffers are used for decoding, and they are based on
   // share_buf_, no need to delete them.
   mtrx_nd_pool_ = NULL;
+  mtrx_nd_pool_size_ = 0;
   dmi_pool_ = NULL;
+  dmi_pool_size_ = 0;
   matrix_ = NULL;
-  dep_ = NULL;
 
   // Based on share_buf_, no need to delete them.
   npre_items_ = NULL;
+
+  row_buf_ = NULL;
+  row_num_ = 0;
+
+  // The following buffers are indexed by steps, and they are based on
+  // row_buf_, no need to delete them.
+  dep_ = NULL;
+  pys_ = NULL;
+  lma_start_ = NULL;
+  lma_id_ = NULL;
+  fixed_lmas_no1_ = NULL;
+  spl_start_ = NULL;
+  spl_id_ = NULL;
+  c_phrase_.spl_ids = NULL;
+  c_phrase_.spl_start = NULL;
+  c_phrase_.chn_str = NULL;
+  c_phrase_.sublma_start = NULL;
 }
 
 bool MatrixSearch::alloc_resource() {
@@ -74,41 +99,221 @@ bool MatrixSearch::alloc_resource() {
   user_dict_ = static_cast<AtomDictBase*>(new UserDict());
   spl_parser_ = new SpellingParser();
 
-  size_t mtrx_nd_size = sizeof(MatrixNode) * kMtrxNdPoolSize;
-  mtrx_nd_size = align_to_size_t(mtrx_nd_size) / sizeof(size_t);
-  size_t dmi_size = sizeof(DictMatchInfo) * kDmiPoolSize;
-  dmi_size = align_to_size_t(dmi_size) / sizeof(size_t);
-  size_t matrix_size = sizeof(MatrixRow) * kMaxRowNum;
-  matrix_size = align_to_size_t(matrix_size) / sizeof(size_t);
-  size_t dep_size = sizeof(DictExtPara);
-  dep_size = align_to_size_t(dep_size) / sizeof(size_t);
-
-  // share_buf's size is determined by the buffers for search.
-  share_buf_ = new size_t[mtrx_nd_size + dmi_size + matrix_size + dep_size];
+  // Nothing is kept from a previous search when the buffers are allocated.
+  pys_decoded_len_ = 0;
+  mtrx_nd_pool_used_ = 0;
+  dmi_pool_used_ = 0;
 
   if (NULL == dict_trie_ || NULL == user_dict_ || NULL == spl_parser_ ||
-      NULL == share_buf_)
+      !alloc_rows(kMaxRowNum) ||
+      !alloc_pools(kMtrxNdPoolSize, kDmiPoolSize, kMaxRowNum))
+    return false;
+
+  // The prediction buffer is also based on the share buffer. It keeps the
+  // size of the initial buffer, so that the predictions do not depend on how
+  // long the previous inputs were.
+  npre_items_ = reinterpret_cast<NPredictItem*>(share_buf_);
+  npre_items_len_ = (align_to_size_t(sizeof(MatrixNode) * kMtrxNdPoolSize) +
+                     align_to_size_t(sizeof(DictMatchInfo) * kDmiPoolSize) +
+                     align_to_size_t(sizeof(MatrixRow) * kMaxRowNum)) /
+                    sizeof(NPredictItem);
+
+  memset(&pool_stats_, 0, sizeof(SearchPoolStats));
+  return true;
+}
+
+bool MatrixSearch::alloc_rows(size_t row_num) {
+  size_t dep_size = align_to_size_t(sizeof(DictExtPara)) / sizeof(size_t);
+  size_t uint16_size = align_to_size_t(sizeof(uint16) * row_num) /
+                       sizeof(size_t);
+  size_t id_size = align_to_size_t(sizeof(LemmaIdType) * row_num) /
+                   sizeof(size_t);
+  size_t char_size = align_to_size_t(row_num) / sizeof(size_t);
+
+  // dep_->splids, lma_start_, spl_start_, spl_id_ and the four buffers of
+  // c_phrase_ take uint16_size each.
+  size_t *row_buf = new size_t[dep_size + uint16_size * 8 + id_size +
+                               char_size * 2];
+  if (NULL == row_buf)
+    return false;
+
+  size_t *pos = row_buf;
+  DictExtPara *dep = reinterpret_cast<DictExtPara*>(pos);
+  pos += dep_size;
+  dep->splids = reinterpret_cast<uint16*>(pos);
+  pos += uint16_size;
+  uint16 *lma_start = reinterpret_cast<uint16*>(pos);
+  pos += uint16_size;
+  uint16 *spl_start = reinterpret_cast<uint16*>(pos);
+  pos += uint16_size;
+  uint16 *spl_id = reinterpret_cast<uint16*>(pos);
+  pos += uint16_size;
+  ComposingPhrase c_phrase = c_phrase_;
+  c_phrase.spl_ids = reinterpret_cast<uint16*>(pos);
+  pos += uint16_size;
+  c_phrase.spl_start = reinterpret_cast<uint16*>(pos);
+  pos += uint16_size;
+  c_phrase.chn_str = reinterpret_cast<char16*>(pos);
+  pos += uint16_size;
+  c_phrase.sublma_start = reinterpret_cast<uint16*>(pos);
+  pos += uint16_size;
+  LemmaIdType *lma_id = reinterpret_cast<LemmaIdType*>(pos);
+  pos += id_size;
+  uint8 *fixed_lmas_no1 = reinterpret_cast<uint8*>(pos);
+  pos += char_size;
+  char *pys = reinterpret_cast<char*>(pos);
+
+  if (NULL == row_buf_) {
+    pys[0] = '\0';
+  } else {
+    // Growing, keep the state of the search.
+    assert(row_num > row_num_);
+    size_t uint16_bytes = sizeof(uint16) * row_num_;
+    memcpy(dep->splids, dep_->splids, uint16_bytes);
+    memcpy(lma_start, lma_start_, uint16_bytes);
+    memcpy(spl_start, spl_start_, uint16_bytes);
+    memcpy(spl_id, spl_id_, uint16_bytes);
+    memcpy(c_phrase.spl_ids, c_phrase_.spl_ids, uint16_bytes);
+    memcpy(c_phrase.spl_start, c_phrase_.spl_start, uint16_bytes);
+    memcpy(c_phrase.chn_str, c_phrase_.chn_str, uint16_bytes);
+    memcpy(c_phrase.sublma_start, c_phrase_.sublma_start, uint16_bytes);
+    memcpy(lma_id, lma_id_, sizeof(LemmaIdType) * row_num_);
+    memcpy(fixed_lmas_no1, fixed_lmas_no1_, row_num_);
+    memcpy(pys, pys_, row_num_);
+    delete [] row_buf_;
+  }
+
+  row_buf_ = row_buf;
+  row_num_ = row_num;
+  dep_ = dep;
+  lma_start_ = lma_start;
+  spl_start_ = spl_start;
+  spl_id_ = spl_id;
+  c_phrase_ = c_phrase;
+  lma_id_ = lma_id;
+  fixed_lmas_no1_ = fixed_lmas_no1;
+  pys_ = pys;
+  return true;
+}
+
+bool MatrixSearch::alloc_pools(size_t mtrx_nd_size, size_t dmi_size,
+                               size_t row_num) {
+  size_t mtrx_nd_buf_size = align_to_size_t(sizeof(MatrixNode) *
+                                            mtrx_nd_size) / sizeof(size_t);
+  size_t dmi_buf_size = align_to_size_t(sizeof(DictMatchInfo) * dmi_size) /
+                        sizeof(size_t);
+  size_t matrix_buf_size = align_to_size_t(sizeof(MatrixRow) * row_num) /
+                           sizeof(size_t);
+
+  // share_buf's size is determined by the buffers for search.
+  size_t *share_buf = new size_t[mtrx_nd_buf_size + dmi_buf_size +
+                                 matrix_buf_size];
+  if (NULL == share_buf)
     return false;
 
   // The buffers for search are based on the share buffer
-  mtrx_nd_pool_ = reinterpret_cast<MatrixNode*>(share_buf_);
-  dmi_pool_ = reinterpret_cast<DictMatchInfo*>(share_buf_ + mtrx_nd_size);
-  matrix_ = reinterpret_cast<MatrixRow*>(share_buf_ + mtrx_nd_size + dmi_size);
-  dep_ = reinterpret_cast<DictExtPara*>
-      (share_buf_ + mtrx_nd_size + dmi_size + matrix_size);
+  MatrixNode *mtrx_nd_pool = reinterpret_cast<MatrixNode*>(share_buf);
+  DictMatchInfo *dmi_pool =
+      reinterpret_cast<DictMatchInfo*>(share_buf + mtrx_nd_buf_size);
+  MatrixRow *matrix = reinterpret_cast<MatrixRow*>(share_buf +
+      mtrx_nd_buf_size + dmi_buf_size);
+
+  if (NULL == share_buf_) {
+    // The starting row is only filled by reset_search0(), the buffers may
+    // grow before that.
+    memset(matrix, 0, sizeof(MatrixRow));
+  } else {
+    // Growing, keep the nodes in use, including those of the row being
+    // extended, and move the pointers between them.
+    assert(mtrx_nd_size >= mtrx_nd_pool_size_ && dmi_size >= dmi_pool_size_ &&
+           row_num >= row_num_);
+    size_t mtrx_nd_num = mtrx_nd_pool_used_;
+    if (matrix_[pys_decoded_len_].mtrx_nd_pos == mtrx_nd_pool_used_)
+      mtrx_nd_num += matrix_[pys_decoded_len_].mtrx_nd_num;
+    assert(mtrx_nd_num <= mtrx_nd_pool_size_);
+
+    memcpy(mtrx_nd_pool, mtrx_nd_pool_, sizeof(MatrixNode) * mtrx_nd_num);
+    for (size_t pos = 0; pos < mtrx_nd_num; pos++) {
+      if (NULL != mtrx_nd_pool[pos].from)
+        mtrx_nd_pool[pos].from = mtrx_nd_pool +
+            (mtrx_nd_pool[pos].from - mtrx_nd_pool_);
+    }
+    memcpy(dmi_pool, dmi_pool_, sizeof(DictMatchInfo) * dmi_pool_used_);
+    memcpy(matrix, matrix_, sizeof(MatrixRow) * (pys_decoded_len_ + 1));
+    for (size_t row = 0; row <= pys_decoded_len_; row++) {
+      if (NULL != matrix[row].mtrx_nd_fixed)
+        matrix[row].mtrx_nd_fixed = mtrx_nd_pool +
+            (matrix[row].mtrx_nd_fixed - mtrx_nd_pool_);
+    }
+    delete [] share_buf_;
+    pool_stats_.grows++;
+  }
 
-  // The prediction buffer is also based on the share buffer.
+  share_buf_ = share_buf;
+  mtrx_nd_pool_ = mtrx_nd_pool;
+  mtrx_nd_pool_size_ = mtrx_nd_size;
+  dmi_pool_ = dmi_pool;
+  dmi_pool_size_ = dmi_size;
+  matrix_ = matrix;
   npre_items_ = reinterpret_cast<NPredictItem*>(share_buf_);
-  npre_items_len_ = (mtrx_nd_size + dmi_size + matrix_size + dep_size) *
-      sizeof(size_t) / sizeof(NPredictItem);
   return true;
 }
 
+bool MatrixSearch::reserve_rows(size_t row_num) {
+  if (row_num <= row_num_)
+    return true;
+  if (row_num > kMaxSearchStepsLimit)
+    return false;
+
+  size_t new_row_num = row_num_ * 2;
+  if (new_row_num < row_num)
+    new_row_num = row_num;
+  if (new_row_num > kMaxSearchStepsLimit)
+    new_row_num = kMaxSearchStepsLimit;
+
+  // alloc_pools() copies the rows until pys_decoded_len_, which must be
+  // valid in both buffers.
+  assert(pys_decoded_len_ < row_num_);
+  return alloc_pools(mtrx_nd_pool_size_, dmi_pool_size_, new_row_num) &&
+         alloc_rows(new_row_num);
+}
+
+bool MatrixSearch::reserve_pools(size_t mtrx_nd_num, size_t dmi_num) {
+  size_t mtrx_nd_size = mtrx_nd_pool_size_;
+  while (mtrx_nd_pool_used_ + mtrx_nd_num > mtrx_nd_size)
+    mtrx_nd_size *= 2;
+  size_t dmi_size = dmi_pool_size_;
+  while (dmi_pool_used_ + dmi_num > dmi_size)
+    dmi_size *= 2;
+
+  if (mtrx_nd_size == mtrx_nd_pool_size_ && dmi_size == dmi_pool_size_)
+    return true;
+
+  if (mtrx_nd_size > kMaxPoolSize)
+    mtrx_nd_size = kMaxPoolSize;
+  if (dmi_size > kMaxPoolSize)
+    dmi_size = kMaxPoolSize;
+  if (mtrx_nd_pool_used_ + mtrx_nd_num > mtrx_nd_size ||
+      dmi_pool_used_ + dmi_num > dmi_size)
+    return false;
+
+  return alloc_pools(mtrx_nd_size, dmi_size, row_num_);
+}
+
+void MatrixSearch::update_pool_peaks() {
+  if (pys_decoded_len_ + 1 > pool_stats_.rows_peak)
+    pool_stats_.rows_peak = pys_decoded_len_ + 1;
+  if (mtrx_nd_pool_used_ > pool_stats_.mtrx_nd_peak)
+    pool_stats_.mtrx_nd_peak = mtrx_nd_pool_used_;
+  if (dmi_pool_used_ > pool_stats_.dmi_peak)
+    pool_stats_.dmi_peak = dmi_pool_used_;
+}
+
 void MatrixSearch::free_resource() {
   if (NULL != dict_trie_)
     delete dict_trie_;
 
-  if (NULL != user_dict_)
+  if (NULL != user_dict_ && !user_dict_shared_)
     delete user_dict_;
 
   if (NULL != spl_parser_)
@@ -117,6 +322,9 @@ void MatrixSearch::free_resource() {
   if (NULL != share_buf_)
     delete [] share_buf_;
 
+  if (NULL != row_buf_)
+    delete [] row_buf_;
+
   reset_pointers_to_null();
 }
 
@@ -169,15 +377,92 @@ bool MatrixSearch::init_fd(int sys_fd, long start_offset, long length,
   return true;
 }
 
+bool MatrixSearch::init_shared(const DictTrie *sys_dict,
+                               AtomDictBase *usr_dict) {
+  if (NULL == sys_dict)
+    return false;
+
+  if (!alloc_resource())
+    return false;
+
+  if (!dict_trie_->share_dict(sys_dict))
+    return false;
+
+  delete user_dict_;
+  user_dict_ = usr_dict;
+  user_dict_shared_ = true;
+
+  reset_search0();
+
+  inited_ = true;
+  return true;
+}
+
 void MatrixSearch::set_max_lens(size_t max_sps_len, size_t max_hzs_len) {
-  if (0 != max_sps_len)
+  if (0 != max_sps_len) {
+    if (max_sps_len > kMaxSearchStepsLimit - 1)
+      max_sps_len = kMaxSearchStepsLimit - 1;
     max_sps_len_ = max_sps_len;
+  }
   if (0 != max_hzs_len)
     max_hzs_len_ = max_hzs_len;
 }
 
+void MatrixSearch::get_pool_stats(SearchPoolStats *stats) {
+  if (NULL == stats)
+    return;
+
+  *stats = pool_stats_;
+  if (!inited_)
+    return;
+  stats->rows_used = pys_decoded_len_ + 1;
+  stats->mtrx_nd_used = mtrx_nd_pool_used_;
+  stats->dmi_used = dmi_pool_used_;
+  stats->rows_size = row_num_;
+  stats->mtrx_nd_size = mtrx_nd_pool_size_;
+  stats->dmi_size = dmi_pool_size_;
+}
+
+void MatrixSearch::set_sentence_cand_num(size_t num) {
+  if (num > kMaxSentenceCands)
+    num = kMaxSentenceCands;
+  max_sent_cands_ = num;
+}
+
+void MatrixSearch::set_shuangpin_scheme(ShuangpinScheme scheme) {
+  if (NULL == spl_parser_ || scheme >= kShuangpinSchemeNum ||
+      scheme == spl_parser_->get_shuangpin_scheme())
+    return;
+  spl_parser_->set_shuangpin_scheme(scheme);
+  reset_search();
+}
+
+void MatrixSearch::set_t9_enabled(bool enable) {
+  if (NULL == spl_parser_ || enable == spl_parser_->t9_enabled())
+    return;
+  spl_parser_->set_t9_enabled(enable);
+  reset_search();
+}
+
+void MatrixSearch::set_fuzzy_pinyin(FuzzyPinyinClass fz_class, bool enable,
+                                    uint16 cost) {
+  if (NULL == spl_parser_ ||
+      !spl_parser_->set_fuzzy_pinyin(fz_class, enable, cost))
+    return;
+  reset_search();
+}
+
+size_t MatrixSearch::get_sentence_cand_num() {
+  if (0 == get_candidate_num())
+    return 0;
+  return sent_cand_num_;
+}
+
 void MatrixSearch::close() {
-  flush_cache();
+  // A shared user dictionary journals its changes, it is written back when
+  // its owner closes it.
+  if (!user_dict_shared_)
+    flush_cache();
   free_resource();
   inited_ = false;
 }
@@ -187,6 +472,12 @@ void MatrixSearch::flush_cache() {
     user_dict_->flush_cache();
 }
 
+uint32 MatrixSearch::get_user_dict_change_count() {
+  if (NULL == user_dict_)
+    return 0;
+  return user_dict_->get_change_count();
+}
+
 void MatrixSearch::set_xi_an_switch(bool xi_an_enabled) {
   xi_an_enabled_ = xi_an_enabled;
 }
@@ -198,6 +489,11 @@ bool MatrixSearch::get_xi_an_switch() {
 bool MatrixSearch::reset_search() {
   if (!inited_)
     return false;
+  // A brand new search, add_letter() starts from an empty string.
+  pys_[0] = '\0';
+  pool_stats_.rows_peak = 0;
+  pool_stats_.mtrx_nd_peak = 0;
+  pool_stats_.dmi_peak = 0;
   return reset_search0();
 }
 
@@ -231,6 +527,7 @@ bool MatrixSearch::reset_search0() {
     fixed_lmas_ = 0;
     spl_start_[0] = 0;
     fixed_hzs_ = 0;
+    sent_cand_num_ = 0;
 
     dict_trie_->reset_milestones(0, 0);
     if (NULL != user_dict_)
@@ -242,7 +539,7 @@ bool MatrixSearch::reset_search0() {
 bool MatrixSearch::reset_search(size_t ch_pos, bool clear_fixed_this_step,
                                 bool clear_dmi_this_step,
                                 bool clear_mtrx_this_step) {
-  if (!inited_ || ch_pos > pys_decoded_len_ || ch_pos >= kMaxRowNum)
+  if (!inited_ || ch_pos > pys_decoded_len_ || ch_pos >= row_num_)
     return false;
 
   if (0 == ch_pos) {
@@ -410,7 +707,7 @@ bool MatrixSearch::reset_search(size_t ch_pos, bool clear_fixed_this_step,
 }
 
 void MatrixSearch::del_in_pys(size_t start, size_t len) {
-  while (start < kMaxRowNum - len && '\0' != pys_[start]) {
+  while (start < row_num_ - len && '\0' != pys_[start]) {
     pys_[start] = pys_[start + len];
     start++;
   }
@@ -421,8 +718,10 @@ size_t MatrixSearch::search(const char *py, size_t py_len) {
     return 0;
 
   // If the search Pinyin string is too long, it will be truncated.
-  if (py_len > kMaxRowNum - 1)
-    py_len = kMaxRowNum - 1;
+  if (py_len > max_sps_len_)
+    py_len = max_sps_len_;
+  if (!reserve_rows(py_len + 1))
+    return pys_decoded_len_;
 
   // Compare the new string with the previous one. Find their prefix to
   // increase search efficiency.
@@ -449,19 +748,7 @@ size_t MatrixSearch::search(const char *py, size_t py_len) {
     ch_pos++;
   }
 
-  // Get spelling ids and starting positions.
-  get_spl_start_id();
-
-  // If there are too many spellings, remove the last letter until the spelling
-  // number is acceptable.
-  while (spl_id_num_ > 9) {
-    py_len--;
-    reset_search(py_len, false, false, false);
-    pys_[py_len] = '\0';
-    get_spl_start_id();
-  }
-
-  prepare_candidates();
+  finish_search(py_len);
 
   if (kPrintDebug0) {
     printf("--Matrix Node Pool Used: %d\n", mtrx_nd_pool_used_);
@@ -477,6 +764,53 @@ size_t MatrixSearch::search(const char *py, size_t py_len) {
   return ch_pos;
 }
 
+size_t MatrixSearch::add_letter(char ch) {
+  if (!inited_)
+    return 0;
+
+  size_t py_len = strlen(pys_);
+  if (py_len >= max_sps_len_ || !reserve_rows(py_len + 2))
+    return pys_decoded_len_;
+
+  // Letters after the decoded part could not be parsed, let search() find out
+  // whether the new one changes that.
+  if (py_len != pys_decoded_len_) {
+    char py[kMaxSearchStepsLimit];
+    memcpy(py, pys_, py_len);
+    py[py_len] = ch;
+    py[py_len + 1] = '\0';
+    return search(py, py_len + 1);
+  }
+
+  // Same as search() does when the whole old string is the common prefix.
+  reset_search(py_len, false, false, false);
+
+  pys_[py_len] = ch;
+  pys_[py_len + 1] = '\0';
+  if (!add_char(ch))
+    pys_decoded_len_ = py_len;
+
+  finish_search(py_len + 1);
+
+  return pys_decoded_len_;
+}
+
+void MatrixSearch::finish_search(size_t py_len) {
+  // Get spelling ids and starting positions.
+  get_spl_start_id();
+
+  // If there are too many spellings, remove the last letter until the spelling
+  // number is acceptable.
+  while (spl_id_num_ > max_hzs_len_) {
+    py_len--;
+    reset_search(py_len, false, false, false);
+    pys_[py_len] = '\0';
+    get_spl_start_id();
+  }
+
+  prepare_candidates();
+}
+
 size_t MatrixSearch::delsearch(size_t pos, bool is_pos_in_splid,
                                bool clear_fixed_this_step) {
   if (!inited_)
@@ -598,7 +932,7 @@ size_t MatrixSearch::get_candidate_num() {
       0 == matrix_[pys_decoded_len_].mtrx_nd_num)
     return 0;
 
-  return 1 + lpi_total_;
+  return 1 + sent_cand_num_ + lpi_total_;
 }
 
 char16* MatrixSearch::get_candidate(size_t cand_id, char16 *cand_str,
@@ -612,6 +946,13 @@ char16* MatrixSearch::get_candidate(size_t cand_id, char16 *cand_str,
     cand_id--;
   }
 
+  if (cand_id < sent_cand_num_) {
+    uint16 str_len;
+    return get_sentence_str(sent_cands_[cand_id], cand_str, max_len,
+                            &str_len);
+  }
+  cand_id -= sent_cand_num_;
+
   // For this case: the current sentence is a word only, and the user fixed it,
   // so the result will be fixed to the sentence space, and
   // lpi_total_ will be set to 0.
@@ -784,6 +1125,7 @@ size_t MatrixSearch::choose(size_t cand_id) {
     }
     fixed_lmas_ = lma_id_num_;
     lpi_total_ = 0;  // Clean all other candidates.
+    sent_cand_num_ = 0;
 
     // 1. It is the first choice
     if (1 == lma_id_num_) {
@@ -810,7 +1152,14 @@ size_t MatrixSearch::choose(size_t cand_id) {
     cand_id--;
   }
 
-  // 2. It is not the full sentence candidate.
+  // 2. It is another sentence candidate.
+  if (cand_id < sent_cand_num_)
+    return choose_sentence(cand_id);
+  cand_id -= sent_cand_num_;
+  if (cand_id >= lpi_total_)
+    return get_candidate_num();
+
+  // 3. It is a lemma candidate.
   // Find the length of the candidate.
   LemmaIdType id_chosen = lpi_items_[cand_id].id;
   LmaScoreType score_chosen = lpi_items_[cand_id].psb;
@@ -826,45 +1175,28 @@ size_t MatrixSearch::choose(size_t cand_id) {
     update_dict_freq();
   }
 
-  // 3. Fixed the chosen item.
-  // 3.1 Get the steps number.
-  size_t step_fr = spl_start_[fixed_hzs_];
+  // 4. Fixed the chosen item.
+  // 4.1 Get the steps number.
   size_t step_to = spl_start_[fixed_hzs_ + cand_len];
 
-  // 3.2 Save the length of the original string.
+  // 4.2 Save the length of the original string.
   size_t pys_decoded_len = pys_decoded_len_;
 
-  // 3.2 Reset the space of the fixed part.
+  // 4.2 Reset the space of the fixed part.
   reset_search(step_to, false, false, true);
 
-  // 3.3 For the last character of the fixed part, the previous DMI
+  // 4.3 For the last character of the fixed part, the previous DMI
   // information will be kept, while the MTRX information will be re-extended,
   // and only one node will be extended.
-  matrix_[step_to].mtrx_nd_num = 0;
-
-  LmaPsbItem lpi_item;
-  lpi_item.psb = score_chosen;
-  lpi_item.id = id_chosen;
-
-  PoolPosType step_to_dmi_fr = match_dmi(step_to,
-                                         spl_id_ + fixed_hzs_, cand_len);
-  assert(step_to_dmi_fr != static_cast<PoolPosType>(-1));
-
-  extend_mtrx_nd(matrix_[step_fr].mtrx_nd_fixed, &lpi_item, 1,
-                 step_to_dmi_fr, step_to);
-
-  matrix_[step_to].mtrx_nd_fixed = mtrx_nd_pool_ + matrix_[step_to].mtrx_nd_pos;
-  mtrx_nd_pool_used_ = matrix_[step_to].mtrx_nd_pos +
-                       matrix_[step_to].mtrx_nd_num;
-
   if (id_chosen == lma_id_[fixed_lmas_])
     fixed_lmas_no1_[fixed_lmas_] = 1;
   else
     fixed_lmas_no1_[fixed_lmas_] = 0;
-  lma_id_[fixed_lmas_] = id_chosen;
-  lma_start_[fixed_lmas_ + 1] = lma_start_[fixed_lmas_] + cand_len;
-  fixed_lmas_++;
-  fixed_hzs_ = fixed_hzs_ + cand_len;
+
+  if (spl_parser_->fuzzy_pinyin_on())
+    fit_fuzzy_splids(id_chosen, cand_len);
+
+  fix_lemma(id_chosen, score_chosen, cand_len);
 
   while (step_to != pys_decoded_len) {
     bool b = add_char(pys_[step_to]);
@@ -876,6 +1208,7 @@ size_t MatrixSearch::choose(size_t cand_id) {
     prepare_candidates();
   } else {
     lpi_total_ = 0;
+    sent_cand_num_ = 0;
     if (NULL != user_dict_) {
       try_add_cand0_to_userdict();
     }
@@ -884,6 +1217,113 @@ size_t MatrixSearch::choose(size_t cand_id) {
   return get_candidate_num();
 }
 
+void MatrixSearch::fix_lemma(LemmaIdType id_lemma, LmaScoreType score,
+                             size_t lma_len) {
+  size_t step_fr = spl_start_[fixed_hzs_];
+  size_t step_to = spl_start_[fixed_hzs_ + lma_len];
+  assert(step_to == pys_decoded_len_);
+
+  matrix_[step_to].mtrx_nd_num = 0;
+  mtrx_nd_pool_used_ = matrix_[step_to].mtrx_nd_pos;
+
+  PoolPosType step_to_dmi_fr = match_dmi(step_to,
+                                         spl_id_ + fixed_hzs_, lma_len);
+  assert(step_to_dmi_fr != static_cast<PoolPosType>(-1));
+
+  LmaPsbItem lpi_item;
+  lpi_item.psb = score;
+  lpi_item.id = id_lemma;
+
+  extend_mtrx_nd(matrix_[step_fr].mtrx_nd_fixed, &lpi_item, 1,
+                 step_to_dmi_fr, step_to);
+
+  matrix_[step_to].mtrx_nd_fixed = mtrx_nd_pool_ + matrix_[step_to].mtrx_nd_pos;
+  mtrx_nd_pool_used_ = matrix_[step_to].mtrx_nd_pos +
+                       matrix_[step_to].mtrx_nd_num;
+
+  lma_id_[fixed_lmas_] = id_lemma;
+  lma_start_[fixed_lmas_ + 1] = lma_start_[fixed_lmas_] + lma_len;
+  fixed_lmas_++;
+  fixed_hzs_ = fixed_hzs_ + lma_len;
+}
+
+size_t MatrixSearch::choose_sentence(size_t sent_id) {
+  // The lemmas of the first candidate, to tell which lemmas of the sentence
+  // are the first choice for their step.
+  MatrixNode *best_nds[kMaxSearchStepsLimit];
+  size_t best_num = 0;
+  MatrixNode *mtrx_nd = mtrx_nd_pool_ + matrix_[pys_decoded_len_].mtrx_nd_pos;
+  while (NULL == matrix_[mtrx_nd->step].mtrx_nd_fixed) {
+    best_nds[best_num++] = mtrx_nd;
+    mtrx_nd = mtrx_nd->from;
+  }
+
+  // 1. Lay the sentence out after the fixed part, as get_spl_start_id() does
+  // for the first candidate.
+  LmaScoreType scores[kMaxSearchStepsLimit];
+  size_t lma_num = fixed_lmas_;
+  size_t spl_num = fixed_hzs_;
+  for (uint16 path = sent_cands_[sent_id]; kNoSentencePath != path;
+       path = sent_paths_[path].next) {
+    mtrx_nd = mtrx_nd_pool_ + sent_paths_[path].mtrx_nd_pos;
+    DictMatchInfo *dmi = dmi_pool_ + mtrx_nd->dmi_fr;
+    size_t lma_len = dmi->dict_level;
+    unsigned char word_splstr_len = dmi->splstr_len;
+    for (size_t pos = spl_num + lma_len; pos > spl_num; pos--) {
+      spl_start_[pos] = mtrx_nd->step - (word_splstr_len - dmi->splstr_len);
+      spl_id_[pos - 1] = dmi->spl_id;
+      dmi = dmi_pool_ + dmi->dmi_fr;
+    }
+    spl_num += lma_len;
+
+    fixed_lmas_no1_[lma_num] = 0;
+    for (size_t pos = 0; pos < best_num; pos++) {
+      if (best_nds[pos] == mtrx_nd)
+        fixed_lmas_no1_[lma_num] = 1;
+    }
+    lma_id_[lma_num] = mtrx_nd->id;
+    scores[lma_num] = static_cast<LmaScoreType>(
+        mtrx_nd->score - mtrx_nd->from->score + 0.5);
+    lma_num++;
+    lma_start_[lma_num] = spl_num;
+  }
+  lma_id_num_ = lma_num;
+  spl_id_num_ = spl_num;
+
+  // 2. Fix the lemmas one by one. The rows of a lemma are decoded from the
+  // lemma fixed before it, so every row is decoded once.
+  reset_search(spl_start_[lma_start_[fixed_lmas_ + 1]], false, false, false);
+  while (fixed_lmas_ < lma_num) {
+    size_t lma_len = lma_start_[fixed_lmas_ + 1] - lma_start_[fixed_lmas_];
+    size_t step_to = spl_start_[fixed_hzs_ + lma_len];
+    while (pys_decoded_len_ < step_to) {
+      size_t step = pys_decoded_len_;
+      if (!add_char(pys_[step])) {
+        pys_decoded_len_ = step;
+        break;
+      }
+    }
+    if (pys_decoded_len_ < step_to)
+      break;
+    fix_lemma(lma_id_[fixed_lmas_], scores[fixed_lmas_], lma_len);
+  }
+
+  // 3. If the string after a fixed lemma can not be decoded again, give the
+  // candidates for the part decoded.
+  if (fixed_lmas_ < lma_num) {
+    get_spl_start_id();
+    prepare_candidates();
+    return get_candidate_num();
+  }
+
+  lpi_total_ = 0;
+  sent_cand_num_ = 0;
+  if (NULL != user_dict_) {
+    try_add_cand0_to_userdict();
+  }
+  return get_candidate_num();
+}
+
 size_t MatrixSearch::cancel_last_choice() {
   if (!inited_ || 0 == pys_decoded_len_)
     return 0;
@@ -923,11 +1363,16 @@ size_t MatrixSearch::get_fixedlen() {
 }
 
 bool MatrixSearch::prepare_add_char(char ch) {
-  if (pys_decoded_len_ >= kMaxRowNum - 1 ||
-      (!spl_parser_->is_valid_to_parse(ch) && ch != '\''))
+  // Keys of Shuangpin are paired by their positions, they are not split.
+  bool shuangpin = !spl_parser_->t9_enabled() &&
+      kShuangpinNone != spl_parser_->get_shuangpin_scheme();
+  if (pys_decoded_len_ >= row_num_ - 1 ||
+      (!spl_parser_->is_valid_to_parse(ch) && (ch != '\'' || shuangpin)))
     return false;
 
-  if (dmi_pool_used_ >= kDmiPoolSize) return false;
+  // The new row takes at most kMaxNodeARow matrix nodes, the DMI nodes are
+  // reserved one by one in add_char_qwerty().
+  if (!reserve_pools(kMaxNodeARow, 1)) return false;
 
   pys_[pys_decoded_len_] = ch;
   pys_decoded_len_++;
@@ -955,6 +1400,7 @@ void MatrixSearch::fill_dmi(DictMatchInfo *dmi, MileStoneHandle *handles,
   dmi->dict_handles[1] = handles[1];
   dmi->dmi_fr = dmi_fr;
   dmi->spl_id = spl_id;
+  dmi->fuzzy_cost = 0;
   dmi->dict_level = dict_level;
   dmi->splid_end_split = splid_end_split ? 1 : 0;
   dmi->splstr_len = splstr_len;
@@ -973,12 +1419,20 @@ bool MatrixSearch::add_char_qwerty() {
 
   bool spl_matched = false;
   uint16 longest_ext = 0;
+  bool t9 = spl_parser_->t9_enabled();
+  bool shuangpin = !t9 &&
+      kShuangpinNone != spl_parser_->get_shuangpin_scheme();
   // Extend the search matrix, from the oldest unfixed row. ext_len means
   // extending length.
   for (uint16 ext_len = kMaxPinyinSize + 1; ext_len > 0; ext_len--) {
     if (ext_len > pys_decoded_len_ - spl_start_[fixed_hzs_])
       continue;
 
+    // With Shuangpin, a spelling is the two keys from an even position, or
+    // the last key alone at an even position.
+    if (shuangpin && ext_len != 2 - pys_decoded_len_ % 2)
+      continue;
+
     // Refer to the declaration of the variable dmi_has_full_id for the
     // explanation of this piece of code. In one word, it is used to prevent
     // from the unwise extending of "shoud ou" but allow the reasonable
@@ -1003,15 +1457,29 @@ bool MatrixSearch::add_char_qwerty() {
     if (0 == matrix_[oldrow].mtrx_nd_num && !dmi_c_phrase_)
       continue;
 
-    // 2. Get spelling id(s) for the last ext_len chars.
-    uint16 spl_idx;
+    // 2. Get spelling id(s) for the last ext_len chars. With fuzzy pinyin,
+    // they are also the spellings the chars may be typed for, and with T9,
+    // all the spellings on the keys.
+    uint16 spl_idxs[kMaxT9SplIds];
+    uint16 spl_costs[kMaxT9SplIds];
     bool is_pre = false;
-    spl_idx = spl_parser_->get_splid_by_str(pys_ + oldrow,
-                                            ext_len, &is_pre);
+    uint16 spl_num;
+    if (t9) {
+      spl_num = spl_parser_->get_splids_t9(pys_ + oldrow, ext_len, spl_idxs,
+                                           spl_costs, kMaxT9SplIds, &is_pre);
+    } else if (shuangpin) {
+      spl_num = spl_parser_->get_splids_shuangpin(pys_ + oldrow, ext_len,
+                                                  spl_idxs, spl_costs,
+                                                  kMaxFuzzySplIds, &is_pre);
+    } else {
+      spl_num = spl_parser_->get_splids_fuzzy(pys_ + oldrow, ext_len,
+                                              spl_idxs, spl_costs,
+                                              kMaxFuzzySplIds, &is_pre);
+    }
     if (is_pre)
       spl_matched = true;
 
-    if (0 == spl_idx)
+    if (0 == spl_num)
       continue;
 
     bool splid_end_split = is_split_at(oldrow + ext_len);
@@ -1021,6 +1489,11 @@ bool MatrixSearch::add_char_qwerty() {
     for (PoolPosType dmi_pos = matrix_[oldrow].dmi_pos;
          dmi_pos < matrix_[oldrow].dmi_pos + matrix_[oldrow].dmi_num + 1;
          dmi_pos++) {
+      // extend_dmi() adds one DMI node for each spelling id at most. Make room
+      // for them before taking pointers into the pool.
+      if (!reserve_pools(0, spl_num))
+        break;
+
       DictMatchInfo *dmi = dmi_pool_ + dmi_pos;
       if (dmi_pos == matrix_[oldrow].dmi_pos + matrix_[oldrow].dmi_num) {
         dmi = NULL;  // The last one, NULL means extending from the root.
@@ -1056,7 +1529,7 @@ bool MatrixSearch::add_char_qwerty() {
       if (NULL != dmi) {
         uint16 prev_ids_num = dmi->dict_level;
         if ((!dmi_c_phrase_ && prev_ids_num >= kMaxLemmaSize) ||
-            (dmi_c_phrase_ && prev_ids_num >=  kMaxRowNum)) {
+            (dmi_c_phrase_ && prev_ids_num >= row_num_)) {
           continue;
         }
 
@@ -1070,57 +1543,78 @@ bool MatrixSearch::add_char_qwerty() {
         assert(0 == prev_ids_num);
         dep_->splids_extended = dmi->dict_level;
       }
-      dep_->splids[dep_->splids_extended] = spl_idx;
       dep_->ext_len = ext_len;
       dep_->splid_end_split = splid_end_split;
 
-      dep_->id_num = 1;
-      dep_->id_start = spl_idx;
-      if (spl_trie_->is_half_id(spl_idx)) {
-        // Get the full id list
-        dep_->id_num = spl_trie_->half_to_full(spl_idx, &(dep_->id_start));
-        assert(dep_->id_num > 0);
-      }
+      for (uint16 spl_pos = 0; spl_pos < spl_num; spl_pos++) {
+        uint16 spl_idx = spl_idxs[spl_pos];
+        dep_->splids[dep_->splids_extended] = spl_idx;
 
-      uint16 new_dmi_num;
+        dep_->id_num = 1;
+        dep_->id_start = spl_idx;
+        if (spl_trie_->is_half_id(spl_idx)) {
+          // Get the full id list
+          dep_->id_num = spl_trie_->half_to_full(spl_idx, &(dep_->id_start));
+          assert(dep_->id_num > 0);
+        }
 
-      new_dmi_num = extend_dmi(dep_, dmi);
+        uint32 fuzzy_cost = spl_costs[spl_pos];
+        if (NULL != dmi)
+          fuzzy_cost += dmi->fuzzy_cost;
+        if (fuzzy_cost > 0xffff)
+          fuzzy_cost = 0xffff;
 
-      if (new_dmi_num > 0) {
-        if (dmi_c_phrase_) {
-          dmi_pool_[dmi_pool_used_].c_phrase = 1;
-        }
-        matrix_[pys_decoded_len_].dmi_num += new_dmi_num;
-        dmi_pool_used_ += new_dmi_num;
+        uint16 new_dmi_num;
 
-        if (!spl_trie_->is_half_id(spl_idx))
-          matrix_[pys_decoded_len_].dmi_has_full_id = 1;
-      }
+        new_dmi_num = extend_dmi(dep_, dmi);
+
+        if (new_dmi_num > 0) {
+          if (dmi_c_phrase_) {
+            dmi_pool_[dmi_pool_used_].c_phrase = 1;
+          }
+          dmi_pool_[dmi_pool_used_].fuzzy_cost = fuzzy_cost;
+          matrix_[pys_decoded_len_].dmi_num += new_dmi_num;
+          dmi_pool_used_ += new_dmi_num;
 
-      // If get candiate lemmas, try to extend the path
-      if (lpi_total_ > 0) {
-        uint16 fr_row;
-        if (NULL == dmi) {
-          fr_row = oldrow;
-        } else {
-          assert(oldrow >= dmi->splstr_len);
-          fr_row = oldrow - dmi->splstr_len;
+          if (!spl_trie_->is_half_id(spl_idx))
+            matrix_[pys_decoded_len_].dmi_has_full_id = 1;
         }
-        for (PoolPosType mtrx_nd_pos = matrix_[fr_row].mtrx_nd_pos;
-             mtrx_nd_pos < matrix_[fr_row].mtrx_nd_pos +
-             matrix_[fr_row].mtrx_nd_num;
-             mtrx_nd_pos++) {
-          MatrixNode *mtrx_nd = mtrx_nd_pool_ + mtrx_nd_pos;
-
-          extend_mtrx_nd(mtrx_nd, lpi_items_, lpi_total_,
-                         dmi_pool_used_ - new_dmi_num, pys_decoded_len_);
-          if (longest_ext == 0)
-            longest_ext = ext_len;
+
+        // If get candiate lemmas, try to extend the path
+        if (lpi_total_ > 0) {
+          // The lemmas matched with fuzzy spellings pay for them. The order of
+          // the list is kept.
+          if (fuzzy_cost > 0) {
+            for (size_t pos = 0; pos < lpi_total_; pos++) {
+              uint32 psb = lpi_items_[pos].psb + fuzzy_cost;
+              lpi_items_[pos].psb = psb > 0xffff ? 0xffff : psb;
+            }
+          }
+
+          uint16 fr_row;
+          if (NULL == dmi) {
+            fr_row = oldrow;
+          } else {
+            assert(oldrow >= dmi->splstr_len);
+            fr_row = oldrow - dmi->splstr_len;
+          }
+          for (PoolPosType mtrx_nd_pos = matrix_[fr_row].mtrx_nd_pos;
+               mtrx_nd_pos < matrix_[fr_row].mtrx_nd_pos +
+               matrix_[fr_row].mtrx_nd_num;
+               mtrx_nd_pos++) {
+            MatrixNode *mtrx_nd = mtrx_nd_pool_ + mtrx_nd_pos;
+
+            extend_mtrx_nd(mtrx_nd, lpi_items_, lpi_total_,
+                           dmi_pool_used_ - new_dmi_num, pys_decoded_len_);
+            if (longest_ext == 0)
+              longest_ext = ext_len;
+          }
         }
-      }
+      }  // for spl_pos
     }  // for dmi_pos
   }  // for ext_len
   mtrx_nd_pool_used_ += matrix_[pys_decoded_len_].mtrx_nd_num;
+  update_pool_peaks();
 
   if (dmi_c_phrase_)
     return true;
@@ -1174,6 +1668,8 @@ void MatrixSearch::prepare_candidates() {
   myqsort(lpi_items_ + lpi_num_full_match, lpi_total_ - lpi_num_full_match,
           sizeof(LmaPsbItem), cmp_lpi_with_unified_psb);
 
+  prepare_sentence_cands(lpi_num_full_match);
+
   if (kPrintDebug0) {
     printf("-----Prepare candidates, score:\n");
     for (size_t a = 0; a < lpi_total_; a++) {
@@ -1188,6 +1684,187 @@ void MatrixSearch::prepare_candidates() {
   }
 }
 
+void MatrixSearch::prepare_sentence_cands(size_t lpi_num_full_match) {
+  sent_cand_num_ = 0;
+  sent_path_num_ = 0;
+  sent_heap_num_ = 0;
+  if (0 == max_sent_cands_ || 0 == pys_decoded_len_ ||
+      0 == matrix_[pys_decoded_len_].mtrx_nd_num)
+    return;
+
+  // Only a sentence of more than one lemma can be corrected by another
+  // sentence, a single lemma has the lemma candidates after it.
+  MatrixNode *mtrx_nd = mtrx_nd_pool_ + matrix_[pys_decoded_len_].mtrx_nd_pos;
+  if (NULL != matrix_[mtrx_nd->step].mtrx_nd_fixed ||
+      NULL != matrix_[mtrx_nd->from->step].mtrx_nd_fixed)
+    return;
+
+  char16 best[kMaxSearchStepsLimit];
+  uint16 best_len;
+  if (NULL == get_candidate0(best, kMaxSearchStepsLimit, &best_len, true))
+    return;
+  MatrixNode *fixed_nd = matrix_[spl_start_[fixed_hzs_]].mtrx_nd_fixed;
+  assert(NULL != fixed_nd);
+
+  // A sentence shown before the lemmas should beat the best lemma which
+  // covers the whole unfixed part, otherwise the lemma is the better choice.
+  float max_score = -1;
+  for (size_t pos = 0; pos < lpi_num_full_match; pos++) {
+    if (max_score < 0 || lpi_items_[pos].psb < max_score)
+      max_score = lpi_items_[pos].psb;
+  }
+
+  add_sentence_paths(pys_decoded_len_, kNoSentencePath, 0);
+  while (sent_cand_num_ < max_sent_cands_) {
+    uint16 path = pop_sentence_path();
+    if (kNoSentencePath == path)
+      break;
+
+    // Paths come out in the order of their full scores, so no later one can
+    // beat the lemma either.
+    if (max_score >= 0 &&
+        sent_paths_[path].score - fixed_nd->score >= max_score)
+      break;
+
+    // Extend the path until it reaches the fixed part.
+    mtrx_nd = mtrx_nd_pool_ + sent_paths_[path].mtrx_nd_pos;
+    size_t row = mtrx_nd->from->step;
+    if (NULL == matrix_[row].mtrx_nd_fixed) {
+      add_sentence_paths(row, path, sent_paths_[path].suffix_score);
+      continue;
+    }
+
+    // A single lemma is already one of the lemma candidates.
+    if (kNoSentencePath == sent_paths_[path].next)
+      continue;
+
+    char16 sent[kMaxSearchStepsLimit];
+    uint16 sent_len;
+    if (NULL != get_sentence_str(path, sent, kMaxSearchStepsLimit,
+                                 &sent_len) &&
+        !is_sentence_cand_dup(sent, sent_len, best, lpi_num_full_match)) {
+      sent_cands_[sent_cand_num_++] = path;
+    }
+  }
+}
+
+void MatrixSearch::add_sentence_paths(size_t row, uint16 next,
+                                      float suffix_score) {
+  MatrixNode *row_nds = mtrx_nd_pool_ + matrix_[row].mtrx_nd_pos;
+  for (size_t pos = 0; pos < matrix_[row].mtrx_nd_num; pos++) {
+    MatrixNode *mtrx_nd = row_nds + pos;
+
+    // A node from a worse predecessor gives the same paths as the better one
+    // with the same lemma and spellings.
+    bool repeated = false;
+    for (size_t pre = 0; pre < pos && !repeated; pre++) {
+      repeated = row_nds[pre].id == mtrx_nd->id &&
+                 row_nds[pre].dmi_fr == mtrx_nd->dmi_fr;
+    }
+    if (repeated)
+      continue;
+
+    if (sent_path_num_ >= kMaxSentencePaths)
+      return;
+
+    MatrixNode *from = mtrx_nd->from;
+    MatrixNode *from_best = mtrx_nd_pool_ + matrix_[from->step].mtrx_nd_pos;
+    SentencePath *path = sent_paths_ + sent_path_num_;
+    path->mtrx_nd_pos = matrix_[row].mtrx_nd_pos + pos;
+    path->next = next;
+    path->suffix_score = suffix_score + (mtrx_nd->score - from->score);
+    path->score = path->suffix_score + from_best->score;
+
+    // Sift it up the heap.
+    size_t heap_pos = sent_heap_num_++;
+    while (heap_pos > 0) {
+      size_t parent = (heap_pos - 1) / 2;
+      if (sent_paths_[sent_heap_[parent]].score <= path->score)
+        break;
+      sent_heap_[heap_pos] = sent_heap_[parent];
+      heap_pos = parent;
+    }
+    sent_heap_[heap_pos] = sent_path_num_++;
+  }
+}
+
+uint16 MatrixSearch::pop_sentence_path() {
+  if (0 == sent_heap_num_)
+    return kNoSentencePath;
+
+  uint16 top = sent_heap_[0];
+  uint16 last = sent_heap_[--sent_heap_num_];
+  float last_score = sent_paths_[last].score;
+
+  // Sift the last one down from the top.
+  size_t heap_pos = 0;
+  while (true) {
+    size_t child = heap_pos * 2 + 1;
+    if (child >= sent_heap_num_)
+      break;
+    if (child + 1 < sent_heap_num_ &&
+        sent_paths_[sent_heap_[child + 1]].score <
+        sent_paths_[sent_heap_[child]].score)
+      child++;
+    if (last_score <= sent_paths_[sent_heap_[child]].score)
+      break;
+    sent_heap_[heap_pos] = sent_heap_[child];
+    heap_pos = child;
+  }
+  sent_heap_[heap_pos] = last;
+  return top;
+}
+
+char16* MatrixSearch::get_sentence_str(uint16 path, char16 *str_buf,
+                                       size_t max_len, uint16 *str_len) {
+  size_t ret_pos = 0;
+  for (; kNoSentencePath != path; path = sent_paths_[path].next) {
+    char16 str[kMaxLemmaSize + 1];
+    uint16 lma_len = get_lemma_str(
+        mtrx_nd_pool_[sent_paths_[path].mtrx_nd_pos].id, str,
+        kMaxLemmaSize + 1);
+    if (0 == lma_len || max_len - ret_pos <= lma_len)
+      return NULL;
+    utf16_strncpy(str_buf + ret_pos, str, lma_len);
+    ret_pos += lma_len;
+  }
+  str_buf[ret_pos] = (char16)'\0';
+  *str_len = ret_pos;
+  return str_buf;
+}
+
+bool MatrixSearch::is_sentence_cand_dup(const char16 *str, uint16 str_len,
+                                        const char16 *best, size_t lpi_num) {
+  if (utf16_strcmp(str, best) == 0)
+    return true;
+
+  for (size_t cand = 0; cand < sent_cand_num_; cand++) {
+    char16 sent[kMaxSearchStepsLimit];
+    uint16 sent_len;
+    if (NULL != get_sentence_str(sent_cands_[cand], sent,
+                                 kMaxSearchStepsLimit, &sent_len) &&
+        sent_len == str_len && utf16_strcmp(str, sent) == 0)
+      return true;
+  }
+
+  if (str_len > kMaxLemmaSize)
+    return false;
+  for (size_t pos = 0; pos < lpi_num; pos++) {
+    if (lpi_items_[pos].lma_len != str_len)
+      continue;
+    if (1 == str_len) {
+      if (lpi_items_[pos].hanzi == str[0])
+        return true;
+      continue;
+    }
+    char16 lma_str[kMaxLemmaSize + 1];
+    get_lemma_str(lpi_items_[pos].id, lma_str, kMaxLemmaSize + 1);
+    if (utf16_strcmp(str, lma_str) == 0)
+      return true;
+  }
+  return false;
+}
+
 const char* MatrixSearch::get_pystr(size_t *decoded_len) {
   if (!inited_ || NULL == decoded_len)
     return NULL;
@@ -1196,6 +1873,33 @@ const char* MatrixSearch::get_pystr(size_t *decoded_len) {
   return pys_;
 }
 
+size_t MatrixSearch::get_spl_letters(char *letters, size_t max_len) {
+  if (!inited_ || NULL == letters || 0 == max_len)
+    return 0;
+
+  size_t len = strlen(pys_);
+  if (len >= max_len)
+    len = max_len - 1;
+  memcpy(letters, pys_, len);
+  letters[len] = '\0';
+
+  // A spelling has one letter for each of its keys, so the letters replace
+  // the T9 keys in place.
+  char splstr[kMaxPinyinSize + 1];
+  for (size_t pos = 0; pos < spl_id_num_; pos++) {
+    size_t str_len = spl_trie_->get_spelling_str(spl_id_[pos], splstr,
+                                                 kMaxPinyinSize + 1);
+    for (size_t ch_pos = 0; ch_pos < str_len; ch_pos++) {
+      size_t letter_pos = spl_start_[pos] + ch_pos;
+      if (letter_pos >= spl_start_[pos + 1] || letter_pos >= len)
+        break;
+      if (SpellingTrie::is_t9_key(letters[letter_pos]))
+        letters[letter_pos] = splstr[ch_pos];
+    }
+  }
+  return len;
+}
+
 void MatrixSearch::merge_fixed_lmas(size_t del_spl_pos) {
   if (fixed_lmas_ == 0)
     return;
@@ -1241,7 +1945,7 @@ void MatrixSearch::merge_fixed_lmas(size_t del_spl_pos) {
       char16 *lma_str = c_phrase_.chn_str +
           c_phrase_.sublma_start[sub_num] + phrase_len;
 
-      lma_len = get_lemma_str(lma_id_[pos], lma_str, kMaxRowNum - phrase_len);
+      lma_len = get_lemma_str(lma_id_[pos], lma_str, row_num_ - phrase_len);
       assert(lma_len == lma_start_[pos + 1] - lma_start_[pos]);
       phrase_len += lma_len;
     }
@@ -1398,18 +2102,13 @@ size_t MatrixSearch::get_spl_start(const uint16 *&spl_start) {
 }
 
 size_t MatrixSearch::extend_dmi(DictExtPara *dep, DictMatchInfo *dmi_s) {
-  if (dmi_pool_used_ >= kDmiPoolSize) return 0;
+  if (dmi_pool_used_ >= dmi_pool_size_) return 0;
 
   if (dmi_c_phrase_)
     return extend_dmi_c(dep, dmi_s);
 
-  LpiCache& lpi_cache = LpiCache::get_instance();
   uint16 splid = dep->splids[dep->splids_extended];
 
-  bool cached = false;
-  if (0 == dep->splids_extended)
-    cached = lpi_cache.is_cached(splid);
-
   // 1. If this is a half Id, get its corresponding full starting Id and
   // number of full Id.
   size_t ret_val = 0;
@@ -1426,16 +2125,40 @@ size_t MatrixSearch::extend_dmi(DictExtPara *dep, DictMatchInfo *dmi_s) {
     from_h[1] = dmi_s->dict_handles[1];
   }
 
-  // 2. Begin exgtending in the system dictionary
+  // 2. Begin exgtending in the system dictionary. If the list of this path
+  // is cached, the dictionary is only extended to get the mile stone.
   size_t lpi_num = 0;
   MileStoneHandle handles[2];
   handles[0] = handles[1] = 0;
   if (from_h[0] > 0 || NULL == dmi_s) {
+    LpiCache& lpi_cache = LpiCache::get_instance();
+    uint16 splids_len = dep->splids_extended + 1;
+    bool cached = lpi_cache.get_cache(dep->splids, splids_len, lpi_items_,
+                                      kMaxLmaPsbItems, &lpi_num);
+    size_t sys_num = 0;
     handles[0] = dict_trie_->extend_dict(from_h[0], dep, lpi_items_,
-                                         kMaxLmaPsbItems, &lpi_num);
+                                         cached ? 0 : kMaxLmaPsbItems,
+                                         &sys_num);
+    if (cached) {
+      // The scores of system lemmas move with the total frequency of the
+      // user dictionary, so they are looked up again.
+      NGram& ngram = NGram::get_instance();
+      for (size_t pos = 0; pos < lpi_num; pos++) {
+        lpi_items_[pos].psb = static_cast<LmaScoreType>(
+            ngram.get_uni_psb(lpi_items_[pos].id));
+      }
+    } else {
+      lpi_num = sys_num;
+      myqsort(lpi_items_, lpi_num, sizeof(LmaPsbItem), cmp_lpi_with_psb);
+      if (NULL == dmi_s && spl_trie_->is_half_id(splid) &&
+          lpi_num > LpiCache::kMaxLpiCacheHalfId)
+        lpi_num = LpiCache::kMaxLpiCacheHalfId;
+      lpi_cache.put_cache(dep->splids, splids_len, lpi_items_, lpi_num);
+    }
   }
   if (handles[0] > 0)
     lpi_total_ = lpi_num;
+  size_t sys_total = lpi_total_;
 
   if (NULL == dmi_s) {  // from root
     assert(0 != handles[0]);
@@ -1460,7 +2183,7 @@ size_t MatrixSearch::extend_dmi(DictExtPara *dep, DictMatchInfo *dmi_s) {
   }
 
   if (0 != handles[0] || 0 != handles[1]) {
-    if (dmi_pool_used_ >= kDmiPoolSize) return 0;
+    if (dmi_pool_used_ >= dmi_pool_size_) return 0;
 
     DictMatchInfo *dmi_add = dmi_pool_ + dmi_pool_used_;
     if (NULL == dmi_s) {
@@ -1479,20 +2202,19 @@ size_t MatrixSearch::extend_dmi(DictExtPara *dep, DictMatchInfo *dmi_s) {
     ret_val = 1;
   }
 
-  if (!cached) {
-    if (0 == lpi_total_)
-      return ret_val;
+  if (0 == lpi_total_)
+    return ret_val;
 
-    if (kPrintDebug0) {
-      printf("--- lpi_total_ = %d\n", lpi_total_);
-    }
+  if (kPrintDebug0) {
+    printf("--- lpi_total_ = %d\n", lpi_total_);
+  }
 
+  // The system lemmas are sorted already.
+  if (lpi_total_ > sys_total) {
     myqsort(lpi_items_, lpi_total_, sizeof(LmaPsbItem), cmp_lpi_with_psb);
-    if (NULL == dmi_s && spl_trie_->is_half_id(splid))
-      lpi_total_ = lpi_cache.put_cache(splid, lpi_items_, lpi_total_);
-  } else {
-    assert(spl_trie_->is_half_id(splid));
-    lpi_total_ = lpi_cache.get_cache(splid, lpi_items_, kMaxLmaPsbItems);
+    if (NULL == dmi_s && spl_trie_->is_half_id(splid) &&
+        lpi_total_ > LpiCache::kMaxLpiCacheHalfId)
+      lpi_total_ = LpiCache::kMaxLpiCacheHalfId;
   }
 
   return ret_val;
@@ -1538,7 +2260,7 @@ size_t MatrixSearch::extend_mtrx_nd(MatrixNode *mtrx_nd, LmaPsbItem lpi_items[],
   assert(NULL != mtrx_nd);
   matrix_[res_row].mtrx_nd_fixed = NULL;
 
-  if (mtrx_nd_pool_used_ >= kMtrxNdPoolSize - kMaxNodeARow)
+  if (mtrx_nd_pool_used_ > mtrx_nd_pool_size_ - kMaxNodeARow)
     return 0;
 
   if (0 == mtrx_nd->step) {
@@ -1566,7 +2288,7 @@ size_t MatrixSearch::extend_mtrx_nd(MatrixNode *mtrx_nd, LmaPsbItem lpi_items[],
       replace = true;
     }
     if (replace || (mtrx_nd_num < kMaxNodeARow &&
-        matrix_[res_row].mtrx_nd_pos + mtrx_nd_num < kMtrxNdPoolSize)) {
+        matrix_[res_row].mtrx_nd_pos + mtrx_nd_num < mtrx_nd_pool_size_)) {
       mtrx_nd_res->id = lpi_items[pos].id;
       mtrx_nd_res->score = score;
       mtrx_nd_res->from = mtrx_nd;
@@ -1608,6 +2330,87 @@ PoolPosType MatrixSearch::match_dmi(size_t step_to, uint16 spl_ids[],
   return static_cast<PoolPosType>(-1);
 }
 
+bool MatrixSearch::get_unfixed_dmi_splids(DictMatchInfo *dmi, size_t lma_len,
+                                          uint16 splids[]) {
+  if (dmi->dict_level != lma_len || 0 != dmi->c_phrase)
+    return false;
+
+  for (size_t pos = lma_len; pos > 0; pos--) {
+    if (dmi->splstr_len !=
+        spl_start_[fixed_hzs_ + pos] - spl_start_[fixed_hzs_])
+      return false;
+    splids[pos - 1] = dmi->spl_id;
+    if (pos > 1)
+      dmi = dmi_pool_ + dmi->dmi_fr;
+  }
+  return true;
+}
+
+size_t MatrixSearch::get_fuzzy_lpis(size_t lma_len, LmaPsbItem *lma_buf,
+                                    size_t max_lma_buf) {
+  size_t step_to = spl_start_[fixed_hzs_ + lma_len];
+  if (step_to > pys_decoded_len_)
+    return 0;
+
+  size_t num = 0;
+  for (PoolPosType dmi_pos = matrix_[step_to].dmi_pos;
+       dmi_pos < matrix_[step_to].dmi_pos + matrix_[step_to].dmi_num &&
+       num < max_lma_buf; dmi_pos++) {
+    DictMatchInfo *dmi = dmi_pool_ + dmi_pos;
+    uint16 splids[kMaxLemmaSize];
+    if (!get_unfixed_dmi_splids(dmi, lma_len, splids))
+      continue;
+
+    size_t lpi_num = dict_trie_->get_lpis(splids, lma_len, lma_buf + num,
+                                          max_lma_buf - num);
+    if (NULL != user_dict_) {
+      lpi_num += user_dict_->get_lpis(splids, lma_len,
+                                      lma_buf + num + lpi_num,
+                                      max_lma_buf - num - lpi_num);
+    }
+
+    for (size_t pos = num; pos < num + lpi_num; pos++) {
+      uint32 psb = lma_buf[pos].psb + dmi->fuzzy_cost;
+      lma_buf[pos].psb = psb > 0xffff ? 0xffff : psb;
+    }
+    num += lpi_num;
+  }
+  return num;
+}
+
+void MatrixSearch::fit_fuzzy_splids(LemmaIdType id_lemma, size_t lma_len) {
+  uint16 lma_splids[kMaxLemmaSize];
+  if (get_lemma_splids(id_lemma, lma_splids, lma_len, false) != lma_len)
+    return;
+
+  size_t step_to = spl_start_[fixed_hzs_ + lma_len];
+  uint16 fit_splids[kMaxLemmaSize];
+  uint32 fit_cost = 0x10000;
+  for (PoolPosType dmi_pos = matrix_[step_to].dmi_pos;
+       dmi_pos < matrix_[step_to].dmi_pos + matrix_[step_to].dmi_num;
+       dmi_pos++) {
+    DictMatchInfo *dmi = dmi_pool_ + dmi_pos;
+    uint16 splids[kMaxLemmaSize];
+    if (dmi->fuzzy_cost >= fit_cost ||
+        !get_unfixed_dmi_splids(dmi, lma_len, splids))
+      continue;
+
+    bool matched = true;
+    for (size_t pos = 0; pos < lma_len && matched; pos++) {
+      matched = splids[pos] == lma_splids[pos] ||
+          (spl_trie_->is_half_id(splids[pos]) &&
+           spl_trie_->half_full_compatible(splids[pos], lma_splids[pos]));
+    }
+    if (matched) {
+      fit_cost = dmi->fuzzy_cost;
+      memcpy(fit_splids, splids, lma_len * sizeof(uint16));
+    }
+  }
+
+  if (fit_cost < 0x10000)
+    memcpy(spl_id_ + fixed_hzs_, fit_splids, lma_len * sizeof(uint16));
+}
+
 char16* MatrixSearch::get_candidate0(char16 *cand_str, size_t max_len,
                                      uint16 *retstr_len,
                                      bool only_unfixed) {
@@ -1615,7 +2418,7 @@ char16* MatrixSearch::get_candidate0(char16 *cand_str, size_t max_len,
       matrix_[pys_decoded_len_].mtrx_nd_num == 0)
     return NULL;
 
-  LemmaIdType idxs[kMaxRowNum];
+  LemmaIdType idxs[kMaxSearchStepsLimit];
   size_t id_num = 0;
 
   MatrixNode *mtrx_nd = mtrx_nd_pool_ + matrix_[pys_decoded_len_].mtrx_nd_pos;
@@ -1651,8 +2454,9 @@ char16* MatrixSearch::get_candidate0(char16 *cand_str, size_t max_len,
     if (0 == idxs[id_num])
       continue;
 
-    char16 str[kMaxLemmaSize + 1];
-    uint16 str_len = get_lemma_str(idxs[id_num], str, kMaxLemmaSize + 1);
+    // The composing phrase is longer than any lemma.
+    char16 str[kMaxSearchStepsLimit];
+    uint16 str_len = get_lemma_str(idxs[id_num], str, kMaxSearchStepsLimit);
     if (str_len > 0 && ((!only_unfixed && max_len - ret_pos > str_len) ||
         (only_unfixed && max_len - ret_pos + fixed_hzs_ > str_len))) {
       if (!only_unfixed)
@@ -1684,15 +2488,30 @@ size_t MatrixSearch::get_lpis(const uint16* splid_str, size_t splid_str_len,
   if (splid_str_len > kMaxLemmaSize)
     return 0;
 
-  size_t num1 = dict_trie_->get_lpis(splid_str, splid_str_len,
-                                     lma_buf, max_lma_buf);
-  size_t num2 = 0;
-  if (NULL != user_dict_) {
-    num2 = user_dict_->get_lpis(splid_str, splid_str_len,
-                         lma_buf + num1, max_lma_buf - num1);
+  // With fuzzy pinyin, splid_str is the unfixed part of spl_id_, and the
+  // lemmas are looked up with every spelling id stream the DMI nodes have for
+  // it. Repeated words are removed below with the room after the items.
+  size_t num = 0;
+  if (spl_parser_->fuzzy_pinyin_on()) {
+    size_t fuzzy_max = max_lma_buf;
+    if (splid_str_len > 1) {
+      fuzzy_max = max_lma_buf * sizeof(LmaPsbItem) /
+          (sizeof(LmaPsbItem) + sizeof(LmaPsbStrItem));
+      fuzzy_max = fuzzy_max > 0 ? fuzzy_max - 1 : 0;
+    }
+    num = get_fuzzy_lpis(splid_str_len, lma_buf, fuzzy_max);
   }
 
-  size_t num = num1 + num2;
+  if (0 == num) {
+    size_t num1 = dict_trie_->get_lpis(splid_str, splid_str_len,
+                                       lma_buf, max_lma_buf);
+    size_t num2 = 0;
+    if (NULL != user_dict_) {
+      num2 = user_dict_->get_lpis(splid_str, splid_str_len,
+                           lma_buf + num1, max_lma_buf - num1);
+    }
+    num = num1 + num2;
+  }
 
   if (0 == num)
     return 0;
@@ -1952,7 +2771,13 @@ size_t MatrixSearch::get_predicts(const char16 fixed_buf[],
   if (0 ==fixed_len || fixed_len > kMaxPredictSize || 0 == buf_len)
     return 0;
 
-  return inner_predict(fixed_buf, fixed_len, predict_buf, buf_len);
+  size_t predict_num = inner_predict(fixed_buf, fixed_len, predict_buf,
+                                     buf_len);
+
+  // The prediction items are based on the share buffer, which has been
+  // overwritten, so the search space has to be reset.
+  reset_search();
+  return predict_num;
 }
 
 }  // namespace ime_pinyin
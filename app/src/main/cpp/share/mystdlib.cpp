@@ -14,7 +14,10 @@
  * limitations under the License.
  */
 
+#include <pthread.h>
 #include <stdlib.h>
+#include <string.h>
+#include "../include/mystdlib.h"
 
 namespace ime_pinyin {
 
@@ -31,4 +34,203 @@ void *mybsearch(const void *k, const void *b,
                 int (*cmp)(const void *, const void *)) {
   return bsearch(k, b, n, es, cmp);
 }
+
+#ifdef ___BUILD_MODEL___
+typedef int (*CompareFunc)(const void *, const void *);
+
+struct ParallelRange {
+  void (*work)(void *arg, size_t start, size_t end);
+  void *arg;
+  size_t start;
+  size_t end;
+};
+
+static void* run_range(void *param) {
+  ParallelRange *range = static_cast<ParallelRange*>(param);
+  range->work(range->arg, range->start, range->end);
+  return NULL;
+}
+
+void myparallel_for(size_t num, size_t thread_num,
+                    void (*work)(void *arg, size_t start, size_t end),
+                    void *arg) {
+  if (0 == num)
+    return;
+  if (thread_num > num)
+    thread_num = num;
+  if (thread_num <= 1) {
+    work(arg, 0, num);
+    return;
+  }
+
+  ParallelRange *ranges = new ParallelRange[thread_num];
+  pthread_t *threads = new pthread_t[thread_num];
+  bool *started = new bool[thread_num];
+  for (size_t i = 0; i < thread_num; i++) {
+    ranges[i].work = work;
+    ranges[i].arg = arg;
+    ranges[i].start = num * i / thread_num;
+    ranges[i].end = num * (i + 1) / thread_num;
+  }
+
+  // A range whose thread can not be started runs on the calling thread.
+  for (size_t i = 1; i < thread_num; i++) {
+    started[i] = 0 == pthread_create(threads + i, NULL, run_range,
+                                     ranges + i);
+    if (!started[i])
+      run_range(ranges + i);
+  }
+  run_range(ranges);
+  for (size_t i = 1; i < thread_num; i++) {
+    if (started[i])
+      pthread_join(threads[i], NULL);
+  }
+
+  delete [] ranges;
+  delete [] threads;
+  delete [] started;
+}
+
+// Merges the sorted src[0, mid) and src[mid, n) to dst. On ties, the item of
+// the first run goes first.
+static void merge_ptrs(const void **src, size_t mid, size_t n,
+                       const void **dst, CompareFunc cmp) {
+  size_t pos1 = 0;
+  size_t pos2 = mid;
+  size_t pos = 0;
+  while (pos1 < mid && pos2 < n) {
+    if (cmp(src[pos2], src[pos1]) < 0)
+      dst[pos++] = src[pos2++];
+    else
+      dst[pos++] = src[pos1++];
+  }
+  while (pos1 < mid)
+    dst[pos++] = src[pos1++];
+  while (pos2 < n)
+    dst[pos++] = src[pos2++];
+}
+
+// Merge sort of ptrs[0, n), tmp is a buffer of n pointers.
+static void merge_sort_ptrs(const void **ptrs, const void **tmp, size_t n,
+                            CompareFunc cmp) {
+  static const size_t kInsertionRun = 8;
+  for (size_t start = 0; start < n; start += kInsertionRun) {
+    size_t end = start + kInsertionRun < n ? start + kInsertionRun : n;
+    for (size_t pos = start + 1; pos < end; pos++) {
+      const void *item = ptrs[pos];
+      size_t to = pos;
+      while (to > start && cmp(item, ptrs[to - 1]) < 0) {
+        ptrs[to] = ptrs[to - 1];
+        to--;
+      }
+      ptrs[to] = item;
+    }
+  }
+
+  const void **src = ptrs;
+  const void **dst = tmp;
+  for (size_t width = kInsertionRun; width < n; width *= 2) {
+    for (size_t start = 0; start < n; start += 2 * width) {
+      size_t mid = start + width < n ? start + width : n;
+      size_t end = start + 2 * width < n ? start + 2 * width : n;
+      merge_ptrs(src + start, mid - start, end - start, dst + start, cmp);
+    }
+    const void **swap = src;
+    src = dst;
+    dst = swap;
+  }
+  if (src != ptrs)
+    memcpy(ptrs, src, n * sizeof(const void*));
+}
+
+struct StableSortPass {
+  const void **ptrs;
+  const void **tmp;
+  size_t n;
+  CompareFunc cmp;
+  // Items of a run, the runs are sorted alone or merged in pairs.
+  size_t run_len;
+};
+
+static void sort_runs(void *arg, size_t start, size_t end) {
+  StableSortPass *pass = static_cast<StableSortPass*>(arg);
+  for (size_t run = start; run < end; run++) {
+    size_t from = run * pass->run_len;
+    size_t num = pass->n - from < pass->run_len ? pass->n - from :
+        pass->run_len;
+    merge_sort_ptrs(pass->ptrs + from, pass->tmp + from, num, pass->cmp);
+  }
+}
+
+static void merge_runs(void *arg, size_t start, size_t end) {
+  StableSortPass *pass = static_cast<StableSortPass*>(arg);
+  for (size_t pair = start; pair < end; pair++) {
+    size_t from = pair * 2 * pass->run_len;
+    size_t mid = from + pass->run_len < pass->n ? from + pass->run_len :
+        pass->n;
+    size_t to = from + 2 * pass->run_len < pass->n ?
+        from + 2 * pass->run_len : pass->n;
+    merge_ptrs(pass->ptrs + from, mid - from, to - from, pass->tmp + from,
+               pass->cmp);
+  }
+}
+
+void mystablesort_ptrs(const void **ptrs, size_t n, CompareFunc cmp,
+                       size_t thread_num) {
+  if (n < 2)
+    return;
+  if (0 == thread_num)
+    thread_num = 1;
+
+  StableSortPass pass;
+  pass.ptrs = ptrs;
+  pass.tmp = new const void*[n];
+  pass.n = n;
+  pass.cmp = cmp;
+  pass.run_len = (n + thread_num - 1) / thread_num;
+
+  size_t run_num = (n + pass.run_len - 1) / pass.run_len;
+  myparallel_for(run_num, thread_num, sort_runs, &pass);
+
+  // Merging stable runs in order is stable, so the result does not depend on
+  // how many runs there were.
+  while (run_num > 1) {
+    size_t pair_num = (run_num + 1) / 2;
+    myparallel_for(pair_num, thread_num, merge_runs, &pass);
+    const void **swap = pass.ptrs;
+    pass.ptrs = pass.tmp;
+    pass.tmp = swap;
+    pass.run_len *= 2;
+    run_num = pair_num;
+  }
+
+  if (pass.ptrs != ptrs) {
+    memcpy(ptrs, pass.ptrs, n * sizeof(const void*));
+    pass.tmp = pass.ptrs;
+  }
+  delete [] pass.tmp;
+}
+
+void mystablesort(void *p, size_t n, size_t es, CompareFunc cmp,
+                  size_t thread_num) {
+  if (n < 2)
+    return;
+
+  // Pointers are sorted, the items are moved once at the end.
+  char *items = static_cast<char*>(p);
+  const void **ptrs = new const void*[n];
+  for (size_t pos = 0; pos < n; pos++)
+    ptrs[pos] = items + pos * es;
+
+  mystablesort_ptrs(ptrs, n, cmp, thread_num);
+
+  char *sorted = new char[n * es];
+  for (size_t pos = 0; pos < n; pos++)
+    memcpy(sorted + pos * es, ptrs[pos], es);
+  memcpy(items, sorted, n * es);
+
+  delete [] sorted;
+  delete [] ptrs;
+}
+#endif  // ___BUILD_MODEL___
 }  // namespace ime_pinyin
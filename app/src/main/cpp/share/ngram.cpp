@@ -34,18 +34,22 @@ int comp_double(const void *p1, const void *p2) {
   return 0;
 }
 
-inline double distance(double freq, double code) {
-  // return fabs(freq - code);
-  return freq * fabs(log(freq) - log(code));
+#ifdef ___BUILD_MODEL___
+// The logarithms of the frequencies and of the codes are computed once, not
+// for every distance.
+inline double distance(double freq, double log_freq, double log_code) {
+  return freq * fabs(log_freq - log_code);
 }
 
 // Find the index of the code value which is nearest to the given freq
-int qsearch_nearest(double code_book[], double freq, int start, int end) {
+int qsearch_nearest(double code_book[], double log_codes[], double freq,
+                    double log_freq, int start, int end) {
   if (start == end)
     return start;
 
   if (start + 1 == end) {
-    if (distance(freq, code_book[end]) > distance(freq, code_book[start]))
+    if (distance(freq, log_freq, log_codes[end]) >
+        distance(freq, log_freq, log_codes[start]))
       return start;
     return end;
   }
@@ -53,28 +57,57 @@ int qsearch_nearest(double code_book[], double freq, int start, int end) {
   int mid = (start + end) / 2;
 
   if (code_book[mid] > freq)
-    return qsearch_nearest(code_book, freq, start, mid);
+    return qsearch_nearest(code_book, log_codes, freq, log_freq, start, mid);
   else
-    return qsearch_nearest(code_book, freq, mid, end);
+    return qsearch_nearest(code_book, log_codes, freq, log_freq, mid, end);
+}
+
+// One iteration over the frequencies, the items are independent, so ranges
+// of them are handled by different threads.
+struct CodeBookPass {
+  double *freqs;
+  double *log_freqs;
+  double *code_book;
+  double *log_codes;
+  CODEBOOK_TYPE *code_idx;
+  CODEBOOK_TYPE *new_code_idx;
+  double *dists;
+};
+
+void find_nearest_codes(void *arg, size_t start, size_t end) {
+  CodeBookPass *pass = static_cast<CodeBookPass*>(arg);
+  for (size_t pos = start; pos < end; pos++) {
+    pass->new_code_idx[pos] = qsearch_nearest(
+        pass->code_book, pass->log_codes, pass->freqs[pos],
+        pass->log_freqs[pos], 0, kCodeBookSize - 1);
+  }
 }
 
-size_t update_code_idx(double freqs[], size_t num, double code_book[],
-                       CODEBOOK_TYPE *code_idx) {
+void get_code_distances(void *arg, size_t start, size_t end) {
+  CodeBookPass *pass = static_cast<CodeBookPass*>(arg);
+  for (size_t pos = start; pos < end; pos++) {
+    pass->dists[pos] = distance(pass->freqs[pos], pass->log_freqs[pos],
+                                pass->log_codes[pass->code_idx[pos]]);
+  }
+}
+
+size_t update_code_idx(CodeBookPass *pass, size_t num, size_t thread_num) {
+  myparallel_for(num, thread_num, find_nearest_codes, pass);
+
   size_t changed = 0;
   for (size_t pos = 0; pos < num; pos++) {
-    CODEBOOK_TYPE idx;
-    idx = qsearch_nearest(code_book, freqs[pos], 0, kCodeBookSize - 1);
-    if (idx != code_idx[pos])
+    if (pass->new_code_idx[pos] != pass->code_idx[pos])
       changed++;
-    code_idx[pos] = idx;
+    pass->code_idx[pos] = pass->new_code_idx[pos];
   }
   return changed;
 }
 
-double recalculate_kernel(double freqs[], size_t num, double code_book[],
-                          CODEBOOK_TYPE *code_idx) {
+double recalculate_kernel(CodeBookPass *pass, size_t num, size_t thread_num) {
   double ret = 0;
 
+  myparallel_for(num, thread_num, get_code_distances, pass);
+
   size_t *item_num =  new size_t[kCodeBookSize];
   assert(item_num);
   memset(item_num, 0, sizeof(size_t) * kCodeBookSize);
@@ -83,16 +116,18 @@ double recalculate_kernel(double freqs[], size_t num, double code_book[],
   assert(cb_new);
   memset(cb_new, 0, sizeof(double) * kCodeBookSize);
 
+  // Summed up in order, so the result does not depend on the threads.
+  CODEBOOK_TYPE *code_idx = pass->code_idx;
   for (size_t pos = 0; pos < num; pos++) {
-    ret += distance(freqs[pos], code_book[code_idx[pos]]);
+    ret += pass->dists[pos];
 
-    cb_new[code_idx[pos]] += freqs[pos];
+    cb_new[code_idx[pos]] += pass->freqs[pos];
     item_num[code_idx[pos]] += 1;
   }
 
   for (size_t code = 0; code < kCodeBookSize; code++) {
     assert(item_num[code] > 0);
-    code_book[code] = cb_new[code] / item_num[code];
+    pass->code_book[code] = cb_new[code] / item_num[code];
   }
 
   delete [] item_num;
@@ -102,13 +137,29 @@ double recalculate_kernel(double freqs[], size_t num, double code_book[],
 }
 
 void iterate_codes(double freqs[], size_t num, double code_book[],
-                   CODEBOOK_TYPE *code_idx) {
+                   CODEBOOK_TYPE *code_idx, size_t thread_num) {
+  CodeBookPass pass;
+  pass.freqs = freqs;
+  pass.log_freqs = new double[num];
+  pass.code_book = code_book;
+  pass.log_codes = new double[kCodeBookSize];
+  pass.code_idx = code_idx;
+  pass.new_code_idx = new CODEBOOK_TYPE[num];
+  pass.dists = new double[num];
+  assert(pass.log_freqs && pass.log_codes && pass.new_code_idx && pass.dists);
+
+  for (size_t pos = 0; pos < num; pos++)
+    pass.log_freqs[pos] = log(freqs[pos]);
+
   size_t iter_num = 0;
   double delta_last = 0;
   do {
-    size_t changed = update_code_idx(freqs, num, code_book, code_idx);
+    for (size_t code = 0; code < kCodeBookSize; code++)
+      pass.log_codes[code] = log(code_book[code]);
 
-    double delta = recalculate_kernel(freqs, num, code_book, code_idx);
+    size_t changed = update_code_idx(&pass, num, thread_num);
+
+    double delta = recalculate_kernel(&pass, num, thread_num);
 
     if (kPrintDebug0) {
       printf("---Unigram codebook iteration: %d : %d, %.9f\n",
@@ -121,8 +172,13 @@ void iterate_codes(double freqs[], size_t num, double code_book[],
       break;
     delta_last = delta;
   } while (true);
-}
 
+  delete [] pass.log_freqs;
+  delete [] pass.log_codes;
+  delete [] pass.new_code_idx;
+  delete [] pass.dists;
+}
+#endif  // ___BUILD_MODEL___
 
 NGram* NGram::instance_ = NULL;
 
@@ -177,14 +233,16 @@ bool NGram::save_ngram(FILE *fp) {
   return true;
 }
 
-bool NGram::load_ngram(FILE *fp) {
-  if (NULL == fp)
+bool NGram::load_ngram(DictImage *image) {
+  if (NULL == image)
     return false;
 
   initialized_ = false;
 
-  if (fread(&idx_num_, sizeof(uint32), 1, fp) != 1 )
+  uint32 idx_num;
+  if (!image->read_uint32(&idx_num))
     return false;
+  idx_num_ = idx_num;
 
   if (NULL != lma_freq_idx_)
     free(lma_freq_idx_);
@@ -200,26 +258,28 @@ bool NGram::load_ngram(FILE *fp) {
   if (NULL == lma_freq_idx_ || NULL == freq_codes_)
     return false;
 
-  if (fread(freq_codes_, sizeof(LmaScoreType), kCodeBookSize, fp) !=
-      kCodeBookSize)
+  const void *p = image->read(kCodeBookSize * sizeof(LmaScoreType));
+  if (NULL == p)
     return false;
+  memcpy(freq_codes_, p, kCodeBookSize * sizeof(LmaScoreType));
 
-  if (fread(lma_freq_idx_, sizeof(CODEBOOK_TYPE), idx_num_, fp) != idx_num_)
+  p = image->read(idx_num_ * sizeof(CODEBOOK_TYPE));
+  if (NULL == p)
     return false;
+  memcpy(lma_freq_idx_, p, idx_num_ * sizeof(CODEBOOK_TYPE));
 
   initialized_ = true;
 
-  total_freq_none_sys_ = 0;
+  sys_score_compensation_ = 0;
   return true;
 }
 
 void NGram::set_total_freq_none_sys(size_t freq_none_sys) {
-  total_freq_none_sys_ = freq_none_sys;
-  if (0 == total_freq_none_sys_) {
+  if (0 == freq_none_sys) {
     sys_score_compensation_ = 0;
   } else {
     double factor = static_cast<double>(kSysDictTotalFreq) / (
-        kSysDictTotalFreq + total_freq_none_sys_);
+        kSysDictTotalFreq + freq_none_sys);
     sys_score_compensation_ = static_cast<float>(
         log(factor) * kLogValueAmplifier);
   }
@@ -228,7 +288,7 @@ void NGram::set_total_freq_none_sys(size_t freq_none_sys) {
 // The caller makes sure this oject is initialized.
 float NGram::get_uni_psb(LemmaIdType lma_id) {
   return  static_cast<float>(freq_codes_[lma_freq_idx_[lma_id]]) +
-      sys_score_compensation_;
+      sys_score_compensation_.load(std::memory_order_relaxed);
 }
 
 float NGram::convert_psb_to_score(double psb) {
@@ -242,7 +302,7 @@ float NGram::convert_psb_to_score(double psb) {
 
 #ifdef ___BUILD_MODEL___
 bool NGram::build_unigram(LemmaEntry *lemma_arr, size_t lemma_num,
-                          LemmaIdType next_idx_unused) {
+                          LemmaIdType next_idx_unused, size_t thread_num) {
   if (NULL == lemma_arr || 0 == lemma_num || next_idx_unused <= 1)
     return false;
 
@@ -316,7 +376,7 @@ bool NGram::build_unigram(LemmaEntry *lemma_arr, size_t lemma_num,
     lma_freq_idx_ = new CODEBOOK_TYPE[idx_num_];
   assert(lma_freq_idx_);
 
-  iterate_codes(freqs, idx_num_, freq_codes_df_, lma_freq_idx_);
+  iterate_codes(freqs, idx_num_, freq_codes_df_, lma_freq_idx_, thread_num);
 
   delete [] freqs;
 
@@ -14,11 +14,17 @@
  * limitations under the License.
  */
 
+#include <pthread.h>
 #include <stdlib.h>
+#include <string.h>
 #include "../include/pinyinime.h"
 #include "../include/dicttrie.h"
+#include "../include/lockeddict.h"
+#include "../include/lpicache.h"
 #include "../include/matrixsearch.h"
+#include "../include/ngram.h"
 #include "../include/spellingtrie.h"
+#include "../include/userdict.h"
 
 #ifdef __cplusplus
 extern "C" {
@@ -29,135 +35,245 @@ extern "C" {
   // The maximum number of the prediction items.
   static const size_t kMaxPredictNum = 500;
 
-  // Used to search Pinyin string and give the best candidate.
-  MatrixSearch* matrix_search = NULL;
+  struct ime_pinyin::ImDecoder {
+    // Used to search Pinyin string and give the best candidate.
+    MatrixSearch matrix_search;
 
-  char16 predict_buf[kMaxPredictNum][kMaxPredictSize + 1];
+    char16 predict_buf[kMaxPredictNum][kMaxPredictSize + 1];
+  };
 
-  bool im_open_decoder(const char *fn_sys_dict, const char *fn_usr_dict) {
-    if (NULL != matrix_search)
-      delete matrix_search;
+  // Dictionaries shared by all open decoders, guarded by g_dicts_mutex.
+  static pthread_mutex_t g_dicts_mutex = PTHREAD_MUTEX_INITIALIZER;
+  static DictTrie *g_sys_dict = NULL;
+  static AtomDictBase *g_usr_dict = NULL;
+  static size_t g_decoder_num = 0;
 
-    matrix_search = new MatrixSearch();
-    if (NULL == matrix_search) {
-      return false;
+  // Loads the user dictionary for g_sys_dict, NULL if it can not be loaded.
+  static AtomDictBase* load_usr_dict(const char *fn_usr_dict) {
+    UserDict *usr_dict = new UserDict();
+    if (!usr_dict->load_dict(fn_usr_dict, kUserDictIdStart, kUserDictIdEnd)) {
+      delete usr_dict;
+      return NULL;
     }
+    usr_dict->set_total_lemma_count_of_others(NGram::kSysDictTotalFreq);
+    return new LockedDict(usr_dict);
+  }
 
-    return matrix_search->init(fn_sys_dict, fn_usr_dict);
+  // The caller holds g_dicts_mutex.
+  static void free_shared_dicts() {
+    // Writes the user dictionary back.
+    delete g_usr_dict;
+    g_usr_dict = NULL;
+    delete g_sys_dict;
+    g_sys_dict = NULL;
   }
 
-  bool im_open_decoder_fd(int sys_fd, long start_offset, long length,
-                          const char *fn_usr_dict) {
-    if (NULL != matrix_search)
-      delete matrix_search;
+  // Opens a decoder on the shared dictionaries, the caller holds
+  // g_dicts_mutex and has loaded them.
+  static DecoderHandle open_shared_decoder() {
+    ImDecoder *decoder = new ImDecoder();
+    if (!decoder->matrix_search.init_shared(g_sys_dict, g_usr_dict)) {
+      delete decoder;
+      if (0 == g_decoder_num)
+        free_shared_dicts();
+      return NULL;
+    }
+    g_decoder_num++;
+    return decoder;
+  }
 
-    matrix_search = new MatrixSearch();
-    if (NULL == matrix_search)
-      return false;
+  DecoderHandle im_open_decoder(const char *fn_sys_dict,
+                                const char *fn_usr_dict) {
+    if (NULL == fn_sys_dict || NULL == fn_usr_dict)
+      return NULL;
 
-    return matrix_search->init_fd(sys_fd, start_offset, length, fn_usr_dict);
+    pthread_mutex_lock(&g_dicts_mutex);
+    if (NULL == g_sys_dict) {
+      g_sys_dict = new DictTrie();
+      if (!g_sys_dict->load_dict(fn_sys_dict, 1, kSysDictIdEnd)) {
+        delete g_sys_dict;
+        g_sys_dict = NULL;
+        pthread_mutex_unlock(&g_dicts_mutex);
+        return NULL;
+      }
+      g_usr_dict = load_usr_dict(fn_usr_dict);
+      LpiCache::get_instance();
+    }
+    DecoderHandle decoder = open_shared_decoder();
+    pthread_mutex_unlock(&g_dicts_mutex);
+    return decoder;
   }
 
-  void im_close_decoder() {
-    if (NULL != matrix_search) {
-      matrix_search->close();
-      delete matrix_search;
+  DecoderHandle im_open_decoder_fd(int sys_fd, long start_offset, long length,
+                                   const char *fn_usr_dict) {
+    if (NULL == fn_usr_dict)
+      return NULL;
+
+    pthread_mutex_lock(&g_dicts_mutex);
+    if (NULL == g_sys_dict) {
+      g_sys_dict = new DictTrie();
+      if (!g_sys_dict->load_dict_fd(sys_fd, start_offset, length, 1,
+                                    kSysDictIdEnd)) {
+        delete g_sys_dict;
+        g_sys_dict = NULL;
+        pthread_mutex_unlock(&g_dicts_mutex);
+        return NULL;
+      }
+      g_usr_dict = load_usr_dict(fn_usr_dict);
+      LpiCache::get_instance();
     }
-    matrix_search = NULL;
+    DecoderHandle decoder = open_shared_decoder();
+    pthread_mutex_unlock(&g_dicts_mutex);
+    return decoder;
   }
 
-  void im_set_max_lens(size_t max_sps_len, size_t max_hzs_len) {
-    if (NULL != matrix_search) {
-      matrix_search->set_max_lens(max_sps_len, max_hzs_len);
+  void im_close_decoder(DecoderHandle decoder) {
+    if (NULL == decoder)
+      return;
+
+    pthread_mutex_lock(&g_dicts_mutex);
+    decoder->matrix_search.close();
+    delete decoder;
+    if (0 == --g_decoder_num)
+      free_shared_dicts();
+    pthread_mutex_unlock(&g_dicts_mutex);
+  }
+
+  void im_set_max_lens(DecoderHandle decoder, size_t max_sps_len,
+                       size_t max_hzs_len) {
+    if (NULL != decoder) {
+      decoder->matrix_search.set_max_lens(max_sps_len, max_hzs_len);
     }
   }
 
-  void im_flush_cache() {
-    if (NULL != matrix_search)
-      matrix_search->flush_cache();
+  void im_set_sentence_cand_num(DecoderHandle decoder, size_t num) {
+    if (NULL != decoder)
+      decoder->matrix_search.set_sentence_cand_num(num);
+  }
+
+  void im_set_shuangpin_scheme(DecoderHandle decoder,
+                               ShuangpinScheme scheme) {
+    if (NULL != decoder)
+      decoder->matrix_search.set_shuangpin_scheme(scheme);
+  }
+
+  void im_enable_t9(DecoderHandle decoder, bool enable) {
+    if (NULL != decoder)
+      decoder->matrix_search.set_t9_enabled(enable);
+  }
+
+  void im_flush_cache(DecoderHandle decoder) {
+    if (NULL != decoder)
+      decoder->matrix_search.flush_cache();
+  }
+
+  size_t im_get_user_dict_changes(DecoderHandle decoder) {
+    if (NULL == decoder)
+      return 0;
+    return decoder->matrix_search.get_user_dict_change_count();
   }
 
   // To be updated.
-  size_t im_search(const char* pybuf, size_t pylen) {
-    if (NULL == matrix_search)
+  size_t im_search(DecoderHandle decoder, const char* pybuf, size_t pylen) {
+    if (NULL == decoder)
       return 0;
 
-    matrix_search->search(pybuf, pylen);
-    return matrix_search->get_candidate_num();
+    decoder->matrix_search.search(pybuf, pylen);
+    return decoder->matrix_search.get_candidate_num();
   }
 
-  size_t im_delsearch(size_t pos, bool is_pos_in_splid,
-                      bool clear_fixed_this_step) {
-    if (NULL == matrix_search)
+  size_t im_delsearch(DecoderHandle decoder, size_t pos,
+                      bool is_pos_in_splid, bool clear_fixed_this_step) {
+    if (NULL == decoder)
       return 0;
-    matrix_search->delsearch(pos, is_pos_in_splid, clear_fixed_this_step);
-    return matrix_search->get_candidate_num();
+    decoder->matrix_search.delsearch(pos, is_pos_in_splid,
+                                     clear_fixed_this_step);
+    return decoder->matrix_search.get_candidate_num();
   }
 
-  void im_reset_search() {
-    if (NULL == matrix_search)
+  void im_reset_search(DecoderHandle decoder) {
+    if (NULL == decoder)
       return;
 
-    matrix_search->reset_search();
+    decoder->matrix_search.reset_search();
   }
 
-  // To be removed
-  size_t im_add_letter(char ch) {
-    return 0;
+  size_t im_add_letter(DecoderHandle decoder, char ch) {
+    if (NULL == decoder)
+      return 0;
+
+    decoder->matrix_search.add_letter(ch);
+    return decoder->matrix_search.get_candidate_num();
   }
 
-  const char* im_get_sps_str(size_t *decoded_len) {
-    if (NULL == matrix_search)
+  const char* im_get_sps_str(DecoderHandle decoder, size_t *decoded_len) {
+    if (NULL == decoder)
       return NULL;
 
-    return matrix_search->get_pystr(decoded_len);
+    return decoder->matrix_search.get_pystr(decoded_len);
+  }
+
+  size_t im_get_spl_letters(DecoderHandle decoder, char *letters,
+                            size_t max_len) {
+    if (NULL == decoder)
+      return 0;
+
+    return decoder->matrix_search.get_spl_letters(letters, max_len);
   }
 
-  char16* im_get_candidate(size_t cand_id, char16* cand_str,
-                        size_t max_len) {
-    if (NULL == matrix_search)
+  char16* im_get_candidate(DecoderHandle decoder, size_t cand_id,
+                           char16* cand_str, size_t max_len) {
+    if (NULL == decoder)
       return NULL;
 
-    return matrix_search->get_candidate(cand_id, cand_str, max_len);
+    return decoder->matrix_search.get_candidate(cand_id, cand_str, max_len);
+  }
+
+  size_t im_get_sentence_cand_num(DecoderHandle decoder) {
+    if (NULL == decoder)
+      return 0;
+
+    return decoder->matrix_search.get_sentence_cand_num();
   }
 
-  size_t im_get_spl_start_pos(const uint16 *&spl_start) {
-    if (NULL == matrix_search)
+  size_t im_get_spl_start_pos(DecoderHandle decoder,
+                              const uint16 *&spl_start) {
+    if (NULL == decoder)
       return 0;
 
-    return matrix_search->get_spl_start(spl_start);
+    return decoder->matrix_search.get_spl_start(spl_start);
   }
 
-  size_t im_choose(size_t choice_id) {
-    if (NULL == matrix_search)
+  size_t im_choose(DecoderHandle decoder, size_t choice_id) {
+    if (NULL == decoder)
       return 0;
 
-    return matrix_search->choose(choice_id);
+    return decoder->matrix_search.choose(choice_id);
   }
 
-  size_t im_cancel_last_choice() {
-    if (NULL == matrix_search)
+  size_t im_cancel_last_choice(DecoderHandle decoder) {
+    if (NULL == decoder)
       return 0;
 
-    return matrix_search->cancel_last_choice();
+    return decoder->matrix_search.cancel_last_choice();
   }
 
-  size_t im_get_fixed_len() {
-    if (NULL == matrix_search)
+  size_t im_get_fixed_len(DecoderHandle decoder) {
+    if (NULL == decoder)
       return 0;
 
-    return matrix_search->get_fixedlen();
+    return decoder->matrix_search.get_fixedlen();
   }
 
   // To be removed
-  bool im_cancel_input() {
+  bool im_cancel_input(DecoderHandle decoder) {
     return true;
   }
 
 
-  size_t im_get_predicts(const char16 *his_buf,
+  size_t im_get_predicts(DecoderHandle decoder, const char16 *his_buf,
                          char16 (*&pre_buf)[kMaxPredictSize + 1]) {
-    if (NULL == his_buf)
+    if (NULL == decoder || NULL == his_buf)
       return 0;
 
     size_t fixed_len = utf16_strlen(his_buf);
@@ -167,8 +283,9 @@ extern "C" {
       fixed_len = kMaxPredictSize;
     }
 
-    pre_buf = predict_buf;
-    return matrix_search->get_predicts(his_buf, pre_buf, kMaxPredictNum);
+    pre_buf = decoder->predict_buf;
+    return decoder->matrix_search.get_predicts(his_buf, pre_buf,
+                                               kMaxPredictNum);
   }
 
   void im_enable_shm_as_szm(bool enable) {
@@ -181,6 +298,45 @@ extern "C" {
     spl_trie.szm_enable_ym(enable);
   }
 
+  void im_set_fuzzy_pinyin(DecoderHandle decoder, FuzzyPinyinClass fz_class,
+                           bool enable, uint16 cost) {
+    if (NULL != decoder)
+      decoder->matrix_search.set_fuzzy_pinyin(fz_class, enable, cost);
+  }
+
+  void im_get_lpi_cache_stats(size_t stats[kLpiCacheStatNum]) {
+    LpiCacheStats lpi_stats;
+    LpiCache::get_instance().get_stats(&lpi_stats);
+    stats[kLpiCacheHits] = lpi_stats.hits;
+    stats[kLpiCacheMisses] = lpi_stats.misses;
+    stats[kLpiCacheEvictions] = lpi_stats.evictions;
+    stats[kLpiCacheEntries] = lpi_stats.entries;
+    stats[kLpiCacheBytes] = lpi_stats.bytes;
+    stats[kLpiCacheBudget] = lpi_stats.budget;
+  }
+
+  void im_set_lpi_cache_budget(size_t budget) {
+    LpiCache::get_instance().set_budget(budget);
+  }
+
+  void im_get_search_pool_stats(DecoderHandle decoder,
+                                size_t stats[kSearchPoolStatNum]) {
+    SearchPoolStats pool_stats;
+    memset(&pool_stats, 0, sizeof(SearchPoolStats));
+    if (NULL != decoder)
+      decoder->matrix_search.get_pool_stats(&pool_stats);
+    stats[kSearchRowsUsed] = pool_stats.rows_used;
+    stats[kSearchRowsPeak] = pool_stats.rows_peak;
+    stats[kSearchRowsSize] = pool_stats.rows_size;
+    stats[kSearchMtrxNdUsed] = pool_stats.mtrx_nd_used;
+    stats[kSearchMtrxNdPeak] = pool_stats.mtrx_nd_peak;
+    stats[kSearchMtrxNdSize] = pool_stats.mtrx_nd_size;
+    stats[kSearchDmiUsed] = pool_stats.dmi_used;
+    stats[kSearchDmiPeak] = pool_stats.dmi_peak;
+    stats[kSearchDmiSize] = pool_stats.dmi_size;
+    stats[kSearchPoolGrows] = pool_stats.grows;
+  }
+
 #ifdef __cplusplus
 }
 #endif
@@ -33,6 +33,9 @@ SpellingTrie* SpellingTrie::instance_ = NULL;
 const char SpellingTrie::kHalfId2Sc_[kFullSplIdStart + 1] =
     "0ABCcDEFGHIJKLMNOPQRSsTUVWXYZz";
 
+const char SpellingTrie::kT9Keys_[kValidSplCharNum + 1] =
+    "22233344455566677778889999";
+
 // Bit 0 : is it a Shengmu char?
 // Bit 1 : is it a Yunmu char? (one char is a Yunmu)
 // Bit 2 : is it enabled in ShouZiMu(first char) mode?
@@ -47,6 +50,66 @@ unsigned char SpellingTrie::char_flags_[] = {
   0x00, 0x00, 0x01, 0x01, 0x01, 0x01
 };
 
+// Shengmus and Yunmus of the fuzzy pinyin classes, in the format of the
+// spelling table.
+struct FuzzyPair {
+  const char *str1;
+  const char *str2;
+  FuzzyPinyinClass fz_class;
+};
+
+static const FuzzyPair kFuzzyShengmus[] = {
+  {"Z", "Zh", kFuzzyZZh},
+  {"C", "Ch", kFuzzyCCh},
+  {"S", "Sh", kFuzzySSh},
+  {"N", "L", kFuzzyNL},
+  {"F", "H", kFuzzyFH},
+  {"R", "L", kFuzzyRL}
+};
+
+static const FuzzyPair kFuzzyYunmus[] = {
+  {"AN", "ANG", kFuzzyAnAng},
+  {"EN", "ENG", kFuzzyEnEng},
+  {"IN", "ING", kFuzzyInIng},
+  {"IAN", "IANG", kFuzzyIanIang},
+  {"UAN", "UANG", kFuzzyUanUang}
+};
+
+static const size_t kFuzzyShengmuNum =
+    sizeof(kFuzzyShengmus) / sizeof(kFuzzyShengmus[0]);
+static const size_t kFuzzyYunmuNum =
+    sizeof(kFuzzyYunmus) / sizeof(kFuzzyYunmus[0]);
+
+// The Yunmus of the keys of a Shuangpin scheme, in the format of the spelling
+// table, for the keys 'a' to 'z' and ';'. The Shengmus are the same in all
+// schemes: "Zh", "Ch" and "Sh" are on 'v', 'i' and 'u', the others on their
+// own keys.
+struct ShuangpinSchemeDef {
+  const char *yunmus[27][2];
+  // The key of the zero Shengmu. If it is '\0', a spelling without Shengmu
+  // is typed with its first letter: "aa" for "a", "ai" for "ai" and "ah" for
+  // "ang" with 'h' of "ang".
+  char zero_shengmu_key;
+};
+
+static const ShuangpinSchemeDef kShuangpinSchemes[kShuangpinSchemeNum - 1] = {
+  // Microsoft, "ER" is only typed with the zero Shengmu.
+  {{{"A"}, {"OU"}, {"IAO"}, {"UANG", "IANG"}, {"E"}, {"EN"}, {"ENG"},
+    {"ANG"}, {"I"}, {"AN"}, {"AO"}, {"AI"}, {"IAN"}, {"IN"}, {"UO", "O"},
+    {"UN"}, {"IU"}, {"UAN", "ER"}, {"ONG", "IONG"}, {"UE"}, {"U"},
+    {"UI", "UE"}, {"IA", "UA"}, {"IE"}, {"UAI", "V"}, {"EI"}, {"ING"}}, 'o'},
+  // Xiaohe
+  {{{"A"}, {"IN"}, {"AO"}, {"AI"}, {"E"}, {"EN"}, {"ENG"}, {"ANG"}, {"I"},
+    {"AN"}, {"ING", "UAI"}, {"IANG", "UANG"}, {"IAN"}, {"IAO"}, {"UO", "O"},
+    {"IE"}, {"IU"}, {"UAN"}, {"ONG", "IONG"}, {"UE"}, {"U"}, {"UI", "V"},
+    {"EI"}, {"IA", "UA"}, {"UN"}, {"OU"}, {NULL}}, '\0'},
+  // Ziranma
+  {{{"A"}, {"OU"}, {"IAO"}, {"UANG", "IANG"}, {"E"}, {"EN"}, {"ENG"},
+    {"ANG"}, {"I"}, {"AN"}, {"AO"}, {"AI"}, {"IAN"}, {"IN"}, {"UO", "O"},
+    {"UN"}, {"IU"}, {"UAN"}, {"ONG", "IONG"}, {"UE"}, {"U"}, {"UI", "V"},
+    {"IA", "UA"}, {"IE"}, {"ING", "UAI"}, {"EI"}, {NULL}}, '\0'}
+};
+
 int compare_spl(const void* p1, const void* p2) {
   return strcmp((const char*)(p1), (const char*)(p2));
 }
@@ -65,6 +128,9 @@ SpellingTrie::SpellingTrie() {
   ym_buf_ = NULL;
   f2h_ = NULL;
 
+  shuangpin_ids_ = NULL;
+  memset(shuangpin_first_keys_, 0, sizeof(shuangpin_first_keys_));
+
   szm_enable_shm(true);
   szm_enable_ym(true);
 
@@ -109,6 +175,9 @@ SpellingTrie::~SpellingTrie() {
 
   if (NULL != f2h_)
     delete [] f2h_;
+
+  if (NULL != shuangpin_ids_)
+    delete [] shuangpin_ids_;
 }
 
 bool SpellingTrie::if_valid_id_update(uint16 *splid) const {
@@ -341,6 +410,9 @@ bool SpellingTrie::construct(const char* spelling_arr, size_t item_size,
   if (!build_f2h())
     return false;
 
+  if (!build_shuangpin_table())
+    return false;
+
 #ifdef ___BUILD_MODEL___
   if (kPrintDebug0) {
     printf("---SpellingTrie Nodes: %d\n", node_num_);
@@ -659,21 +731,27 @@ bool SpellingTrie::save_spl_trie(FILE *fp) {
   return true;
 }
 
-bool SpellingTrie::load_spl_trie(FILE *fp) {
-  if (NULL == fp)
+bool SpellingTrie::load_spl_trie(DictImage *image) {
+  if (NULL == image)
     return false;
 
-  if (fread(&spelling_size_, sizeof(uint32), 1, fp) != 1)
+  uint32 spelling_size;
+  uint32 spelling_num;
+  if (!image->read_uint32(&spelling_size) ||
+      !image->read_uint32(&spelling_num))
     return false;
+  spelling_size_ = spelling_size;
+  spelling_num_ = spelling_num;
 
-  if (fread(&spelling_num_, sizeof(uint32), 1, fp) != 1)
+  const void *p = image->read(sizeof(float));
+  if (NULL == p)
     return false;
+  memcpy(&score_amplifier_, p, sizeof(float));
 
-  if (fread(&score_amplifier_, sizeof(float), 1, fp) != 1)
-    return false;
-
-  if (fread(&average_score_, sizeof(unsigned char), 1, fp) != 1)
+  p = image->read(sizeof(unsigned char));
+  if (NULL == p)
     return false;
+  average_score_ = *static_cast<const unsigned char*>(p);
 
   if (NULL != spelling_buf_)
     delete [] spelling_buf_;
@@ -682,9 +760,10 @@ bool SpellingTrie::load_spl_trie(FILE *fp) {
   if (NULL == spelling_buf_)
     return false;
 
-  if (fread(spelling_buf_, sizeof(char) * spelling_size_,
-            spelling_num_, fp) != spelling_num_)
+  p = image->read(sizeof(char) * spelling_size_ * spelling_num_);
+  if (NULL == p)
     return false;
+  memcpy(spelling_buf_, p, sizeof(char) * spelling_size_ * spelling_num_);
 
   return construct(spelling_buf_, spelling_size_, spelling_num_,
                    score_amplifier_, average_score_);
@@ -706,6 +785,421 @@ bool SpellingTrie::build_f2h() {
   return true;
 }
 
+uint16 SpellingTrie::get_fuzzy_splids(const FuzzySplTable *table,
+                                      uint16 splid, uint16 splids[],
+                                      uint16 costs[], uint16 max_size) const {
+  if (NULL == table || splid >= spelling_num_ + kFullSplIdStart)
+    return 0;
+
+  uint16 num = 0;
+  for (uint16 pos = table->alt_start[splid];
+       pos < table->alt_start[splid + 1] && num < max_size; pos++) {
+    splids[num] = table->alt_ids[pos];
+    if (!if_valid_id_update(splids + num))
+      continue;
+    costs[num] = table->alt_costs[pos];
+    num++;
+  }
+  return num;
+}
+
+uint16 SpellingTrie::get_fuzzy_splids(const FuzzySplTable *table,
+                                      const char *splstr, uint16 str_len,
+                                      uint16 splids[], uint16 costs[],
+                                      uint16 max_size, bool *is_pre) const {
+  if (NULL == table || 0 == str_len || str_len > kMaxPinyinSize)
+    return 0;
+
+  // Convert the string into the format of the spelling table.
+  char key[kMaxPinyinSize + 1];
+  for (uint16 pos = 0; pos < str_len; pos++) {
+    if (!is_valid_spl_char(splstr[pos]))
+      return 0;
+    key[pos] = splstr[pos] & (~0x20);
+  }
+  key[str_len] = '\0';
+  if (str_len > 1 && 'H' == key[1] &&
+      ('Z' == key[0] || 'C' == key[0] || 'S' == key[0]))
+    key[1] = 'h';
+
+  // Find the first string not less than the key.
+  size_t begin = 0;
+  size_t end = table->str_num;
+  while (begin < end) {
+    size_t middle = (begin + end) / 2;
+    if (strcmp(table->strs[middle].str, key) < 0)
+      begin = middle + 1;
+    else
+      end = middle;
+  }
+
+  uint16 num = 0;
+  for (; begin < table->str_num; begin++) {
+    const FuzzySplStr &fz_str = table->strs[begin];
+    if (strcmp(fz_str.str, key) != 0) {
+      if (strncmp(fz_str.str, key, str_len) == 0 && NULL != is_pre)
+        *is_pre = true;
+      break;
+    }
+    if (num < max_size) {
+      splids[num] = fz_str.splid;
+      costs[num] = fz_str.cost;
+      num++;
+    }
+  }
+  return num;
+}
+
+void SpellingTrie::free_fuzzy_table(FuzzySplTable *table) {
+  delete [] table->alt_start;
+  delete [] table->alt_ids;
+  delete [] table->alt_costs;
+  delete [] table->strs;
+  delete table;
+}
+
+uint16 SpellingTrie::find_splid(const char *spl_str) const {
+  const char *found = static_cast<const char*>(
+      bsearch(spl_str, spelling_buf_, spelling_num_, spelling_size_,
+              compare_spl));
+  if (NULL == found)
+    return 0;
+  return (found - spelling_buf_) / spelling_size_ + kFullSplIdStart;
+}
+
+void SpellingTrie::add_fuzzy_forms(FuzzySplTable *table, uint16 splid,
+                                   const char *spl_str,
+                                   const bool fz_enabled[],
+                                   const uint16 fz_costs[],
+                                   size_t *str_num) const {
+  // Split the spelling into its Shengmu and Yunmu.
+  size_t shm_len = 0;
+  if (is_shengmu_char(spl_str[0])) {
+    shm_len = 1;
+    if (('Z' == spl_str[0] || 'C' == spl_str[0] || 'S' == spl_str[0]) &&
+        'h' == spl_str[1])
+      shm_len = 2;
+  }
+  const char *ym = spl_str + shm_len;
+
+  // The Shengmus and Yunmus the spelling may be typed with, the first ones
+  // are its own.
+  const char *shms[kFuzzyShengmuNum + 1];
+  uint16 shm_costs[kFuzzyShengmuNum + 1];
+  char shm[3];
+  memcpy(shm, spl_str, shm_len);
+  shm[shm_len] = '\0';
+  shms[0] = shm;
+  shm_costs[0] = 0;
+  size_t shm_num = 1;
+  for (size_t pos = 0; pos < kFuzzyShengmuNum; pos++) {
+    const FuzzyPair &pair = kFuzzyShengmus[pos];
+    if (!fz_enabled[pair.fz_class])
+      continue;
+    if (strcmp(shm, pair.str1) == 0)
+      shms[shm_num] = pair.str2;
+    else if (strcmp(shm, pair.str2) == 0)
+      shms[shm_num] = pair.str1;
+    else
+      continue;
+    shm_costs[shm_num++] = fz_costs[pair.fz_class];
+  }
+
+  const char *yms[2];
+  uint16 ym_costs[2];
+  yms[0] = ym;
+  ym_costs[0] = 0;
+  size_t ym_num = 1;
+  for (size_t pos = 0; pos < kFuzzyYunmuNum; pos++) {
+    const FuzzyPair &pair = kFuzzyYunmus[pos];
+    if (!fz_enabled[pair.fz_class])
+      continue;
+    if (strcmp(ym, pair.str1) == 0)
+      yms[ym_num] = pair.str2;
+    else if (strcmp(ym, pair.str2) == 0)
+      yms[ym_num] = pair.str1;
+    else
+      continue;
+    ym_costs[ym_num++] = fz_costs[pair.fz_class];
+    break;
+  }
+
+  for (size_t shm_pos = 0; shm_pos < shm_num; shm_pos++) {
+    for (size_t ym_pos = 0; ym_pos < ym_num; ym_pos++) {
+      if (0 == shm_pos && 0 == ym_pos)
+        continue;
+
+      char form[kMaxPinyinSize + 2];
+      size_t len1 = strlen(shms[shm_pos]);
+      size_t len2 = strlen(yms[ym_pos]);
+      // A form of one char is a half id, which has its own alternatives.
+      if (len1 + len2 <= 1 || len1 + len2 > kMaxPinyinSize)
+        continue;
+      memcpy(form, shms[shm_pos], len1);
+      memcpy(form + len1, yms[ym_pos], len2);
+      form[len1 + len2] = '\0';
+      uint16 cost = shm_costs[shm_pos] + ym_costs[ym_pos];
+
+      uint16 form_id = find_splid(form);
+      if (0 != form_id) {
+        uint16 alt_pos = table->alt_start[splid + 1]++;
+        table->alt_ids[alt_pos] = form_id;
+        table->alt_costs[alt_pos] = cost;
+      } else {
+        FuzzySplStr &fz_str = table->strs[(*str_num)++];
+        memcpy(fz_str.str, form, len1 + len2 + 1);
+        fz_str.splid = splid;
+        fz_str.cost = cost;
+      }
+    }
+  }
+}
+
+FuzzySplTable* SpellingTrie::build_fuzzy_table(const bool fz_enabled[],
+                                               const uint16 fz_costs[]) const {
+  FuzzySplTable *table = NULL;
+
+  bool enabled = false;
+  for (size_t pos = 0; pos < kFuzzyPinyinClassNum; pos++)
+    enabled = enabled || fz_enabled[pos];
+
+  if (enabled && NULL != spelling_buf_) {
+    // A spelling has one own Shengmu and Yunmu, and two fuzzy Shengmus at
+    // most ("L" of "N" and "R") and one fuzzy Yunmu.
+    const size_t kMaxForms = 5;
+    size_t id_num = spelling_num_ + kFullSplIdStart;
+
+    table = new FuzzySplTable();
+    table->alt_start = new uint16[id_num + 1];
+    table->alt_ids = new uint16[id_num * kMaxForms];
+    table->alt_costs = new uint16[id_num * kMaxForms];
+    table->strs = new FuzzySplStr[spelling_num_ * kMaxForms];
+
+    size_t str_num = 0;
+    table->alt_start[0] = table->alt_start[1] = 0;
+    for (uint16 splid = 1; splid < id_num; splid++) {
+      table->alt_start[splid + 1] = table->alt_start[splid];
+      if (splid < kFullSplIdStart) {
+        // The fuzzy half ids of a Shengmu.
+        char shm[3];
+        shm[0] = kHalfId2Sc_[splid] & (~0x20);
+        shm[1] = kHalfId2Sc_[splid] >= 'a' ? 'h' : '\0';
+        shm[2] = '\0';
+        for (size_t pos = 0; pos < kFuzzyShengmuNum; pos++) {
+          const FuzzyPair &pair = kFuzzyShengmus[pos];
+          const char *form = NULL;
+          if (!fz_enabled[pair.fz_class])
+            continue;
+          if (strcmp(shm, pair.str1) == 0)
+            form = pair.str2;
+          else if (strcmp(shm, pair.str2) == 0)
+            form = pair.str1;
+          else
+            continue;
+
+          // Map a Shengmu string back to the half id.
+          char ch = '\0' == form[1] ? form[0] : form[0] | 0x20;
+          uint16 alt_pos = table->alt_start[splid + 1]++;
+          table->alt_ids[alt_pos] = strchr(kHalfId2Sc_, ch) - kHalfId2Sc_;
+          table->alt_costs[alt_pos] = fz_costs[pair.fz_class];
+        }
+      } else {
+        add_fuzzy_forms(table, splid,
+                        spelling_buf_ + (splid - kFullSplIdStart) *
+                        spelling_size_, fz_enabled, fz_costs, &str_num);
+      }
+    }
+
+    qsort(table->strs, str_num, sizeof(FuzzySplStr), compare_spl);
+    table->str_num = str_num;
+  }
+  return table;
+}
+
+int SpellingTrie::get_shuangpin_key_pos(char key) {
+  if (key >= 'a' && key <= 'z')
+    return key - 'a';
+  if (key >= 'A' && key <= 'Z')
+    return key - 'A';
+  if (';' == key)
+    return kShuangpinKeyNum - 1;
+  return -1;
+}
+
+bool SpellingTrie::build_shuangpin_table() {
+  if (NULL != shuangpin_ids_)
+    delete [] shuangpin_ids_;
+  const size_t kRowSize = kShuangpinKeyNum + 1;
+  shuangpin_ids_ = new uint16[(kShuangpinSchemeNum - 1) * kShuangpinKeyNum *
+                              kRowSize];
+  if (NULL == shuangpin_ids_)
+    return false;
+
+  for (size_t scheme = 1; scheme < kShuangpinSchemeNum; scheme++) {
+    const ShuangpinSchemeDef &def = kShuangpinSchemes[scheme - 1];
+    shuangpin_first_keys_[scheme] = 0;
+
+    for (size_t key1 = 0; key1 < kShuangpinKeyNum; key1++) {
+      uint16 *row = shuangpin_ids_ +
+          ((scheme - 1) * kShuangpinKeyNum + key1) * kRowSize;
+      memset(row, 0, sizeof(uint16) * kRowSize);
+      // ';' is only a Yunmu key.
+      if (key1 + 1 == kShuangpinKeyNum)
+        continue;
+
+      // The Shengmu of the key, or "" for the zero Shengmu.
+      char ch1 = 'A' + key1;
+      char shm[3] = {ch1, '\0', '\0'};
+      bool zero_shm = false;
+      if ('V' == ch1 || 'I' == ch1 || 'U' == ch1) {
+        shm[0] = 'V' == ch1 ? 'Z' : ('I' == ch1 ? 'C' : 'S');
+        shm[1] = 'h';
+      } else if (!is_shengmu_char(ch1)) {
+        if ('\0' == def.zero_shengmu_key ? !is_yunmu_char(ch1) :
+            def.zero_shengmu_key != ch1 + ('a' - 'A'))
+          continue;
+        shm[0] = '\0';
+        zero_shm = true;
+      }
+
+      if (!zero_shm) {
+        char ch = '\0' == shm[1] ? shm[0] : shm[0] | 0x20;
+        row[0] = strchr(kHalfId2Sc_, ch) - kHalfId2Sc_;
+      }
+
+      for (size_t key2 = 0; key2 < kShuangpinKeyNum; key2++) {
+        // The spellings the two keys may be, the first one which is a
+        // spelling is taken.
+        char forms[4][kMaxPinyinSize + 2];
+        size_t form_num = 0;
+        char ch2 = key2 + 1 == kShuangpinKeyNum ? ';' : 'A' + key2;
+        if (zero_shm && '\0' == def.zero_shengmu_key) {
+          if (ch2 == ch1) {
+            forms[form_num][0] = ch1;
+            forms[form_num++][1] = '\0';
+          }
+          forms[form_num][0] = ch1;
+          forms[form_num][1] = ch2;
+          forms[form_num++][2] = '\0';
+        }
+        for (size_t pos = 0; pos < 2; pos++) {
+          const char *ym = def.yunmus[key2][pos];
+          if (NULL == ym || (zero_shm && '\0' == def.zero_shengmu_key &&
+                             ym[0] != ch1))
+            continue;
+          snprintf(forms[form_num++], kMaxPinyinSize + 2, "%s%s", shm, ym);
+        }
+
+        for (size_t pos = 0; pos < form_num; pos++) {
+          uint16 splid = find_splid(forms[pos]);
+          if (0 != splid) {
+            row[1 + key2] = splid;
+            shuangpin_first_keys_[scheme] |= 1 << key1;
+            break;
+          }
+        }
+      }
+    }
+  }
+  return true;
+}
+
+bool SpellingTrie::is_shuangpin_key(ShuangpinScheme scheme, char key) {
+  if (kShuangpinNone == scheme || scheme >= kShuangpinSchemeNum)
+    return false;
+  int key_pos = get_shuangpin_key_pos(key);
+  if (key_pos < 0)
+    return false;
+  return NULL != kShuangpinSchemes[scheme - 1].yunmus[key_pos][0];
+}
+
+uint16 SpellingTrie::get_shuangpin_splid(ShuangpinScheme scheme,
+                                         const char *keys, uint16 key_num,
+                                         bool *is_pre) const {
+  if (kShuangpinNone == scheme || scheme >= kShuangpinSchemeNum ||
+      NULL == shuangpin_ids_ || 0 == key_num || key_num > 2)
+    return 0;
+
+  int key1 = get_shuangpin_key_pos(keys[0]);
+  if (key1 < 0)
+    return 0;
+  const uint16 *row = shuangpin_ids_ +
+      ((scheme - 1) * kShuangpinKeyNum + key1) * (kShuangpinKeyNum + 1);
+
+  if (1 == key_num) {
+    if (NULL != is_pre)
+      *is_pre = 0 != (shuangpin_first_keys_[scheme] & (1 << key1));
+    uint16 splid = row[0];
+    if (!if_valid_id_update(&splid))
+      return 0;
+    return splid;
+  }
+
+  int key2 = get_shuangpin_key_pos(keys[1]);
+  if (key2 < 0)
+    return 0;
+  return row[1 + key2];
+}
+
+bool SpellingTrie::is_t9_key(char key) {
+  return key >= '2' && key <= '9';
+}
+
+uint16 SpellingTrie::get_t9_splids(const char *keys, uint16 key_num,
+                                   uint16 splids[], uint16 max_size,
+                                   bool *is_pre) const {
+  if (NULL == keys || NULL == is_pre || NULL == root_ || 0 == key_num)
+    return 0;
+
+  // Like a spelling string, the keys may be followed by splitters.
+  uint16 t9_num = 0;
+  while (t9_num < key_num && is_t9_key(keys[t9_num]))
+    t9_num++;
+  if (0 == t9_num || t9_num > kMaxPinyinSize)
+    return 0;
+  for (uint16 pos = t9_num; pos < key_num; pos++) {
+    if (is_valid_spl_char(keys[pos]) || is_t9_key(keys[pos]))
+      return 0;
+  }
+
+  // The nodes reached by the keys so far, every letter of a key is tried on
+  // all of them.
+  const SpellingNode *nodes[2][kMaxT9Nodes];
+  size_t node_num = 0;
+  for (size_t pos = 0; pos < kValidSplCharNum; pos++) {
+    if (kT9Keys_[pos] == keys[0] && NULL != level1_sons_[pos])
+      nodes[0][node_num++] = level1_sons_[pos];
+  }
+
+  for (uint16 key_pos = 1; key_pos < t9_num && node_num > 0; key_pos++) {
+    const SpellingNode **nodes_fr = nodes[(key_pos - 1) % 2];
+    const SpellingNode **nodes_to = nodes[key_pos % 2];
+    size_t node_num_to = 0;
+    for (size_t node_pos = 0; node_pos < node_num; node_pos++) {
+      const SpellingNode *node = nodes_fr[node_pos];
+      for (size_t son_pos = 0; son_pos < node->num_of_son; son_pos++) {
+        const SpellingNode *son = node->first_son + son_pos;
+        if (kT9Keys_[(son->char_this_node | 0x20) - 'a'] == keys[key_pos] &&
+            node_num_to < kMaxT9Nodes)
+          nodes_to[node_num_to++] = son;
+      }
+    }
+    node_num = node_num_to;
+  }
+
+  *is_pre = node_num > 0 && t9_num == key_num;
+
+  const SpellingNode **nodes_end = nodes[(t9_num - 1) % 2];
+  uint16 num = 0;
+  for (size_t node_pos = 0; node_pos < node_num && num < max_size;
+       node_pos++) {
+    uint16 splid = nodes_end[node_pos]->spelling_idx;
+    if (if_valid_id_update(&splid))
+      splids[num++] = splid;
+  }
+  return num;
+}
+
 size_t SpellingTrie::get_spelling_num() {
   return spelling_num_;
 }
@@ -825,4 +1319,35 @@ size_t SpellingTrie::get_spelling_str16(uint16 splid, char16 *splstr16,
   return 0;
 }
 
+size_t SpellingTrie::get_spelling_str(uint16 splid, char *splstr,
+                                      size_t splstr_len) const {
+  if (NULL == splstr || splstr_len < kMaxPinyinSize + 1) return 0;
+
+  if (splid >= kFullSplIdStart) {
+    splid -= kFullSplIdStart;
+    for (size_t pos = 0; pos <= kMaxPinyinSize; pos++) {
+      char ch = spelling_buf_[splid * spelling_size_ + pos];
+      if ('\0' == ch) {
+        splstr[pos] = '\0';
+        return pos;
+      }
+      splstr[pos] = ch | 0x20;
+    }
+  } else if (splid > 0) {
+    // The half ids of Zh/Ch/Sh map to z/c/s.
+    char ch = kHalfId2Sc_[splid];
+    splstr[0] = ch | 0x20;
+    if (ch >= 'a') {
+      splstr[1] = 'h';
+      splstr[2] = '\0';
+      return 2;
+    }
+    splstr[1] = '\0';
+    return 1;
+  }
+
+  splstr[0] = '\0';
+  return 0;
+}
+
 }  // namespace ime_pinyin
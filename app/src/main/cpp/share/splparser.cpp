@@ -21,9 +21,60 @@ namespace ime_pinyin {
 
 SpellingParser::SpellingParser() {
   spl_trie_ = SpellingTrie::get_cpinstance();
+  shuangpin_scheme_ = kShuangpinNone;
+  t9_enabled_ = false;
+  for (size_t pos = 0; pos < kFuzzyPinyinClassNum; pos++) {
+    fuzzy_enabled_[pos] = false;
+    fuzzy_costs_[pos] = kFuzzyPinyinCost;
+  }
+  fuzzy_table_ = NULL;
+}
+
+SpellingParser::~SpellingParser() {
+  if (NULL != fuzzy_table_)
+    SpellingTrie::free_fuzzy_table(fuzzy_table_);
+}
+
+void SpellingParser::set_shuangpin_scheme(ShuangpinScheme scheme) {
+  shuangpin_scheme_ = scheme;
+}
+
+ShuangpinScheme SpellingParser::get_shuangpin_scheme() const {
+  return shuangpin_scheme_;
+}
+
+void SpellingParser::set_t9_enabled(bool enable) {
+  t9_enabled_ = enable;
+}
+
+bool SpellingParser::t9_enabled() const {
+  return t9_enabled_;
+}
+
+bool SpellingParser::set_fuzzy_pinyin(FuzzyPinyinClass fz_class, bool enable,
+                                      uint16 cost) {
+  if (fz_class >= kFuzzyPinyinClassNum ||
+      (enable == fuzzy_enabled_[fz_class] &&
+       cost == fuzzy_costs_[fz_class]))
+    return false;
+
+  fuzzy_enabled_[fz_class] = enable;
+  fuzzy_costs_[fz_class] = cost;
+  if (NULL != fuzzy_table_)
+    SpellingTrie::free_fuzzy_table(fuzzy_table_);
+  fuzzy_table_ = spl_trie_->build_fuzzy_table(fuzzy_enabled_, fuzzy_costs_);
+  return true;
+}
+
+bool SpellingParser::fuzzy_pinyin_on() const {
+  return NULL != fuzzy_table_;
 }
 
 bool SpellingParser::is_valid_to_parse(char ch) {
+  if (t9_enabled_)
+    return SpellingTrie::is_t9_key(ch);
+  if (kShuangpinNone != shuangpin_scheme_)
+    return SpellingTrie::is_shuangpin_key(shuangpin_scheme_, ch);
   return SpellingTrie::is_valid_spl_char(ch);
 }
 
@@ -322,6 +373,54 @@ uint16 SpellingParser::get_splid_by_str_f(const char *splstr, uint16 str_len,
   return spl_idx[0];
 }
 
+uint16 SpellingParser::get_splids_fuzzy(const char *splstr, uint16 str_len,
+                                        uint16 splidx[], uint16 costs[],
+                                        uint16 max_size, bool *is_pre) {
+  if (NULL == is_pre || 0 == max_size)
+    return 0;
+
+  uint16 splid = get_splid_by_str(splstr, str_len, is_pre);
+  if (0 != splid) {
+    splidx[0] = splid;
+    costs[0] = 0;
+    return 1 + spl_trie_->get_fuzzy_splids(fuzzy_table_, splid, splidx + 1,
+                                           costs + 1, max_size - 1);
+  }
+
+  return spl_trie_->get_fuzzy_splids(fuzzy_table_, splstr, str_len, splidx,
+                                     costs, max_size, is_pre);
+}
+
+uint16 SpellingParser::get_splids_shuangpin(const char *keys, uint16 key_num,
+                                            uint16 splidx[], uint16 costs[],
+                                            uint16 max_size, bool *is_pre) {
+  if (NULL == is_pre || 0 == max_size)
+    return 0;
+
+  uint16 splid = spl_trie_->get_shuangpin_splid(shuangpin_scheme_, keys,
+                                                key_num, is_pre);
+  if (0 == splid)
+    return 0;
+
+  splidx[0] = splid;
+  costs[0] = 0;
+  return 1 + spl_trie_->get_fuzzy_splids(fuzzy_table_, splid, splidx + 1,
+                                         costs + 1, max_size - 1);
+}
+
+uint16 SpellingParser::get_splids_t9(const char *keys, uint16 key_num,
+                                     uint16 splidx[], uint16 costs[],
+                                     uint16 max_size, bool *is_pre) {
+  if (NULL == is_pre || 0 == max_size)
+    return 0;
+
+  uint16 num = spl_trie_->get_t9_splids(keys, key_num, splidx, max_size,
+                                        is_pre);
+  for (uint16 pos = 0; pos < num; pos++)
+    costs[pos] = 0;
+  return num;
+}
+
 uint16 SpellingParser::get_splids_parallel(const char *splstr, uint16 str_len,
     uint16 splidx[], uint16 max_size,
     uint16 &full_id_num, bool &is_pre) {
@@ -17,10 +17,13 @@
 #include "../include/userdict.h"
 #include "../include/splparser.h"
 #include "../include/ngram.h"
+#include "../include/mystdlib.h"
 #include <stdio.h>
 #include <string.h>
 #include <stdlib.h>
+#ifdef __ANDROID__
 #include <android/log.h>
+#endif
 #include <unistd.h>
 #include <fcntl.h>
 #include <sys/stat.h>
@@ -59,15 +62,19 @@ static struct timeval _tv_start_, _tv_end_;
 static pthread_mutex_t g_mutex_ = PTHREAD_MUTEX_INITIALIZER;
 static struct timeval g_last_update_ = {0, 0};
 
-inline uint32 UserDict::get_dict_file_size(UserDictInfo * info) {
-  return (4 + info->lemma_size + (info->lemma_count << 3)
+inline uint32 UserDict::get_sections_size(UserDictInfo * info) {
+  return (info->lemma_size + (info->lemma_count << 3)
 #ifdef ___PREDICT_ENABLED___
           + (info->lemma_count << 2)
 #endif
 #ifdef ___SYNC_ENABLED___
           + (info->sync_count << 2)
 #endif
-          + sizeof(*info));
+          );
+}
+
+inline uint32 UserDict::get_dict_file_size(UserDictInfo * info) {
+  return 4 + sizeof(UserDictHeader) + get_sections_size(info);
 }
 
 inline LmaScoreType UserDict::translate_score(int raw_score) {
@@ -234,15 +241,26 @@ UserDict::UserDict()
       sync_count_size_(0),
 #endif
       offsets_by_id_(NULL),
+      sorted_count_(0),
+      index_bits_(0),
+      spl_buckets_(NULL),
+      spl_next_(NULL),
+      key_buckets_(NULL),
+      key_next_(NULL),
+#ifdef ___PREDICT_ENABLED___
+      hz_buckets_(NULL),
+      hz_next_(NULL),
+#endif
+      prefix_filter_(NULL),
       lemma_count_left_(0),
       lemma_size_left_(0),
       dict_file_(NULL),
+      writer_(NULL),
+      journal_size_(0),
+      change_count_(0),
       state_(USER_DICT_NONE) {
   memset(&dict_info_, 0, sizeof(dict_info_));
   memset(&load_time_, 0, sizeof(load_time_));
-#ifdef ___CACHE_ENABLED___
-  cache_init();
-#endif
 }
 
 UserDict::~UserDict() {
@@ -259,17 +277,31 @@ bool UserDict::load_dict(const char *file_name, LemmaIdType start_id,
     return false;
 
   start_id_ = start_id;
+  bool corrupted = false;
 
   if (false == validate(file_name) && false == reset(file_name)) {
     goto error;
   }
-  if (false == load(file_name, start_id)) {
-    goto error;
+  if (false == load(file_name, start_id, &corrupted)) {
+    // Start over, the journal still redoes the latest changes.
+    if (!corrupted || false == reset(file_name) ||
+        false == load(file_name, start_id, &corrupted))
+      goto error;
   }
 
-  state_ = USER_DICT_SYNC;
-
   gettimeofday(&load_time_, NULL);
+  // The lemmas may differ from those before.
+  change_count_++;
+
+  // Changes made after the file was last written are in the journal.
+  replay_journal(file_name);
+  writer_ = new UserDictWriter();
+  if (!writer_->start(file_name)) {
+    delete writer_;
+    writer_ = NULL;
+  }
+  if (state_ != USER_DICT_SYNC)
+    checkpoint();
 
 #ifdef ___DEBUG_PERF___
   DEBUG_PERF_END;
@@ -289,19 +321,33 @@ bool UserDict::close_dict() {
     goto out;
 
   // If dictionary is written back by others,
-  // we can not simply write back here
-  // To do a safe flush, we have to discard all newly added
-  // lemmas and try to reload dict file.
+  // we can not simply write back here.
+  // Changes of ours still in the journal are redone on top of the
+  // other file when it is loaded again.
   pthread_mutex_lock(&g_mutex_);
   if (load_time_.tv_sec > g_last_update_.tv_sec ||
     (load_time_.tv_sec == g_last_update_.tv_sec &&
      load_time_.tv_usec > g_last_update_.tv_usec)) {
-    write_back();
+    if (NULL != writer_) {
+      checkpoint();
+      writer_->stop();
+    } else {
+      size_t size;
+      void *image = build_image(&size);
+      if (NULL != image) {
+        UserDictWriter::write_file(dict_file_, image, size);
+        free(image);
+      }
+    }
     gettimeofday(&g_last_update_, NULL);
   }
   pthread_mutex_unlock(&g_mutex_);
 
  out:
+  // Writes what is still pending.
+  delete writer_;
+  writer_ = NULL;
+  journal_size_ = 0;
   free((void*)dict_file_);
   free(lemmas_);
   free(offsets_);
@@ -310,7 +356,11 @@ bool UserDict::close_dict() {
   free(ids_);
 #ifdef ___PREDICT_ENABLED___
   free(predicts_);
+  free(hz_next_);
 #endif
+  free(spl_buckets_);
+  free(spl_next_);
+  free(key_next_);
 
   version_ = 0;
   dict_file_ = NULL;
@@ -325,7 +375,16 @@ bool UserDict::close_dict() {
   ids_ = NULL;
 #ifdef ___PREDICT_ENABLED___
   predicts_ = NULL;
+  hz_buckets_ = NULL;
+  hz_next_ = NULL;
 #endif
+  sorted_count_ = 0;
+  index_bits_ = 0;
+  spl_buckets_ = NULL;
+  spl_next_ = NULL;
+  key_buckets_ = NULL;
+  key_next_ = NULL;
+  prefix_filter_ = NULL;
 
   memset(&dict_info_, 0, sizeof(dict_info_));
   lemma_count_left_ = 0;
@@ -364,64 +423,46 @@ MileStoneHandle UserDict::extend_dict(MileStoneHandle from_handle,
   return ((*lpi_num > 0 || need_extend) ? 1 : 0);
 }
 
-int UserDict::is_fuzzy_prefix_spell_id(
-    const uint16 * id1, uint16 len1, const UserDictSearchable *searchable) {
-  if (len1 < searchable->splids_len)
-    return 0;
-
+uint64 UserDict::get_spelling_key(const uint16 * splids, uint16 len) {
   SpellingTrie &spl_trie = SpellingTrie::get_instance();
-  uint32 i = 0;
-  for (i = 0; i < searchable->splids_len; i++) {
-    const char py1 = *spl_trie.get_spelling_str(id1[i]);
-    uint16 off = 8 * (i % 4);
-    const char py2 = ((searchable->signature[i/4] & (0xff << off)) >> off);
-    if (py1 == py2)
-      continue;
-    return 0;
+  // The number of spellings in the highest bits, then 7 bits of each
+  // initial letter.
+  uint64 key = (uint64)len << 56;
+  for (uint16 i = 0; i < len; i++) {
+    const char py = *spl_trie.get_spelling_str(splids[i]);
+    key |= (uint64)(py & 0x7f) << (49 - 7 * i);
   }
-  return 1;
+  return key;
 }
 
-int UserDict::fuzzy_compare_spell_id(
-    const uint16 * id1, uint16 len1, const UserDictSearchable *searchable) {
-  if (len1 < searchable->splids_len)
-    return -1;
-  if (len1 > searchable->splids_len)
-    return 1;
+uint64 UserDict::get_prefix_key(uint64 key, uint16 len) {
+  uint64 letters = ((1ULL << 56) - 1) & ~((1ULL << (56 - 7 * len)) - 1);
+  return ((uint64)len << 56) | (key & letters);
+}
 
-  SpellingTrie &spl_trie = SpellingTrie::get_instance();
-  uint32 i = 0;
-  for (i = 0; i < len1; i++) {
-    const char py1 = *spl_trie.get_spelling_str(id1[i]);
-    uint16 off = 8 * (i % 4);
-    const char py2 = ((searchable->signature[i/4] & (0xff << off)) >> off);
-    if (py1 == py2)
-      continue;
-    if (py1 > py2)
-      return 1;
-    return -1;
-  }
-  return 0;
+inline uint32 UserDict::get_splids_bucket(const uint16 * splids,
+                                          uint16 len) {
+  uint64 hash = len;
+  for (uint16 i = 0; i < len; i++)
+    hash = ((hash << 9) | (hash >> 55)) ^ splids[i];
+  return (uint32)((hash * 0x9e3779b97f4a7c15ULL) >> (64 - index_bits_));
 }
 
-bool UserDict::is_prefix_spell_id(
-    const uint16 * fullids, uint16 fulllen,
-    const UserDictSearchable *searchable) {
-  if (fulllen < searchable->splids_len)
-    return false;
+inline uint32 UserDict::get_key_bucket(uint64 key) {
+  return (uint32)((key * 0x9e3779b97f4a7c15ULL) >> (64 - index_bits_));
+}
 
-  uint32 i = 0;
-  for (; i < searchable->splids_len; i++) {
-    uint16 start_id = searchable->splid_start[i];
-    uint16 count = searchable->splid_count[i];
-    if (fullids[i] >= start_id && fullids[i] < start_id + count)
-      continue;
-    else
-      return false;
-  }
-  return true;
+inline uint32 UserDict::get_prefix_bit(uint64 key) {
+  return (uint32)((key * 0xc2b2ae3d27d4eb4fULL) >>
+                  (64 - index_bits_ - kUserDictPrefixFilterShift));
 }
 
+#ifdef ___PREDICT_ENABLED___
+inline uint32 UserDict::get_hanzi_bucket(char16 hz) {
+  return (hz * 0x9e3779b1u) >> (32 - index_bits_);
+}
+#endif
+
 bool UserDict::equal_spell_id(
     const uint16 * fullids, uint16 fulllen,
     const UserDictSearchable *searchable) {
@@ -440,48 +481,84 @@ bool UserDict::equal_spell_id(
   return true;
 }
 
-int32 UserDict::locate_first_in_offsets(const UserDictSearchable * searchable) {
-  int32 begin = 0;
-  int32 end = dict_info_.lemma_count - 1;
-  int32 middle = -1;
+size_t UserDict::get_index_size(uint32 bits) {
+  size_t buckets = (size_t)1 << bits;
+  size_t size = (buckets << 1) + (buckets << kUserDictPrefixFilterShift >> 5);
+#ifdef ___PREDICT_ENABLED___
+  size += buckets;
+#endif
+  return size;
+}
 
-  int32 first_prefix = middle;
-  int32 last_matched = middle;
+bool UserDict::resize_index(uint32 bits) {
+  uint32 *index = (uint32*)malloc(get_index_size(bits) << 2);
+  if (!index)
+    return false;
+  free(spl_buckets_);
+  spl_buckets_ = index;
+  index_bits_ = bits;
+  build_index();
+  return true;
+}
 
-  while (begin <= end) {
-    middle = (begin + end) >> 1;
-    uint32 offset = offsets_[middle];
-    uint8 nchar = get_lemma_nchar(offset);
-    const uint16 * splids = get_lemma_spell_ids(offset);
-    int cmp = fuzzy_compare_spell_id(splids, nchar, searchable);
-    int pre = is_fuzzy_prefix_spell_id(splids, nchar, searchable);
+void UserDict::build_index() {
+  // The buckets by the spelling ids are followed by those by the spelling
+  // key, those by the Hanzi and prefix_filter_, see get_index_size().
+  size_t buckets = (size_t)1 << index_bits_;
+  key_buckets_ = spl_buckets_ + buckets;
+#ifdef ___PREDICT_ENABLED___
+  hz_buckets_ = key_buckets_ + buckets;
+  prefix_filter_ = hz_buckets_ + buckets;
+#else
+  prefix_filter_ = key_buckets_ + buckets;
+#endif
+  memset(spl_buckets_, 0xff, (prefix_filter_ - spl_buckets_) << 2);
+  memset(prefix_filter_, 0, buckets << kUserDictPrefixFilterShift >> 3);
 
-    if (pre)
-      first_prefix = middle;
+  // Added backwards, so that a chain is in the order of offsets_.
+  for (uint32 i = dict_info_.lemma_count; i > 0; i--) {
+    if ((offsets_[i - 1] & kUserDictOffsetFlagRemove) == 0)
+      add_to_index(i - 1);
+  }
+}
 
-    if (cmp < 0) {
-      begin = middle + 1;
-    } else if (cmp > 0) {
-      end = middle - 1;
-    } else {
-      end = middle - 1;
-      last_matched = middle;
-    }
+void UserDict::add_to_index(uint32 offset_index) {
+  uint32 offset = offsets_[offset_index];
+  uint8 nchar = get_lemma_nchar(offset);
+  const uint16 * splids = get_lemma_spell_ids(offset);
+  uint64 key = get_spelling_key(splids, nchar);
+
+  uint32 bucket = get_splids_bucket(splids, nchar);
+  spl_next_[offset_index] = spl_buckets_[bucket];
+  spl_buckets_[bucket] = offset_index;
+
+  bucket = get_key_bucket(key);
+  key_next_[offset_index] = key_buckets_[bucket];
+  key_buckets_[bucket] = offset_index;
+
+  for (uint16 len = 1; len < nchar; len++) {
+    uint32 bit = get_prefix_bit(get_prefix_key(key, len));
+    prefix_filter_[bit >> 5] |= (1u << (bit & 31));
   }
 
-  return first_prefix;
+#ifdef ___PREDICT_ENABLED___
+  bucket = get_hanzi_bucket(get_lemma_word(offset)[0]);
+  hz_next_[offset_index] = hz_buckets_[bucket];
+  hz_buckets_[bucket] = offset_index;
+#endif
 }
 
 void UserDict::prepare_locate(UserDictSearchable *searchable,
                              const uint16 *splid_str,
                              uint16 splid_str_len) {
   searchable->splids_len = splid_str_len;
-  memset(searchable->signature, 0, sizeof(searchable->signature));
+  searchable->full_ids = true;
 
   SpellingTrie &spl_trie = SpellingTrie::get_instance();
   uint32 i = 0;
   for (; i < splid_str_len; i++) {
     if (spl_trie.is_half_id(splid_str[i])) {
+      searchable->full_ids = false;
       searchable->splid_count[i] =
           spl_trie.half_to_full(splid_str[i],
                                 &(searchable->splid_start[i]));
@@ -489,9 +566,8 @@ void UserDict::prepare_locate(UserDictSearchable *searchable,
       searchable->splid_count[i] = 1;
       searchable->splid_start[i] = splid_str[i];
     }
-    const unsigned char py = *spl_trie.get_spelling_str(splid_str[i]);
-    searchable->signature[i>>2] |= (py << (8 * (i % 4)));
   }
+  searchable->key = get_spelling_key(splid_str, splid_str_len);
 }
 
 size_t UserDict::get_lpis(const uint16 *splid_str, uint16 splid_str_len,
@@ -510,7 +586,7 @@ size_t UserDict::_get_lpis(const uint16 *splid_str,
 
   if (is_valid_state() == false)
     return 0;
-  if (lpi_max <= 0)
+  if (lpi_max <= 0 || splid_str_len > kMaxLemmaSize)
     return 0;
 
   if (0 == pthread_mutex_trylock(&g_mutex_)) {
@@ -526,82 +602,41 @@ size_t UserDict::_get_lpis(const uint16 *splid_str,
   } else {
   }
 
+  if (is_valid_state() == false)
+    return 0;
+
   UserDictSearchable searchable;
   prepare_locate(&searchable, splid_str, splid_str_len);
 
-  uint32 max_off = dict_info_.lemma_count;
-#ifdef ___CACHE_ENABLED___
-  int32 middle;
-  uint32 start, count;
-  bool cached = cache_hit(&searchable, &start, &count);
-  if (cached) {
-    middle = start;
-    max_off = start + count;
+  // Full ids are looked up by themselves, half ids by the initial letters.
+  uint32 off;
+  const uint32 * next;
+  if (searchable.full_ids) {
+    off = spl_buckets_[get_splids_bucket(splid_str, splid_str_len)];
+    next = spl_next_;
   } else {
-    middle = locate_first_in_offsets(&searchable);
-    start = middle;
-  }
-#else
-  int32 middle = locate_first_in_offsets(&searchable);
-#endif
-
-  if (middle == -1) {
-#ifdef ___CACHE_ENABLED___
-    if (!cached)
-      cache_push(USER_DICT_MISS_CACHE, &searchable, 0, 0);
-#endif
-    return 0;
+    off = key_buckets_[get_key_bucket(searchable.key)];
+    next = key_next_;
   }
 
   size_t lpi_current = 0;
-
-  bool fuzzy_break = false;
-  bool prefix_break = false;
-  while ((size_t)middle < max_off && !fuzzy_break && !prefix_break) {
-    if (lpi_current >= lpi_max)
-      break;
-    uint32 offset = offsets_[middle];
+  for (; off != kUserDictIndexEnd && lpi_current < lpi_max; off = next[off]) {
+    uint32 offset = offsets_[off];
     // Ignore deleted lemmas
-    if (offset & kUserDictOffsetFlagRemove) {
-      middle++;
+    if (offset & kUserDictOffsetFlagRemove)
       continue;
-    }
     uint8 nchar = get_lemma_nchar(offset);
     uint16 * splids = get_lemma_spell_ids(offset);
-#ifdef ___CACHE_ENABLED___
-    if (!cached && 0 != fuzzy_compare_spell_id(splids, nchar, &searchable)) {
-#else
-    if (0 != fuzzy_compare_spell_id(splids, nchar, &searchable)) {
-#endif
-      fuzzy_break = true;
-    }
-
-    if (prefix_break == false) {
-      if (is_fuzzy_prefix_spell_id(splids, nchar, &searchable)) {
-        if (*need_extend == false &&
-            is_prefix_spell_id(splids, nchar, &searchable)) {
-          *need_extend = true;
-        }
-      } else {
-        prefix_break = true;
-      }
-    }
-
     if (equal_spell_id(splids, nchar, &searchable) == true) {
-      lpi_items[lpi_current].psb = translate_score(scores_[middle]);
-      lpi_items[lpi_current].id = ids_[middle];
+      lpi_items[lpi_current].psb = translate_score(scores_[off]);
+      lpi_items[lpi_current].id = ids_[off];
       lpi_items[lpi_current].lma_len = nchar;
       lpi_current++;
     }
-    middle++;
   }
 
-#ifdef ___CACHE_ENABLED___
-  if (!cached) {
-    count = middle - start;
-    cache_push(USER_DICT_CACHE, &searchable, start, count);
-  }
-#endif
+  uint32 bit = get_prefix_bit(searchable.key);
+  *need_extend = 0 != (prefix_filter_[bit >> 5] & (1u << (bit & 31)));
 
   return lpi_current;
 }
@@ -642,46 +677,34 @@ size_t UserDict::predict(const char16 last_hzs[], uint16 hzs_len,
                          size_t b4_used) {
   uint32 new_added = 0;
 #ifdef ___PREDICT_ENABLED___
-  int32 end = dict_info_.lemma_count - 1;
-  int j = locate_first_in_predicts((const uint16*)last_hzs, hzs_len);
-  if (j == -1)
+  if (is_valid_state() == false || 0 == hzs_len)
     return 0;
 
-  while (j <= end) {
-    uint32 offset = predicts_[j];
+  uint32 off = hz_buckets_[get_hanzi_bucket(last_hzs[0])];
+  for (; off != kUserDictIndexEnd; off = hz_next_[off]) {
+    uint32 offset = offsets_[off];
     // Ignore deleted lemmas
-    if (offset & kUserDictOffsetFlagRemove) {
-      j++;
+    if (offset & kUserDictOffsetFlagRemove)
       continue;
-    }
     uint32 nchar = get_lemma_nchar(offset);
     uint16 * words = get_lemma_word(offset);
-    uint16 * splids = get_lemma_spell_ids(offset);
 
-    if (nchar <= hzs_len) {
-      j++;
+    if (nchar <= hzs_len || memcmp(words, last_hzs, hzs_len << 1) != 0)
       continue;
-    }
 
-    if (memcmp(words, last_hzs, hzs_len << 1) == 0) {
-      if (new_added >= npre_max) {
-        return new_added;
-      }
-      uint32 cpy_len =
-          (nchar < kMaxPredictSize ? (nchar << 1) : (kMaxPredictSize << 1))
-          - (hzs_len << 1);
-      npre_items[new_added].his_len = hzs_len;
-      npre_items[new_added].psb = get_lemma_score(words, splids, nchar);
-      memcpy(npre_items[new_added].pre_hzs, words + hzs_len, cpy_len);
-      if ((cpy_len >> 1) < kMaxPredictSize) {
-        npre_items[new_added].pre_hzs[cpy_len >> 1] = 0;
-      }
-      new_added++;
-    } else {
-      break;
+    if (new_added >= npre_max) {
+      return new_added;
     }
-
-    j++;
+    uint32 cpy_len =
+        (nchar < kMaxPredictSize ? (nchar << 1) : (kMaxPredictSize << 1))
+        - (hzs_len << 1);
+    npre_items[new_added].his_len = hzs_len;
+    npre_items[new_added].psb = translate_score(scores_[off]);
+    memcpy(npre_items[new_added].pre_hzs, words + hzs_len, cpy_len);
+    if ((cpy_len >> 1) < kMaxPredictSize) {
+      npre_items[new_added].pre_hzs[cpy_len >> 1] = 0;
+    }
+    new_added++;
   }
 #endif
   return new_added;
@@ -689,170 +712,34 @@ size_t UserDict::predict(const char16 last_hzs[], uint16 hzs_len,
 
 int32 UserDict::locate_in_offsets(char16 lemma_str[], uint16 splid_str[],
                                   uint16 lemma_len) {
-  int32 max_off = dict_info_.lemma_count;
+  if (is_valid_state() == false || lemma_len > kMaxLemmaSize)
+    return -1;
 
   UserDictSearchable searchable;
   prepare_locate(&searchable, splid_str, lemma_len);
-#ifdef ___CACHE_ENABLED___
-  int32 off;
-  uint32 start, count;
-  bool cached = load_cache(&searchable, &start, &count);
-  if (cached) {
-    off = start;
-    max_off = start + count;
-  } else {
-    off = locate_first_in_offsets(&searchable);
-    start = off;
-  }
-#else
-  int32 off = locate_first_in_offsets(&searchable);
-#endif
 
-  if (off == -1) {
-    return off;
+  uint32 off;
+  const uint32 * next;
+  if (searchable.full_ids) {
+    off = spl_buckets_[get_splids_bucket(splid_str, lemma_len)];
+    next = spl_next_;
+  } else {
+    off = key_buckets_[get_key_bucket(searchable.key)];
+    next = key_next_;
   }
-
-  while (off < max_off) {
+  for (; off != kUserDictIndexEnd; off = next[off]) {
     uint32 offset = offsets_[off];
-    if (offset & kUserDictOffsetFlagRemove) {
-      off++;
+    if (offset & kUserDictOffsetFlagRemove)
       continue;
-    }
     uint16 * splids = get_lemma_spell_ids(offset);
-#ifdef ___CACHE_ENABLED___
-    if (!cached && 0 != fuzzy_compare_spell_id(splids, lemma_len, &searchable))
-      break;
-#else
-    if (0 != fuzzy_compare_spell_id(splids, lemma_len, &searchable))
-      break;
-#endif
-    if (equal_spell_id(splids, lemma_len, &searchable) == true) {
-      uint16 * str = get_lemma_word(offset);
-      uint32 i = 0;
-      for (i = 0; i < lemma_len; i++) {
-        if (str[i] == lemma_str[i])
-          continue;
-        break;
-      }
-      if (i < lemma_len) {
-        off++;
-        continue;
-      }
-#ifdef ___CACHE_ENABLED___
-      // No need to save_cache here, since current function is invoked by
-      // put_lemma. It's rarely possible for a user input same lemma twice.
-      // That means first time user type a new lemma, it is newly added into
-      // user dictionary, then it's possible that user type the same lemma
-      // again.
-      // Another reason save_cache can not be invoked here is this function
-      // aborts when lemma is found, and it never knows the count.
-#endif
+    if (equal_spell_id(splids, get_lemma_nchar(offset), &searchable) &&
+        memcmp(get_lemma_word(offset), lemma_str, lemma_len << 1) == 0)
       return off;
-    }
-    off++;
   }
 
   return -1;
 }
 
-#ifdef ___PREDICT_ENABLED___
-uint32 UserDict::locate_where_to_insert_in_predicts(
-    const uint16 * words, int lemma_len) {
-  int32 begin = 0;
-  int32 end = dict_info_.lemma_count - 1;
-  int32 middle = end;
-
-  uint32 last_matched = middle;
-
-  while (begin <= end) {
-    middle = (begin + end) >> 1;
-    uint32 offset = offsets_[middle];
-    uint8 nchar = get_lemma_nchar(offset);
-    const uint16 * ws = get_lemma_word(offset);
-
-    uint32 minl = nchar < lemma_len ? nchar : lemma_len;
-    uint32 k = 0;
-    int cmp = 0;
-
-    for (; k < minl; k++) {
-      if (ws[k] < words[k]) {
-        cmp = -1;
-        break;
-      } else if (ws[k] > words[k]) {
-        cmp = 1;
-        break;
-      }
-    }
-    if (cmp == 0) {
-      if (nchar < lemma_len)
-        cmp = -1;
-      else if (nchar > lemma_len)
-        cmp = 1;
-    }
-
-    if (cmp < 0) {
-      begin = middle + 1;
-      last_matched = middle;
-    } else if (cmp > 0) {
-      end = middle - 1;
-    } else {
-      end = middle - 1;
-      last_matched = middle;
-    }
-  }
-
-  return last_matched;
-}
-
-int32 UserDict::locate_first_in_predicts(const uint16 * words, int lemma_len) {
-  int32 begin = 0;
-  int32 end = dict_info_.lemma_count - 1;
-  int32 middle = -1;
-
-  int32 last_matched = middle;
-
-  while (begin <= end) {
-    middle = (begin + end) >> 1;
-    uint32 offset = offsets_[middle];
-    uint8 nchar = get_lemma_nchar(offset);
-    const uint16 * ws = get_lemma_word(offset);
-
-    uint32 minl = nchar < lemma_len ? nchar : lemma_len;
-    uint32 k = 0;
-    int cmp = 0;
-
-    for (; k < minl; k++) {
-      if (ws[k] < words[k]) {
-        cmp = -1;
-        break;
-      } else if (ws[k] > words[k]) {
-        cmp = 1;
-        break;
-      }
-    }
-    if (cmp == 0) {
-      if (nchar >= lemma_len)
-        last_matched = middle;
-      if (nchar < lemma_len)
-        cmp = -1;
-      else if (nchar > lemma_len)
-        cmp = 1;
-    }
-
-    if (cmp < 0) {
-      begin = middle + 1;
-    } else if (cmp > 0) {
-      end = middle - 1;
-    } else {
-      end = middle - 1;
-    }
-  }
-
-  return last_matched;
-}
-
-#endif
-
 LemmaIdType UserDict::get_lemma_id(char16 lemma_str[], uint16 splids[],
                                    uint16 lemma_len) {
   int32 off = locate_in_offsets(lemma_str, splids, lemma_len);
@@ -928,20 +815,6 @@ void UserDict::remove_lemma_from_sync_list(uint32 offset) {
 }
 #endif
 
-#ifdef ___PREDICT_ENABLED___
-void UserDict::remove_lemma_from_predict_list(uint32 offset) {
-  offset &= kUserDictOffsetMask;
-  uint32 i = 0;
-  for (; i < dict_info_.lemma_count; i++) {
-    unsigned int off = (predicts_[i] & kUserDictOffsetMask);
-    if (off == offset) {
-      predicts_[i] |= kUserDictOffsetFlagRemove;
-      break;
-    }
-  }
-}
-#endif
-
 bool UserDict::remove_lemma_by_offset_index(int offset_index) {
   if (is_valid_state() == false)
     return 0;
@@ -955,20 +828,21 @@ bool UserDict::remove_lemma_by_offset_index(int offset_index) {
   uint32 nchar = get_lemma_nchar(offset);
 
   offsets_[off] |= kUserDictOffsetFlagRemove;
+  // Also tells predicts_, when the file is written.
+  set_lemma_flag(offset, kUserDictLemmaFlagRemove);
 
 #ifdef ___SYNC_ENABLED___
   // Remove corresponding sync item
   remove_lemma_from_sync_list(offset);
 #endif
-
-#ifdef ___PREDICT_ENABLED___
-  remove_lemma_from_predict_list(offset);
-#endif
   dict_info_.free_count++;
   dict_info_.free_size += (2 + (nchar << 2));
 
   if (state_ < USER_DICT_OFFSET_DIRTY)
     state_ = USER_DICT_OFFSET_DIRTY;
+
+  journal(USER_DICT_JOURNAL_REMOVE, get_lemma_word(offset),
+          get_lemma_spell_ids(offset), nchar, 0, false);
   return true;
 }
 
@@ -996,31 +870,38 @@ void UserDict::flush_cache() {
   close_dict();
   load_dict(file, start_id, kUserDictIdEnd);
   free((void*)file);
-#ifdef ___CACHE_ENABLED___
-  cache_init();
-#endif
   return;
 }
 
+uint32 UserDict::get_change_count() {
+  return change_count_;
+}
+
+void UserDict::fill_header(UserDictHeader *header, const UserDictInfo *info,
+                           const uint32 section_checksums[]) {
+  memcpy(header->section_checksums, section_checksums,
+         sizeof(header->section_checksums));
+  memcpy(&header->info, info, sizeof(header->info));
+  header->checksum = checksum((uint8*)header + 4, sizeof(*header) - 4);
+}
+
 bool UserDict::reset(const char *file) {
-  FILE *fp = fopen(file, "w+");
-  if (!fp) {
-    return false;
-  }
+  uint8 image[4 + sizeof(UserDictHeader)];
   uint32 version = kUserDictVersion;
-  size_t wred = fwrite(&version, 1, 4, fp);
+  memcpy(image, &version, 4);
+
   UserDictInfo info;
   memset(&info, 0, sizeof(info));
   // By default, no limitation for lemma count and size
   // thereby, reclaim_ratio is never used
-  wred += fwrite(&info, 1, sizeof(info), fp);
-  if (wred != sizeof(info) + sizeof(version)) {
-    fclose(fp);
-    unlink(file);
-    return false;
-  }
-  fclose(fp);
-  return true;
+  uint32 section_checksums[USER_DICT_SECTION_NUM];
+  for (int i = 0; i < USER_DICT_SECTION_NUM; i++)
+    section_checksums[i] = checksum(NULL, 0);
+  UserDictHeader header;
+  fill_header(&header, &info, section_checksums);
+  memcpy(image + 4, &header, sizeof(header));
+
+  return UserDictWriter::write_file(file, image, sizeof(image));
 }
 
 bool UserDict::validate(const char *file) {
@@ -1034,6 +915,7 @@ bool UserDict::validate(const char *file) {
   size_t size;
   size_t readed;
   uint32 version;
+  UserDictHeader header;
   UserDictInfo dict_info;
 
   // validate
@@ -1056,21 +938,29 @@ bool UserDict::validate(const char *file) {
   if (readed < sizeof(version)) {
     goto error;
   }
-  if (version != kUserDictVersion) {
-    goto error;
-  }
 
-  err = fseek(fp, -1 * sizeof(dict_info), SEEK_END);
-  if (err) {
-    goto error;
-  }
+  if (version == kUserDictVersion) {
+    readed = fread(&header, 1, sizeof(header), fp);
+    if (readed != sizeof(header) ||
+        header.checksum != checksum((uint8*)&header + 4, sizeof(header) - 4))
+      goto error;
+    if (size != get_dict_file_size(&header.info))
+      goto error;
+  } else if (version == kUserDictLegacyVersion) {
+    err = fseek(fp, -1 * sizeof(dict_info), SEEK_END);
+    if (err) {
+      goto error;
+    }
 
-  readed = fread(&dict_info, 1, sizeof(dict_info), fp);
-  if (readed != sizeof(dict_info)) {
-    goto error;
-  }
+    readed = fread(&dict_info, 1, sizeof(dict_info), fp);
+    if (readed != sizeof(dict_info)) {
+      goto error;
+    }
 
-  if (size != get_dict_file_size(&dict_info)) {
+    if (size != 4 + get_sections_size(&dict_info) + sizeof(dict_info)) {
+      goto error;
+    }
+  } else {
     goto error;
   }
 
@@ -1082,7 +972,25 @@ bool UserDict::validate(const char *file) {
   return false;
 }
 
-bool UserDict::load(const char *file, LemmaIdType start_id) {
+bool UserDict::read_section(FILE *fp, void *buf, size_t size,
+                            const uint32 *checksums, int section,
+                            bool *corrupted) {
+  size_t readed = 0;
+  while (readed < size && !ferror(fp) && !feof(fp)) {
+    readed += fread((uint8*)buf + readed, 1, size - readed, fp);
+  }
+  if (readed < size)
+    return false;
+  if (NULL != checksums && checksums[section] != checksum(buf, size)) {
+    *corrupted = true;
+    return false;
+  }
+  return true;
+}
+
+bool UserDict::load(const char *file, LemmaIdType start_id,
+                    bool *corrupted) {
+  *corrupted = false;
   if (0 != pthread_mutex_trylock(&g_mutex_)) {
     return false;
   }
@@ -1095,6 +1003,10 @@ bool UserDict::load(const char *file, LemmaIdType start_id) {
   }
 
   size_t readed, toread;
+  uint32 version;
+  UserDictHeader header;
+  const uint32 *checksums = NULL;
+  long sections_start;
   UserDictInfo dict_info;
   uint8 *lemmas = NULL;
   uint32 *offsets = NULL;
@@ -1106,15 +1018,32 @@ bool UserDict::load(const char *file, LemmaIdType start_id) {
   uint32 *offsets_by_id = NULL;
 #ifdef ___PREDICT_ENABLED___
   uint32 *predicts = NULL;
+  uint32 *hz_next = NULL;
 #endif
+  uint32 *spl_next = NULL;
+  uint32 *key_next = NULL;
+  uint32 *index = NULL;
+  uint32 index_bits = kUserDictIndexMinBits;
   size_t i;
   int err;
 
-  err = fseek(fp, -1 * sizeof(dict_info), SEEK_END);
-  if (err) goto error;
+  readed = fread(&version, 1, sizeof(version), fp);
+  if (readed != sizeof(version)) goto error;
+
+  if (version == kUserDictVersion) {
+    readed = fread(&header, 1, sizeof(header), fp);
+    if (readed != sizeof(header)) goto error;
+    memcpy(&dict_info, &header.info, sizeof(dict_info));
+    checksums = header.section_checksums;
+    sections_start = 4 + sizeof(header);
+  } else {
+    err = fseek(fp, -1 * sizeof(dict_info), SEEK_END);
+    if (err) goto error;
 
-  readed = fread(&dict_info, 1, sizeof(dict_info), fp);
-  if (readed != sizeof(dict_info)) goto error;
+    readed = fread(&dict_info, 1, sizeof(dict_info), fp);
+    if (readed != sizeof(dict_info)) goto error;
+    sections_start = 4;
+  }
 
   lemmas = (uint8 *)malloc(
       dict_info.lemma_size +
@@ -1145,54 +1074,57 @@ bool UserDict::load(const char *file, LemmaIdType start_id) {
       (dict_info.lemma_count + kUserDictPreAlloc) << 2);
   if (!offsets_by_id) goto error;
 
-  err = fseek(fp, 4, SEEK_SET);
+  spl_next = (uint32 *)malloc((dict_info.lemma_count + kUserDictPreAlloc) << 2);
+  if (!spl_next) goto error;
+
+  key_next = (uint32 *)malloc((dict_info.lemma_count + kUserDictPreAlloc) << 2);
+  if (!key_next) goto error;
+
+#ifdef ___PREDICT_ENABLED___
+  hz_next = (uint32 *)malloc((dict_info.lemma_count + kUserDictPreAlloc) << 2);
+  if (!hz_next) goto error;
+#endif
+
+  while (((uint32)1 << index_bits) <= dict_info.lemma_count &&
+         index_bits < 31)
+    index_bits++;
+  index = (uint32 *)malloc(get_index_size(index_bits) << 2);
+  if (!index) goto error;
+
+  err = fseek(fp, sections_start, SEEK_SET);
   if (err) goto error;
 
-  readed = 0;
-  while (readed < dict_info.lemma_size && !ferror(fp) && !feof(fp)) {
-    readed += fread(lemmas + readed, 1, dict_info.lemma_size - readed, fp);
-  }
-  if (readed < dict_info.lemma_size)
+  if (!read_section(fp, lemmas, dict_info.lemma_size, checksums,
+                    USER_DICT_SECTION_LEMMAS, corrupted))
     goto error;
 
   toread = (dict_info.lemma_count << 2);
-  readed = 0;
-  while (readed < toread && !ferror(fp) && !feof(fp)) {
-    readed += fread((((uint8*)offsets) + readed), 1, toread - readed, fp);
-  }
-  if (readed < toread)
+  if (!read_section(fp, offsets, toread, checksums,
+                    USER_DICT_SECTION_OFFSETS, corrupted))
     goto error;
 
 #ifdef ___PREDICT_ENABLED___
-  toread = (dict_info.lemma_count << 2);
-  readed = 0;
-  while (readed < toread && !ferror(fp) && !feof(fp)) {
-    readed += fread((((uint8*)predicts) + readed), 1, toread - readed, fp);
-  }
-  if (readed < toread)
+  if (!read_section(fp, predicts, toread, checksums,
+                    USER_DICT_SECTION_PREDICTS, corrupted))
     goto error;
 #endif
 
-  readed = 0;
-  while (readed < toread && !ferror(fp) && !feof(fp)) {
-    readed += fread((((uint8*)scores) + readed), 1, toread - readed, fp);
-  }
-  if (readed < toread)
+  if (!read_section(fp, scores, toread, checksums,
+                    USER_DICT_SECTION_SCORES, corrupted))
     goto error;
 
 #ifdef ___SYNC_ENABLED___
-  toread = (dict_info.sync_count << 2);
-  readed = 0;
-  while (readed < toread && !ferror(fp) && !feof(fp)) {
-    readed += fread((((uint8*)syncs) + readed), 1, toread - readed, fp);
-  }
-  if (readed < toread)
+  if (!read_section(fp, syncs, dict_info.sync_count << 2, checksums,
+                    USER_DICT_SECTION_SYNCS, corrupted))
     goto error;
 #endif
 
   for (i = 0; i < dict_info.lemma_count; i++) {
     ids[i] = start_id + i;
     offsets_by_id[i] = offsets[i];
+    // The flag of a removed lemma may not have been written.
+    if (offsets[i] & kUserDictOffsetFlagRemove)
+      lemmas[offsets[i] & kUserDictOffsetMask] |= kUserDictLemmaFlagRemove;
   }
 
   lemmas_ = lemmas;
@@ -1206,11 +1138,19 @@ bool UserDict::load(const char *file, LemmaIdType start_id) {
   ids_ = ids;
 #ifdef ___PREDICT_ENABLED___
   predicts_ = predicts;
+  hz_next_ = hz_next;
 #endif
+  spl_next_ = spl_next;
+  key_next_ = key_next;
+  spl_buckets_ = index;
+  index_bits_ = index_bits;
+  sorted_count_ = dict_info.lemma_count;
   lemma_count_left_ = kUserDictPreAlloc;
   lemma_size_left_ = kUserDictPreAlloc * (2 + (kUserDictAverageNchar << 2));
   memcpy(&dict_info_, &dict_info, sizeof(dict_info));
-  state_ = USER_DICT_SYNC;
+  build_index();
+  // A legacy file is written in the current version.
+  state_ = NULL != checksums ? USER_DICT_SYNC : USER_DICT_DEFRAGMENTED;
 
   fclose(fp);
 
@@ -1228,447 +1168,452 @@ bool UserDict::load(const char *file, LemmaIdType start_id) {
   if (offsets_by_id) free(offsets_by_id);
 #ifdef ___PREDICT_ENABLED___
   if (predicts) free(predicts);
+  if (hz_next) free(hz_next);
 #endif
+  if (spl_next) free(spl_next);
+  if (key_next) free(key_next);
+  if (index) free(index);
   fclose(fp);
   pthread_mutex_unlock(&g_mutex_);
   return false;
 }
 
-void UserDict::write_back() {
-  // XXX write back is only allowed from close_dict due to thread-safe sake
-  if (state_ == USER_DICT_NONE || state_ == USER_DICT_SYNC)
-    return;
-  int fd = open(dict_file_, O_WRONLY);
-  if (fd == -1)
-    return;
-  switch (state_) {
-    case USER_DICT_DEFRAGMENTED:
-      write_back_all(fd);
-      break;
-    case USER_DICT_LEMMA_DIRTY:
-      write_back_lemma(fd);
-      break;
-    case USER_DICT_OFFSET_DIRTY:
-      write_back_offset(fd);
-      break;
-    case USER_DICT_SCORE_DIRTY:
-      write_back_score(fd);
-      break;
+void* UserDict::build_image(size_t *size) {
+  if (!merge_appended_lemmas())
+    return NULL;
+  *size = get_dict_file_size(&dict_info_);
+  uint8 *image = (uint8*)malloc(*size);
+  if (!image)
+    return NULL;
+
+  uint32 version = kUserDictVersion;
+  memcpy(image, &version, 4);
+  uint8 *p = image + 4 + sizeof(UserDictHeader);
+
+  const uint8 *sections[USER_DICT_SECTION_NUM] = {NULL};
+  size_t sizes[USER_DICT_SECTION_NUM] = {0};
+  sections[USER_DICT_SECTION_LEMMAS] = lemmas_;
+  sizes[USER_DICT_SECTION_LEMMAS] = dict_info_.lemma_size;
+  sections[USER_DICT_SECTION_OFFSETS] = (uint8*)offsets_;
+  sizes[USER_DICT_SECTION_OFFSETS] = dict_info_.lemma_count << 2;
+#ifdef ___PREDICT_ENABLED___
+  sections[USER_DICT_SECTION_PREDICTS] = (uint8*)predicts_;
+  sizes[USER_DICT_SECTION_PREDICTS] = dict_info_.lemma_count << 2;
+#endif
+  sections[USER_DICT_SECTION_SCORES] = (uint8*)scores_;
+  sizes[USER_DICT_SECTION_SCORES] = dict_info_.lemma_count << 2;
 #ifdef ___SYNC_ENABLED___
-    case USER_DICT_SYNC_DIRTY:
-      write_back_sync(fd);
-      break;
+  sections[USER_DICT_SECTION_SYNCS] = (uint8*)syncs_;
+  sizes[USER_DICT_SECTION_SYNCS] = dict_info_.sync_count << 2;
 #endif
-    default:
-      break;
+
+  uint32 section_checksums[USER_DICT_SECTION_NUM];
+  for (int i = 0; i < USER_DICT_SECTION_NUM; i++) {
+    if (sizes[i] > 0)
+      memcpy(p, sections[i], sizes[i]);
+    section_checksums[i] = checksum(p, sizes[i]);
+    p += sizes[i];
   }
-  // It seems truncate is not need on Linux, Windows except Mac
-  // I am doing it here anyway for safety.
-  off_t cur = lseek(fd, 0, SEEK_CUR);
-  ftruncate(fd, cur);
-  close(fd);
-  state_ = USER_DICT_SYNC;
+
+  UserDictHeader header;
+  fill_header(&header, &dict_info_, section_checksums);
+  memcpy(image + 4, &header, sizeof(header));
+  return image;
 }
 
-#ifdef ___SYNC_ENABLED___
-void UserDict::write_back_sync(int fd) {
-  int err = lseek(fd, 4 + dict_info_.lemma_size
-                  + (dict_info_.lemma_count << 3)
-#ifdef ___PREDICT_ENABLED___
-                  + (dict_info_.lemma_count << 2)
-#endif
-                  , SEEK_SET);
-  if (err == -1)
+void UserDict::checkpoint() {
+  if (NULL == writer_)
+    return;
+  size_t size;
+  void *image = build_image(&size);
+  if (NULL == image)
     return;
-  write(fd, syncs_, dict_info_.sync_count << 2);
-  write(fd, &dict_info_, sizeof(dict_info_));
+  writer_->checkpoint(image, size);
+  journal_size_ = 0;
+  state_ = USER_DICT_SYNC;
 }
-#endif
 
-void UserDict::write_back_offset(int fd) {
-  int err = lseek(fd, 4 + dict_info_.lemma_size, SEEK_SET);
-  if (err == -1)
-    return;
-  write(fd, offsets_, dict_info_.lemma_count << 2);
+bool UserDict::reserve_lemma(uint16 lemma_len) {
+  // The index has a bucket for each lemma.
+  if (dict_info_.lemma_count >= ((uint32)1 << index_bits_) &&
+      !resize_index(index_bits_ + 1))
+    return false;
+
+  size_t lemma_size = 2 + (lemma_len << 2);
+  if (lemma_count_left_ > 0 && lemma_size_left_ >= lemma_size)
+    return true;
+
+  size_t size_left = lemma_size_left_ +
+      kUserDictPreAlloc * (2 + (kUserDictAverageNchar << 2));
+  if (size_left < lemma_size)
+    size_left = lemma_size;
+  size_t count = dict_info_.lemma_count + lemma_count_left_ +
+      kUserDictPreAlloc;
+
+  uint8 *lemmas = (uint8*)realloc(lemmas_, dict_info_.lemma_size + size_left);
+  if (!lemmas)
+    return false;
+  lemmas_ = lemmas;
+
+  // Every array is updated as soon as it is grown, the counts only when all
+  // are.
+  uint32 **arrays[] = {&offsets_, &scores_, &ids_, &offsets_by_id_,
+                       &spl_next_, &key_next_,
 #ifdef ___PREDICT_ENABLED___
-  write(fd, predicts_, dict_info_.lemma_count << 2);
+                       &predicts_, &hz_next_,
 #endif
-  write(fd, scores_, dict_info_.lemma_count << 2);
-#ifdef ___SYNC_ENABLED___
-  write(fd, syncs_, dict_info_.sync_count << 2);
-#endif
-  write(fd, &dict_info_, sizeof(dict_info_));
+  };
+  for (size_t i = 0; i < sizeof(arrays) / sizeof(arrays[0]); i++) {
+    uint32 *array = (uint32*)realloc(*arrays[i], count << 2);
+    if (!array)
+      return false;
+    *arrays[i] = array;
+  }
+
+  lemma_size_left_ = size_left;
+  lemma_count_left_ = count - dict_info_.lemma_count;
+  return true;
 }
 
-void UserDict::write_back_score(int fd) {
-  int err = lseek(fd, 4 + dict_info_.lemma_size
-                  + (dict_info_.lemma_count << 2)
-#ifdef ___PREDICT_ENABLED___
-                  + (dict_info_.lemma_count << 2)
-#endif
-                  , SEEK_SET);
-  if (err == -1)
-    return;
-  write(fd, scores_, dict_info_.lemma_count << 2);
-#ifdef ___SYNC_ENABLED___
-  write(fd, syncs_, dict_info_.sync_count << 2);
-#endif
-  write(fd, &dict_info_, sizeof(dict_info_));
+uint32 UserDict::checksum(const void *data, size_t size) {
+  const uint8 *bytes = (const uint8*)data;
+  uint32 hash = 2166136261u;
+  for (size_t i = 0; i < size; i++) {
+    hash ^= bytes[i];
+    hash *= 16777619u;
+  }
+  return hash;
 }
 
-void UserDict::write_back_lemma(int fd) {
-  int err = lseek(fd, 4, SEEK_SET);
-  if (err == -1)
-    return;
-  // New lemmas are always appended, no need to write whole lemma block
-  size_t need_write = kUserDictPreAlloc *
-      (2 + (kUserDictAverageNchar << 2)) - lemma_size_left_;
-  err = lseek(fd, dict_info_.lemma_size - need_write, SEEK_CUR);
-  if (err == -1)
+void UserDict::journal(UserDictJournalType type, const char16 lemma_str[],
+                       const uint16 splids[], uint16 lemma_len, uint32 score,
+                       bool synced) {
+  change_count_++;
+  if (NULL == writer_ || lemma_len > kMaxLemmaSize)
     return;
-  write(fd, lemmas_ + dict_info_.lemma_size - need_write, need_write);
 
-  write(fd, offsets_,  dict_info_.lemma_count << 2);
-#ifdef ___PREDICT_ENABLED___
-  write(fd, predicts_,  dict_info_.lemma_count << 2);
-#endif
-  write(fd, scores_, dict_info_.lemma_count << 2);
+  uint32 buf[(sizeof(UserDictJournalRecord) + (kMaxLemmaSize << 2)) / 4];
+  UserDictJournalRecord *record = (UserDictJournalRecord*)buf;
+  record->type = type;
+  record->nchar = lemma_len;
+  record->flags = synced ? kUserDictJournalFlagSync : 0;
+  record->score = score;
+  uint8 *body = (uint8*)buf + sizeof(UserDictJournalRecord);
+  memcpy(body, splids, lemma_len << 1);
+  memcpy(body + (lemma_len << 1), lemma_str, lemma_len << 1);
+
+  size_t size = sizeof(UserDictJournalRecord) + (lemma_len << 2);
+  record->checksum = checksum((uint8*)buf + 4, size - 4);
+  writer_->append(buf, size);
+
+  journal_size_ += size;
+  if (journal_size_ >= kUserDictJournalCheckpointSize &&
+      journal_size_ >= get_dict_file_size(&dict_info_) / 2)
+    checkpoint();
+}
+
+size_t UserDict::replay_journal(const char *file) {
+  char *journal_file = UserDictWriter::get_journal_file_name(file);
+  if (!journal_file)
+    return 0;
+  FILE *fp = fopen(journal_file, "rb");
+  free(journal_file);
+  if (!fp)
+    return 0;
+
+  uint32 buf[(sizeof(UserDictJournalRecord) + (kMaxLemmaSize << 2)) / 4];
+  UserDictJournalRecord *record = (UserDictJournalRecord*)buf;
+  uint8 *body = (uint8*)buf + sizeof(UserDictJournalRecord);
+  uint16 splids[kMaxLemmaSize];
+  char16 lemma_str[kMaxLemmaSize];
+  size_t replayed = 0;
+
+  // A crash may leave a torn record at the end, it and anything after it is
+  // dropped.
+  while (fread(record, 1, sizeof(*record), fp) == sizeof(*record)) {
+    uint16 nchar = record->nchar;
+    if (0 == nchar || nchar > kMaxLemmaSize)
+      break;
+    if (fread(body, 1, nchar << 2, fp) != (size_t)(nchar << 2))
+      break;
+    if (checksum((uint8*)buf + 4, sizeof(*record) - 4 + (nchar << 2))
+        != record->checksum)
+      break;
+
+    memcpy(splids, body, nchar << 1);
+    memcpy(lemma_str, body + (nchar << 1), nchar << 1);
+    if (USER_DICT_JOURNAL_SCORE == record->type) {
+      replay_score(lemma_str, splids, nchar, record->score,
+                   0 != (record->flags & kUserDictJournalFlagSync));
+    } else if (USER_DICT_JOURNAL_REMOVE == record->type) {
+      remove_lemma_by_offset_index(
+          locate_in_offsets(lemma_str, splids, nchar));
+    } else {
+      break;
+    }
+    replayed++;
+  }
+
+  fclose(fp);
+  return replayed;
+}
+
+void UserDict::replay_score(char16 lemma_str[], uint16 splids[],
+                            uint16 lemma_len, uint32 score, bool synced) {
+  int32 off = locate_in_offsets(lemma_str, splids, lemma_len);
+  if (off != -1) {
+    dict_info_.total_nfreq += extract_score_freq(score) -
+        extract_score_freq(scores_[off]);
+    scores_[off] = score;
+    if (state_ < USER_DICT_SCORE_DIRTY)
+      state_ = USER_DICT_SCORE_DIRTY;
 #ifdef ___SYNC_ENABLED___
-  write(fd, syncs_, dict_info_.sync_count << 2);
+    if (synced)
+      queue_lemma_for_sync(ids_[off]);
 #endif
-  write(fd, &dict_info_, sizeof(dict_info_));
-}
+    return;
+  }
 
-void UserDict::write_back_all(int fd) {
-  // XXX lemma_size is handled differently in writeall
-  // and writelemma. I update lemma_size and lemma_count in different
-  // places for these two cases. Should fix it to make it consistent.
-  int err = lseek(fd, 4, SEEK_SET);
-  if (err == -1)
+  if (!reserve_lemma(lemma_len))
     return;
-  write(fd, lemmas_, dict_info_.lemma_size);
-  write(fd, offsets_, dict_info_.lemma_count << 2);
-#ifdef ___PREDICT_ENABLED___
-  write(fd, predicts_, dict_info_.lemma_count << 2);
-#endif
-  write(fd, scores_, dict_info_.lemma_count << 2);
+  LemmaIdType id = append_a_lemma(lemma_str, splids, lemma_len,
+                                  extract_score_freq(score),
+                                  extract_score_lmt(score));
 #ifdef ___SYNC_ENABLED___
-  write(fd, syncs_, dict_info_.sync_count << 2);
+  if (synced && syncs_ && id != 0)
+    queue_lemma_for_sync(id);
 #endif
-  write(fd, &dict_info_, sizeof(dict_info_));
 }
 
-#ifdef ___CACHE_ENABLED___
-bool UserDict::load_cache(UserDictSearchable *searchable,
-                          uint32 *offset, uint32 *length) {
-  UserDictCache *cache = &caches_[searchable->splids_len - 1];
-  if (cache->head == cache->tail)
-    return false;
+int UserDict::cmp_spelling_item(const void *p1, const void *p2) {
+  const UserDictSpellingItem *item1 = (const UserDictSpellingItem*)p1;
+  const UserDictSpellingItem *item2 = (const UserDictSpellingItem*)p2;
+  if (item1->key != item2->key)
+    return item1->key < item2->key ? -1 : 1;
+  // The newer lemma first
+  if (item1->offset_index != item2->offset_index)
+    return item1->offset_index > item2->offset_index ? -1 : 1;
+  return 0;
+}
 
-  uint16 j, sig_len = kMaxLemmaSize / 4;
-  uint16 i = cache->head;
-  while (1) {
-    j = 0;
-    for (; j < sig_len; j++) {
-      if (cache->signatures[i][j] != searchable->signature[j])
-        break;
-    }
-    if (j < sig_len) {
-      i++;
-      if (i >= kUserDictCacheSize)
-        i -= kUserDictCacheSize;
-      if (i == cache->tail)
-        break;
-      continue;
-    }
-    *offset = cache->offsets[i];
-    *length = cache->lengths[i];
-    return true;
-  }
-  return false;
+#ifdef ___PREDICT_ENABLED___
+int UserDict::compare_words(const uint16 *words1, uint32 nchar1,
+                            const uint16 *words2, uint32 nchar2) {
+  uint32 minl = nchar1 < nchar2 ? nchar1 : nchar2;
+  for (uint32 k = 0; k < minl; k++) {
+    if (words1[k] != words2[k])
+      return words1[k] < words2[k] ? -1 : 1;
+  }
+  if (nchar1 != nchar2)
+    return nchar1 < nchar2 ? -1 : 1;
+  return 0;
 }
 
-void UserDict::save_cache(UserDictSearchable *searchable,
-                          uint32 offset, uint32 length) {
-  UserDictCache *cache = &caches_[searchable->splids_len - 1];
-  uint16 next = cache->tail;
+int UserDict::cmp_word_item(const void *p1, const void *p2) {
+  const UserDictWordItem *item1 = (const UserDictWordItem*)p1;
+  const UserDictWordItem *item2 = (const UserDictWordItem*)p2;
+  return compare_words(item1->words, item1->nchar,
+                       item2->words, item2->nchar);
+}
+#endif
 
-  cache->offsets[next] = offset;
-  cache->lengths[next] = length;
-  uint16 sig_len = kMaxLemmaSize / 4;
-  uint16 j = 0;
-  for (; j < sig_len; j++) {
-    cache->signatures[next][j] = searchable->signature[j];
+bool UserDict::merge_appended_lemmas() {
+  uint32 count = dict_info_.lemma_count;
+#ifdef ___PREDICT_ENABLED___
+  // Only the lemma is flagged when it is removed.
+  for (uint32 i = 0; i < count; i++) {
+    if (get_lemma_flag(predicts_[i]) & kUserDictLemmaFlagRemove)
+      predicts_[i] |= kUserDictOffsetFlagRemove;
   }
+#endif
+  if (sorted_count_ == count)
+    return true;
 
-  if (++next >= kUserDictCacheSize) {
-    next -= kUserDictCacheSize;
-  }
-  if (next == cache->head) {
-    cache->head++;
-    if (cache->head >= kUserDictCacheSize) {
-      cache->head -= kUserDictCacheSize;
-    }
+  uint32 sorted = sorted_count_;
+  uint32 appended = count - sorted;
+  uint32 *order = (uint32*)malloc(count << 2);
+  uint32 *merged = (uint32*)malloc(count << 2);
+  UserDictSpellingItem *spl_items = (UserDictSpellingItem*)malloc(
+      appended * sizeof(UserDictSpellingItem));
+#ifdef ___PREDICT_ENABLED___
+  UserDictWordItem *word_items = (UserDictWordItem*)malloc(
+      appended * sizeof(UserDictWordItem));
+#else
+  void *word_items = spl_items;
+#endif
+  if (!order || !merged || !spl_items || !word_items) {
+    free(order);
+    free(merged);
+    free(spl_items);
+#ifdef ___PREDICT_ENABLED___
+    free(word_items);
+#endif
+    return false;
   }
-  cache->tail = next;
-}
-
-void UserDict::reset_cache() {
-  memset(caches_, 0, sizeof(caches_));
-}
 
-bool UserDict::load_miss_cache(UserDictSearchable *searchable) {
-  UserDictMissCache *cache = &miss_caches_[searchable->splids_len - 1];
-  if (cache->head == cache->tail)
-    return false;
+  // Sort the appended lemmas, and merge them with the sorted ones into
+  // order. An appended lemma goes before the sorted ones of the same key, as
+  // append_a_lemma() used to insert it.
+  for (uint32 i = 0; i < appended; i++) {
+    uint32 offset = offsets_[sorted + i];
+    spl_items[i].key = get_spelling_key(get_lemma_spell_ids(offset),
+                                        get_lemma_nchar(offset));
+    spl_items[i].offset_index = sorted + i;
+  }
+  myqsort(spl_items, appended, sizeof(UserDictSpellingItem),
+          cmp_spelling_item);
 
-  uint16 j, sig_len = kMaxLemmaSize / 4;
-  uint16 i = cache->head;
-  while (1) {
-    j = 0;
-    for (; j < sig_len; j++) {
-      if (cache->signatures[i][j] != searchable->signature[j])
-        break;
-    }
-    if (j < sig_len) {
-      i++;
-      if (i >= kUserDictMissCacheSize)
-        i -= kUserDictMissCacheSize;
-      if (i == cache->tail)
-        break;
-      continue;
+  uint32 i = 0;
+  uint32 j = 0;
+  uint64 key = get_spelling_key(get_lemma_spell_ids(offsets_[0]),
+                                get_lemma_nchar(offsets_[0]));
+  for (uint32 k = 0; k < count; k++) {
+    if (j < appended && (i >= sorted || spl_items[j].key <= key)) {
+      order[k] = spl_items[j++].offset_index;
+    } else {
+      order[k] = i++;
+      if (i < sorted)
+        key = get_spelling_key(get_lemma_spell_ids(offsets_[i]),
+                               get_lemma_nchar(offsets_[i]));
     }
-    return true;
   }
-  return false;
-}
-
-void UserDict::save_miss_cache(UserDictSearchable *searchable) {
-  UserDictMissCache *cache = &miss_caches_[searchable->splids_len - 1];
-  uint16 next = cache->tail;
 
-  uint16 sig_len = kMaxLemmaSize / 4;
-  uint16 j = 0;
-  for (; j < sig_len; j++) {
-    cache->signatures[next][j] = searchable->signature[j];
+  uint32 *arrays[] = {offsets_, scores_, ids_};
+  for (size_t a = 0; a < sizeof(arrays) / sizeof(arrays[0]); a++) {
+    for (uint32 k = 0; k < count; k++)
+      merged[k] = arrays[a][order[k]];
+    memcpy(arrays[a], merged, count << 2);
   }
 
-  if (++next >= kUserDictMissCacheSize) {
-    next -= kUserDictMissCacheSize;
-  }
-  if (next == cache->head) {
-    cache->head++;
-    if (cache->head >= kUserDictMissCacheSize) {
-      cache->head -= kUserDictMissCacheSize;
-    }
+#ifdef ___PREDICT_ENABLED___
+  for (uint32 i = 0; i < appended; i++) {
+    uint32 offset = predicts_[sorted + i];
+    word_items[i].words = get_lemma_word(offset);
+    word_items[i].nchar = get_lemma_nchar(offset);
+    word_items[i].offset = offset;
+  }
+  myqsort(word_items, appended, sizeof(UserDictWordItem), cmp_word_item);
+
+  i = 0;
+  j = 0;
+  for (uint32 k = 0; k < count; k++) {
+    if (j < appended &&
+        (i >= sorted ||
+         compare_words(word_items[j].words, word_items[j].nchar,
+                       get_lemma_word(predicts_[i]),
+                       get_lemma_nchar(predicts_[i])) < 0))
+      merged[k] = word_items[j++].offset;
+    else
+      merged[k] = predicts_[i++];
   }
-  cache->tail = next;
-}
-
-void UserDict::reset_miss_cache() {
-  memset(miss_caches_, 0, sizeof(miss_caches_));
-}
+  memcpy(predicts_, merged, count << 2);
+  free(word_items);
+#endif
 
-void UserDict::cache_init() {
-  reset_cache();
-  reset_miss_cache();
-}
+  free(order);
+  free(merged);
+  free(spl_items);
 
-bool UserDict::cache_hit(UserDictSearchable *searchable,
-                         uint32 *offset, uint32 *length) {
-  bool hit = load_miss_cache(searchable);
-  if (hit) {
-    *offset = 0;
-    *length = 0;
-    return true;
-  }
-  hit = load_cache(searchable, offset, length);
-  if (hit) {
-    return true;
-  }
-  return false;
+  sorted_count_ = count;
+  build_index();
+  return true;
 }
 
-void UserDict::cache_push(UserDictCacheType type,
-                         UserDictSearchable *searchable,
-                         uint32 offset, uint32 length) {
-  switch (type) {
-    case USER_DICT_MISS_CACHE:
-      save_miss_cache(searchable);
-      break;
-    case USER_DICT_CACHE:
-      save_cache(searchable, offset, length);
-      break;
-    default:
-      break;
+// Where defragment() moves offset of lemmas_ to, when the runs of lemmas
+// from begins[k] on are moved down by shifts[k].
+static uint32 move_offset(uint32 offset, const uint32 *begins,
+                          const uint32 *shifts, size_t runs) {
+  size_t lo = 0;
+  size_t hi = runs;
+  while (hi - lo > 1) {
+    size_t mid = (lo + hi) >> 1;
+    if (begins[mid] <= offset)
+      lo = mid;
+    else
+      hi = mid;
   }
+  return offset - shifts[lo];
 }
 
-#endif
-
 void UserDict::defragment(void) {
 #ifdef ___DEBUG_PERF___
   DEBUG_PERF_BEGIN;
 #endif
   if (is_valid_state() == false)
     return;
-  // Fixup offsets_, set REMOVE flag to lemma's flag if needed
-  size_t first_freed = 0;
-  size_t first_inuse = 0;
-  while (first_freed < dict_info_.lemma_count) {
-    // Find first freed offset
-    while ((offsets_[first_freed] & kUserDictOffsetFlagRemove) == 0 &&
-            first_freed < dict_info_.lemma_count) {
-      first_freed++;
-    }
-    if (first_freed < dict_info_.lemma_count) {
-      // Save REMOVE flag to lemma flag
-      int off = offsets_[first_freed];
-      set_lemma_flag(off, kUserDictLemmaFlagRemove);
-    } else {
-      break;
-    }
-    // Find first inuse offse after first_freed
-    first_inuse = first_freed + 1;
-    while ((offsets_[first_inuse] & kUserDictOffsetFlagRemove) &&
-           (first_inuse < dict_info_.lemma_count)) {
-      // Save REMOVE flag to lemma flag
-      int off = offsets_[first_inuse];
-      set_lemma_flag(off, kUserDictLemmaFlagRemove);
-      first_inuse++;
-    }
-    if (first_inuse >= dict_info_.lemma_count) {
-      break;
-    }
-    // Swap offsets_
-    int tmp = offsets_[first_inuse];
-    offsets_[first_inuse] = offsets_[first_freed];
-    offsets_[first_freed] = tmp;
-    // Move scores_, no need to swap
-    tmp = scores_[first_inuse];
-    scores_[first_inuse] = scores_[first_freed];
-    scores_[first_freed] = tmp;
-    // Swap ids_
-    LemmaIdType tmpid = ids_[first_inuse];
-    ids_[first_inuse] = ids_[first_freed];
-    ids_[first_freed] = tmpid;
-    // Go on
-    first_freed++;
-  }
+  // Sorted first, what is left is still sorted.
+  if (!merge_appended_lemmas())
+    return;
+
+  uint32 *begins = (uint32*)malloc((dict_info_.lemma_count + 1) << 3);
+  if (!begins)
+    return;
+  uint32 *shifts = begins + dict_info_.lemma_count + 1;
+
+  // Fixup offsets_, scores_ and predicts_
+  size_t count = 0;
 #ifdef ___PREDICT_ENABLED___
-  // Fixup predicts_
-  first_freed = 0;
-  first_inuse = 0;
-  while (first_freed < dict_info_.lemma_count) {
-    // Find first freed offset
-    while ((predicts_[first_freed] & kUserDictOffsetFlagRemove) == 0 &&
-            first_freed < dict_info_.lemma_count) {
-      first_freed++;
-    }
-    if (first_freed >= dict_info_.lemma_count)
-      break;
-    // Find first inuse offse after first_freed
-    first_inuse = first_freed + 1;
-    while ((predicts_[first_inuse] & kUserDictOffsetFlagRemove)
-           && (first_inuse < dict_info_.lemma_count)) {
-      first_inuse++;
-    }
-    if (first_inuse >= dict_info_.lemma_count) {
-      break;
-    }
-    // Swap offsets_
-    int tmp = predicts_[first_inuse];
-    predicts_[first_inuse] = predicts_[first_freed];
-    predicts_[first_freed] = tmp;
-    // Go on
-    first_freed++;
-  }
+  size_t predict_count = 0;
 #endif
-  dict_info_.lemma_count = first_freed;
-  // Fixup lemmas_
-  size_t begin = 0;
-  size_t end = 0;
-  size_t dst = 0;
-  int total_size = dict_info_.lemma_size + lemma_size_left_;
-  int total_count = dict_info_.lemma_count + lemma_count_left_;
-  size_t real_size = total_size - lemma_size_left_;
-  while (dst < real_size) {
-    unsigned char flag = get_lemma_flag(dst);
-    unsigned char nchr = get_lemma_nchar(dst);
-    if ((flag & kUserDictLemmaFlagRemove) == 0) {
-      dst += nchr * 4 + 2;
-      continue;
+  for (size_t i = 0; i < dict_info_.lemma_count; i++) {
+    if ((offsets_[i] & kUserDictOffsetFlagRemove) == 0) {
+      offsets_[count] = offsets_[i];
+      scores_[count] = scores_[i];
+      count++;
     }
-    break;
+#ifdef ___PREDICT_ENABLED___
+    if ((predicts_[i] & kUserDictOffsetFlagRemove) == 0)
+      predicts_[predict_count++] = predicts_[i];
+#endif
   }
-  if (dst >= real_size)
-    return;
 
-  end = dst;
-  while (end < real_size) {
-    begin = end + get_lemma_nchar(end) * 4 + 2;
- repeat:
-    // not used any more
-    if (begin >= real_size)
-      break;
-    unsigned char flag = get_lemma_flag(begin);
-    unsigned char nchr = get_lemma_nchar(begin);
-    if (flag & kUserDictLemmaFlagRemove) {
-      begin += nchr * 4 + 2;
-      goto repeat;
-    }
-    end = begin + nchr * 4 + 2;
-    while (end < real_size) {
-      unsigned char eflag = get_lemma_flag(end);
-      unsigned char enchr = get_lemma_nchar(end);
-      if ((eflag & kUserDictLemmaFlagRemove) == 0) {
-        end += enchr * 4 + 2;
-        continue;
+  // Fixup lemmas_, each lemma in use is moved down over the removed ones
+  // before it.
+  size_t runs = 0;
+  size_t dst = 0;
+  for (size_t src = 0; src < dict_info_.lemma_size; ) {
+    size_t size = 2 + (get_lemma_nchar(src) << 2);
+    if ((get_lemma_flag(src) & kUserDictLemmaFlagRemove) == 0) {
+      if (0 == runs || src - dst != shifts[runs - 1]) {
+        begins[runs] = src;
+        shifts[runs] = src - dst;
+        runs++;
       }
-      break;
+      if (src != dst)
+        memmove(lemmas_ + dst, lemmas_ + src, size);
+      dst += size;
     }
-    memmove(lemmas_ + dst, lemmas_ + begin, end - begin);
-    for (size_t j = 0; j < dict_info_.lemma_count; j++) {
-      if (offsets_[j] >= begin && offsets_[j] < end) {
-        offsets_[j] -= (begin - dst);
-        offsets_by_id_[ids_[j] - start_id_] = offsets_[j];
-      }
+    src += size;
+  }
+  if (runs > 0) {
+    for (size_t i = 0; i < count; i++)
+      offsets_[i] = move_offset(offsets_[i], begins, shifts, runs);
 #ifdef ___PREDICT_ENABLED___
-      if (predicts_[j] >= begin && predicts_[j] < end) {
-        predicts_[j] -= (begin - dst);
-      }
+    for (size_t i = 0; i < predict_count; i++)
+      predicts_[i] = move_offset(predicts_[i], begins, shifts, runs);
 #endif
-    }
 #ifdef ___SYNC_ENABLED___
-    for (size_t j = 0; j < dict_info_.sync_count; j++) {
-      if (syncs_[j] >= begin && syncs_[j] < end) {
-        syncs_[j] -= (begin - dst);
-      }
-    }
+    for (size_t i = 0; i < dict_info_.sync_count; i++)
+      syncs_[i] = move_offset(syncs_[i], begins, shifts, runs);
 #endif
-    dst += (end - begin);
   }
+  free(begins);
 
+  lemma_count_left_ += dict_info_.lemma_count - count;
+  lemma_size_left_ += dict_info_.lemma_size - dst;
+  dict_info_.lemma_count = count;
+  dict_info_.lemma_size = dst;
   dict_info_.free_count = 0;
   dict_info_.free_size = 0;
-  dict_info_.lemma_size = dst;
-  lemma_size_left_ = total_size - dict_info_.lemma_size;
-  lemma_count_left_ = total_count - dict_info_.lemma_count;
-
-  // XXX Without following code,
-  // offsets_by_id_ is not reordered.
-  // That's to say, all removed lemmas' ids are not collected back.
-  // There may not be room for addition of new lemmas due to
-  // offsests_by_id_ reason, although lemma_size_left_ is fixed.
-  // By default, we do want defrag as fast as possible, because
-  // during defrag procedure, other peers can not write new lemmas
-  // to user dictionary file.
-  // XXX If write-back is invoked immediately after
-  // this defragment, no need to fix up following in-mem data.
+
+  // Ids of the removed lemmas are collected back, lemmas in use get new ids
+  // in the order of offsets_.
   for (uint32 i = 0; i < dict_info_.lemma_count; i++) {
     ids_[i] = start_id_ + i;
     offsets_by_id_[i] = offsets_[i];
   }
+  sorted_count_ = dict_info_.lemma_count;
+  build_index();
 
   state_ = USER_DICT_DEFRAGMENTED;
 
@@ -1968,7 +1913,8 @@ void UserDict::reclaim() {
   }
 
   // XXX Reclaim is only based on count, not size
-  uint32 count = dict_info_.lemma_count;
+  // Removed lemmas stay in offsets_ until defragment(), they are not counted.
+  uint32 count = dict_info_.lemma_count - dict_info_.free_count;
   int rc = count * dict_info_.reclaim_ratio / 100;
 
   UserDictScoreOffsetPair * score_offset_pairs = NULL;
@@ -1978,16 +1924,21 @@ void UserDict::reclaim() {
     return;
   }
 
-  for (int i = 0; i < rc; i++) {
-    int s = scores_[i];
-    score_offset_pairs[i].score = s;
-    score_offset_pairs[i].offset_index = i;
+  uint32 i = 0;
+  for (int n = 0; n < rc; i++) {
+    if (offsets_[i] & kUserDictOffsetFlagRemove)
+      continue;
+    score_offset_pairs[n].score = scores_[i];
+    score_offset_pairs[n].offset_index = i;
+    n++;
   }
 
-  for (int i = (rc + 1) / 2; i >= 0; i--)
-    shift_down(score_offset_pairs, i, rc);
+  for (int j = (rc + 1) / 2; j >= 0; j--)
+    shift_down(score_offset_pairs, j, rc);
 
-  for (uint32 i = rc; i < dict_info_.lemma_count; i++) {
+  for (; i < dict_info_.lemma_count; i++) {
+    if (offsets_[i] & kUserDictOffsetFlagRemove)
+      continue;
     int s = scores_[i];
     if (s < score_offset_pairs[0].score) {
       score_offset_pairs[0].score = s;
@@ -1996,9 +1947,17 @@ void UserDict::reclaim() {
     }
   }
 
+  // Removing a lemma may write the file, which sorts offsets_, so they are
+  // removed by their lemmas.
   for (int i = 0; i < rc; i++) {
-    int off = score_offset_pairs[i].offset_index;
-    remove_lemma_by_offset_index(off);
+    score_offset_pairs[i].offset_index =
+        offsets_[score_offset_pairs[i].offset_index];
+  }
+  for (int i = 0; i < rc; i++) {
+    uint32 offset = score_offset_pairs[i].offset_index;
+    remove_lemma_by_offset_index(locate_in_offsets(
+        get_lemma_word(offset), get_lemma_spell_ids(offset),
+        get_lemma_nchar(offset)));
   }
   if (rc > 0) {
     if (state_ < USER_DICT_OFFSET_DIRTY)
@@ -2059,16 +2018,20 @@ LemmaIdType UserDict::_put_lemma(char16 lemma_str[], uint16 splids[],
     return 0;
   int32 off = locate_in_offsets(lemma_str, splids, lemma_len);
   if (off != -1) {
-    int delta_score = count - scores_[off];
-    dict_info_.total_nfreq += delta_score;
+    dict_info_.total_nfreq += extract_score_freq(count) -
+        extract_score_freq(scores_[off]);
     scores_[off] = build_score(lmt, count);
     if (state_ < USER_DICT_SCORE_DIRTY)
       state_ = USER_DICT_SCORE_DIRTY;
+    // Writing the file may reorder offsets_.
+    LemmaIdType id = ids_[off];
+    journal(USER_DICT_JOURNAL_SCORE, lemma_str, splids, lemma_len,
+            scores_[off], false);
 #ifdef ___DEBUG_PERF___
     DEBUG_PERF_END;
     LOGD_PERF("_put_lemma(update)");
 #endif
-    return ids_[off];
+    return id;
   } else {
     if ((dict_info_.limit_lemma_count > 0 &&
         dict_info_.lemma_count >= dict_info_.limit_lemma_count)
@@ -2078,28 +2041,26 @@ LemmaIdType UserDict::_put_lemma(char16 lemma_str[], uint16 splids[],
       // XXX Don't defragment here, it's too time-consuming.
       return 0;
     }
-    int flushed = 0;
-    if (lemma_count_left_ == 0 ||
-        lemma_size_left_ < (size_t)(2 + (lemma_len << 2))) {
-
-      // XXX When there is no space for new lemma, we flush to disk
-      // flush_cache() may be called by upper user
-      // and better place shoule be found instead of here
-      flush_cache();
-      flushed = 1;
-      // Or simply return and do nothing
-      // return 0;
-    }
+    // When there is no space for the new lemma, more memory is allocated,
+    // the file is written by writer_.
+    if (!reserve_lemma(lemma_len))
+      return 0;
 #ifdef ___DEBUG_PERF___
     DEBUG_PERF_END;
-    LOGD_PERF(flushed ? "_put_lemma(flush+add)" : "_put_lemma(add)");
+    LOGD_PERF("_put_lemma(add)");
 #endif
     LemmaIdType id = append_a_lemma(lemma_str, splids, lemma_len, count, lmt);
+    bool synced = false;
 #ifdef ___SYNC_ENABLED___
     if (syncs_ && id != 0) {
       queue_lemma_for_sync(id);
+      synced = true;
     }
 #endif
+    if (id != 0) {
+      journal(USER_DICT_JOURNAL_SCORE, lemma_str, splids, lemma_len,
+              build_score(lmt, count), synced);
+    }
     return id;
   }
   return 0;
@@ -2156,10 +2117,16 @@ LemmaIdType UserDict::update_lemma(LemmaIdType lemma_id, int16 delta_count,
     DEBUG_PERF_END;
     LOGD_PERF("update_lemma");
 #endif
+    bool synced = false;
 #ifdef ___SYNC_ENABLED___
     queue_lemma_for_sync(ids_[off]);
+    synced = true;
 #endif
-    return ids_[off];
+    // Writing the file may reorder offsets_.
+    LemmaIdType id = ids_[off];
+    journal(USER_DICT_JOURNAL_SCORE, lemma_str, splids, lemma_len,
+            scores_[off], synced);
+    return id;
   }
   return 0;
 }
@@ -2201,53 +2168,12 @@ LemmaIdType UserDict::append_a_lemma(char16 lemma_str[], uint16 splids[],
   lemma_count_left_--;
   lemma_size_left_ -= (2 + (lemma_len << 2));
 
-  // Sort
-
-  UserDictSearchable searchable;
-  prepare_locate(&searchable, splids, lemma_len);
-
-  size_t i = 0;
-  while (i < off) {
-    offset = offsets_[i];
-    uint32 nchar = get_lemma_nchar(offset);
-    uint16 * spl = get_lemma_spell_ids(offset);
-
-    if (0 <= fuzzy_compare_spell_id(spl, nchar, &searchable))
-      break;
-    i++;
-  }
-  if (i != off) {
-    uint32 temp = offsets_[off];
-    memmove(offsets_ + i + 1, offsets_ + i, (off - i) << 2);
-    offsets_[i] = temp;
-
-    temp = scores_[off];
-    memmove(scores_ + i + 1, scores_ + i, (off - i) << 2);
-    scores_[i] = temp;
-
-    temp = ids_[off];
-    memmove(ids_ + i + 1, ids_ + i, (off - i) << 2);
-    ids_[i] = temp;
-  }
-
-#ifdef ___PREDICT_ENABLED___
-  uint32 j = 0;
-  uint16 * words_new = get_lemma_word(predicts_[off]);
-  j = locate_where_to_insert_in_predicts(words_new, lemma_len);
-  if (j != off) {
-    uint32 temp = predicts_[off];
-    memmove(predicts_ + j + 1, predicts_ + j, (off - j) << 2);
-    predicts_[j] = temp;
-  }
-#endif
+  // Sorted in when the file is written, see sorted_count_.
+  add_to_index(off);
 
   if (state_ < USER_DICT_LEMMA_DIRTY)
     state_ = USER_DICT_LEMMA_DIRTY;
 
-#ifdef ___CACHE_ENABLED___
-  cache_init();
-#endif
-
   dict_info_.total_nfreq += count;
   return id;
 }
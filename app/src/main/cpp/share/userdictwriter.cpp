@@ -0,0 +1,221 @@
+#include <errno.h>
+#include <fcntl.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include "../include/userdictwriter.h"
+
+namespace ime_pinyin {
+
+static const char kJournalSuffix[] = ".journal";
+static const char kTmpSuffix[] = ".tmp";
+
+static char* concat(const char *s1, const char *s2) {
+  size_t len1 = strlen(s1);
+  size_t len2 = strlen(s2);
+  char *s = static_cast<char*>(malloc(len1 + len2 + 1));
+  if (NULL != s) {
+    memcpy(s, s1, len1);
+    memcpy(s + len1, s2, len2 + 1);
+  }
+  return s;
+}
+
+// Writes all of buf, retrying after interrupts and short writes.
+static bool write_fully(int fd, const void *buf, size_t size) {
+  const char *p = static_cast<const char*>(buf);
+  while (size > 0) {
+    ssize_t written = write(fd, p, size);
+    if (written < 0) {
+      if (EINTR == errno)
+        continue;
+      return false;
+    }
+    p += written;
+    size -= written;
+  }
+  return true;
+}
+
+UserDictWriter::UserDictWriter()
+    : file_name_(NULL),
+      journal_fd_(-1),
+      started_(false),
+      stopping_(false),
+      image_(NULL),
+      image_size_(0),
+      image_mark_(0) {
+  memset(&pending_, 0, sizeof(pending_));
+  memset(&spare_, 0, sizeof(spare_));
+  pthread_mutex_init(&mutex_, NULL);
+  pthread_cond_init(&cond_, NULL);
+}
+
+UserDictWriter::~UserDictWriter() {
+  stop();
+  free(pending_.data);
+  free(spare_.data);
+  pthread_cond_destroy(&cond_);
+  pthread_mutex_destroy(&mutex_);
+}
+
+char* UserDictWriter::get_journal_file_name(const char *file_name) {
+  return concat(file_name, kJournalSuffix);
+}
+
+bool UserDictWriter::start(const char *file_name) {
+  if (started_)
+    return false;
+
+  char *journal_file_name = get_journal_file_name(file_name);
+  file_name_ = strdup(file_name);
+  if (NULL != journal_file_name && NULL != file_name_) {
+    journal_fd_ = open(journal_file_name, O_WRONLY | O_CREAT | O_APPEND,
+                       0600);
+  }
+  free(journal_file_name);
+
+  stopping_ = false;
+  if (-1 != journal_fd_ &&
+      0 == pthread_create(&thread_, NULL, run, this)) {
+    started_ = true;
+    return true;
+  }
+
+  if (-1 != journal_fd_)
+    close(journal_fd_);
+  journal_fd_ = -1;
+  free(file_name_);
+  file_name_ = NULL;
+  return false;
+}
+
+void UserDictWriter::stop() {
+  if (!started_)
+    return;
+
+  pthread_mutex_lock(&mutex_);
+  stopping_ = true;
+  pthread_cond_signal(&cond_);
+  pthread_mutex_unlock(&mutex_);
+  pthread_join(thread_, NULL);
+  started_ = false;
+
+  close(journal_fd_);
+  journal_fd_ = -1;
+  free(file_name_);
+  file_name_ = NULL;
+}
+
+void UserDictWriter::append(const void *record, size_t size) {
+  if (!started_)
+    return;
+
+  pthread_mutex_lock(&mutex_);
+  if (pending_.size + size > pending_.capacity) {
+    size_t capacity = pending_.capacity * 2;
+    if (capacity < pending_.size + size)
+      capacity = pending_.size + size + 1024;
+    char *data = static_cast<char*>(realloc(pending_.data, capacity));
+    if (NULL == data) {
+      pthread_mutex_unlock(&mutex_);
+      return;
+    }
+    pending_.data = data;
+    pending_.capacity = capacity;
+  }
+  memcpy(pending_.data + pending_.size, record, size);
+  pending_.size += size;
+  pthread_cond_signal(&cond_);
+  pthread_mutex_unlock(&mutex_);
+}
+
+void UserDictWriter::checkpoint(void *image, size_t size) {
+  if (!started_) {
+    free(image);
+    return;
+  }
+
+  pthread_mutex_lock(&mutex_);
+  // A newer image contains the older one.
+  free(image_);
+  image_ = image;
+  image_size_ = size;
+  image_mark_ = pending_.size;
+  pthread_cond_signal(&cond_);
+  pthread_mutex_unlock(&mutex_);
+}
+
+void* UserDictWriter::run(void *arg) {
+  static_cast<UserDictWriter*>(arg)->loop();
+  return NULL;
+}
+
+void UserDictWriter::loop() {
+  pthread_mutex_lock(&mutex_);
+  while (true) {
+    while (!stopping_ && 0 == pending_.size && NULL == image_)
+      pthread_cond_wait(&cond_, &mutex_);
+    if (0 == pending_.size && NULL == image_)
+      break;
+
+    // Take the batch, the next one is collected while it is written.
+    Buffer batch = pending_;
+    pending_ = spare_;
+    pending_.size = 0;
+    void *image = image_;
+    size_t image_size = image_size_;
+    size_t image_mark = image_mark_;
+    image_ = NULL;
+    image_mark_ = 0;
+    pthread_mutex_unlock(&mutex_);
+
+    if (NULL == image) {
+      write_records(batch.data, batch.size);
+    } else {
+      // The records before the image are journaled as well, in case the
+      // image can not be written.
+      write_records(batch.data, image_mark);
+      if (write_file(file_name_, image, image_size) &&
+          0 == ftruncate(journal_fd_, 0))
+        fsync(journal_fd_);
+      free(image);
+      write_records(batch.data + image_mark, batch.size - image_mark);
+    }
+
+    pthread_mutex_lock(&mutex_);
+    spare_ = batch;
+  }
+  pthread_mutex_unlock(&mutex_);
+}
+
+bool UserDictWriter::write_records(const char *records, size_t size) {
+  if (0 == size)
+    return true;
+  if (!write_fully(journal_fd_, records, size))
+    return false;
+  return 0 == fdatasync(journal_fd_);
+}
+
+bool UserDictWriter::write_file(const char *file_name, const void *image,
+                                size_t size) {
+  char *tmp_file_name = concat(file_name, kTmpSuffix);
+  if (NULL == tmp_file_name)
+    return false;
+
+  bool ok = false;
+  int fd = open(tmp_file_name, O_WRONLY | O_CREAT | O_TRUNC, 0600);
+  if (-1 != fd) {
+    ok = write_fully(fd, image, size) && 0 == fsync(fd);
+    close(fd);
+    if (ok)
+      ok = 0 == rename(tmp_file_name, file_name);
+    if (!ok)
+      unlink(tmp_file_name);
+  }
+  free(tmp_file_name);
+  return ok;
+}
+
+}  // namespace ime_pinyin
@@ -0,0 +1,96 @@
+package com.android.inputmethod.pinyin;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+
+/**
+ * Candidate list which keeps its items packed in one char array, the way
+ * the decoder hands them over. A String is only created for an item when it
+ * is read, which for a page of candidates is mostly the visible ones.
+ */
+class CandidateList extends AbstractList<String> {
+    private char[] mChars = new char[512];
+    private int mCharsLen;
+
+    // Item i is mChars[mStarts[i], mStarts[i + 1]).
+    private int[] mStarts = new int[129];
+    private String[] mStrings = new String[128];
+    private int mSize;
+
+    @Override
+    public synchronized String get(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + mSize);
+        }
+        String s = mStrings[index];
+        if (null == s) {
+            s = new String(mChars, mStarts[index], mStarts[index + 1] - mStarts[index]);
+            mStrings[index] = s;
+        }
+        return s;
+    }
+
+    @Override
+    public synchronized int size() {
+        return mSize;
+    }
+
+    @Override
+    public synchronized boolean add(String s) {
+        ensureCapacity(mSize + 1, mCharsLen + s.length());
+        s.getChars(0, s.length(), mChars, mCharsLen);
+        mCharsLen += s.length();
+        mStrings[mSize] = s;
+        mSize++;
+        mStarts[mSize] = mCharsLen;
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Appends count items packed in chars, item i is
+     * chars[offsets[i], offsets[i + 1]).
+     */
+    public void addPacked(char[] chars, int[] offsets, int count) {
+        addPacked(chars, offsets, 0, count);
+    }
+
+    /**
+     * Appends count items packed in chars starting with item from.
+     */
+    public synchronized void addPacked(char[] chars, int[] offsets, int from,
+            int count) {
+        if (count <= 0) {
+            return;
+        }
+        int begin = offsets[from];
+        int len = offsets[from + count] - begin;
+        ensureCapacity(mSize + count, mCharsLen + len);
+        System.arraycopy(chars, begin, mChars, mCharsLen, len);
+        for (int i = 1; i <= count; i++) {
+            mStarts[mSize + i] = mCharsLen + offsets[from + i] - begin;
+        }
+        mCharsLen += len;
+        mSize += count;
+        modCount++;
+    }
+
+    @Override
+    public synchronized void clear() {
+        Arrays.fill(mStrings, 0, mSize, null);
+        mSize = 0;
+        mCharsLen = 0;
+        modCount++;
+    }
+
+    private void ensureCapacity(int size, int charsLen) {
+        if (charsLen > mChars.length) {
+            mChars = Arrays.copyOf(mChars, Math.max(charsLen, mChars.length * 2));
+        }
+        if (size >= mStarts.length) {
+            int capacity = Math.max(size + 1, mStarts.length * 2);
+            mStarts = Arrays.copyOf(mStarts, capacity);
+            mStrings = Arrays.copyOf(mStrings, capacity);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.android.inputmethod.pinyin;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Decoding state of the engine right after a search, fetched with one call
+ * instead of one call per item.
+ */
+public class DecodingSnapshot implements Parcelable {
+    /**
+     * Spelling start positions, same layout as imGetSplStart(): element 0 is
+     * the number of spellings, followed by the start of every spelling and
+     * the end of the last one.
+     */
+    public final int[] splStart;
+
+    /**
+     * The whole Pinyin string kept by the engine.
+     */
+    public final String pyStr;
+
+    /**
+     * pyStr with its T9 keys replaced by the letters of the spellings they
+     * are decoded to, of the same length.
+     */
+    public final String splLetters;
+
+    /**
+     * Length of the decoded part of pyStr.
+     */
+    public final int decodedLen;
+
+    /**
+     * Number of fixed (already chosen) Hanzi.
+     */
+    public final int fixedLen;
+
+    /**
+     * Choice 0, the whole sentence including the fixed part.
+     */
+    public final String fullSent;
+
+    /**
+     * First candidates packed back to back, candidate i is
+     * candidateChars[candidateOffsets[i], candidateOffsets[i + 1]).
+     * Candidate 0 comes without its fixed part as imGetChoiceList() returns
+     * it. Empty if the selection is finished.
+     */
+    public final char[] candidateChars;
+    public final int[] candidateOffsets;
+
+    // Called from native code.
+    public DecodingSnapshot(int[] splStart, String pyStr, String splLetters,
+            int decodedLen, int fixedLen, String fullSent,
+            char[] candidateChars, int[] candidateOffsets) {
+        this.splStart = splStart;
+        this.pyStr = pyStr;
+        this.splLetters = splLetters;
+        this.decodedLen = decodedLen;
+        this.fixedLen = fixedLen;
+        this.fullSent = fullSent;
+        this.candidateChars = candidateChars;
+        this.candidateOffsets = candidateOffsets;
+    }
+
+    public int candidatesNum() {
+        return candidateOffsets.length - 1;
+    }
+
+    private DecodingSnapshot(Parcel in) {
+        splStart = in.createIntArray();
+        pyStr = in.readString();
+        splLetters = in.readString();
+        decodedLen = in.readInt();
+        fixedLen = in.readInt();
+        fullSent = in.readString();
+        candidateChars = in.createCharArray();
+        candidateOffsets = in.createIntArray();
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeIntArray(splStart);
+        dest.writeString(pyStr);
+        dest.writeString(splLetters);
+        dest.writeInt(decodedLen);
+        dest.writeInt(fixedLen);
+        dest.writeString(fullSent);
+        dest.writeCharArray(candidateChars);
+        dest.writeIntArray(candidateOffsets);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    public static final Creator<DecodingSnapshot> CREATOR = new Creator<DecodingSnapshot>() {
+        @Override
+        public DecodingSnapshot createFromParcel(Parcel in) {
+            return new DecodingSnapshot(in);
+        }
+
+        @Override
+        public DecodingSnapshot[] newArray(int size) {
+            return new DecodingSnapshot[size];
+        }
+    };
+}
@@ -0,0 +1,416 @@
+package com.android.inputmethod.pinyin;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/**
+ * The Pinyin decoding engine, running in the calling process.
+ *
+ * Every instance is a decoder of its own, decoders opened at the same time
+ * share the dictionaries but not their search state. Calls on one instance
+ * are synchronized, so it can be closed from any thread.
+ *
+ * If the decoder could not be opened, or after close(), calls do nothing and
+ * return empty results.
+ */
+public class PinyinDecoder {
+    private static final String TAG = "PinyinDecoder";
+
+    private static final String SYS_DICT = "dict_pinyin.dat";
+    private static final String USR_DICT = "usr_dict.dat";
+
+    // Positions in the array returned by getLpiCacheStats().
+    public static final int LPI_CACHE_HITS = 0;
+    public static final int LPI_CACHE_MISSES = 1;
+    public static final int LPI_CACHE_EVICTIONS = 2;
+    public static final int LPI_CACHE_ENTRIES = 3;
+    public static final int LPI_CACHE_BYTES = 4;
+    public static final int LPI_CACHE_BUDGET = 5;
+
+    // Positions in the array returned by getSearchPoolStats(). Rows are the
+    // letters of the Pinyin string plus one.
+    public static final int SEARCH_ROWS_USED = 0;
+    public static final int SEARCH_ROWS_PEAK = 1;
+    public static final int SEARCH_ROWS_SIZE = 2;
+    public static final int SEARCH_MTRX_ND_USED = 3;
+    public static final int SEARCH_MTRX_ND_PEAK = 4;
+    public static final int SEARCH_MTRX_ND_SIZE = 5;
+    public static final int SEARCH_DMI_USED = 6;
+    public static final int SEARCH_DMI_PEAK = 7;
+    public static final int SEARCH_DMI_SIZE = 8;
+    public static final int SEARCH_POOL_GROWS = 9;
+
+    // Classes of fuzzy pinyin for setFuzzyPinyin(). The two spellings of an
+    // enabled class match each other.
+    public static final int FUZZY_Z_ZH = 0;
+    public static final int FUZZY_C_CH = 1;
+    public static final int FUZZY_S_SH = 2;
+    public static final int FUZZY_N_L = 3;
+    public static final int FUZZY_F_H = 4;
+    public static final int FUZZY_R_L = 5;
+    public static final int FUZZY_AN_ANG = 6;
+    public static final int FUZZY_EN_ENG = 7;
+    public static final int FUZZY_IN_ING = 8;
+    public static final int FUZZY_IAN_IANG = 9;
+    public static final int FUZZY_UAN_UANG = 10;
+
+    // The default cost of a fuzzy spelling, a lemma matched with it needs to
+    // be ten times as frequent as the typed one to be shown before it.
+    public static final int FUZZY_DEFAULT_COST = 1842;
+
+    // Schemes of Shuangpin for setShuangpinScheme().
+    public static final int SHUANGPIN_NONE = 0;
+    public static final int SHUANGPIN_MS = 1;
+    public static final int SHUANGPIN_XIAOHE = 2;
+    public static final int SHUANGPIN_ZIRANMA = 3;
+
+    // A decoder is opened per handle, every call takes the handle returned by
+    // nativeImOpenDecoder() or nativeImOpenDecoderFd(). Decoders share the
+    // dictionaries but not their search state, so they can be used on
+    // different threads; one handle must only be used by one thread at a time.
+    native static long nativeImOpenDecoder(byte fn_sys_dict[],
+            byte fn_usr_dict[]);
+
+    native static long nativeImOpenDecoderFd(FileDescriptor fd,
+            long startOffset, long length, byte fn_usr_dict[]);
+
+    native static void nativeImSetMaxLens(long handle, int maxSpsLen,
+            int maxHzsLen);
+
+    native static void nativeImSetSentCandsNum(long handle, int num);
+
+    native static void nativeImSetShuangpinScheme(long handle, int scheme);
+
+    native static void nativeImEnableT9(long handle, boolean enable);
+
+    native static boolean nativeImCloseDecoder(long handle);
+
+    native static int nativeImSearch(long handle, byte pyBuf[], int pyLen);
+
+    native static int nativeImDelSearch(long handle, int pos,
+            boolean is_pos_in_splid, boolean clear_fixed_this_step);
+
+    native static void nativeImResetSearch(long handle);
+
+    native static int nativeImAddLetter(long handle, byte ch);
+
+    native static String nativeImGetPyStr(long handle, boolean decoded);
+
+    native static int nativeImGetPyStrLen(long handle, boolean decoded);
+
+    native static int[] nativeImGetSplStart(long handle);
+
+    native static String nativeImGetChoice(long handle, int choiceId);
+
+    native static int nativeImChoose(long handle, int choiceId);
+
+    native static int nativeImCancelLastChoice(long handle);
+
+    native static int nativeImGetFixedLen(long handle);
+
+    native static int nativeImGetSentCandsNum(long handle);
+
+    native static DecodingSnapshot nativeImGetSnapshot(long handle,
+            int choicesNum);
+
+    native static boolean nativeImCancelInput(long handle);
+
+    native static boolean nativeImFlushCache(long handle);
+
+    native static int nativeImGetUserDictChanges(long handle);
+
+    native static int nativeImGetPredictsNum(long handle, String fixedStr);
+
+    native static String nativeImGetPredictItem(long handle, int predictNo);
+
+    native static int nativeImGetChoicesPacked(long handle, int choicesStart,
+            int choicesNum, int sentFixedLen, char chars[], int offsets[]);
+
+    native static int nativeImGetPredictsPacked(long handle,
+            int predictsStart, int predictsNum, char chars[], int offsets[]);
+
+    native static long[] nativeImGetLpiCacheStats();
+
+    native static void nativeImSetLpiCacheBudget(long budget);
+
+    native static void nativeImSetFuzzyPinyin(long handle, int fuzzyClass,
+            boolean enable, int cost);
+
+    native static long[] nativeImGetSearchPoolStats(long handle);
+
+    static {
+        try {
+            System.loadLibrary("jni_pinyinime");
+        } catch (UnsatisfiedLinkError ule) {
+            Log.e(TAG, "WARNING: Could not load jni_pinyinime natives");
+        }
+    }
+
+    private long mHandle;
+
+    private PinyinDecoder(long handle) {
+        mHandle = handle;
+    }
+
+    /**
+     * Opens a decoder on the dictionaries of the app. Blocks while the system
+     * dictionary is loaded, which only happens if no other decoder is open.
+     */
+    public static PinyinDecoder open(Context context) {
+        long handle = 0;
+        try {
+            // Make sure the directory of the user dictionary exists.
+            context.getFilesDir();
+            byte usrDict[] = toCString(context.getFileStreamPath(USR_DICT)
+                    .getPath());
+
+            AssetFileDescriptor afd = context.getAssets().openFd(SYS_DICT);
+            handle = nativeImOpenDecoderFd(afd.getFileDescriptor(),
+                    afd.getStartOffset(), afd.getLength(), usrDict);
+            try {
+                afd.close();
+            } catch (IOException e) {
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Can not open " + SYS_DICT, e);
+        } catch (UnsatisfiedLinkError e) {
+            Log.e(TAG, "Can not open the decoder", e);
+        }
+        return new PinyinDecoder(handle);
+    }
+
+    /**
+     * Opens a decoder on dictionary files, for use outside of an app.
+     */
+    public static PinyinDecoder open(String sysDict, String usrDict) {
+        return new PinyinDecoder(nativeImOpenDecoder(toCString(sysDict),
+                toCString(usrDict)));
+    }
+
+    /**
+     * Returns the counters of the cache of lemma lists, which is shared by all
+     * decoders, indexed by the LPI_CACHE_* positions. Sizes are in bytes.
+     */
+    public static long[] getLpiCacheStats() {
+        try {
+            return nativeImGetLpiCacheStats();
+        } catch (UnsatisfiedLinkError e) {
+            return new long[LPI_CACHE_BUDGET + 1];
+        }
+    }
+
+    /**
+     * Sets the memory the cache of lemma lists may take, in bytes.
+     */
+    public static void setLpiCacheBudget(long budget) {
+        try {
+            nativeImSetLpiCacheBudget(budget);
+        } catch (UnsatisfiedLinkError e) {
+        }
+    }
+
+    /**
+     * Formats the counters of getLpiCacheStats() for the log.
+     */
+    public static String lpiCacheStatsToString() {
+        long stats[] = getLpiCacheStats();
+        return "LpiCache hits=" + stats[LPI_CACHE_HITS] + " misses="
+                + stats[LPI_CACHE_MISSES] + " evictions="
+                + stats[LPI_CACHE_EVICTIONS] + " entries="
+                + stats[LPI_CACHE_ENTRIES] + " bytes="
+                + stats[LPI_CACHE_BYTES] + "/" + stats[LPI_CACHE_BUDGET];
+    }
+
+    /**
+     * Returns the usage of the search buffers of this decoder, indexed by the
+     * SEARCH_* positions: what the current search uses, the high-water marks
+     * since the search was reset and the capacities.
+     */
+    public synchronized long[] getSearchPoolStats() {
+        try {
+            return nativeImGetSearchPoolStats(mHandle);
+        } catch (UnsatisfiedLinkError e) {
+            return new long[SEARCH_POOL_GROWS + 1];
+        }
+    }
+
+    /**
+     * Formats the counters of getSearchPoolStats() for the log.
+     */
+    public String searchPoolStatsToString() {
+        long stats[] = getSearchPoolStats();
+        return "SearchPools rows=" + stats[SEARCH_ROWS_USED] + "/"
+                + stats[SEARCH_ROWS_PEAK] + "/" + stats[SEARCH_ROWS_SIZE]
+                + " mtrx_nd=" + stats[SEARCH_MTRX_ND_USED] + "/"
+                + stats[SEARCH_MTRX_ND_PEAK] + "/" + stats[SEARCH_MTRX_ND_SIZE]
+                + " dmi=" + stats[SEARCH_DMI_USED] + "/"
+                + stats[SEARCH_DMI_PEAK] + "/" + stats[SEARCH_DMI_SIZE]
+                + " grows=" + stats[SEARCH_POOL_GROWS];
+    }
+
+    private static byte[] toCString(String s) {
+        byte cs[] = new byte[s.length() + 1];
+        for (int i = 0; i < s.length(); i++)
+            cs[i] = (byte) s.charAt(i);
+        cs[s.length()] = 0;
+        return cs;
+    }
+
+    public synchronized boolean isOpen() {
+        return 0 != mHandle;
+    }
+
+    /**
+     * Closes the decoder, the user dictionary is written back when the last
+     * decoder is closed.
+     */
+    public synchronized void close() {
+        if (0 != mHandle) {
+            nativeImCloseDecoder(mHandle);
+            mHandle = 0;
+        }
+    }
+
+    public synchronized void setMaxLens(int maxSpsLen, int maxHzsLen) {
+        nativeImSetMaxLens(mHandle, maxSpsLen, maxHzsLen);
+    }
+
+    /**
+     * Sets how many other full sentences follow the first candidate, 0 turns
+     * them off.
+     */
+    public synchronized void setSentCandsNum(int num) {
+        nativeImSetSentCandsNum(mHandle, num);
+    }
+
+    /**
+     * Sets the Shuangpin scheme of the letters searched, one of the
+     * SHUANGPIN_* schemes. Every two letters are then a spelling, and the
+     * search is reset if the scheme changes.
+     */
+    public synchronized void setShuangpinScheme(int scheme) {
+        nativeImSetShuangpinScheme(mHandle, scheme);
+    }
+
+    /**
+     * Enables or disables T9, where the letters searched are the keys '2' to
+     * '9', each standing for its letters. It takes precedence over the
+     * Shuangpin scheme, and the search is reset if it changes.
+     */
+    public synchronized void setT9Enabled(boolean enable) {
+        nativeImEnableT9(mHandle, enable);
+    }
+
+    /**
+     * Enables or disables a class of fuzzy pinyin, one of the FUZZY_*
+     * classes. The cost is added to the score of a lemma for each spelling of
+     * the class it is matched with instead of the typed one,
+     * FUZZY_DEFAULT_COST if unsure. The search is reset if the class changes.
+     */
+    public synchronized void setFuzzyPinyin(int fuzzyClass, boolean enable,
+            int cost) {
+        nativeImSetFuzzyPinyin(mHandle, fuzzyClass, enable, cost);
+    }
+
+    public synchronized int search(byte[] pyBuf, int pyLen) {
+        return nativeImSearch(mHandle, pyBuf, pyLen);
+    }
+
+    public synchronized int delSearch(int pos, boolean is_pos_in_splid,
+            boolean clear_fixed_this_step) {
+        return nativeImDelSearch(mHandle, pos, is_pos_in_splid,
+                clear_fixed_this_step);
+    }
+
+    public synchronized void resetSearch() {
+        nativeImResetSearch(mHandle);
+    }
+
+    public synchronized int addLetter(byte ch) {
+        return nativeImAddLetter(mHandle, ch);
+    }
+
+    public synchronized String getPyStr(boolean decoded) {
+        return nativeImGetPyStr(mHandle, decoded);
+    }
+
+    public synchronized int getPyStrLen(boolean decoded) {
+        return nativeImGetPyStrLen(mHandle, decoded);
+    }
+
+    public synchronized int[] getSplStart() {
+        return nativeImGetSplStart(mHandle);
+    }
+
+    public synchronized String getChoice(int choiceId) {
+        return nativeImGetChoice(mHandle, choiceId);
+    }
+
+    public synchronized int getChoicesPacked(int choicesStart, int choicesNum,
+            int sentFixedLen, char[] chars, int[] offsets) {
+        return nativeImGetChoicesPacked(mHandle, choicesStart, choicesNum,
+                sentFixedLen, chars, offsets);
+    }
+
+    public synchronized int choose(int choiceId) {
+        return nativeImChoose(mHandle, choiceId);
+    }
+
+    public synchronized int cancelLastChoice() {
+        return nativeImCancelLastChoice(mHandle);
+    }
+
+    public synchronized int getFixedLen() {
+        return nativeImGetFixedLen(mHandle);
+    }
+
+    /**
+     * Returns the number of sentence candidates, they are candidates 1 to
+     * the number, the lemma candidates follow them.
+     */
+    public synchronized int getSentCandsNum() {
+        return nativeImGetSentCandsNum(mHandle);
+    }
+
+    /**
+     * Returns null if the decoder is not open.
+     */
+    public synchronized DecodingSnapshot getSnapshot(int choicesNum) {
+        return nativeImGetSnapshot(mHandle, choicesNum);
+    }
+
+    public synchronized boolean cancelInput() {
+        return nativeImCancelInput(mHandle);
+    }
+
+    public synchronized void flushCache() {
+        nativeImFlushCache(mHandle);
+    }
+
+    /**
+     * Returns the number of changes made to the user dictionary, by this or
+     * any other decoder sharing it. Predictions taken before it changed may
+     * be stale.
+     */
+    public synchronized int getUserDictChanges() {
+        return nativeImGetUserDictChanges(mHandle);
+    }
+
+    public synchronized int getPredictsNum(String fixedStr) {
+        return nativeImGetPredictsNum(mHandle, fixedStr);
+    }
+
+    public synchronized String getPredictItem(int predictNo) {
+        return nativeImGetPredictItem(mHandle, predictNo);
+    }
+
+    public synchronized int getPredictsPacked(int predictsStart,
+            int predictsNum, char[] chars, int[] offsets) {
+        return nativeImGetPredictsPacked(mHandle, predictsStart, predictsNum,
+                chars, offsets);
+    }
+}
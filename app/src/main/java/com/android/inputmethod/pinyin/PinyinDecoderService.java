@@ -17,66 +17,21 @@
 package com.android.inputmethod.pinyin;
 
 import com.android.inputmethod.pinyin.IPinyinDecoderService;
-import com.camelcc.keyboard.R;
 
-import java.io.FileDescriptor;
-import java.io.FileNotFoundException;
-import java.io.IOException;
 import java.util.List;
 import java.util.Vector;
 
 import android.app.Service;
 import android.content.Intent;
-import android.content.res.AssetFileDescriptor;
 import android.os.IBinder;
 import android.util.Log;
 
 /**
- * This class is used to separate the input method kernel in an individual
- * service so that both IME and IME-syncer can use it.
+ * This class is used to serve the input method kernel to other processes,
+ * e.g. the IME-syncer. The IME itself opens a {@link PinyinDecoder} in its own
+ * process.
  */
 public class PinyinDecoderService extends Service {
-    native static boolean nativeImOpenDecoder(byte fn_sys_dict[],
-            byte fn_usr_dict[]);
-
-    native static boolean nativeImOpenDecoderFd(FileDescriptor fd,
-            long startOffset, long length, byte fn_usr_dict[]);
-
-    native static void nativeImSetMaxLens(int maxSpsLen, int maxHzsLen);
-
-    native static boolean nativeImCloseDecoder();
-
-    native static int nativeImSearch(byte pyBuf[], int pyLen);
-
-    native static int nativeImDelSearch(int pos, boolean is_pos_in_splid,
-            boolean clear_fixed_this_step);
-
-    native static void nativeImResetSearch();
-
-    native static int nativeImAddLetter(byte ch);
-
-    native static String nativeImGetPyStr(boolean decoded);
-
-    native static int nativeImGetPyStrLen(boolean decoded);
-
-    native static int[] nativeImGetSplStart();
-
-    native static String nativeImGetChoice(int choiceId);
-
-    native static int nativeImChoose(int choiceId);
-
-    native static int nativeImCancelLastChoice();
-
-    native static int nativeImGetFixedLen();
-
-    native static boolean nativeImCancelInput();
-
-    native static boolean nativeImFlushCache();
-
-    native static int nativeImGetPredictsNum(String fixedStr);
-
-    native static String nativeImGetPredictItem(int predictNo);
-
     // Sync related
     native static String nativeSyncUserDict(byte[] user_dict, String tomerge);
 
@@ -97,7 +52,9 @@ public class PinyinDecoderService extends Service {
     native static int nativeSyncGetCapacity();
 
     private final static int MAX_PATH_FILE_LENGTH = 100;
-    private static boolean inited = false;
+
+    // The decoder served by this service.
+    private PinyinDecoder mDecoder;
 
     private String mUsr_dict_file;
 
@@ -123,49 +80,16 @@ public class PinyinDecoderService extends Service {
         return true;
     }
 
-    private void initPinyinEngine() throws IOException {
-        byte usr_dict[];
-        usr_dict = new byte[MAX_PATH_FILE_LENGTH];
-
-        // Here is how we open a built-in dictionary for access through
-        // a file descriptor...
-        AssetFileDescriptor afd = getAssets().openFd("dict_pinyin.dat");
-//        AssetFileDescriptor afd = getResources().openRawResourceFd(
-//            R.raw.dict_pinyin);
-
-        Log
-            .i("foo", "Dict: start=" + afd.getStartOffset()
-                + ", length=" + afd.getLength() + ", fd="
-                + afd.getParcelFileDescriptor());
-        if (getUsrDictFileName(usr_dict)) {
-            inited = nativeImOpenDecoderFd(afd.getFileDescriptor(), afd
-                    .getStartOffset(), afd.getLength(), usr_dict);
-        }
-        try {
-            afd.close();
-        } catch (IOException e) {
-        }
-    }
-
     @Override
     public void onCreate() {
         super.onCreate();
         mUsr_dict_file = getFileStreamPath("usr_dict.dat").getPath();
-        // This is a hack to make sure our "files" directory has been
-        // created.
-        try {
-            openFileOutput("dummy", 0).close();
-
-            initPinyinEngine();
-        } catch (FileNotFoundException e) {
-        } catch (IOException e) {
-        }
+        mDecoder = PinyinDecoder.open(this);
     }
 
     @Override
     public void onDestroy() {
-        nativeImCloseDecoder();
-        inited = false;
+        mDecoder.close();
         super.onDestroy();
     }
 
@@ -175,50 +99,66 @@ public class PinyinDecoderService extends Service {
         }
 
         public void setMaxLens(int maxSpsLen, int maxHzsLen) {
-            nativeImSetMaxLens(maxSpsLen, maxHzsLen);
+            mDecoder.setMaxLens(maxSpsLen, maxHzsLen);
+        }
+
+        public void setSentCandsNum(int num) {
+            mDecoder.setSentCandsNum(num);
+        }
+
+        public void setShuangpinScheme(int scheme) {
+            mDecoder.setShuangpinScheme(scheme);
+        }
+
+        public void setT9Enabled(boolean enable) {
+            mDecoder.setT9Enabled(enable);
+        }
+
+        public void setFuzzyPinyin(int fuzzyClass, boolean enable, int cost) {
+            mDecoder.setFuzzyPinyin(fuzzyClass, enable, cost);
         }
 
         public int imSearch(byte[] pyBuf, int pyLen) {
-            return nativeImSearch(pyBuf, pyLen);
+            return mDecoder.search(pyBuf, pyLen);
         }
 
         public int imDelSearch(int pos, boolean is_pos_in_splid,
                 boolean clear_fixed_this_step) {
-            return nativeImDelSearch(pos, is_pos_in_splid,
+            return mDecoder.delSearch(pos, is_pos_in_splid,
                     clear_fixed_this_step);
         }
 
         public void imResetSearch() {
-            nativeImResetSearch();
+            mDecoder.resetSearch();
         }
 
         public int imAddLetter(byte ch) {
-            return nativeImAddLetter(ch);
+            return mDecoder.addLetter(ch);
         }
 
         public String imGetPyStr(boolean decoded) {
-            return nativeImGetPyStr(decoded);
+            return mDecoder.getPyStr(decoded);
         }
 
         public int imGetPyStrLen(boolean decoded) {
-            return nativeImGetPyStrLen(decoded);
+            return mDecoder.getPyStrLen(decoded);
         }
 
         public int[] imGetSplStart() {
-            return nativeImGetSplStart();
+            return mDecoder.getSplStart();
         }
 
         public String imGetChoice(int choiceId) {
-            return nativeImGetChoice(choiceId);
+            return mDecoder.getChoice(choiceId);
         }
 
         public String imGetChoices(int choicesNum) {
             String retStr = null;
             for (int i = 0; i < choicesNum; i++) {
                 if (null == retStr)
-                    retStr = nativeImGetChoice(i);
+                    retStr = mDecoder.getChoice(i);
                 else
-                    retStr += " " + nativeImGetChoice(i);
+                    retStr += " " + mDecoder.getChoice(i);
             }
             return retStr;
         }
@@ -227,49 +167,69 @@ public class PinyinDecoderService extends Service {
                 int sentFixedLen) {
             Vector<String> choiceList = new Vector<String>();
             for (int i = choicesStart; i < choicesStart + choicesNum; i++) {
-                String retStr = nativeImGetChoice(i);
+                String retStr = mDecoder.getChoice(i);
                 if (0 == i) retStr = retStr.substring(sentFixedLen);
                 choiceList.add(retStr);
             }
             return choiceList;
         }
 
+        public int imGetChoicesPacked(int choicesStart, int choicesNum,
+                int sentFixedLen, char[] chars, int[] offsets) {
+            return mDecoder.getChoicesPacked(choicesStart, choicesNum,
+                    sentFixedLen, chars, offsets);
+        }
+
         public int imChoose(int choiceId) {
-            return nativeImChoose(choiceId);
+            return mDecoder.choose(choiceId);
         }
 
         public int imCancelLastChoice() {
-            return nativeImCancelLastChoice();
+            return mDecoder.cancelLastChoice();
         }
 
         public int imGetFixedLen() {
-            return nativeImGetFixedLen();
+            return mDecoder.getFixedLen();
+        }
+
+        public int imGetSentCandsNum() {
+            return mDecoder.getSentCandsNum();
+        }
+
+        public DecodingSnapshot imGetSnapshot(int choicesNum) {
+            return mDecoder.getSnapshot(choicesNum);
         }
 
         public boolean imCancelInput() {
-            return nativeImCancelInput();
+            return mDecoder.cancelInput();
         }
 
         public void imFlushCache() {
-            nativeImFlushCache();
+            mDecoder.flushCache();
         }
 
         public int imGetPredictsNum(String fixedStr) {
-            return nativeImGetPredictsNum(fixedStr);
+            return mDecoder.getPredictsNum(fixedStr);
         }
 
         public String imGetPredictItem(int predictNo) {
-            return nativeImGetPredictItem(predictNo);
+            return mDecoder.getPredictItem(predictNo);
         }
 
         public List<String> imGetPredictList(int predictsStart, int predictsNum) {
             Vector<String> predictList = new Vector<String>();
             for (int i = predictsStart; i < predictsStart + predictsNum; i++) {
-                predictList.add(nativeImGetPredictItem(i));
+                predictList.add(mDecoder.getPredictItem(i));
             }
             return predictList;
         }
 
+        public int imGetPredictsPacked(int predictsStart, int predictsNum,
+                char[] chars, int[] offsets) {
+            return mDecoder.getPredictsPacked(predictsStart, predictsNum,
+                    chars, offsets);
+        }
+
         public String syncUserDict(String tomerge) {
             byte usr_dict[];
             usr_dict = new byte[MAX_PATH_FILE_LENGTH];
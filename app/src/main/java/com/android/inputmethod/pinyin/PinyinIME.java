@@ -16,19 +16,13 @@
 
 package com.android.inputmethod.pinyin;
 
-import android.content.ComponentName;
 import android.content.Context;
-import android.content.Intent;
-import android.content.ServiceConnection;
-import android.os.IBinder;
-import android.os.RemoteException;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.inputmethod.CompletionInfo;
 
 import com.camelcc.keyboard.IMEListener;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Vector;
 
@@ -40,11 +34,6 @@ public class PinyinIME {
 
     private static final String TAG = "PinyinIME";
 
-    /**
-     * Connection used to bind the decoding service.
-     */
-    private PinyinDecoderServiceConnection mPinyinDecoderServiceConnection;
-
     /**
      * The current IME status.
      *
@@ -66,21 +55,69 @@ public class PinyinIME {
         mContext = context;
     }
 
+    /**
+     * Opens the decoder in this process, it can decode as soon as this
+     * returns. Called on the thread the IME decodes on.
+     */
     public void onCreate() {
         Log.d(TAG, "onCreate.");
-        Intent serviceIntent = new Intent();
-        serviceIntent.setClass(mContext, PinyinDecoderService.class);
-        if (null == mPinyinDecoderServiceConnection) {
-            mPinyinDecoderServiceConnection = new PinyinDecoderServiceConnection();
-        }
-        // Bind service
-        mContext.bindService(serviceIntent, mPinyinDecoderServiceConnection,
-            Context.BIND_AUTO_CREATE);
+        PinyinDecoder decoder = PinyinDecoder.open(mContext);
+        if (!decoder.isOpen()) {
+            Log.e(TAG, "Can not open the Pinyin decoder");
+        }
+        mDecInfo.mDecoder = decoder;
+        mDecInfo.applyMaxLens();
+        mDecInfo.applyShuangpinScheme();
+        mDecInfo.applyT9();
+        mDecInfo.applyFuzzyPinyin();
+        mDecInfo.mPredictCache.clear();
+    }
+
+    /**
+     * Sets the maximum number of letters of the Pinyin string and of Chinese
+     * characters decoded from it. Letters typed beyond the limit are ignored.
+     */
+    public void setMaxLens(int maxLetters, int maxHanzi) {
+        mDecInfo.setMaxLens(maxLetters, maxHanzi);
+    }
+
+    /**
+     * Sets the Shuangpin scheme of the letters typed, one of the
+     * PinyinDecoder.SHUANGPIN_* schemes. The input being typed is dropped.
+     */
+    public void setShuangpinScheme(int scheme) {
+        mDecInfo.setShuangpinScheme(scheme);
+        reset();
+    }
+
+    /**
+     * Enables or disables T9, where the keys '2' to '9' are typed instead of
+     * letters. It takes precedence over the Shuangpin scheme. The input being
+     * typed is dropped.
+     */
+    public void setT9Enabled(boolean enable) {
+        mDecInfo.setT9Enabled(enable);
+        reset();
+    }
+
+    /**
+     * Sets the classes of fuzzy pinyin enabled, a bit set with bit
+     * (1 << PinyinDecoder.FUZZY_*) for each class. Every class is matched with
+     * PinyinDecoder.FUZZY_DEFAULT_COST. The input being typed is dropped.
+     */
+    public void setFuzzyPinyin(int classes) {
+        mDecInfo.setFuzzyPinyin(classes);
+        reset();
     }
 
     public void onDestroy() {
         Log.d(TAG, "onDestroy.");
-        mContext.unbindService(mPinyinDecoderServiceConnection);
+        Log.d(TAG, mDecInfo.mPredictCache.toString());
+        Log.d(TAG, PinyinDecoder.lpiCacheStatsToString());
+        if (null != mDecInfo.mDecoder) {
+            Log.d(TAG, mDecInfo.mDecoder.searchPoolStatsToString());
+            mDecInfo.mDecoder.close();
+        }
     }
 
     public void reset() {
@@ -93,7 +130,12 @@ public class PinyinIME {
     }
 
     public void processText(char keyChar) {
-        if (keyChar >= 'a' && keyChar <= 'z') {
+        if ((keyChar >= 'a' && keyChar <= 'z' && !mDecInfo.isT9())
+                || mDecInfo.isShuangpinSymbolKey(keyChar) || mDecInfo.isT9Key(keyChar)) {
+            if (mImeState != ImeState.STATE_IDLE && mImeState != ImeState.STATE_PREDICT
+                    && mDecInfo.isSplStrFull()) {
+                return;
+            }
             mDecInfo.addSplChar((char) keyChar, mImeState == ImeState.STATE_IDLE || mImeState == ImeState.STATE_PREDICT);
             if (mImeState == ImeState.STATE_PREDICT) {
                 mImeState = ImeState.STATE_INPUT;
@@ -102,7 +144,14 @@ public class PinyinIME {
             mDecInfo.preparePage(0);
             return;
         }
+        if (mImeState == ImeState.STATE_INPUT && keyChar == '\'' && mDecInfo.isShuangpin()) {
+            // Keys of Shuangpin are paired by their positions, they are not split.
+            return;
+        }
         if (mImeState == ImeState.STATE_INPUT && keyChar == '\'' && !mDecInfo.charBeforeCursorIsSeparator()) {
+            if (mDecInfo.isSplStrFull()) {
+                return;
+            }
             mDecInfo.addSplChar((char) keyChar, false);
             chooseAndUpdate(-1);
             mDecInfo.preparePage(0);
@@ -239,8 +288,14 @@ public class PinyinIME {
         return mDecInfo.mCandidatesList;
     }
 
-    public void loadMoreCandidates() {
-        mDecInfo.getCandidatesForCache();
+    /**
+     * Load at most maxNum more candidates.
+     *
+     * @return false if all candidates have been loaded.
+     */
+    public boolean loadMoreCandidates(int maxNum) {
+        mDecInfo.getCandidatesForCache(maxNum);
+        return mDecInfo.mCandidatesList.size() < mDecInfo.mTotalChoicesNum;
     }
 
     public String getDisplayComposing() {
@@ -251,19 +306,6 @@ public class PinyinIME {
         }
     }
 
-    /**
-     * Connection used for binding to the Pinyin decoding service.
-     */
-    public class PinyinDecoderServiceConnection implements ServiceConnection {
-        public void onServiceConnected(ComponentName name, IBinder service) {
-            mDecInfo.mIPinyinDecoderService = IPinyinDecoderService.Stub
-                    .asInterface(service);
-        }
-
-        public void onServiceDisconnected(ComponentName name) {
-        }
-    }
-
     public enum ImeState {
         STATE_IDLE, STATE_INPUT, STATE_COMPOSING, STATE_PREDICT,
         STATE_APP_COMPLETION
@@ -271,15 +313,34 @@ public class PinyinIME {
 
     public class DecodingInfo {
         /**
-         * Maximum length of the Pinyin string
+         * Default maximum length of the Pinyin string, including the
+         * terminating 0, long enough for a sentence. See setMaxLens().
+         */
+        private static final int PY_STRING_MAX = 64;
+
+        /**
+         * Upper bound of the maximum length of the Pinyin string, the decoder
+         * grows its search buffers up to kMaxSearchStepsLimit steps.
+         */
+        private static final int PY_STRING_MAX_LIMIT = 256;
+
+        /**
+         * Default maximum number of spellings, that is Chinese characters, the
+         * decoder gives for the Pinyin string.
          */
-        private static final int PY_STRING_MAX = 28;
+        private static final int HZ_STRING_MAX = 32;
 
         /**
          * Maximum number of candidates to display in one page.
          */
         private static final int MAX_PAGE_SIZE_DISPLAY = 100;
 
+        /**
+         * Size of the buffer packed candidates are fetched into, more than
+         * the longest single candidate.
+         */
+        private static final int PACKED_CHARS_MAX = 1024;
+
         /**
          * Spelling (Pinyin) string.
          */
@@ -291,11 +352,44 @@ public class PinyinIME {
          */
         private byte mPyBuf[];
 
+        /**
+         * Maximum length of the Pinyin string, including the terminating 0.
+         */
+        private int mPyStringMax = PY_STRING_MAX;
+
+        /**
+         * Maximum number of Chinese characters decoded from the Pinyin string.
+         */
+        private int mHzStringMax = HZ_STRING_MAX;
+
+        /**
+         * Shuangpin scheme of the letters, one of the PinyinDecoder.SHUANGPIN_*
+         * schemes.
+         */
+        private int mShuangpinScheme = PinyinDecoder.SHUANGPIN_NONE;
+
+        /**
+         * Whether the keys '2' to '9' are typed instead of letters.
+         */
+        private boolean mT9Enabled;
+
+        /**
+         * Classes of fuzzy pinyin enabled, bit (1 << PinyinDecoder.FUZZY_*) for
+         * each.
+         */
+        private int mFuzzyPinyin;
+
         /**
          * The length of surface string successfully decoded by engine.
          */
         private int mSurfaceDecodedLen;
 
+        /**
+         * The letters of the spellings in mSurface, the same as mSurface
+         * except that T9 keys are replaced by the letters they are decoded to.
+         */
+        private String mSplLetters;
+
         /**
          * Composing string.
          */
@@ -344,9 +438,19 @@ public class PinyinIME {
         private int mCursorPos;
 
         /**
-         * Remote Pinyin-to-Hanzi decoding engine service.
+         * Pinyin-to-Hanzi decoding engine, set by onCreate().
+         */
+        private PinyinDecoder mDecoder;
+
+        /**
+         * Predictions of the decoder for recent histories.
+         */
+        private PredictionCache mPredictCache = new PredictionCache();
+
+        /**
+         * Predictions shown in STATE_PREDICT, from mPredictCache.
          */
-        private IPinyinDecoderService mIPinyinDecoderService;
+        private PredictionCache.Predicts mPredicts;
 
         /**
          * The complication information suggested by application.
@@ -363,7 +467,14 @@ public class PinyinIME {
         /**
          * Candidate list. The first one is the full-sentence candidate.
          */
-        public List<String> mCandidatesList = new Vector<String>();
+        public CandidateList mCandidatesList = new CandidateList();
+
+        /**
+         * Buffers for packed candidates fetched from the decoder, item i is
+         * mPackedChars[mPackedOffsets[i], mPackedOffsets[i + 1]).
+         */
+        private char mPackedChars[];
+        private int mPackedOffsets[];
 
         /**
          * Element i stores the starting position of page i.
@@ -391,6 +502,19 @@ public class PinyinIME {
          */
         public boolean mIsPosInSpl;
 
+        /**
+         * Whether mSurface is the same as the Pinyin string kept by the
+         * engine, true after a decoding and after the engine is reset.
+         */
+        private boolean mSurfaceInEngine;
+
+        /**
+         * Letter appended at the end of mSurface while it was the same as the
+         * engine's string. The next decoding then only adds this letter instead
+         * of searching the whole string again. 0 if there is none.
+         */
+        private char mAppendedLetter;
+
         public DecodingInfo() {
             mSurface = new StringBuffer();
             mSurfaceDecodedLen = 0;
@@ -398,11 +522,14 @@ public class PinyinIME {
 
         public void reset() {
             mSurface.delete(0, mSurface.length());
+            mSurfaceInEngine = false;
+            mAppendedLetter = 0;
             mSurfaceDecodedLen = 0;
             mCursorPos = 0;
             mFullSent = "";
             mFixedLen = 0;
             mFinishSelection = false;
+            mSplLetters = "";
             mComposingStr = "";
             mComposingStrDisplay = "";
             mActiveCmpsLen = 0;
@@ -416,20 +543,118 @@ public class PinyinIME {
         }
 
         public boolean isSplStrFull() {
-            if (mSurface.length() >= PY_STRING_MAX - 1) return true;
+            if (mSurface.length() >= mPyStringMax - 1) return true;
             return false;
         }
 
+        /**
+         * Sets how many letters can be typed and how many Chinese characters
+         * they are decoded to, applied to the decoder when it is open.
+         */
+        public void setMaxLens(int maxLetters, int maxHanzi) {
+            if (maxLetters > PY_STRING_MAX_LIMIT - 1) {
+                maxLetters = PY_STRING_MAX_LIMIT - 1;
+            }
+            if (maxLetters > 0) {
+                mPyStringMax = maxLetters + 1;
+            }
+            if (maxHanzi > 0) {
+                mHzStringMax = maxHanzi;
+            }
+            applyMaxLens();
+        }
+
+        private void applyMaxLens() {
+            if (null != mDecoder) {
+                mDecoder.setMaxLens(mPyStringMax - 1, mHzStringMax);
+            }
+        }
+
+        /**
+         * Sets the Shuangpin scheme of the letters, applied to the decoder when
+         * it is open.
+         */
+        public void setShuangpinScheme(int scheme) {
+            mShuangpinScheme = scheme;
+            applyShuangpinScheme();
+        }
+
+        private void applyShuangpinScheme() {
+            if (null != mDecoder) {
+                mDecoder.setShuangpinScheme(mShuangpinScheme);
+            }
+        }
+
+        public boolean isShuangpin() {
+            return !mT9Enabled && mShuangpinScheme != PinyinDecoder.SHUANGPIN_NONE;
+        }
+
+        /**
+         * Whether the key is a Yunmu key of the Shuangpin scheme which is not a
+         * letter, ';' of the Microsoft scheme.
+         */
+        public boolean isShuangpinSymbolKey(char ch) {
+            return ch == ';' && isShuangpin()
+                    && mShuangpinScheme == PinyinDecoder.SHUANGPIN_MS;
+        }
+
+        /**
+         * Enables or disables T9, applied to the decoder when it is open.
+         */
+        public void setT9Enabled(boolean enable) {
+            mT9Enabled = enable;
+            applyT9();
+        }
+
+        private void applyT9() {
+            if (null != mDecoder) {
+                mDecoder.setT9Enabled(mT9Enabled);
+            }
+        }
+
+        public boolean isT9() {
+            return mT9Enabled;
+        }
+
+        /**
+         * Sets the classes of fuzzy pinyin enabled, applied to the decoder when
+         * it is open.
+         */
+        public void setFuzzyPinyin(int classes) {
+            mFuzzyPinyin = classes;
+            applyFuzzyPinyin();
+        }
+
+        private void applyFuzzyPinyin() {
+            if (null == mDecoder) {
+                return;
+            }
+            for (int fuzzyClass = PinyinDecoder.FUZZY_Z_ZH;
+                    fuzzyClass <= PinyinDecoder.FUZZY_UAN_UANG; fuzzyClass++) {
+                mDecoder.setFuzzyPinyin(fuzzyClass,
+                        0 != (mFuzzyPinyin & (1 << fuzzyClass)),
+                        PinyinDecoder.FUZZY_DEFAULT_COST);
+            }
+        }
+
+        public boolean isT9Key(char ch) {
+            return mT9Enabled && ch >= '2' && ch <= '9';
+        }
+
         public void addSplChar(char ch, boolean reset) {
             if (reset) {
                 mSurface.delete(0, mSurface.length());
                 mSurfaceDecodedLen = 0;
                 mCursorPos = 0;
-                try {
-                    mIPinyinDecoderService.imResetSearch();
-                } catch (RemoteException e) {
-                }
+                mDecoder.resetSearch();
+                mSurfaceInEngine = true;
             }
+            if (mSurfaceInEngine && mCursorPos == mSurface.length()) {
+                mAppendedLetter = ch;
+            } else {
+                mAppendedLetter = 0;
+            }
+            mSurfaceInEngine = false;
             mSurface.insert(mCursorPos, ch);
             mCursorPos++;
         }
@@ -516,6 +741,7 @@ public class PinyinIME {
         public void resetCandidates() {
             mCandidatesList.clear();
             mTotalChoicesNum = 0;
+            mPredicts = null;
 
             mPageStart.clear();
             mPageStart.add(0);
@@ -543,38 +769,43 @@ public class PinyinIME {
             if (mImeState != ImeState.STATE_PREDICT) {
                 resetCandidates();
                 int totalChoicesNum = 0;
-                try {
-                    if (candId < 0) {
-                        if (length() == 0) {
-                            totalChoicesNum = 0;
+                if (candId < 0) {
+                    if (length() == 0) {
+                        totalChoicesNum = 0;
+                    } else if (mPosDelSpl < 0 && 0 != mAppendedLetter) {
+                        // Only the new letter needs to be decoded.
+                        totalChoicesNum = mDecoder.addLetter((byte) mAppendedLetter);
+                    } else {
+                        if (mPyBuf == null || mPyBuf.length < mPyStringMax)
+                            mPyBuf = new byte[mPyStringMax];
+                        for (int i = 0; i < length(); i++)
+                            mPyBuf[i] = (byte) charAt(i);
+                        mPyBuf[length()] = 0;
+
+                        if (mPosDelSpl < 0) {
+                            totalChoicesNum = mDecoder.search(mPyBuf, length());
                         } else {
-                            if (mPyBuf == null)
-                                mPyBuf = new byte[PY_STRING_MAX];
-                            for (int i = 0; i < length(); i++)
-                                mPyBuf[i] = (byte) charAt(i);
-                            mPyBuf[length()] = 0;
-
-                            if (mPosDelSpl < 0) {
-                                totalChoicesNum = mIPinyinDecoderService
-                                        .imSearch(mPyBuf, length());
-                            } else {
-                                boolean clear_fixed_this_step = true;
-                                if (ImeState.STATE_COMPOSING == mImeState) {
-                                    clear_fixed_this_step = false;
-                                }
-                                totalChoicesNum = mIPinyinDecoderService
-                                        .imDelSearch(mPosDelSpl, mIsPosInSpl,
-                                                clear_fixed_this_step);
-                                mPosDelSpl = -1;
+                            boolean clear_fixed_this_step = true;
+                            if (ImeState.STATE_COMPOSING == mImeState) {
+                                clear_fixed_this_step = false;
                             }
+                            totalChoicesNum = mDecoder.delSearch(mPosDelSpl,
+                                    mIsPosInSpl, clear_fixed_this_step);
+                            mPosDelSpl = -1;
                         }
-                    } else {
-                        totalChoicesNum = mIPinyinDecoderService
-                                .imChoose(candId);
                     }
-                } catch (RemoteException e) {
+                } else {
+                    mPredictCache.checkUserDict(mDecoder);
+                    totalChoicesNum = mDecoder.choose(candId);
                 }
+                mAppendedLetter = 0;
                 updateDecInfoForSearch(totalChoicesNum);
+                // The decoder learns the text once the selection is
+                // finished.
+                if (candId >= 0 && mFinishSelection) {
+                    mPredictCache.learned(mDecoder,
+                            getComposingStrActivePart());
+                }
             }
         }
 
@@ -585,24 +816,30 @@ public class PinyinIME {
                 return;
             }
 
+            DecodingSnapshot snapshot = null;
             try {
-                String pyStr;
-
-                mSplStart = mIPinyinDecoderService.imGetSplStart();
-                pyStr = mIPinyinDecoderService.imGetPyStr(false);
-                mSurfaceDecodedLen = mIPinyinDecoderService.imGetPyStrLen(true);
+                // The whole state after the search in one call, page 0
+                // included.
+                snapshot = mDecoder.getSnapshot(
+                        Math.min(mTotalChoicesNum, MAX_PAGE_SIZE_DISPLAY));
+                String pyStr = snapshot.pyStr;
+
+                mSplStart = snapshot.splStart;
+                mSurfaceDecodedLen = snapshot.decodedLen;
                 assert (mSurfaceDecodedLen <= pyStr.length());
 
-                mFullSent = mIPinyinDecoderService.imGetChoice(0);
-                mFixedLen = mIPinyinDecoderService.imGetFixedLen();
+                mFullSent = snapshot.fullSent;
+                mFixedLen = snapshot.fixedLen;
 
                 // Update the surface string to the one kept by engine.
                 mSurface.replace(0, mSurface.length(), pyStr);
+                mSurfaceInEngine = true;
+                mSplLetters = snapshot.splLetters;
 
                 if (mCursorPos > mSurface.length())
                     mCursorPos = mSurface.length();
                 mComposingStr = mFullSent.substring(0, mFixedLen)
-                        + mSurface.substring(mSplStart[mFixedLen + 1]);
+                        + mSplLetters.substring(mSplStart[mFixedLen + 1]);
 
                 mActiveCmpsLen = mComposingStr.length();
                 if (mSurfaceDecodedLen > 0) {
@@ -617,7 +854,7 @@ public class PinyinIME {
                 } else {
                     mComposingStrDisplay = mFullSent.substring(0, mFixedLen);
                     for (int pos = mFixedLen + 1; pos < mSplStart.length - 1; pos++) {
-                        mComposingStrDisplay += mSurface.substring(
+                        mComposingStrDisplay += mSplLetters.substring(
                                 mSplStart[pos], mSplStart[pos + 1]);
                         if (mSplStart[pos + 1] < mSurfaceDecodedLen) {
                             mComposingStrDisplay += " ";
@@ -625,7 +862,7 @@ public class PinyinIME {
                     }
                     mActiveCmpsDisplayLen = mComposingStrDisplay.length();
                     if (mSurfaceDecodedLen < mSurface.length()) {
-                        mComposingStrDisplay += mSurface
+                        mComposingStrDisplay += mSplLetters
                                 .substring(mSurfaceDecodedLen);
                     }
                 }
@@ -635,14 +872,17 @@ public class PinyinIME {
                 } else {
                     mFinishSelection = false;
                 }
-            } catch (RemoteException e) {
-                Log.w(TAG, "PinyinDecoderService died", e);
             } catch (Exception e) {
                 mTotalChoicesNum = 0;
                 mComposingStr = "";
             }
             // Prepare page 0.
             if (!mFinishSelection) {
+                if (null != snapshot) {
+                    mCandidatesList.addPacked(snapshot.candidateChars,
+                            snapshot.candidateOffsets,
+                            snapshot.candidatesNum());
+                }
                 preparePage(0);
             }
         }
@@ -661,6 +901,7 @@ public class PinyinIME {
             mTotalChoicesNum = 1;
 
             mSurface.replace(0, mSurface.length(), "");
+            mSurfaceInEngine = false;
             mCursorPos = 0;
             mFullSent = tmp;
             mFixedLen = tmp.length();
@@ -680,36 +921,52 @@ public class PinyinIME {
         }
 
         public void getCandidatesForCache() {
+            getCandidatesForCache(MAX_PAGE_SIZE_DISPLAY);
+        }
+
+        public void getCandidatesForCache(int maxNum) {
             int fetchStart = mCandidatesList.size();
             int fetchSize = mTotalChoicesNum - fetchStart;
-            if (fetchSize > MAX_PAGE_SIZE_DISPLAY) {
-                fetchSize = MAX_PAGE_SIZE_DISPLAY;
+            if (fetchSize > maxNum) {
+                fetchSize = maxNum;
             }
-            try {
-                List<String> newList = null;
-                if (ImeState.STATE_INPUT == mImeState ||
-                        ImeState.STATE_IDLE == mImeState ||
-                        ImeState.STATE_COMPOSING == mImeState){
-                    newList = mIPinyinDecoderService.imGetChoiceList(
-                            fetchStart, fetchSize, mFixedLen);
-                } else if (ImeState.STATE_PREDICT == mImeState) {
-                    newList = mIPinyinDecoderService.imGetPredictList(
-                            fetchStart, fetchSize);
-                } else if (ImeState.STATE_APP_COMPLETION == mImeState) {
-                    newList = new ArrayList<String>();
-                    if (null != mAppCompletions) {
-                        for (int pos = fetchStart; pos < fetchSize; pos++) {
-                            CompletionInfo ci = mAppCompletions[pos];
-                            if (null != ci) {
-                                CharSequence s = ci.getText();
-                                if (null != s) newList.add(s.toString());
-                            }
+            if (fetchSize <= 0) {
+                return;
+            }
+            if (ImeState.STATE_PREDICT == mImeState) {
+                if (null != mPredicts) {
+                    mCandidatesList.addPacked(mPredicts.chars,
+                            mPredicts.offsets, fetchStart,
+                            Math.min(fetchSize, mPredicts.count - fetchStart));
+                }
+            } else if (ImeState.STATE_INPUT == mImeState ||
+                    ImeState.STATE_IDLE == mImeState ||
+                    ImeState.STATE_COMPOSING == mImeState) {
+                if (null == mPackedChars) {
+                    mPackedChars = new char[PACKED_CHARS_MAX];
+                    mPackedOffsets = new int[MAX_PAGE_SIZE_DISPLAY + 1];
+                }
+                // One call per buffer full, Strings are only made for the
+                // items which get displayed.
+                while (fetchSize > 0) {
+                    int packed = mDecoder.getChoicesPacked(fetchStart,
+                            fetchSize, mFixedLen, mPackedChars, mPackedOffsets);
+                    if (packed <= 0) break;
+                    mCandidatesList.addPacked(mPackedChars, mPackedOffsets,
+                            packed);
+                    fetchStart += packed;
+                    fetchSize -= packed;
+                }
+            } else if (ImeState.STATE_APP_COMPLETION == mImeState) {
+                if (null != mAppCompletions) {
+                    for (int pos = fetchStart; pos < fetchSize; pos++) {
+                        CompletionInfo ci = mAppCompletions[pos];
+                        if (null != ci) {
+                            CharSequence s = ci.getText();
+                            if (null != s) mCandidatesList.add(s.toString());
                         }
                     }
                 }
-                mCandidatesList.addAll(newList);
-            } catch (RemoteException e) {
-                Log.w(TAG, "PinyinDecoderService died", e);
             }
         }
 
@@ -766,12 +1023,8 @@ public class PinyinIME {
                 String preEdit = history.toString();
                 int predictNum = 0;
                 if (null != preEdit) {
-                    try {
-                        mTotalChoicesNum = mIPinyinDecoderService
-                                .imGetPredictsNum(preEdit);
-                    } catch (RemoteException e) {
-                        return;
-                    }
+                    mPredicts = mPredictCache.get(mDecoder, preEdit);
+                    mTotalChoicesNum = mPredicts.count;
                 }
             }
 
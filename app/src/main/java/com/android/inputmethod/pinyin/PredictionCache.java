@@ -0,0 +1,159 @@
+package com.android.inputmethod.pinyin;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Predictions of the decoder for the Hanzi history before the cursor, so
+ * that a history seen before is predicted without asking the decoder. Only
+ * the most recently used histories are kept.
+ *
+ * The decoder predicts the lemmas starting with a suffix of the history,
+ * so an entry goes stale when the user dictionary learns a lemma starting
+ * with one of its suffixes; learned() drops those entries. Any other change
+ * of the user dictionary, made by another decoder sharing it, by sync or by
+ * reclaim, drops all entries, see checkUserDict().
+ */
+class PredictionCache {
+    /**
+     * Maximum number of histories kept. An entry holds at most 500 items of
+     * at most 7 chars.
+     */
+    static final int MAX_ENTRIES = 32;
+
+    /**
+     * Maximum length of one prediction, kMaxPredictSize of the decoder.
+     */
+    private static final int MAX_PREDICT_LEN = 7;
+
+    /**
+     * Predictions for one history, item i is
+     * chars[offsets[i], offsets[i + 1]).
+     */
+    static class Predicts {
+        final char[] chars;
+        final int[] offsets;
+        final int count;
+
+        Predicts(char[] chars, int[] offsets, int count) {
+            this.chars = chars;
+            this.offsets = offsets;
+            this.count = count;
+        }
+    }
+
+    private final LinkedHashMap<String, Predicts> mEntries =
+            new LinkedHashMap<String, Predicts>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, Predicts> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    /**
+     * Changes of the user dictionary the entries account for, see
+     * PinyinDecoder.getUserDictChanges().
+     */
+    private int mUserDictChanges;
+    private boolean mUserDictChangesKnown;
+
+    private int mHits;
+    private int mMisses;
+    private int mInvalidated;
+
+    /**
+     * Returns the predictions for history, asking the decoder only if they
+     * are not cached.
+     */
+    public Predicts get(PinyinDecoder decoder, String history) {
+        checkUserDict(decoder);
+        Predicts predicts = mEntries.get(history);
+        if (null != predicts) {
+            mHits++;
+            return predicts;
+        }
+        mMisses++;
+        predicts = load(decoder, history);
+        mEntries.put(history, predicts);
+        return predicts;
+    }
+
+    private static Predicts load(PinyinDecoder decoder, String history) {
+        int total = decoder.getPredictsNum(history);
+        char[] chars = new char[total * MAX_PREDICT_LEN];
+        int[] offsets = new int[total + 1];
+        int count = 0;
+        if (total > 0) {
+            count = decoder.getPredictsPacked(0, total, chars, offsets);
+        }
+        return new Predicts(Arrays.copyOf(chars, offsets[count]), offsets,
+                count);
+    }
+
+    /**
+     * Drops all entries if the user dictionary changed since they were
+     * checked last. Called before the decoder learns from a choice, so that
+     * learned() only accounts for the changes of that choice.
+     */
+    public void checkUserDict(PinyinDecoder decoder) {
+        int changes = decoder.getUserDictChanges();
+        if (mUserDictChangesKnown && changes == mUserDictChanges) {
+            return;
+        }
+        mInvalidated += mEntries.size();
+        mEntries.clear();
+        mUserDictChanges = changes;
+        mUserDictChangesKnown = true;
+    }
+
+    /**
+     * Drops the predictions which may change after the user dictionary
+     * learned lemmas from text: those of histories with a suffix which
+     * text has in front of another char. The changes made since
+     * checkUserDict() are taken as those of text.
+     */
+    public void learned(PinyinDecoder decoder, String text) {
+        Iterator<String> it = mEntries.keySet().iterator();
+        while (it.hasNext()) {
+            String history = it.next();
+            for (int len = 1; len <= history.length(); len++) {
+                int pos = text.indexOf(
+                        history.substring(history.length() - len));
+                if (pos >= 0 && pos + len < text.length()) {
+                    it.remove();
+                    mInvalidated++;
+                    break;
+                }
+            }
+        }
+        mUserDictChanges = decoder.getUserDictChanges();
+    }
+
+    public void clear() {
+        mEntries.clear();
+        mUserDictChangesKnown = false;
+    }
+
+    public int hits() {
+        return mHits;
+    }
+
+    public int misses() {
+        return mMisses;
+    }
+
+    public float hitRate() {
+        int lookups = mHits + mMisses;
+        return 0 == lookups ? 0 : (float) mHits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return "PredictionCache size=" + mEntries.size() + " hits=" + mHits
+                + " misses=" + mMisses + " invalidated=" + mInvalidated
+                + " hitRate=" + hitRate();
+    }
+}
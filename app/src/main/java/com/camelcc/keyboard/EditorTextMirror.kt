@@ -0,0 +1,143 @@
+package com.camelcc.keyboard
+
+import java.util.ArrayDeque
+
+/**
+ * Local copy of the editor text right before the cursor.
+ *
+ * Our own edits (commit / composing / delete) are applied to the mirror directly, selection
+ * updates from the editor only confirm them. Anything we can not explain (cursor moved by the
+ * user, text changed by the app) invalidates the mirror, and the next lookup re-syncs from the
+ * editor once.
+ *
+ * Edits come from the IME thread, selection updates from the main thread.
+ */
+class EditorTextMirror(private val capacity: Int = 64) {
+    companion object {
+        // pending cursor positions we still expect onUpdateSelection for
+        private const val MAX_PENDING = 16
+    }
+
+    // committed text before the composing region, at most capacity chars
+    private val committed = StringBuilder()
+    private val composing = StringBuilder()
+    private var valid = false
+    // absolute position of the end of committed text in the editor, -1 if unknown
+    private var committedEnd = -1
+    private val pendingCursors = ArrayDeque<Int>()
+
+    @Synchronized
+    fun reset(selStart: Int) {
+        committed.clear()
+        composing.clear()
+        pendingCursors.clear()
+        valid = false
+        committedEnd = if (selStart >= 0) selStart else -1
+    }
+
+    @Synchronized
+    fun invalidate() {
+        valid = false
+        pendingCursors.clear()
+    }
+
+    @Synchronized
+    fun onCommitText(text: CharSequence) {
+        committed.append(text)
+        trim()
+        composing.clear()
+        if (committedEnd >= 0) {
+            committedEnd += text.length
+        }
+        expectCursor()
+    }
+
+    @Synchronized
+    fun onComposingText(text: CharSequence) {
+        composing.setLength(0)
+        composing.append(text)
+        expectCursor()
+    }
+
+    // a delete key sent to the editor while nothing is composing
+    @Synchronized
+    fun onDeleteBeforeCursor() {
+        if (composing.isNotEmpty()) {
+            invalidate()
+            return
+        }
+        if (committed.isNotEmpty()) {
+            committed.setLength(committed.length - 1)
+        } else {
+            valid = false
+        }
+        if (committedEnd > 0) {
+            committedEnd--
+        }
+        expectCursor()
+    }
+
+    @Synchronized
+    fun onUpdateSelection(newSelStart: Int, newSelEnd: Int, candidatesStart: Int) {
+        if (newSelStart == newSelEnd && pendingCursors.contains(newSelStart)) {
+            // caused by our own edit, drop it and everything older
+            while (pendingCursors.removeFirst() != newSelStart) {}
+            return
+        }
+        if (pendingCursors.isEmpty() && newSelStart == newSelEnd && newSelStart == cursor()) {
+            return
+        }
+        invalidate()
+        committedEnd = if (candidatesStart >= 0) candidatesStart else newSelStart
+    }
+
+    /**
+     * Text before the cursor including the composing text, like
+     * [android.view.inputmethod.InputConnection.getTextBeforeCursor]. [fetch] is only called when
+     * the mirror is invalid or too short, it should read up to the requested length from the
+     * editor.
+     */
+    @Synchronized
+    fun getTextBeforeCursor(length: Int, fetch: (Int) -> CharSequence?): CharSequence {
+        val mirrored = committed.length + composing.length
+        // committedEnd == committed.length means the mirror reaches the start of the field
+        if (valid && (mirrored >= length || committedEnd == committed.length)) {
+            return textBeforeCursor(length)
+        }
+        val text = fetch(maxOf(capacity, length)) ?: return ""
+        committed.setLength(0)
+        if (composing.isNotEmpty() && text.endsWith(composing)) {
+            committed.append(text, 0, text.length - composing.length)
+        } else {
+            composing.clear()
+            committed.append(text)
+        }
+        trim()
+        valid = true
+        return textBeforeCursor(length)
+    }
+
+    private fun textBeforeCursor(length: Int): CharSequence {
+        val text = StringBuilder(committed).append(composing)
+        return text.substring(maxOf(0, text.length - length))
+    }
+
+    private fun cursor(): Int = if (committedEnd < 0) -1 else committedEnd + composing.length
+
+    private fun expectCursor() {
+        val c = cursor()
+        if (c < 0) {
+            return
+        }
+        if (pendingCursors.size >= MAX_PENDING) {
+            pendingCursors.removeFirst()
+        }
+        pendingCursors.addLast(c)
+    }
+
+    private fun trim() {
+        if (committed.length > capacity) {
+            committed.delete(0, committed.length - capacity)
+        }
+    }
+}
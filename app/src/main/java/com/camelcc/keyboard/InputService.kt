@@ -13,10 +13,11 @@ import android.view.ViewGroup
 import android.view.WindowManager
 import android.view.inputmethod.CompletionInfo
 import android.view.inputmethod.EditorInfo
+import com.android.inputmethod.pinyin.PinyinDecoder
 import com.android.inputmethod.pinyin.PinyinIME
+import com.camelcc.keyboard.en.BinaryDictionary
 import com.camelcc.keyboard.en.IME
 import kotlinx.coroutines.*
-import java.util.concurrent.Executors
 import kotlin.coroutines.CoroutineContext
 
 interface KeyboardListener {
@@ -31,7 +32,8 @@ interface KeyboardListener {
     fun showMoreCandidates()
     fun dismissMoreCandidates()
 
-    fun loadMoreCandidates()
+    // loads candidates [start, start + count) of the grid, onLoaded is called on the UI thread
+    fun loadCandidates(start: Int, count: Int, onLoaded: (List<String>) -> Unit)
 }
 
 interface IMEListener {
@@ -40,17 +42,35 @@ interface IMEListener {
     fun composingText(text: String)
     fun getTextBeforeCursor(length: Int): CharSequence?
     fun showCapsKeyboard()
+    // candidates changed outside of a key event, called from a worker thread
+    fun candidatesChanged()
 }
 
 val Int.dp2px: Int get() = (TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, this.toFloat(), Resources.getSystem().displayMetrics)).toInt()
 
 class InputService : InputMethodService(), KeyboardListener, IMEListener {
+    companion object {
+        // candidates are loaded in chunks so keystrokes can cut in
+        private const val PAGING_CHUNK = 20
+
+        private const val PREFERENCES = "keyboard"
+        // one of the PinyinDecoder.SHUANGPIN_* schemes, full pinyin if not set
+        const val PREF_SHUANGPIN_SCHEME = "shuangpin_scheme"
+        // the 9-key keypad instead of the letters, it takes precedence over shuangpin
+        const val PREF_T9 = "t9"
+        // the PinyinDecoder.FUZZY_* classes enabled, bit (1 shl class) for each, none if not set
+        const val PREF_FUZZY_PINYIN = "fuzzy_pinyin"
+    }
+
     enum class IMEMode {
         ENGLISH,
         PINYIN
     }
 
     private var imeMode = IMEMode.ENGLISH
+    private var shuangpinScheme = PinyinDecoder.SHUANGPIN_NONE
+    private var t9 = false
+    private var fuzzyPinyin = 0
 
     private lateinit var keyboard: Keyboard
     private lateinit var keyboardView: KeyboardView
@@ -64,8 +84,16 @@ class InputService : InputMethodService(), KeyboardListener, IMEListener {
     private lateinit var en: IME
     private lateinit var pinyin: PinyinIME
 
-    // coroutine gcd
-    private lateinit var imeScope: CoroutineScope
+    // text before cursor, so engines don't need an IPC to the editor for context
+    private val editorText = EditorTextMirror()
+
+    // coroutine gcd, every engine decodes on its own lane
+    private lateinit var scheduler: LaneScheduler
+    private val imeJob = Job()
+    private lateinit var enScope: CoroutineScope
+    private lateinit var pinyinScope: CoroutineScope
+    private lateinit var pinyinPaging: CoroutineDispatcher
+    private val pagingJob = Job(imeJob)
     private lateinit var uiContext: CoroutineContext
 
     override fun onCreate() {
@@ -73,23 +101,31 @@ class InputService : InputMethodService(), KeyboardListener, IMEListener {
         Log.d("[IME]", "onCreate")
 
         uiContext = Dispatchers.Main + CoroutineName("UI")
-        imeScope = CoroutineScope(Executors.newSingleThreadExecutor().asCoroutineDispatcher() + CoroutineName("IME"))
+        scheduler = LaneScheduler()
+        enScope = CoroutineScope(imeJob + scheduler.en.critical.asCoroutineDispatcher() + CoroutineName("IME-en"))
+        pinyinScope = CoroutineScope(imeJob + scheduler.pinyin.critical.asCoroutineDispatcher() + CoroutineName("IME-pinyin"))
+        pinyinPaging = scheduler.pinyin.background.asCoroutineDispatcher()
 
-        en = IME(this)
+        en = IME({ BinaryDictionary(this) }, scheduler.shared, scheduler.interactive)
         en.listener = this
         pinyin = PinyinIME(this)
         pinyin.setListener(this)
 
-        imeScope.launch {
+        enScope.launch {
             en.onCreate()
+        }
+        pinyinScope.launch {
             pinyin.onCreate()
         }
     }
 
     override fun onDestroy() {
         super.onDestroy()
-        pinyin.onDestroy()
-        imeScope.cancel()
+        imeJob.cancel()
+        // the engines close on their own lanes, after the decode running there if any
+        scheduler.en.shutdown { en.onDestroy() }
+        scheduler.pinyin.shutdown { pinyin.onDestroy() }
+        scheduler.shutdown()
     }
 
     /**
@@ -98,7 +134,7 @@ class InputService : InputMethodService(), KeyboardListener, IMEListener {
      */
     override fun onInitializeInterface() {
         val displayContext = getDisplayContext()
-        keyboard = if (imeMode == IMEMode.ENGLISH) EnglishKeyboard(displayContext) else PinyinKeyboard(displayContext)
+        keyboard = if (imeMode == IMEMode.ENGLISH) EnglishKeyboard(displayContext) else PinyinKeyboard(displayContext, shuangpinScheme, t9)
     }
 
     /**
@@ -129,12 +165,13 @@ class InputService : InputMethodService(), KeyboardListener, IMEListener {
 
         Log.i("[SK]", "[IME] onStartInput $restarting")
 
+        editorText.reset(attribute.initialSelStart)
+
+        updatePinyinPreferences()
+
         // Reset our state.  We want to do this even if restarting, because
         // the underlying state of the text editor could have changed in any way.
-        imeScope.launch {
-            en.reset()
-            pinyin.reset()
-        }
+        resetEngines()
 
         predictionOn = true
         completionOn = false
@@ -189,7 +226,6 @@ class InputService : InputMethodService(), KeyboardListener, IMEListener {
             ViewGroup.LayoutParams.MATCH_PARENT,
             ViewGroup.LayoutParams.WRAP_CONTENT)
         inputView.setKeyboard(keyboard)
-        inputView.setCandidates(pinyin.candidates)
         inputView.listener = this
         keyboardView = inputView
         return inputView
@@ -243,11 +279,9 @@ class InputService : InputMethodService(), KeyboardListener, IMEListener {
         super.onFinishInput()
         Log.d("[IME]", "onFinishInput")
 
+        editorText.invalidate()
         // Clear current composing text and candidates.
-        imeScope.launch {
-            en.reset()
-            pinyin.reset()
-        }
+        resetEngines()
 
         // We only hide the candidates window when finishing input on
         // a particular editor, to avoid popping the underlying application
@@ -277,6 +311,13 @@ class InputService : InputMethodService(), KeyboardListener, IMEListener {
         candidateView.setSuggestions(sug)
     }
 
+    override fun onUpdateSelection(oldSelStart: Int, oldSelEnd: Int,
+                                   newSelStart: Int, newSelEnd: Int,
+                                   candidatesStart: Int, candidatesEnd: Int) {
+        super.onUpdateSelection(oldSelStart, oldSelEnd, newSelStart, newSelEnd, candidatesStart, candidatesEnd)
+        editorText.onUpdateSelection(newSelStart, newSelEnd, candidatesStart)
+    }
+
     override fun onComputeInsets(outInsets: Insets?) {
         super.onComputeInsets(outInsets)
         if (!isFullscreenMode) {
@@ -286,28 +327,38 @@ class InputService : InputMethodService(), KeyboardListener, IMEListener {
 
     // no space, must be letter or punctuation or symbols
     override fun onKeyboardChar(c: Char, fromPopup: Boolean) {
-        imeScope.launch {
-            if (imeMode == IMEMode.ENGLISH) {
+        val mode = imeMode
+        val scope = engineScope(mode)
+        scope.launch {
+            if (mode == IMEMode.ENGLISH) {
                 en.processText(c)
-            } else if (imeMode == IMEMode.PINYIN) {
+            } else if (mode == IMEMode.PINYIN) {
                 pinyin.processText(c)
             }
-            imeScope.launch(uiContext) {
+            scope.launch(uiContext) {
                 updateCandidates()
             }
         }
     }
 
     override fun onKeyboardKeyCode(keyCode: Int) {
-        imeScope.launch {
-            val consumed = if (imeMode == IMEMode.ENGLISH) en.processKeycode(keyCode) else pinyin.processKeycode(keyCode)
-            imeScope.launch(uiContext) {
+        val mode = imeMode
+        val scope = engineScope(mode)
+        scope.launch {
+            val consumed = if (mode == IMEMode.ENGLISH) en.processKeycode(keyCode) else pinyin.processKeycode(keyCode)
+            scope.launch(uiContext) {
                 if (consumed) {
                     updateCandidates()
                 } else {
                     if (keyCode == KeyEvent.KEYCODE_ENTER && doneAction != EditorInfo.IME_ACTION_UNSPECIFIED) {
+                        editorText.invalidate()
                         currentInputConnection?.performEditorAction(doneAction)
                     } else {
+                        if (keyCode == KeyEvent.KEYCODE_DEL) {
+                            editorText.onDeleteBeforeCursor()
+                        } else {
+                            editorText.invalidate()
+                        }
                         sendDownUpKeyEvents(keyCode)
                     }
                 }
@@ -318,7 +369,7 @@ class InputService : InputMethodService(), KeyboardListener, IMEListener {
     override fun onLangSwitch() {
         if (imeMode == IMEMode.ENGLISH) {
             imeMode = IMEMode.PINYIN
-            keyboard = PinyinKeyboard(getDisplayContext())
+            keyboard = PinyinKeyboard(getDisplayContext(), shuangpinScheme, t9)
             keyboard.buildLayout()
             keyboardView.setKeyboard(keyboard)
             candidateView.resetDisplayStyle(true, true)
@@ -330,10 +381,11 @@ class InputService : InputMethodService(), KeyboardListener, IMEListener {
             candidateView.resetDisplayStyle(false, false)
         }
 
-        imeScope.launch {
-            pinyin.reset()
-            en.reset()
-            imeScope.launch(uiContext) {
+        resetEngines()
+        // lanes are FIFO, this runs after the reset of the current engine
+        val scope = engineScope(imeMode)
+        scope.launch {
+            scope.launch(uiContext) {
                 updateCandidates()
             }
         }
@@ -346,17 +398,20 @@ class InputService : InputMethodService(), KeyboardListener, IMEListener {
     override fun onCandidate(text: String, index: Int) {
         keyboardView.dismissCandidatesPopup()
         if (completionOn) {
+            editorText.invalidate()
             currentInputConnection.commitCompletion(completions[index])
             return
         }
-        imeScope.launch {
-            if (imeMode == IMEMode.ENGLISH) {
+        val mode = imeMode
+        val scope = engineScope(mode)
+        scope.launch {
+            if (mode == IMEMode.ENGLISH) {
                 en.onCandidate(text)
-            } else if (imeMode == IMEMode.PINYIN) {
+            } else if (mode == IMEMode.PINYIN) {
                 pinyin.onChoiceTouched(index)
             }
 
-            imeScope.launch(uiContext) {
+            scope.launch(uiContext) {
                 updateCandidates()
             }
         }
@@ -376,30 +431,87 @@ class InputService : InputMethodService(), KeyboardListener, IMEListener {
         keyboardView.dismissCandidatesPopup()
     }
 
-    override fun loadMoreCandidates() {
-        imeScope.launch {
-            pinyin.loadMoreCandidates()
-            imeScope.launch(uiContext) {
-                keyboardView.updateCandidates()
+    override fun loadCandidates(start: Int, count: Int, onLoaded: (List<String>) -> Unit) {
+        pinyinScope.launch(pagingJob + pinyinPaging) {
+            while (pinyin.candidates.size < start + count && pinyin.loadMoreCandidates(PAGING_CHUNK)) {
+                // let waiting keystrokes of the pinyin lane go first
+                yield()
+            }
+            val candidates = pinyin.candidates
+            val page = candidates.subList(minOf(start, candidates.size), minOf(start + count, candidates.size)).toList()
+            pinyinScope.launch(uiContext) {
+                onLoaded(page)
             }
         }
     }
 
+    // the scheme, the keypad or fuzzy pinyin may have been changed since the last input
+    private fun updatePinyinPreferences() {
+        val preferences = getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE)
+        val scheme = preferences.getInt(PREF_SHUANGPIN_SCHEME, PinyinDecoder.SHUANGPIN_NONE)
+        val keypad = preferences.getBoolean(PREF_T9, false)
+        val fuzzy = preferences.getInt(PREF_FUZZY_PINYIN, 0)
+        if (fuzzy != fuzzyPinyin) {
+            fuzzyPinyin = fuzzy
+            pinyinScope.launch {
+                pinyin.setFuzzyPinyin(fuzzy)
+            }
+        }
+        if (scheme == shuangpinScheme && keypad == t9) {
+            return
+        }
+        if (scheme != shuangpinScheme) {
+            shuangpinScheme = scheme
+            pinyinScope.launch {
+                pinyin.setShuangpinScheme(scheme)
+            }
+        }
+        if (keypad != t9) {
+            t9 = keypad
+            pinyinScope.launch {
+                pinyin.setT9Enabled(keypad)
+            }
+        }
+        // laid out at the end of onStartInput(), and shown by onStartInputView()
+        if (imeMode == IMEMode.PINYIN) {
+            keyboard = PinyinKeyboard(getDisplayContext(), shuangpinScheme, t9)
+        }
+    }
+
+    private fun engineScope(mode: IMEMode): CoroutineScope {
+        return if (mode == IMEMode.ENGLISH) enScope else pinyinScope
+    }
+
+    private fun resetEngines() {
+        pagingJob.cancelChildren()
+        enScope.launch {
+            en.reset()
+        }
+        pinyinScope.launch {
+            pinyin.reset()
+        }
+    }
+
     override fun commitText(text: String) {
+        editorText.onCommitText(text)
         currentInputConnection?.commitText(text, 1)
     }
 
     override fun commitCompletion(ci: CompletionInfo) {
+        editorText.invalidate()
         currentInputConnection?.commitCompletion(ci)
     }
 
     override fun composingText(text: String) {
+        editorText.onComposingText(text)
         currentInputConnection?.setComposingText(text, 1)
     }
 
     override fun getTextBeforeCursor(length: Int): CharSequence {
-        val ic = currentInputConnection ?: return ""
-        return ic.getTextBeforeCursor(length, 0)
+        // only hits the editor when the mirror was invalidated
+        return editorText.getTextBeforeCursor(length) {
+            currentInputConnection?.getTextBeforeCursor(it, 0)
+        }
     }
 
     override fun showCapsKeyboard() {
@@ -408,6 +520,14 @@ class InputService : InputMethodService(), KeyboardListener, IMEListener {
         }
     }
 
+    override fun candidatesChanged() {
+        enScope.launch(uiContext) {
+            if (imeMode == IMEMode.ENGLISH) {
+                updateCandidates()
+            }
+        }
+    }
+
     /**
      * Update the list of available candidates from the current composing
      * text.  This will need to be filled in by however you are determining
@@ -421,6 +541,7 @@ class InputService : InputMethodService(), KeyboardListener, IMEListener {
             candidateView.setSuggestions(en.candidates)
         } else if (imeMode == IMEMode.PINYIN) {
             candidateView.setSuggestions(pinyin.candidates, pinyin.displayComposing ?: "")
+            keyboardView.resetCandidates()
         }
     }
 }
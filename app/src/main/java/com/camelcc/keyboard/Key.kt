@@ -94,9 +94,12 @@ abstract class Key {
 open class TextKey(var keyCode: Char, var text: String = keyCode.toString()) : Key() {
     var textSize = KeyboardTheme.keyTextSize.toFloat()
     var upperSize = KeyboardTheme.keyUpperTextSize.toFloat()
+    var subSize = KeyboardTheme.keySubscriptTextSize.toFloat()
     var bold = false
 
     var superScript = '\u0000'
+    // drawn under the text, the text moves up to make room for it
+    var subScript = ""
     var miniKeys = listOf<Char>()
     var initMiniKeyIndex = 0
 
@@ -105,13 +108,18 @@ open class TextKey(var keyCode: Char, var text: String = keyCode.toString()) : K
         if (bold) {
             paint.typeface = Typeface.DEFAULT_BOLD
         }
+        val centerY = if (subScript.isEmpty()) height/2 else height*2/5
         canvas.drawText(
             text,
             width/2,
-            height/2-(paint.descent()+paint.ascent())/2, paint)
+            centerY-(paint.descent()+paint.ascent())/2, paint)
         if (bold) {
             paint.typeface = Typeface.DEFAULT
         }
+        if (subScript.isNotEmpty()) {
+            paint.textSize = subSize
+            canvas.drawText(subScript, width/2, height-2*paint.descent(), paint)
+        }
         if (superScript != '\u0000') {
             paint.textSize = upperSize
             paint.typeface = Typeface.DEFAULT_BOLD
@@ -161,3 +169,9 @@ class ShiftKey(icon: Drawable): IconKey(icon)
 class SpaceKey(text: String): TextKey(' ', text)
 class DoneKey(icon: Drawable): IconKey(icon)
 class HanCiKey(text: String): TextKey('\'', text)
+// a key of the 9-key keypad, typed as its digit for the letters on it
+class T9Key(keyCode: Char, letters: String): TextKey(keyCode, letters) {
+    init {
+        superScript = keyCode
+    }
+}
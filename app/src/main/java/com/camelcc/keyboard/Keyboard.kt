@@ -3,6 +3,7 @@ package com.camelcc.keyboard
 import android.content.Context
 import android.util.Log
 import android.view.KeyEvent
+import com.android.inputmethod.pinyin.PinyinDecoder
 import kotlin.math.max
 import kotlin.math.min
 
@@ -406,15 +407,94 @@ class EnglishKeyboard(private val context: Context): Keyboard(context) {
     }
 }
 
-class PinyinKeyboard(private val context: Context): Keyboard(context) {
+class PinyinKeyboard(private val context: Context,
+                     private val shuangpinScheme: Int = PinyinDecoder.SHUANGPIN_NONE,
+                     private val t9: Boolean = false): Keyboard(context) {
+    companion object {
+        // labels of the keys 'a' to 'z' and ';' of the Shuangpin schemes, Zh/Ch/Sh and the Yunmus typed with them
+        private val SHUANGPIN_LABELS = mapOf(
+            PinyinDecoder.SHUANGPIN_MS to arrayOf(
+                "", "ou", "iao", "uang iang", "", "en", "eng", "ang", "ch", "an", "ao", "ai", "ian",
+                "in", "uo", "un", "iu", "uan er", "ong iong", "ue", "sh", "zh ui", "ua ia", "ie",
+                "uai \u00FC", "ei", "ing"),
+            PinyinDecoder.SHUANGPIN_XIAOHE to arrayOf(
+                "", "in", "ao", "ai", "", "en", "eng", "ang", "ch", "an", "ing uai", "iang uang", "ian",
+                "iao", "uo", "ie", "iu", "uan", "ong iong", "ue", "sh", "zh ui", "ei", "ia ua",
+                "un", "ou", ""),
+            PinyinDecoder.SHUANGPIN_ZIRANMA to arrayOf(
+                "", "ou", "iao", "uang iang", "", "en", "eng", "ang", "ch", "an", "ao", "ai", "ian",
+                "in", "uo", "un", "iu", "uan", "ong iong", "ue", "sh", "zh ui", "ua ia", "ie",
+                "ing uai", "ei", "")
+        )
+    }
+
     override fun buildLayoutForMode() {
         when (mode) {
-            NORMAL -> buildQWERTY()
+            NORMAL -> if (t9) buildT9() else buildQWERTY()
             PUNCTUATION -> buildPunctuation()
             SYMBOL -> buildSymbol()
         }
     }
 
+    private fun buildT9() {
+        val comma = PreviewTextKey('，')
+        comma.keyColor = KeyboardTheme.keyControlBackground
+        comma.textSize = KeyboardTheme.keySymbolTextSize.toFloat()
+        val hanci = HanCiKey("分词")
+        hanci.superScript = '1'
+        val abc = T9Key('2', "ABC")
+        val def = T9Key('3', "DEF")
+        val delete = DeleteKey(context.getDrawable(R.drawable.ic_delete_24dp)!!)
+        delete.repeatable = true
+        delete.keyColor = KeyboardTheme.keyControlBackground
+        delete.keyPressedColor = KeyboardTheme.keyControlPressedBackground
+        val period = PreviewTextKey('。')
+        period.keyColor = KeyboardTheme.keyControlBackground
+        period.textSize = KeyboardTheme.keySymbolTextSize.toFloat()
+        period.miniKeys = listOf('\uFF0C', '\u3010', '\u3011', '\u300A', '\u300B', '&', '$', '\u005E', '\u0025', '\u005F', '\uFF1B', '\uFF1A', '\u3001', '\uFF01', '\u2026', '\uFF1F')
+        period.initMiniKeyIndex = 14
+        val ghi = T9Key('4', "GHI")
+        val jkl = T9Key('5', "JKL")
+        val mno = T9Key('6', "MNO")
+        val question = PreviewTextKey('\uFF1F', '\u0000', listOf('?', '\u00BF'))
+        question.keyColor = KeyboardTheme.keyControlBackground
+        question.textSize = KeyboardTheme.keySymbolTextSize.toFloat()
+        val exclamation = PreviewTextKey('\uFF01', '\u0000', listOf('!', '\u00A1'))
+        exclamation.keyColor = KeyboardTheme.keyControlBackground
+        exclamation.textSize = KeyboardTheme.keySymbolTextSize.toFloat()
+        val pqrs = T9Key('7', "PQRS")
+        val tuv = T9Key('8', "TUV")
+        val wxyz = T9Key('9', "WXYZ")
+        val pause = PreviewTextKey('\u3001')
+        pause.keyColor = KeyboardTheme.keyControlBackground
+        pause.textSize = KeyboardTheme.keySymbolTextSize.toFloat()
+        val number = NumberKey("?123")
+        number.keyColor = KeyboardTheme.keyControlBackground
+        number.textSize = KeyboardTheme.keyControlTextSize
+        number.bold = true
+        number.keyPressedColor = KeyboardTheme.keyControlPressedBackground
+        val lang = LangKey(context.getDrawable(R.drawable.ic_lang_24dp)!!)
+        val space = SpaceKey("拼音")
+        space.textSize = KeyboardTheme.keySpaceTextSize.toFloat()
+        space.keyPressedColor = KeyboardTheme.keyControlPressedBackground
+        val enter = DoneKey(context.getDrawable(R.drawable.ic_check_24dp)!!)
+        enter.keyColor = KeyboardTheme.keyEnterBackground
+        enter.keyPressedColor = KeyboardTheme.keyEnterPressedBackground
+
+        layout.rows = arrayOf(
+            arrayOf<Key>(comma, hanci, abc, def, delete),
+            arrayOf<Key>(period, ghi, jkl, mno, question),
+            arrayOf<Key>(exclamation, pqrs, tuv, wxyz, pause),
+            arrayOf<Key>(number, lang, space, enter)
+        )
+
+        keys = listOf(
+            comma, hanci, abc, def, delete,
+            period, ghi, jkl, mno, question,
+            exclamation, pqrs, tuv, wxyz, pause,
+            number, lang, space, enter)
+    }
+
     private fun buildQWERTY() {
         val q = PreviewTextKey('q', '1', listOf('1', 'q', 'Q'), 0)
         val w = PreviewTextKey('w', '2', listOf('W', '2', 'w'), 1)
@@ -464,7 +544,7 @@ class PinyinKeyboard(private val context: Context): Keyboard(context) {
         emoji.keyColor = KeyboardTheme.keyControlBackground
         emoji.textSize = KeyboardTheme.keySymbolTextSize.toFloat()
         val lang = LangKey(context.getDrawable(R.drawable.ic_lang_24dp)!!)
-        val space = SpaceKey("拼音")
+        val space = SpaceKey(if (shuangpinScheme == PinyinDecoder.SHUANGPIN_NONE) "拼音" else "双拼")
         space.textSize = KeyboardTheme.keySpaceTextSize.toFloat()
         space.keyPressedColor = KeyboardTheme.keyControlPressedBackground
         val period = PreviewTextKey('。')
@@ -476,16 +556,29 @@ class PinyinKeyboard(private val context: Context): Keyboard(context) {
         enter.keyColor = KeyboardTheme.keyEnterBackground
         enter.keyPressedColor = KeyboardTheme.keyEnterPressedBackground
 
+        var middleRow = arrayOf<Key>(a, s, d, f, g, h, j, k, l)
+        val labels = SHUANGPIN_LABELS[shuangpinScheme]
+        if (labels != null) {
+            val letters = listOf(a, b, c, d, e, f, g, h, i, j, k, l, m, n, o, p, q, r, s, t, u, v, w, x, y, z)
+            letters.forEachIndexed { index, key -> key.subScript = labels[index] }
+            // ';' is a Yunmu key of the scheme
+            if (labels.last().isNotEmpty()) {
+                val semicolon = PreviewTextKey(';')
+                semicolon.subScript = labels.last()
+                middleRow += semicolon
+            }
+        }
+
         layout.rows = arrayOf(
             arrayOf<Key>(q, w, e, r, t, y ,u, i, o, p),
-            arrayOf<Key>(a, s, d, f, g, h, j, k, l),
+            middleRow,
             arrayOf<Key>(hanci, z, x, c, v, b, n, m, delete),
             arrayOf<Key>(number, emoji, lang, space, period, enter)
         )
 
         keys = listOf(
             q, w, e, r, t, y ,u, i, o, p,
-            a, s, d, f, g, h, j, k, l,
+            *middleRow,
             hanci, z, x, c, v, b, n, m, delete,
             number, emoji, lang, space, period, enter)
     }
@@ -700,6 +793,8 @@ class QWERTYLayout {
     companion object {
         const val GRID_WIDTH = 20
         const val GRID_HEIGHT = 8
+        // columns of the 9-key keypad, the space key takes two of them
+        const val T9_COLUMNS = 5
     }
     var width = 0
     var height = 0
@@ -729,49 +824,65 @@ class QWERTYLayout {
         px = (KeyboardTheme.paddingLeft+ KeyboardTheme.keyGap).toFloat()
         py = (KeyboardTheme.paddingTop+ verticalPadding).toFloat()
 
-        keys += rows[0]
-        rows[0].forEach {
-            layoutKey(px, py, normalWidth, normalHeight, it)
-        }
-        py += normalHeight + verticalPadding
-
-        py += verticalPadding
-        px = if (rows[1].size == 9) {
-            (width-9*normalWidth-8* KeyboardTheme.keyGap)/2
+        if (rows[0].size == T9_COLUMNS) {
+            val cellWidth = (width - KeyboardTheme.paddingLeft - KeyboardTheme.paddingRight - (T9_COLUMNS+1)*KeyboardTheme.keyGap)/T9_COLUMNS.toFloat()
+            rows.forEachIndexed { index, row ->
+                px = (KeyboardTheme.paddingLeft+ KeyboardTheme.keyGap).toFloat()
+                if (index > 0) {
+                    py += verticalPadding
+                }
+                keys += row
+                row.forEach {
+                    layoutKey(px, py, if (it is SpaceKey) 2*cellWidth+KeyboardTheme.keyGap else cellWidth, normalHeight, it)
+                }
+                py += normalHeight + verticalPadding
+            }
         } else {
-            (KeyboardTheme.paddingLeft+ KeyboardTheme.keyGap).toFloat()
-        }
-        keys += rows[1]
-        rows[1].forEach {
-            layoutKey(px, py, normalWidth, normalHeight, it)
-        }
-        py += normalHeight + verticalPadding
-
-        px = (KeyboardTheme.paddingLeft+ KeyboardTheme.keyGap).toFloat()
-        py += verticalPadding
-        keys += rows[2]
-        rows[2].forEachIndexed { index, key ->
-            if (index == 0 || index == 8) {
-                layoutKey(px, py, controlWidth, normalHeight, key)
-            } else {
-                layoutKey(px, py, normalWidth, normalHeight, key)
+            keys += rows[0]
+            rows[0].forEach {
+                layoutKey(px, py, normalWidth, normalHeight, it)
             }
-        }
-        py += normalHeight + verticalPadding
+            py += normalHeight + verticalPadding
 
-        px = (KeyboardTheme.paddingLeft+ KeyboardTheme.keyGap).toFloat()
-        py += verticalPadding
-        keys += rows[3]
-        rows[3].forEachIndexed { index, key ->
-            if (index == 0 || index == 5) {
-                layoutKey(px, py, controlWidth, normalHeight, key)
-            } else if (index == 3) {
-                layoutKey(px, py, spaceWidth, normalHeight, key)
+            py += verticalPadding
+            px = if (rows[1].size == 9) {
+                (width-9*normalWidth-8* KeyboardTheme.keyGap)/2
             } else {
-                layoutKey(px, py, normalWidth, normalHeight, key)
+                (KeyboardTheme.paddingLeft+ KeyboardTheme.keyGap).toFloat()
+            }
+            keys += rows[1]
+            rows[1].forEach {
+                layoutKey(px, py, normalWidth, normalHeight, it)
+            }
+            py += normalHeight + verticalPadding
+
+            px = (KeyboardTheme.paddingLeft+ KeyboardTheme.keyGap).toFloat()
+            py += verticalPadding
+            keys += rows[2]
+            rows[2].forEachIndexed { index, key ->
+                if (index == 0 || index == 8) {
+                    layoutKey(px, py, controlWidth, normalHeight, key)
+                } else {
+                    layoutKey(px, py, normalWidth, normalHeight, key)
+                }
+            }
+            py += normalHeight + verticalPadding
+
+            px = (KeyboardTheme.paddingLeft+ KeyboardTheme.keyGap).toFloat()
+            py += verticalPadding
+            keys += rows[3]
+            rows[3].forEachIndexed { index, key ->
+                if (index == 0 || index == 5) {
+                    layoutKey(px, py, controlWidth, normalHeight, key)
+                } else if (index == 3) {
+                    layoutKey(px, py, spaceWidth, normalHeight, key)
+                } else {
+                    layoutKey(px, py, normalWidth, normalHeight, key)
+                }
             }
+            py += normalHeight + verticalPadding
         }
-        py += normalHeight + verticalPadding + KeyboardTheme.paddingBottom
+        py += KeyboardTheme.paddingBottom
         height = py.toInt()
 
         // Round-up so we don't have any pixels outside the grid
@@ -24,6 +24,7 @@ object KeyboardTheme {
     val keyControlTextSize = 18.dp2px.toFloat()
     val keySpaceTextSize = 14.dp2px
     val keyUpperTextSize = 12.dp2px
+    val keySubscriptTextSize = 10.dp2px
 
     val keyControlBackground = 0xFFCCCED5.toInt()
     val keyControlPressedBackground = 0xFFBDC1C6.toInt()
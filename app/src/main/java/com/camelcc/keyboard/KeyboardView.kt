@@ -110,14 +110,13 @@ class KeyboardView: View {
         }
         candidateDetailView.addOnScrollListener(object: RecyclerView.OnScrollListener() {
             override fun onScrolled(recyclerView: RecyclerView, dx: Int, dy: Int) {
-                if (dy > 0) {
-                    val visible = gridLayoutManager.childCount
-                    val total = gridLayoutManager.itemCount
-                    val first = gridLayoutManager.findFirstVisibleItemPosition()
-                    if (first + visible >= total - 10) { // some buffer
-                        listener?.loadMoreCandidates()
-                    }
+                // nothing is loaded while the grid is not shown
+                if (!candidateDetailPopupWindow.isShowing) {
+                    return
                 }
+                candidateDetailViewAdapter.candidates.onVisibleRange(
+                    gridLayoutManager.findFirstVisibleItemPosition(),
+                    gridLayoutManager.findLastVisibleItemPosition())
             }
         })
 
@@ -141,7 +140,7 @@ class KeyboardView: View {
                 dismissPopupKeyboard()
             }
 
-            override fun loadMoreCandidates() {}
+            override fun loadCandidates(start: Int, count: Int, onLoaded: (List<String>) -> Unit) {}
             override fun onLangSwitch() {}
             override fun onKeyboardChanged() {}
             override fun onKeyboardKeyCode(keyCode: Int) {}
@@ -154,12 +153,9 @@ class KeyboardView: View {
         messageHandler = Handler { msg -> return@Handler handleMessage(msg) }
     }
 
-    fun setCandidates(candidates: List<String>) {
-        candidateDetailViewAdapter.candidates = candidates
-    }
-
-    fun updateCandidates() {
-        candidateDetailViewAdapter.notifyDataSetChanged()
+    // candidates changed, the grid loads them again when shown
+    fun resetCandidates() {
+        candidateDetailViewAdapter.candidates.reset()
     }
 
     private fun calculateSpan(position: Int): Int {
@@ -199,7 +195,9 @@ class KeyboardView: View {
     }
 
     fun showMoreCandidatesPopup() {
-        candidateDetailViewAdapter.notifyDataSetChanged()
+        val layoutManager = candidateDetailView.layoutManager as GridLayoutManager
+        candidateDetailViewAdapter.candidates.onVisibleRange(
+            layoutManager.findFirstVisibleItemPosition(), layoutManager.findLastVisibleItemPosition())
 
         val coordinates = IntArray(2)
         getLocationInWindow(coordinates)
@@ -0,0 +1,106 @@
+package com.camelcc.keyboard
+
+import android.util.Log
+import java.util.ArrayDeque
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+
+/**
+ * Execution lanes of the IME.
+ *
+ * Every engine gets its own [Lane]. Keystroke decode goes to [Lane.critical], paging and other
+ * bulk work touching the same engine goes to [Lane.background], which only runs while no keystroke
+ * is waiting. Both run on the engine's thread so the engine never sees concurrent calls, bulk work
+ * should be split in small chunks so that a keystroke waits for one chunk at most.
+ *
+ * Work which does not touch engine state goes to threads of its own: [interactive] for results
+ * the user waits for (corrections), [shared] at low priority for speculative work (prefetch,
+ * maintenance), so the former never queues behind the latter.
+ *
+ * A task which throws is logged and dropped, the lane keeps running the next ones.
+ */
+class LaneScheduler {
+    class Lane(private val name: String) {
+        private val lock = Object()
+        private val criticalQueue = ArrayDeque<Runnable>()
+        private val backgroundQueue = ArrayDeque<Runnable>()
+        private var shutdown = false
+        private var last: Runnable? = null
+
+        val critical = Executor { post(criticalQueue, it) }
+        val background = Executor { post(backgroundQueue, it) }
+
+        init {
+            Thread({ loop() }, name).start()
+        }
+
+        /**
+         * Drops the waiting tasks and stops the lane once the running one returns. [last] runs on
+         * the lane after that, so it may close the engine; it is ignored if the lane was already
+         * shut down.
+         */
+        fun shutdown(last: Runnable? = null) {
+            synchronized(lock) {
+                if (shutdown) {
+                    return
+                }
+                shutdown = true
+                this.last = last
+                criticalQueue.clear()
+                backgroundQueue.clear()
+                lock.notifyAll()
+            }
+        }
+
+        private fun post(queue: ArrayDeque<Runnable>, task: Runnable) {
+            synchronized(lock) {
+                if (shutdown) {
+                    throw RejectedExecutionException("lane is shut down")
+                }
+                queue.addLast(task)
+                lock.notifyAll()
+            }
+        }
+
+        private fun loop() {
+            while (true) {
+                val task = synchronized(lock) {
+                    while (!shutdown && criticalQueue.isEmpty() && backgroundQueue.isEmpty()) {
+                        lock.wait()
+                    }
+                    if (shutdown) null else criticalQueue.pollFirst() ?: backgroundQueue.pollFirst()
+                } ?: break
+                run(task)
+            }
+            last?.let { run(it) }
+        }
+
+        private fun run(task: Runnable) {
+            try {
+                task.run()
+            } catch (t: Throwable) {
+                Log.e("[IME]", "task failed on $name", t)
+            }
+        }
+    }
+
+    val en = Lane("IME-en")
+    val pinyin = Lane("IME-pinyin")
+
+    val interactive: ExecutorService = Executors.newSingleThreadExecutor { r ->
+        Thread(r, "IME-interactive")
+    }
+
+    val shared: ExecutorService = Executors.newSingleThreadExecutor { r ->
+        Thread(r, "IME-shared").apply { priority = Thread.MIN_PRIORITY }
+    }
+
+    fun shutdown() {
+        en.shutdown()
+        pinyin.shutdown()
+        interactive.shutdownNow()
+        shared.shutdownNow()
+    }
+}
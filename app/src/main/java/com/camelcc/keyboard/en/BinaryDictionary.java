@@ -2,7 +2,6 @@ package com.camelcc.keyboard.en;
 
 import android.content.Context;
 import android.content.res.AssetFileDescriptor;
-import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.WorkerThread;
@@ -155,6 +154,9 @@ public class BinaryDictionary {
     static final int PTNODE_ATTRIBUTE_MAX_ADDRESS_SIZE = 3;
     static final int PTNODE_SHORTCUT_LIST_SIZE_SIZE = 2;
     static final int PTNODE_MAX_CACHED_SUGGESTIONS = 10;
+    // fewer prefix matches than this, exact and capitalized together, and edit distance
+    // corrections are looked up too
+    static final int MIN_PREFIX_SUGGESTIONS = 3;
 
     static final int NO_CHILDREN_ADDRESS = Integer.MIN_VALUE;
     static final int INVALID_CHARACTER = -1;
@@ -353,23 +355,37 @@ public class BinaryDictionary {
 
     @WorkerThread
     public BinaryDictionary(Context context) throws IOException, DictionaryInvalidFormatException {
-        AssetFileDescriptor fd = context.getAssets().openFd("wordlist.dict");
+        this(readAsset(context, "wordlist.dict"));
+        Log.i(TAG, "dictionary loaded, version = " + readUnsignedShort(data, 4));
+    }
+
+    /**
+     * Dictionary from an already loaded buffer, used off-device where there are no assets, so it
+     * must not call into android.*.
+     */
+    public BinaryDictionary(byte[] buffer) throws DictionaryInvalidFormatException {
+        parseHeader(buffer);
+        data = buffer;
+    }
+
+    private static byte[] readAsset(Context context, String name) throws IOException {
+        AssetFileDescriptor fd = context.getAssets().openFd(name);
         long len = fd.getLength();
         if (len < 0 || len > Integer.MAX_VALUE-8) {
             throw new IOException("invalid dictionary asset");
         }
 
-        data = new byte[(int)len];
+        byte[] buffer = new byte[(int)len];
         InputStream fis = null;
         try {
             fis = fd.createInputStream();
-            fis.read(data);
-            parseHeader(data);
+            fis.read(buffer);
         } finally {
             if (fis != null) {
                 fis.close();
             }
         }
+        return buffer;
     }
 
     private static void parseHeader(byte[] buffer) throws DictionaryInvalidFormatException {
@@ -383,7 +399,6 @@ public class BinaryDictionary {
         if (version != VERSION100) {
             throw new DictionaryInvalidFormatException("unsupported dictionary version");
         }
-        Log.i(TAG, "dictionary loaded, version = " + version);
     }
 
     // run in background thread
@@ -413,13 +428,17 @@ public class BinaryDictionary {
         return new QueryResults(word, valid, valid ? node.frequency : 0, suggestions);
     }
 
+    /**
+     * Words starting with the given prefix or its capitalized form, the cheap part of a lookup.
+     * Returns null if nothing matched.
+     */
     @WorkerThread
-    public QueryResults fuseQuery(String word) throws DictionaryInvalidFormatException {
-        if (TextUtils.isEmpty(word)) {
+    public QueryResults prefixQuery(String word) throws DictionaryInvalidFormatException {
+        if (word == null || word.isEmpty()) {
             return null;
         }
         QueryResults res = query(word);
-        if (res != null && res.suggestions.size() >= 3) {
+        if (res != null && res.suggestions.size() >= MIN_PREFIX_SUGGESTIONS) {
             return res;
         }
 
@@ -435,13 +454,28 @@ public class BinaryDictionary {
                 return res;
             }
         }
+        return res;
+    }
 
-        // edit 1|2 distance match
+    // too few prefix matches, the word is likely misspelled
+    public static boolean needsCorrections(QueryResults prefix) {
+        return prefix == null || prefix.suggestions.size() < MIN_PREFIX_SUGGESTIONS;
+    }
+
+    /**
+     * Words within edit distance 1|2 of the given word, most frequent first. This is the expensive
+     * part of a lookup, see needsCorrections.
+     */
+    @WorkerThread
+    public List<WeightedString> fuzzyQuery(String word) throws DictionaryInvalidFormatException {
+        if (word == null || word.isEmpty()) {
+            return new ArrayList<>();
+        }
         List<PtNode> node = fuseSearchPtNode(data, getCodePoints(word), new FuseSearch(new StringBuilder(), HEADER_SIZE, 0, 0));
         if (node == null || node.isEmpty()) {
-            return res;
+            return new ArrayList<>();
         }
-        List<WeightedString> suggests = node.stream().flatMap(n -> {
+        return node.stream().flatMap(n -> {
             List<WeightedString> can = new ArrayList<>();
             try {
                 collectWords(new StringBuilder(n.preChars), n, can);
@@ -451,12 +485,65 @@ public class BinaryDictionary {
             return can.stream();
         }).sorted(Comparator.comparingInt(e -> MAX_TERMINAL_FREQUENCY - e.mFrequency))
                 .limit(PTNODE_MAX_CACHED_SUGGESTIONS).collect(Collectors.toList());
-        if (res == null) {
-            return new QueryResults(word, false, 0, suggests);
-        } else {
-            res.suggestions.addAll(suggests);
-            return res;
+    }
+
+    /**
+     * Most likely code points to follow the given prefix, ranked by the highest frequency found in
+     * the subtree behind each of them. At most limit code points are returned.
+     */
+    @WorkerThread
+    public int[] getNextCodePoints(String word, int limit) throws DictionaryInvalidFormatException {
+        if (word == null || word.isEmpty() || limit <= 0) {
+            return new int[0];
+        }
+        int[] codes = getCodePoints(word);
+        StringBuilder sb = new StringBuilder();
+        PtNode node = searchPtNode(sb, data, HEADER_SIZE, codes, 0);
+        if (node == null) {
+            return new int[0];
+        }
+        // the prefix ends inside this node, there is only one way to go on
+        int matched = codes.length - sb.codePointCount(0, sb.length());
+        if (matched < node.chars.length) {
+            return new int[]{node.chars[matched]};
+        }
+        if (node.childrenPosition <= 0) {
+            return new int[0];
+        }
+
+        int[] nc = readPtNodeCount(data, node.childrenPosition);
+        int count = nc[0], pos = nc[1];
+        int[][] scored = new int[count][];
+        for (int i = 0; i < count; i++) {
+            PtNode n = PtNode.readPtNode(data, pos);
+            pos = n.readAfterPosition;
+            scored[i] = new int[]{n.chars[0], maxFrequency(n)};
+        }
+        Arrays.sort(scored, (a, b) -> b[1] - a[1]);
+        int[] res = new int[Math.min(limit, count)];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = scored[i][0];
+        }
+        return res;
+    }
+
+    // highest word frequency in the subtree of node, cached suggestions are already ordered.
+    private int maxFrequency(PtNode node) throws DictionaryInvalidFormatException {
+        if (node.hasCachedSuggestions() && node.cachedSuggestions != null && !node.cachedSuggestions.isEmpty()) {
+            return node.cachedSuggestions.get(0).mFrequency * (MAX_TERMINAL_FREQUENCY / MAX_BIGRAM_FREQUENCY);
+        }
+        int max = node.isTerminal() ? node.frequency : 0;
+        if (node.childrenPosition <= 0) {
+            return max;
+        }
+        int[] nc = readPtNodeCount(data, node.childrenPosition);
+        int count = nc[0], pos = nc[1];
+        for (int i = 0; i < count && max < MAX_TERMINAL_FREQUENCY; i++) {
+            PtNode n = PtNode.readPtNode(data, pos);
+            pos = n.readAfterPosition;
+            max = Math.max(max, maxFrequency(n));
         }
+        return max;
     }
 
     // this method will not collect cached suggestions, it should never be a case.
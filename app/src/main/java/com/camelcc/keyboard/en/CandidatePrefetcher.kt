@@ -0,0 +1,67 @@
+package com.camelcc.keyboard.en
+
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Computes candidates for the most likely next letters while the user is between keystrokes.
+ *
+ * Results are keyed by the composing text they were computed for and only live until the next
+ * real key arrives, which either picks its own list up or recomputes it.
+ */
+class CandidatePrefetcher(private val executor: Executor,
+                          private val compute: (String) -> MutableList<String>) {
+    companion object {
+        const val PREFETCH_LETTERS = 3
+    }
+
+    // bumped by every real key, in-flight prefetches of an older generation are dropped
+    private val generation = AtomicInteger()
+    private val prefetched = HashMap<String, MutableList<String>>()
+
+    fun prefetch(dictionary: BinaryDictionary, composing: String) {
+        val gen = generation.get()
+        executor.execute {
+            if (gen != generation.get()) {
+                return@execute
+            }
+            try {
+                val next = dictionary.getNextCodePoints(composing, PREFETCH_LETTERS)
+                for (c in next) {
+                    if (gen != generation.get()) {
+                        return@execute
+                    }
+                    val word = StringBuilder(composing).appendCodePoint(c).toString()
+                    val candidates = compute(word)
+                    synchronized(prefetched) {
+                        if (gen == generation.get()) {
+                            prefetched[word] = candidates
+                        }
+                    }
+                }
+            } catch (e: BinaryDictionary.DictionaryInvalidFormatException) {
+                // speculative only, the real key will query again
+            }
+        }
+    }
+
+    /**
+     * A real key arrived and composing is now [word]. Returns the list prefetched for it, if any,
+     * and drops everything else.
+     */
+    fun take(word: String): MutableList<String>? {
+        generation.incrementAndGet()
+        synchronized(prefetched) {
+            val candidates = prefetched[word]
+            prefetched.clear()
+            return candidates
+        }
+    }
+
+    fun cancel() {
+        generation.incrementAndGet()
+        synchronized(prefetched) {
+            prefetched.clear()
+        }
+    }
+}
@@ -1,12 +1,17 @@
 package com.camelcc.keyboard.en
 
-import android.content.Context
 import android.view.KeyEvent
 import com.camelcc.keyboard.IMEListener
+import java.util.concurrent.Executor
 
-class IME(private val context: Context) {
+class IME(private val loadDictionary: () -> BinaryDictionary,
+          prefetchExecutor: Executor,
+          private val correctionExecutor: Executor) {
     var listener: IMEListener? = null
-    var candidates = mutableListOf<String>()
+    // replaced, never changed in place, the candidate UI may still hold the previous list
+    @Volatile
+    var candidates: List<String> = listOf()
+        private set
 
     enum class State {
         TYPING, FINISHED, SUGGESTED
@@ -27,14 +32,24 @@ class IME(private val context: Context) {
     private val composing = StringBuilder()
     private var isSentenceBreak = true
 
+    // idle time between keystrokes is used to compute candidates of the likely next letters
+    private val prefetcher = CandidatePrefetcher(prefetchExecutor) { queryCandidates(it) }
+    // bumped whenever candidates are replaced, corrections computed for older ones are dropped
+    private var generation = 0
+    private val lock = Object()
+
     fun onCreate() {
-        dictionary = BinaryDictionary(context)
+        dictionary = loadDictionary()
+    }
+
+    fun onDestroy() {
+        prefetcher.cancel()
     }
 
     fun reset() {
         state = State.FINISHED
         composing.clear()
-        candidates.clear()
+        clearCandidates()
         isSentenceBreak = true
     }
 
@@ -76,7 +91,7 @@ class IME(private val context: Context) {
 
             listener?.commitText(composing.toString())
             composing.clear()
-            candidates.clear()
+            clearCandidates()
 
             state = State.FINISHED
             return false
@@ -88,24 +103,93 @@ class IME(private val context: Context) {
         listener?.commitText(text)
         state = State.SUGGESTED
         composing.clear()
-        candidates.clear()
+        clearCandidates()
     }
 
+    /*
+     * Candidates are published in two steps. Prefix matches are cheap and go out right away,
+     * corrections (edit distance search) are appended once ready so the entries already shown
+     * keep their place.
+     */
     private fun updateCandidates() {
         if (composing.isBlank()) {
-            candidates = mutableListOf()
+            clearCandidates()
             return
         }
         val searchWord = composing.toString()
-        val suggestions = dictionary.fuseQuery(searchWord)
-        val words = mutableListOf<String>()
-        for (s in suggestions?.suggestions ?: listOf()) {
-            if (s.mWord == searchWord) {
-                continue
+        val prefetched = prefetcher.take(searchWord)
+        if (prefetched != null) {
+            publish(prefetched)
+        } else {
+            val prefix = dictionary.prefixQuery(searchWord)
+            val gen = publish(candidateList(searchWord, prefix?.suggestions))
+            if (BinaryDictionary.needsCorrections(prefix)) {
+                requestCorrections(gen, searchWord)
+            }
+        }
+        prefetcher.prefetch(dictionary, searchWord)
+    }
+
+    private fun requestCorrections(gen: Int, searchWord: String) {
+        correctionExecutor.execute {
+            if (gen != synchronized(lock) { generation }) {
+                return@execute
+            }
+            val corrections = try {
+                dictionary.fuzzyQuery(searchWord)
+            } catch (e: BinaryDictionary.DictionaryInvalidFormatException) {
+                return@execute
+            }
+            synchronized(lock) {
+                if (gen != generation) {
+                    return@execute
+                }
+                val merged = mergeCandidates(candidates, corrections)
+                if (merged.size == candidates.size) {
+                    return@execute
+                }
+                candidates = merged
+            }
+            listener?.candidatesChanged()
+        }
+    }
+
+    private fun publish(list: List<String>): Int {
+        synchronized(lock) {
+            candidates = list
+            return ++generation
+        }
+    }
+
+    private fun clearCandidates() {
+        prefetcher.cancel()
+        publish(listOf())
+    }
+
+    // all stages at once, for prefetch
+    private fun queryCandidates(searchWord: String): MutableList<String> {
+        val prefix = dictionary.prefixQuery(searchWord)
+        val words = candidateList(searchWord, prefix?.suggestions)
+        if (BinaryDictionary.needsCorrections(prefix)) {
+            return mergeCandidates(words, dictionary.fuzzyQuery(searchWord))
+        }
+        return words
+    }
+
+    private fun candidateList(searchWord: String, suggestions: List<BinaryDictionary.WeightedString>?): MutableList<String> {
+        val words = mutableListOf(searchWord)
+        return mergeCandidates(words, suggestions ?: listOf())
+    }
+
+    // appends words not shown yet, the order of shown ones is kept
+    private fun mergeCandidates(shown: List<String>, more: List<BinaryDictionary.WeightedString>): MutableList<String> {
+        val words = shown.toMutableList()
+        val seen = shown.toHashSet()
+        for (s in more) {
+            if (seen.add(s.mWord)) {
+                words.add(s.mWord)
             }
-            words.add(s.mWord)
         }
-        words.add(0, searchWord)
-        candidates = words
+        return words
     }
 }
@@ -0,0 +1,77 @@
+package com.camelcc.keyboard.pinyin
+
+/**
+ * Candidates of the candidate grid, loaded page by page off the UI thread.
+ *
+ * The next page is asked for as soon as the grid shows the last loaded one, so it is usually
+ * there before the user scrolls to it, and new pages are reported as range inserts. Loaded
+ * candidates are kept until [reset], so the grid never lays out an entry it does not have, the
+ * engine holds them all anyway. Only used from the UI thread.
+ */
+class PagedCandidateSource(private val pageSize: Int = PAGE_SIZE) {
+    companion object {
+        const val PAGE_SIZE = 64
+    }
+
+    interface Callback {
+        fun onInserted(start: Int, count: Int)
+        fun onReset()
+    }
+
+    // loads [start, start + count) off the UI thread, onLoaded is called on the UI thread with
+    // fewer items at the end of the list
+    var loader: ((start: Int, count: Int, onLoaded: (List<String>) -> Unit) -> Unit)? = null
+    var callback: Callback? = null
+
+    private val items = ArrayList<String>()
+    val size: Int
+        get() = items.size
+
+    private var loading = false
+    // no candidates after size
+    private var end = false
+    // bumped on reset, loads of older generations are dropped
+    private var generation = 0
+
+    // cheap when nothing was loaded, which is the case while the grid is not shown
+    fun reset() {
+        if (items.isEmpty() && !loading && !end) {
+            return
+        }
+        generation++
+        items.clear()
+        loading = false
+        end = false
+        callback?.onReset()
+    }
+
+    operator fun get(position: Int): String = items[position]
+
+    // last is -1 if nothing is shown yet
+    fun onVisibleRange(first: Int, last: Int) {
+        if (!end && !loading && last >= size - pageSize) {
+            load()
+        }
+    }
+
+    private fun load() {
+        val loader = this.loader ?: return
+        loading = true
+        val gen = generation
+        loader(size, pageSize) { items -> onLoaded(gen, items) }
+    }
+
+    private fun onLoaded(gen: Int, page: List<String>) {
+        if (gen != generation) {
+            return
+        }
+        loading = false
+        end = page.size < pageSize
+        if (page.isEmpty()) {
+            return
+        }
+        val start = items.size
+        items.addAll(page)
+        callback?.onInserted(start, page.size)
+    }
+}
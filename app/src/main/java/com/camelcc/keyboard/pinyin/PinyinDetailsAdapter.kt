@@ -16,8 +16,7 @@ import com.camelcc.keyboard.dp2px
 class PinyinDetailsAdapter :
     RecyclerView.Adapter<PinyinDetailsAdapter.ViewHolder>() {
     var listener: KeyboardListener? = null
-    // maybe changed by other threads, use with null protected
-    var candidates = listOf<String>()
+    val candidates = PagedCandidateSource()
 
     private val paint = Paint() // only for measure text width purpose
 
@@ -42,7 +41,14 @@ class PinyinDetailsAdapter :
         }
     }
 
-    init { paint.textSize = KeyboardTheme.candidateTextSize }
+    init {
+        paint.textSize = KeyboardTheme.candidateTextSize
+        candidates.loader = { start, count, onLoaded -> listener?.loadCandidates(start, count, onLoaded) }
+        candidates.callback = object : PagedCandidateSource.Callback {
+            override fun onInserted(start: Int, count: Int) = notifyItemRangeInserted(start, count)
+            override fun onReset() = notifyDataSetChanged()
+        }
+    }
 
     override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): ViewHolder {
         val textView = CandidateTextView(parent.context)
@@ -54,7 +60,10 @@ class PinyinDetailsAdapter :
         val vh = ViewHolder(textView)
         vh.itemView.setOnClickListener {
             val pos = vh.adapterPosition
-            listener?.onCandidate(candidates.getOrNull(pos) ?: "", pos)
+            if (pos !in 0 until candidates.size) {
+                return@setOnClickListener
+            }
+            listener?.onCandidate(candidates[pos], pos)
         }
         return vh
     }
@@ -64,10 +73,10 @@ class PinyinDetailsAdapter :
     }
 
     override fun onBindViewHolder(holder: ViewHolder, position: Int) {
-        holder.textView.text = candidates.getOrNull(position) ?: ""
+        holder.textView.text = candidates[position]
     }
 
     fun getCalculatedWidth(position: Int): Int {
-        return (2*KeyboardTheme.candidateTextPadding + paint.measureText(candidates.getOrNull(position) ?: "")).toInt()
+        return (2*KeyboardTheme.candidateTextPadding + paint.measureText(candidates[position])).toInt()
     }
 }
@@ -0,0 +1,174 @@
+package com.camelcc.keyboard
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+/**
+ * Drives [EditorTextMirror] against a fake editor, the way InputService does: every edit is
+ * applied to both, then the editor reports the new selection.
+ */
+class EditorTextMirrorTest {
+    private val editor = StringBuilder()
+    private var composingStart = -1
+    private var fetches = 0
+    private val fetch: (Int) -> CharSequence? = { length ->
+        fetches++
+        editor.substring(maxOf(0, editor.length - length))
+    }
+
+    private fun commit(mirror: EditorTextMirror, text: String) {
+        if (composingStart >= 0) {
+            editor.setLength(composingStart)
+            composingStart = -1
+        }
+        editor.append(text)
+        mirror.onCommitText(text)
+        mirror.onUpdateSelection(editor.length, editor.length, -1)
+    }
+
+    private fun compose(mirror: EditorTextMirror, text: String) {
+        if (composingStart < 0) {
+            composingStart = editor.length
+        }
+        editor.setLength(composingStart)
+        editor.append(text)
+        mirror.onComposingText(text)
+        mirror.onUpdateSelection(editor.length, editor.length, composingStart)
+    }
+
+    private fun delete(mirror: EditorTextMirror) {
+        editor.setLength(editor.length - 1)
+        mirror.onDeleteBeforeCursor()
+        mirror.onUpdateSelection(editor.length, editor.length, -1)
+    }
+
+    @Test
+    fun commitsAreMirrored() {
+        val mirror = EditorTextMirror()
+        mirror.reset(0)
+        assertEquals("", mirror.getTextBeforeCursor(10, fetch).toString())
+        assertEquals(1, fetches)
+
+        commit(mirror, "hello ")
+        commit(mirror, "world")
+        assertEquals("lo world", mirror.getTextBeforeCursor(8, fetch).toString())
+        // the mirror reaches the start of the field, a longer read is still local
+        assertEquals("hello world", mirror.getTextBeforeCursor(20, fetch).toString())
+        assertEquals(1, fetches)
+    }
+
+    @Test
+    fun composingTextIsReplaced() {
+        val mirror = EditorTextMirror()
+        mirror.reset(0)
+        commit(mirror, "a ")
+        compose(mirror, "n")
+        compose(mirror, "ni")
+        compose(mirror, "nih")
+        assertEquals("a nih", mirror.getTextBeforeCursor(10, fetch).toString())
+        commit(mirror, "你好")
+        assertEquals("a 你好", mirror.getTextBeforeCursor(10, fetch).toString())
+        assertEquals(1, fetches)
+    }
+
+    @Test
+    fun composingTextIsKeptOnResync() {
+        editor.append("hello")
+        val mirror = EditorTextMirror()
+        mirror.reset(editor.length)
+        compose(mirror, "ab")
+        assertEquals("helloab", mirror.getTextBeforeCursor(10, fetch).toString())
+        assertEquals(1, fetches)
+        commit(mirror, "AB")
+        assertEquals("helloAB", mirror.getTextBeforeCursor(10, fetch).toString())
+        assertEquals(1, fetches)
+    }
+
+    @Test
+    fun deletesReachBeforeTheMirror() {
+        editor.append("abcdefgh")
+        val mirror = EditorTextMirror(4)
+        mirror.reset(editor.length)
+        assertEquals("gh", mirror.getTextBeforeCursor(2, fetch).toString())
+        assertEquals(1, fetches)
+
+        delete(mirror)
+        assertEquals("efg", mirror.getTextBeforeCursor(3, fetch).toString())
+        assertEquals(1, fetches)
+        repeat(3) { delete(mirror) }
+        // everything mirrored is deleted, the text before it is read again
+        assertEquals("cd", mirror.getTextBeforeCursor(2, fetch).toString())
+        assertEquals(2, fetches)
+    }
+
+    @Test
+    fun deleteWhileComposingResyncs() {
+        val mirror = EditorTextMirror()
+        mirror.reset(0)
+        mirror.getTextBeforeCursor(1, fetch)
+        commit(mirror, "ab ")
+        compose(mirror, "cd")
+        editor.setLength(editor.length - 1)
+        composingStart = -1
+        mirror.onDeleteBeforeCursor()
+        mirror.onUpdateSelection(editor.length, editor.length, -1)
+        assertEquals("ab c", mirror.getTextBeforeCursor(10, fetch).toString())
+        assertEquals(2, fetches)
+    }
+
+    @Test
+    fun lateSelectionUpdatesAreOwnEdits() {
+        val mirror = EditorTextMirror()
+        mirror.reset(0)
+        mirror.getTextBeforeCursor(1, fetch)
+        editor.append("abc")
+        mirror.onCommitText("a")
+        mirror.onCommitText("b")
+        mirror.onCommitText("c")
+        // the editor only reports the last cursor of the three commits
+        mirror.onUpdateSelection(3, 3, -1)
+        assertEquals("abc", mirror.getTextBeforeCursor(10, fetch).toString())
+        assertEquals(1, fetches)
+    }
+
+    @Test
+    fun cursorMovedByTheUserResyncs() {
+        val mirror = EditorTextMirror()
+        mirror.reset(0)
+        mirror.getTextBeforeCursor(1, fetch)
+        commit(mirror, "hello world")
+        mirror.onUpdateSelection(5, 5, -1)
+        editor.setLength(5)
+        assertEquals("hello", mirror.getTextBeforeCursor(10, fetch).toString())
+        assertEquals(2, fetches)
+        commit(mirror, "!")
+        assertEquals("hello!", mirror.getTextBeforeCursor(10, fetch).toString())
+        assertEquals(2, fetches)
+    }
+
+    @Test
+    fun resetPositionsTheMirror() {
+        editor.append("abc")
+        val mirror = EditorTextMirror()
+        mirror.reset(3)
+        commit(mirror, "d")
+        assertEquals("abcd", mirror.getTextBeforeCursor(10, fetch).toString())
+        assertEquals(1, fetches)
+        // the mirror starts at the field start, a longer read is local
+        assertEquals("abcd", mirror.getTextBeforeCursor(20, fetch).toString())
+        assertEquals(1, fetches)
+    }
+
+    @Test
+    fun resetWithoutPositionResyncsOnFirstSelection() {
+        editor.append("abc")
+        val mirror = EditorTextMirror()
+        mirror.reset(-1)
+        commit(mirror, "d")
+        assertEquals("abcd", mirror.getTextBeforeCursor(10, fetch).toString())
+        assertEquals(1, fetches)
+        commit(mirror, "e")
+        assertEquals("abcde", mirror.getTextBeforeCursor(10, fetch).toString())
+        assertEquals(1, fetches)
+    }
+}
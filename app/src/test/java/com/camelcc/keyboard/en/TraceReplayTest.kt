@@ -0,0 +1,35 @@
+package com.camelcc.keyboard.en
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.File
+import java.util.concurrent.Executors
+
+/**
+ * Replays every trace of the traces test resources and prints the latency / allocation report.
+ */
+class TraceReplayTest {
+    private val dictionary = BinaryDictionary(File("src/main/assets/wordlist.dict").readBytes())
+    private val traces = File(requireNotNull(javaClass.classLoader.getResource("traces")) { "no traces on the test classpath" }.toURI())
+        .listFiles { f -> f.extension == "trace" }!!.sorted()
+
+    @Test
+    fun replayTraces() {
+        assertTrue(traces.isNotEmpty())
+        val prefetch = Executors.newSingleThreadExecutor()
+        try {
+            val replayer = TraceReplayer(dictionary, prefetch)
+            for (file in traces) {
+                val trace = TraceReplayer.parse(file)
+                val result = replayer.replay(trace)
+                println(result.report())
+                if (trace.expected != null) {
+                    assertEquals(trace.name, trace.expected, result.text)
+                }
+            }
+        } finally {
+            prefetch.shutdownNow()
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.camelcc.keyboard.en
+
+import android.view.KeyEvent
+import android.view.inputmethod.CompletionInfo
+import com.camelcc.keyboard.IMEListener
+import java.io.File
+import java.lang.management.ManagementFactory
+import java.util.ArrayDeque
+import java.util.concurrent.Executor
+
+/**
+ * Replays a recorded typing session against [IME] on a plain JVM.
+ *
+ * Trace files are line based, '#' starts a comment:
+ *
+ *     type hello, world   every char is one event, ' ' is sent as the space key
+ *     del                 delete key
+ *     space               space key
+ *     enter               enter key
+ *     pick 1              tap candidate 1 of the current candidate list
+ *     expect hello world  text the editor should hold at the end
+ *
+ * Keys the IME does not consume are applied to the fake editor the way the app would.
+ * Corrections are run right after the event that asked for them and reported as "fix", so the
+ * event itself is the time until the first candidates are shown.
+ */
+class TraceReplayer(private val dictionary: BinaryDictionary,
+                    // prefetch is off unless an executor is given
+                    private val prefetchExecutor: Executor = Executor { }) {
+    sealed class Event(val name: String) {
+        class Input(val c: Char) : Event("char")
+        class KeyCode(name: String, val keyCode: Int) : Event(name)
+        class Pick(val index: Int) : Event("pick")
+    }
+
+    class Trace(val name: String, val events: List<Event>, val expected: String?)
+
+    class Stats(val name: String) {
+        val latencyNanos = mutableListOf<Long>()
+        var allocatedBytes = 0L
+
+        fun percentile(p: Int): Long {
+            val sorted = latencyNanos.sorted()
+            return sorted[((sorted.size - 1) * p / 100)]
+        }
+    }
+
+    class Result(val trace: Trace, val text: String, val stats: Map<String, Stats>) {
+        fun report(): String {
+            val sb = StringBuilder()
+            sb.append("trace ${trace.name}: ${trace.events.size} events\n")
+            for (s in stats.values) {
+                sb.append(String.format("  %-6s n=%-5d p50=%6dus p90=%6dus p99=%6dus max=%6dus alloc=%8dB/event\n",
+                    s.name, s.latencyNanos.size,
+                    s.percentile(50) / 1000, s.percentile(90) / 1000, s.percentile(99) / 1000,
+                    s.latencyNanos.max()!! / 1000, s.allocatedBytes / s.latencyNanos.size))
+            }
+            sb.append("  text: \"$text\"\n")
+            return sb.toString()
+        }
+    }
+
+    // editor side of the session, records what the IME commits
+    private class FakeEditor : IMEListener {
+        val committed = StringBuilder()
+        var composing = ""
+
+        override fun commitText(text: String) {
+            committed.append(text)
+            composing = ""
+        }
+
+        override fun commitCompletion(ci: CompletionInfo) {}
+
+        override fun composingText(text: String) {
+            composing = text
+        }
+
+        override fun getTextBeforeCursor(length: Int): CharSequence? {
+            val text = committed.toString() + composing
+            return text.substring(maxOf(0, text.length - length))
+        }
+
+        override fun showCapsKeyboard() {}
+
+        override fun candidatesChanged() {}
+
+        // key events the IME did not consume end up in the editor
+        fun sendKey(keyCode: Int) {
+            when (keyCode) {
+                KeyEvent.KEYCODE_DEL -> if (committed.isNotEmpty()) committed.setLength(committed.length - 1)
+                KeyEvent.KEYCODE_SPACE -> committed.append(' ')
+                KeyEvent.KEYCODE_ENTER -> committed.append('\n')
+            }
+        }
+
+        val text: String get() = committed.toString() + composing
+    }
+
+    fun replay(trace: Trace): Result {
+        val editor = FakeEditor()
+        val corrections = ArrayDeque<Runnable>()
+        val ime = IME({ dictionary }, prefetchExecutor, Executor { corrections.addLast(it) })
+        ime.listener = editor
+        ime.onCreate()
+        ime.reset()
+
+        val threadBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val threadId = Thread.currentThread().id
+        val stats = linkedMapOf<String, Stats>()
+        fun measure(name: String, block: () -> Unit) {
+            val allocBefore = threadBean.getThreadAllocatedBytes(threadId)
+            val start = System.nanoTime()
+            block()
+            val elapsed = System.nanoTime() - start
+            val allocated = threadBean.getThreadAllocatedBytes(threadId) - allocBefore
+            val s = stats.getOrPut(name) { Stats(name) }
+            s.latencyNanos.add(elapsed)
+            s.allocatedBytes += allocated
+        }
+        for (event in trace.events) {
+            measure(event.name) {
+                when (event) {
+                    is Event.Input -> ime.processText(event.c)
+                    is Event.KeyCode -> if (!ime.processKeycode(event.keyCode)) {
+                        editor.sendKey(event.keyCode)
+                    }
+                    is Event.Pick -> ime.onCandidate(ime.candidates[event.index])
+                }
+            }
+            while (corrections.isNotEmpty()) {
+                measure("fix") { corrections.pollFirst().run() }
+            }
+        }
+        ime.onDestroy()
+        return Result(trace, editor.text, stats)
+    }
+
+    companion object {
+        fun parse(file: File): Trace {
+            val events = mutableListOf<Event>()
+            var expected: String? = null
+            file.readLines().forEachIndexed { i, raw ->
+                val line = raw.trimEnd()
+                if (line.isBlank() || line.trimStart().startsWith("#")) {
+                    return@forEachIndexed
+                }
+                val cmd = line.substringBefore(' ')
+                val arg = if (line.contains(' ')) line.substringAfter(' ') else ""
+                when (cmd) {
+                    "type" -> arg.forEach {
+                        events.add(if (it == ' ') Event.KeyCode("space", KeyEvent.KEYCODE_SPACE) else Event.Input(it))
+                    }
+                    "del" -> events.add(Event.KeyCode("del", KeyEvent.KEYCODE_DEL))
+                    "space" -> events.add(Event.KeyCode("space", KeyEvent.KEYCODE_SPACE))
+                    "enter" -> events.add(Event.KeyCode("enter", KeyEvent.KEYCODE_ENTER))
+                    "pick" -> events.add(Event.Pick(arg.trim().toInt()))
+                    "expect" -> expected = arg
+                    else -> throw IllegalArgumentException("${file.name}:${i + 1}: unknown event '$cmd'")
+                }
+            }
+            return Trace(file.nameWithoutExtension, events, expected)
+        }
+    }
+}